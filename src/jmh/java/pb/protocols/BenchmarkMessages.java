@@ -0,0 +1,59 @@
+package pb.protocols;
+
+import java.util.Random;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionStartRequest;
+
+/**
+ * The messages that the codec benchmarks encode and decode, one of each
+ * shape that is common on the wire, filled in as an endpoint would send it.
+ */
+final class BenchmarkMessages {
+
+	private BenchmarkMessages() {
+	}
+
+	/**
+	 * @param name EventRequest, EventBytes, KeepAliveRequest or SessionStartRequest
+	 * @return the message
+	 */
+	static Message create(String name) {
+		switch(name) {
+		case "EventRequest": {
+			// a whiteboard path update, the most common event
+			EventRequest request = new EventRequest("BOARD_PATH_UPDATE",
+					"localhost:8111:0:whiteboard%1%[0,0,255,1,12,12,14,15,16,19,21,22]");
+			request.setSeq(12345);
+			return request;
+		}
+		case "EventBytes": {
+			byte[] data = new byte[1024];
+			new Random(1).nextBytes(data);
+			EventRequest request = new EventRequest("BOARD_DATA",data);
+			request.setSeq(12346);
+			return request;
+		}
+		case "KeepAliveRequest": {
+			KeepAliveRequest request = new KeepAliveRequest();
+			request.setTimeoutId(4242);
+			return request;
+		}
+		case "SessionStartRequest": {
+			SessionStartRequest request = new SessionStartRequest("Length",1L<<24,"Deflate",256);
+			request.setMessageIds(0x5eed5eedL);
+			request.setEventAcks(Endpoint.EventAcks.Cumulative.toString());
+			request.setCodec("Binary");
+			request.setKeepAliveIds();
+			request.setKeepAliveIdle();
+			request.setResumable();
+			request.setTimeoutId(1);
+			return request;
+		}
+		default:
+			throw new IllegalArgumentException(name);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package pb.protocols;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ns/message for {@link BinaryCodec} against compact JSON, the
+ * format used with peers that do not agree to the binary codec, for each
+ * common message shape. The bytes/message of both are printed once per
+ * message shape when the benchmark is set up. Run with
+ * <pre>
+ * mvn -P benchmarks test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=BinaryCodecBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class BinaryCodecBenchmark {
+
+	@Param({"EventRequest","EventBytes","KeepAliveRequest","SessionStartRequest"})
+	public String message;
+
+	private Message msg;
+
+	/**
+	 * The message in the binary format.
+	 */
+	private ByteBuffer binary;
+
+	/**
+	 * The message as compact JSON text.
+	 */
+	private String json;
+
+	@Setup
+	public void setup() {
+		msg = BenchmarkMessages.create(message);
+		binary = ByteBuffer.wrap(BinaryCodec.encode(msg));
+		json = JsonCodec.encode(msg,true);
+		System.out.println(message+": "+binary.remaining()+" bytes/message binary, "+
+				json.getBytes(StandardCharsets.UTF_8).length+" bytes/message json");
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return BinaryCodec.encode(msg);
+	}
+
+	@Benchmark
+	public Message decode() throws InvalidMessage {
+		return BinaryCodec.decode(binary,0,binary.remaining());
+	}
+
+	@Benchmark
+	public byte[] encodeJson() {
+		return JsonCodec.encode(msg,true).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public Message decodeJson() throws InvalidMessage {
+		return JsonCodec.decode(json);
+	}
+}
@@ -0,0 +1,87 @@
+package pb.protocols;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link JsonCodec} with the json-simple path it replaced, which
+ * parsed the text into a JSONObject, wrapped it in a {@link Document} and
+ * printed the whole doc to encode. Run with
+ * <pre>
+ * mvn -P benchmarks test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args=JsonCodecBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+	@Param({"EventRequest","EventBytes","KeepAliveRequest","SessionStartRequest"})
+	public String message;
+
+	private Message msg;
+
+	/**
+	 * The message as text, identified by its names.
+	 */
+	private String json;
+
+	/**
+	 * The message as json-simple held it, names included.
+	 */
+	private JSONObject legacy;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() throws InvalidMessage {
+		msg = BenchmarkMessages.create(message);
+		json = JsonCodec.encode(msg,false);
+		legacy = new JSONObject();
+		legacy.putAll((Map<String,Object>)JsonCodec.decodeDocument(json).obj);
+	}
+
+	@Benchmark
+	public Message decode() throws InvalidMessage {
+		return JsonCodec.decode(json);
+	}
+
+	@Benchmark
+	public Message decodeJsonSimple() throws InvalidMessage, ParseException {
+		Document doc = new Document((JSONObject)new JSONParser().parse(json));
+		return ProtocolRegistry.getInstance().getMessage(doc.getString("name")).newMessage(doc);
+	}
+
+	@Benchmark
+	public String encode() {
+		return JsonCodec.encode(msg,false);
+	}
+
+	@Benchmark
+	public String encodeCompact() {
+		return JsonCodec.encode(msg,true);
+	}
+
+	@Benchmark
+	public String encodeJsonSimple() {
+		return legacy.toJSONString();
+	}
+}
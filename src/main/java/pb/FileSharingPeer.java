@@ -7,11 +7,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -22,13 +20,14 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.codec.binary.Base64;
 
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Message;
+import pb.utils.BufferPool;
 import pb.utils.Utils;
 
 /**
@@ -57,12 +56,11 @@ public class FileSharingPeer {
 	
 	/**
 	 * Emitted when a peer is sending a chunk of a file to another peer.
-	 * The single argument is a string that is a Base64 encoded byte array
-	 * that represents the chunk of the file. If the argument
-	 * is the empty string "" then it indicates there are no more
+	 * The single argument is the bytes of the chunk of the file. If the
+	 * argument is the empty string "" then it indicates there are no more
 	 * chunks to receive.
 	 * <ul>
-	 * <li>{@code args[0] instanceof String}
+	 * <li>{@code args[0] instanceof ByteBuffer} or {@code args[0] instanceof String}
 	 * </ul>
 	 */
 	private static final String fileContents = "FILE_CONTENTS";
@@ -96,32 +94,27 @@ public class FileSharingPeer {
 	 */
 	private static int chunkSize=Utils.chunkSize;
 	
-	/**
-	 * buffer for file reading
-	 */
-	private static byte[] buffer = new byte[chunkSize];
-	
 	/**
 	 * Read up to chunkSize bytes of a file and send to client.
 	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
+	 * to read some more bytes. This is using the timer thread, but the
+	 * endpoint buffers outgoing messages, so only reading the file can
+	 * hold up the other timeouts. The chunk is read into a pooled buffer
+	 * since any number of files may be transmitted at once, and the event
+	 * takes a copy of it.
 	 * @param in the file input stream
 	 * @param endpoint the endpoint to send the file
 	 */
 	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
+		ByteBuffer chunk = BufferPool.getInstance().acquireHeap(chunkSize);
 		try {
-			int read = in.read(buffer);
+			int read = in.read(chunk.array(),0,chunkSize);
 			if(read==-1) {
 				endpoint.emit(fileContents, ""); // signals no more bytes in file
 				in.close();
 			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
+				chunk.limit(read);
+				endpoint.emit(fileContents, chunk);
 				if(read<chunkSize) {
 					endpoint.emit(fileContents, "");
 					in.close();
@@ -133,6 +126,8 @@ public class FileSharingPeer {
 			}
 		} catch (IOException e) {
 			endpoint.emit(fileError,e.toString());
+		} finally {
+			BufferPool.getInstance().release(chunk);
 		}
 	}
 	
@@ -221,6 +216,8 @@ public class FileSharingPeer {
         peerManager.on(PeerManager.peerStarted, (args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
+        	// file chunks must not hold up anything else on the connection
+        	endpoint.setEventPriority(fileContents,Message.Priority.Bulk);
         	endpoint.on(getFile,(args2)->{
         		String filename = (String) args2[0];
         		System.out.println("Peer is requesting file: "+filename);
@@ -276,12 +273,11 @@ public class FileSharingPeer {
 			return;
 		}
 		try {
-			OutputStream out = new FileOutputStream(parts[2]);
+			FileOutputStream out = new FileOutputStream(parts[2]);
 			clientManager.on(PeerManager.peerStarted, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
 				endpoint.on(fileContents,(args2)->{
-					String chunk = (String) args2[0];
-					if(chunk.length()==0) {
+					if(args2[0] instanceof String) {
 						// file download complete
 						try {
 							out.close();
@@ -290,10 +286,11 @@ public class FileSharingPeer {
 						}
 						clientManager.shutdown();
 					} else {
+						ByteBuffer chunk = (ByteBuffer) args2[0];
 						try {
-							out.write(Base64.decodeBase64(chunk));
+							while(chunk.hasRemaining()) out.getChannel().write(chunk);
 						} catch (IOException e) {
-							System.out.println("Error writing file chunk: "+chunk);
+							System.out.println("Error writing file chunk of "+chunk.remaining()+" bytes");
 						}
 					}
 				}).on(fileError, (args2)->{
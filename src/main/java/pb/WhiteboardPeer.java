@@ -91,6 +91,18 @@ public class WhiteboardPeer {
         	host = cmd.getOptionValue("host");
         }
         
+        // keep our session with the whiteboard server for a while if the
+        // connection drops, so that reconnecting carries on where it left off
+        if(System.getProperty("pb.sessionResumeGrace")==null) {
+        	Utils.getInstance().setSessionResumeGrace(30000);
+        }
+        // and keep the paths we draw while the connection is down, to send
+        // them once we are back even if the session could not be resumed
+        if(System.getProperty("pb.eventJournal")==null) {
+        	Utils.getInstance().setEventJournal(10000,Utils.getInstance().getEventJournalFile(),
+        			Utils.getInstance().getEventJournalFileSize());
+        }
+        
 		WhiteboardApp whiteboard = new WhiteboardApp(peerPort,host,whiteboardServerPort);
 		whiteboard.waitToFinish();
 		Utils.getInstance().cleanUp();
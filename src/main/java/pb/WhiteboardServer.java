@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -30,7 +31,10 @@ public class WhiteboardServer {
 	private static Logger log = Logger.getLogger(WhiteboardServer.class.getName());
 	public static HashMap<String, Object> currentSharingBoard = new HashMap<>();
 	public static HashMap<Endpoint, ArrayList<String>> endpointBoardsMapping = new HashMap<>();
-	public static ArrayList<Endpoint> currentEndpoints = new ArrayList();
+	/**
+	 * The endpoints of the clients, used from the threads of every endpoint.
+	 */
+	public static CopyOnWriteArrayList<Endpoint> currentEndpoints = new CopyOnWriteArrayList<>();
 
 	/**
 	 * Emitted by a client to tell the server that a board is being shared. Argument
@@ -101,6 +105,72 @@ public class WhiteboardServer {
 		System.exit(-1);
 	}
 	
+	/**
+	 * Relay the board events of a client's endpoint to the other clients.
+	 * @param endpoint
+	 */
+	private static void handleClient(Endpoint endpoint) {
+		endpoint.on(shareBoard, args1 -> {
+			log.info("This board is shared");
+			String boardName =  WhiteboardApp.getBoardName((String)args1[0]);
+			currentSharingBoard.put(boardName, args1[0]);
+			if (endpointBoardsMapping.get(endpoint)==null){
+				endpointBoardsMapping.put(endpoint, new ArrayList<>());
+			}
+			endpointBoardsMapping.get(endpoint).add(boardName);
+			for (Endpoint endpoint1:currentEndpoints) {
+				if (!endpoint1.equals(endpoint)) {
+					endpoint1.emit(sharingBoard, args1);
+				}
+			}
+		}).on(unshareBoard, args1 -> {
+			log.info("This board is not shared");
+			String boardName =  WhiteboardApp.getBoardName((String)args1[0]);
+			currentSharingBoard.remove(boardName);
+			endpointBoardsMapping.get(endpoint).remove(boardName);
+			for (Endpoint endpoint1:currentEndpoints) {
+				if (!endpoint1.equals(endpoint)){
+					endpoint1.emit(unsharingBoard, args1);
+				}
+			}
+		}).on(WhiteboardApp.boardUndoUpdate, args1 -> {
+			currentSharingBoard.put(WhiteboardApp.getBoardName((String)args1[0]), args1[0]);
+			for (Endpoint endpoint1:currentEndpoints) {
+				if (!endpoint1.equals(endpoint)){
+					endpoint1.emit(WhiteboardApp.boardUndoAccepted, args1);
+				}
+			}
+
+		}).on(WhiteboardApp.boardPathUpdate, args1 -> {
+			String updatedBoardName =  WhiteboardApp.getBoardName((String)args1[0]);
+			String originalData = (String) currentSharingBoard.get(updatedBoardName);
+			String latestPaths = WhiteboardApp.getBoardPaths(originalData)+ "%" + WhiteboardApp.getBoardPaths((String)args1[0]);
+			String latestData = updatedBoardName + "%" + WhiteboardApp.getBoardVersion((String)args1[0])+ "%"+latestPaths;
+			currentSharingBoard.put(WhiteboardApp.getBoardName((String)args1[0]), latestData);
+			for (Endpoint endpoint1:currentEndpoints) {
+				if (!endpoint1.equals(endpoint)){
+					endpoint1.emit(WhiteboardApp.boardPathAccepted, args1);
+				}
+			}
+		}).on(WhiteboardApp.boardClearUpdate, args1 -> {
+            currentSharingBoard.put(WhiteboardApp.getBoardName((String)args1[0]), args1[0]);
+            for (Endpoint endpoint1:currentEndpoints) {
+                if (!endpoint1.equals(endpoint)){
+                    endpoint1.emit(WhiteboardApp.boardClearAccepted, args1);
+                }
+            }
+        }).on(WhiteboardApp.boardDeleted, args1 -> {
+			String boardName =  WhiteboardApp.getBoardName((String)args1[0]);
+			currentSharingBoard.remove(boardName);
+
+			for (Endpoint endpoint1:currentEndpoints) {
+				if (!endpoint1.equals(endpoint)){
+					endpoint1.emit(WhiteboardApp.boardDeletedAccepted, args1);
+				}
+			}
+		});
+	}
+	
 	public static void main( String[] args ) throws IOException, InterruptedException
     {
     	// set a nice log format
@@ -111,6 +181,8 @@ public class WhiteboardServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("reactor",false,"use a few selector threads rather than a thread per client");
+        options.addOption("virtual",false,"use a virtual thread per client");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -130,6 +202,10 @@ public class WhiteboardServer {
 			}
         }
 
+        if(cmd.hasOption("virtual")) {
+        	Utils.getInstance().setVirtualThreads(true);
+        }
+
         // create a server manager and setup event handlers
         ServerManager serverManager;
         
@@ -139,12 +215,22 @@ public class WhiteboardServer {
         	serverManager = new ServerManager(port);
         }
         
+        if(cmd.hasOption("reactor")) {
+        	serverManager.setIOMode(IOThread.Mode.Reactor);
+        }
+        
         /**
          * TODO: Put some server related code here.
          */
         // start up the server
         log.info("Whiteboard Server starting up");
 
+        // keep the sessions of clients whose connection drops for a while, so
+        // that they can reconnect without being sent every shared board again
+        if (System.getProperty("pb.sessionResumeGrace") == null) {
+        	Utils.getInstance().setSessionResumeGrace(30000);
+        }
+
 		serverManager.on(ServerManager.sessionStarted,(eventArgs)->{
 			Endpoint endpoint = (Endpoint)eventArgs[0];
 			log.info("!!!!!!!!!!!!!Endpoint"+endpoint.getOtherEndpointId());
@@ -158,65 +244,26 @@ public class WhiteboardServer {
 				endpoint.emit(sharingBoard, sharedBoard.getValue());
 			}
 
-			endpoint.on(shareBoard, args1 -> {
-				log.info("This board is shared");
-				String boardName =  WhiteboardApp.getBoardName((String)args1[0]);
-				currentSharingBoard.put(boardName, args1[0]);
-				if (endpointBoardsMapping.get(endpoint)==null){
-					endpointBoardsMapping.put(endpoint, new ArrayList<>());
-				}
-				endpointBoardsMapping.get(endpoint).add(boardName);
-				for (Endpoint endpoint1:currentEndpoints) {
-					if (!endpoint1.equals(endpoint)) {
-						endpoint1.emit(sharingBoard, args1);
-					}
-				}
-			}).on(unshareBoard, args1 -> {
-				log.info("This board is not shared");
-				String boardName =  WhiteboardApp.getBoardName((String)args1[0]);
-				currentSharingBoard.remove(boardName);
-				endpointBoardsMapping.get(endpoint).remove(boardName);
-				for (Endpoint endpoint1:currentEndpoints) {
-					if (!endpoint1.equals(endpoint)){
-						endpoint1.emit(unsharingBoard, args1);
-					}
-				}
-			}).on(WhiteboardApp.boardUndoUpdate, args1 -> {
-				currentSharingBoard.put(WhiteboardApp.getBoardName((String)args1[0]), args1[0]);
-				for (Endpoint endpoint1:currentEndpoints) {
-					if (!endpoint1.equals(endpoint)){
-						endpoint1.emit(WhiteboardApp.boardUndoAccepted, args1);
-					}
-				}
+			handleClient(endpoint);
 
-			}).on(WhiteboardApp.boardPathUpdate, args1 -> {
-				String updatedBoardName =  WhiteboardApp.getBoardName((String)args1[0]);
-				String originalData = (String) currentSharingBoard.get(updatedBoardName);
-				String latestPaths = WhiteboardApp.getBoardPaths(originalData)+ "%" + WhiteboardApp.getBoardPaths((String)args1[0]);
-				String latestData = updatedBoardName + "%" + WhiteboardApp.getBoardVersion((String)args1[0])+ "%"+latestPaths;
-				currentSharingBoard.put(WhiteboardApp.getBoardName((String)args1[0]), latestData);
-				for (Endpoint endpoint1:currentEndpoints) {
-					if (!endpoint1.equals(endpoint)){
-						endpoint1.emit(WhiteboardApp.boardPathAccepted, args1);
-					}
-				}
-			}).on(WhiteboardApp.boardClearUpdate, args1 -> {
-                currentSharingBoard.put(WhiteboardApp.getBoardName((String)args1[0]), args1[0]);
-                for (Endpoint endpoint1:currentEndpoints) {
-                    if (!endpoint1.equals(endpoint)){
-                        endpoint1.emit(WhiteboardApp.boardClearAccepted, args1);
-                    }
-                }
-            }).on(WhiteboardApp.boardDeleted, args1 -> {
-				String boardName =  WhiteboardApp.getBoardName((String)args1[0]);
-				currentSharingBoard.remove(boardName);
+		}).on(ServerManager.sessionSuspended,(eventArgs)->{
+			// boards stay shared, and events for the client are held, while it reconnects
+			Endpoint endpoint = (Endpoint)eventArgs[0];
+			log.warning("Client session suspended: "+endpoint.getOtherEndpointId());
 
-				for (Endpoint endpoint1:currentEndpoints) {
-					if (!endpoint1.equals(endpoint)){
-						endpoint1.emit(WhiteboardApp.boardDeletedAccepted, args1);
-					}
-				}
-			});
+		}).on(ServerManager.sessionResumed,(eventArgs)->{
+			// the client already has the boards, so carry on where it left off
+			Endpoint endpoint = (Endpoint)eventArgs[0];
+			Endpoint oldEndpoint = (Endpoint)eventArgs[1];
+			// the old endpoint may already have been removed if its session ended
+			currentEndpoints.replaceAll(e -> e==oldEndpoint ? endpoint : e);
+			currentEndpoints.addIfAbsent(endpoint);
+			ArrayList<String> boards = endpointBoardsMapping.remove(oldEndpoint);
+			if (boards != null) {
+				endpointBoardsMapping.put(endpoint, boards);
+			}
+			handleClient(endpoint);
+			log.info("Client session resumed: "+endpoint.getOtherEndpointId());
 
 		}).on(ServerManager.sessionStopped,(eventArgs)->{
 			Endpoint endpoint = (Endpoint)eventArgs[0];
@@ -19,7 +19,7 @@ import javax.swing.JComponent;
  * You probably don't need to modify this class.
  */
 @SuppressWarnings("serial")
-public class DrawArea extends JComponent {
+public final class DrawArea extends JComponent {
 	private static Logger log = Logger.getLogger(DrawArea.class.getName());
 
 	// Image in which we're going to draw
@@ -39,7 +39,7 @@ import javax.swing.SwingUtilities;
  * Initial code obtained from:
  * https://www.ssaurel.com/blog/learn-how-to-make-a-swing-painting-and-drawing-application/
  */
-public class WhiteboardApp {
+public final class WhiteboardApp {
 	private static Logger log = Logger.getLogger(WhiteboardApp.class.getName());
 	ClientManager whiteboardManager;
 	Endpoint clientEndpoint;
@@ -205,38 +205,11 @@ public class WhiteboardApp {
 				}catch (Exception e){}
 				clientEndpoint = (Endpoint)args[0];
 				log.info("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~Endpoint"+clientEndpoint.getOtherEndpointId());
-				clientEndpoint.on(WhiteboardServer.sharingBoard, args1 -> {
-					String data = (String)args1[0];
-					Whiteboard sharedWhiteboard = new Whiteboard(getBoardName(data), true);
-					String versionAndPath = String.valueOf(this.getBoardData(data));
-					sharedWhiteboard.whiteboardFromString(getBoardName(data), versionAndPath);
-					addBoard(sharedWhiteboard, false);
-				}).on(WhiteboardServer.unsharingBoard, args1 -> {
-					String data = (String)args1[0];
-					unshareRemoteBoard(getBoardName(data));
-				}).on(boardUndoAccepted, args1 -> {
-					String boardAllData = (String)args1[0];
-					String boardName = this.getBoardName(boardAllData);
-					long version = this.getBoardVersion(boardAllData);
-					whiteboards.get(boardName).undo(version-1);
-					this.drawSelectedWhiteboard();
-				}).on(boardPathAccepted, args1 -> {
-					String pathData = (String)args1[0];
-					String boardName = this.getBoardName(pathData);
-					long version = this.getBoardVersion(pathData);
-					WhiteboardPath newPath = new WhiteboardPath(this.getBoardPaths(pathData));
-					whiteboards.get(boardName).addPath(newPath,version-1);
-					this.drawSelectedWhiteboard();
-				}).on(boardClearAccepted, args1 -> {
-					String pathData = (String)args1[0];
-					String boardName = this.getBoardName(pathData);
-					long version = this.getBoardVersion(pathData);
-					whiteboards.get(boardName).clear(version-1);
-					this.drawSelectedWhiteboard();
-				}).on(boardDeletedAccepted, args1 -> {
-					String boardData = (String)args1[0];
-					unshareRemoteBoard(getBoardName(boardData));
-				});
+				handleServer();
+			}).on(ClientManager.sessionResumed, (args)->{
+				// the server kept our session, so carry on where we left off
+				clientEndpoint = (Endpoint)args[0];
+				handleServer();
 			}).on(ClientManager.sessionStopped, (args)->{
 				clientEndpoint = (Endpoint)args[0];
 
@@ -261,6 +234,44 @@ public class WhiteboardApp {
 		
 	}
 	
+	/**
+	 * Handle the events the whiteboard server sends on the client endpoint.
+	 */
+	private void handleServer() {
+		clientEndpoint.on(WhiteboardServer.sharingBoard, args1 -> {
+			String data = (String)args1[0];
+			Whiteboard sharedWhiteboard = new Whiteboard(getBoardName(data), true);
+			String versionAndPath = String.valueOf(getBoardData(data));
+			sharedWhiteboard.whiteboardFromString(getBoardName(data), versionAndPath);
+			addBoard(sharedWhiteboard, false);
+		}).on(WhiteboardServer.unsharingBoard, args1 -> {
+			String data = (String)args1[0];
+			unshareRemoteBoard(getBoardName(data));
+		}).on(boardUndoAccepted, args1 -> {
+			String boardAllData = (String)args1[0];
+			String boardName = getBoardName(boardAllData);
+			long version = getBoardVersion(boardAllData);
+			whiteboards.get(boardName).undo(version-1);
+			this.drawSelectedWhiteboard();
+		}).on(boardPathAccepted, args1 -> {
+			String pathData = (String)args1[0];
+			String boardName = getBoardName(pathData);
+			long version = getBoardVersion(pathData);
+			WhiteboardPath newPath = new WhiteboardPath(getBoardPaths(pathData));
+			whiteboards.get(boardName).addPath(newPath,version-1);
+			this.drawSelectedWhiteboard();
+		}).on(boardClearAccepted, args1 -> {
+			String pathData = (String)args1[0];
+			String boardName = getBoardName(pathData);
+			long version = getBoardVersion(pathData);
+			whiteboards.get(boardName).clear(version-1);
+			this.drawSelectedWhiteboard();
+		}).on(boardDeletedAccepted, args1 -> {
+			String boardData = (String)args1[0];
+			unshareRemoteBoard(getBoardName(boardData));
+		});
+	}
+	
 	/******
 	 * 
 	 * Utility methods to extract fields from argument strings.
@@ -5,18 +5,21 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventJournal;
 import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.Utils;
 
 /**
  * Manages the connection to the server and the client's state.
@@ -62,6 +65,61 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when the connection of a session that can be resumed has
+	 * dropped. Events emitted on the endpoint are held until the session is
+	 * resumed on a new connection, or until {@link #sessionError} is emitted
+	 * for the endpoint if it is not. With an event journal this is emitted
+	 * whenever the connection drops, and events emitted on the endpoint are
+	 * held until a new session starts, if the session is not resumed, and
+	 * then sent on it; {@link #sessionError} is emitted for the endpoint then,
+	 * or when the client gives up trying to reconnect.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionSuspended="SESSION_SUSPENDED";
+	
+	/**
+	 * Emitted when a session whose connection dropped has been resumed on
+	 * a new endpoint. Events emitted on the old endpoint are sent on the new
+	 * one, but callbacks for received events must be added to the new one.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint} the new endpoint</li>
+	 * <li>{@code args[1] instanceof Endpoint} the old endpoint</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
+	/**
+	 * Emitted when the connection has failed and the client is about to
+	 * try to reconnect.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Integer} the number of the try, from 1</li>
+	 * <li>{@code args[1] instanceof Long} milliseconds until the try</li>
+	 * </ul>
+	 */
+	public static final String reconnecting="RECONNECTING";
+	
+	/**
+	 * Emitted when the client has reconnected after its connection failed,
+	 * once the session has started or resumed.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * <li>{@code args[1] instanceof Integer} the number of tries it took</li>
+	 * <li>{@code args[2] instanceof Long} milliseconds since the connection failed</li>
+	 * </ul>
+	 */
+	public static final String reconnected="RECONNECTED";
+	
+	/**
+	 * Emitted when the client has given up trying to reconnect.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Integer} the number of tries made</li>
+	 * </ul>
+	 */
+	public static final String reconnectFailed="RECONNECT_FAILED";
+	
 	/**
 	 * The session protocol for this client, so we can stop the
 	 * session when we need to.
@@ -88,6 +146,46 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * Tries to reconnect since the connection last failed, 0 while connected.
+	 */
+	private volatile int reconnectAttempts=0;
+	
+	/**
+	 * When the connection last failed, as given by System.nanoTime().
+	 */
+	private volatile long failedAt=0;
+	
+	/**
+	 * Guards the session whose connection dropped.
+	 */
+	private final Object suspendedLock = new Object();
+	
+	/**
+	 * The endpoint and event protocol of the session whose connection
+	 * dropped, kept so that it can be resumed, null if there is none.
+	 */
+	private Endpoint suspendedEndpoint=null;
+	private EventProtocol suspendedEvents=null;
+	
+	/**
+	 * When the server will give up on the session whose connection dropped,
+	 * as given by System.currentTimeMillis().
+	 */
+	private long suspendedUntil=0;
+	
+	/**
+	 * Whether a new connection is asking to resume the session, in which
+	 * case the reply decides what becomes of it.
+	 */
+	private boolean resuming=false;
+	
+	/**
+	 * Keeps the events waiting to be sent across connections, null if
+	 * they are not kept.
+	 */
+	private final EventJournal journal;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -96,8 +194,12 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 * @throws InterruptedException
 	 */
 	public ClientManager(String host,int port) throws UnknownHostException, InterruptedException {
+		super("ClientManager",Utils.getInstance().useVirtualThreads());
 		this.host=host;
 		this.port=port;
+		Utils utils = Utils.getInstance();
+		journal = utils.getEventJournal()>0 ? new EventJournal(utils.getEventJournal(),
+				utils.getEventJournalFile(),utils.getEventJournalFileSize()) : null;
 	}
 	
 	@Override
@@ -105,26 +207,54 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		sessionProtocol.stopSession();
 	}
 	
+	/**
+	 * Connect, and reconnect whenever the connection ends in error, until it
+	 * ends cleanly or the tries to reconnect run out. The first try is made
+	 * straight away, since most failures are short, and each try after waits
+	 * a random time up to a limit that doubles each time, so that clients
+	 * that lost the same server do not all come back to it at once.
+	 */
 	@Override
 	public void run() {
-		int retries=10;
-		while(retries-- > 0) {
-			if(attemptToConnect(host,port)) {
-				// the connection ended in error, so let's just
-				// try to get it back up, transparently to the
-				// higher layer
+		while(attemptToConnect(host,port)) {
+			// the connection ended in error, so let's just
+			// try to get it back up, transparently to the
+			// higher layer
+			if(reconnectAttempts==0) failedAt=System.nanoTime();
+			int attempt = ++reconnectAttempts;
+			int maxAttempts = Utils.getInstance().getReconnectAttempts();
+			if(maxAttempts>0 && attempt>maxAttempts) {
+				log.severe("no more retries, giving up");
+				localEmit(reconnectFailed,attempt-1);
+				expireSession();
+				return;
+			}
+			long delay = reconnectDelay(attempt);
+			log.info("reconnecting in "+delay+"ms, try "+attempt);
+			localEmit(reconnecting,attempt,delay);
+			if(delay>0) {
 				try {
-					Thread.sleep(5000); // short pause before retrying
+					Thread.sleep(delay);
 				} catch (InterruptedException e) {
-					continue;
-				} 
-			} else {
-				// connection ended cleanly, so we can terminate this manager
-				return;
+					// try now then
+				}
 			}
 		}
-		log.severe("no more retries, giving up");
-		
+		// connection ended cleanly, so we can terminate this manager
+	}
+	
+	/**
+	 * @param attempt the number of the try to reconnect, from 1
+	 * @return milliseconds to wait before the try, none for the first and
+	 * otherwise anything up to the base delay doubled for each try after the
+	 * second, but no more than the most delay
+	 */
+	private static long reconnectDelay(int attempt) {
+		if(attempt<=1) return 0;
+		Utils utils = Utils.getInstance();
+		long limit = Math.min(utils.getReconnectMaxDelay(),
+				(long)utils.getReconnectBaseDelay()<<Math.min(attempt-2,30));
+		return ThreadLocalRandom.current().nextLong(Math.max(0,limit)+1);
 	}
 	/**
 	 * Attempt to connect.
@@ -171,6 +301,14 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
 		sessionProtocol = new SessionProtocol(endpoint,this);
+		if(journal!=null) sessionProtocol.setJournalId(journal.getId());
+		synchronized(suspendedLock) {
+			if(suspendedEvents!=null && System.currentTimeMillis()<suspendedUntil) {
+				resuming=true;
+				sessionProtocol.setResume(suspendedEndpoint.getSessionId(),
+						suspendedEndpoint.getResumeToken(),suspendedEvents.getReceivedSeq());
+			}
+		}
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(sessionProtocol);
@@ -206,7 +344,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("connection with server terminated abruptly");
-		localEmit(sessionError,endpoint);
+		if(!suspendSession(endpoint)) localEmit(sessionError,endpoint);
 		endpoint.close();
 		shouldWeRetry=true;
 	}
@@ -230,7 +368,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint,Protocol protocol) {
 		log.severe("server has timed out");
-		localEmit(sessionError,endpoint);
+		if(!suspendSession(endpoint)) localEmit(sessionError,endpoint);
 		endpoint.close();
 		shouldWeRetry=true;
 	}
@@ -253,18 +391,171 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with server");
-		
 		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+		eventProtocol.setJournal(journal);
 		try {
 			endpoint.handleProtocol(eventProtocol);
 			eventProtocol.startAsServer();
 		} catch (ProtocolAlreadyRunning e) {
 			// hmmm... already requested by the client
 		}
+		// the server did not resume the session whose connection dropped
+		if(journal!=null) {
+			replaySession(eventProtocol);
+		} else {
+			expireSession();
+		}
+		reconnected(endpoint);
 		
 		localEmit(sessionStarted,endpoint);
 	}
+	
+	/**
+	 * Send the events of the session whose connection dropped, if there is
+	 * one, on the new session, and give up on the old session.
+	 * @param eventProtocol of the new session
+	 */
+	private void replaySession(EventProtocol eventProtocol) {
+		Endpoint old;
+		EventProtocol oldEvents;
+		synchronized(suspendedLock) {
+			old=suspendedEndpoint;
+			oldEvents=suspendedEvents;
+			suspendedEndpoint=null;
+			suspendedEvents=null;
+			resuming=false;
+		}
+		if(oldEvents==null) return;
+		log.warning("session with server was not resumed, sending its events again");
+		eventProtocol.replay(oldEvents);
+		localEmit(sessionError,old);
+	}
 
+	/**
+	 * A session is under way again, so the next failure starts counting
+	 * tries to reconnect afresh. Only counted once the session is under way
+	 * so that a server that takes connections and drops them is not tried
+	 * again straight away every time.
+	 * @param endpoint
+	 */
+	private void reconnected(Endpoint endpoint) {
+		if(reconnectAttempts==0) return;
+		localEmit(reconnected,endpoint,reconnectAttempts,(System.nanoTime()-failedAt)/1000000);
+		reconnectAttempts=0;
+	}
+	
+	/**
+	 * The server never asks to resume a session.
+	 * @param endpoint
+	 * @param sessionId
+	 * @param resumeToken
+	 * @return -1
+	 */
+	@Override
+	public long resumeSession(Endpoint endpoint, String sessionId, String resumeToken) {
+		return -1;
+	}
+	
+	/**
+	 * The session protocol is indicating that the session whose connection
+	 * dropped has resumed. A new event protocol takes over from the one on
+	 * the old endpoint.
+	 * @param endpoint
+	 * @param receivedSeq number up to which the server received every event
+	 */
+	@Override
+	public void sessionResumed(Endpoint endpoint, long receivedSeq) {
+		Endpoint old;
+		EventProtocol oldEvents;
+		synchronized(suspendedLock) {
+			old=suspendedEndpoint;
+			oldEvents=suspendedEvents;
+			suspendedEndpoint=null;
+			suspendedEvents=null;
+			resuming=false;
+		}
+		if(oldEvents==null) {
+			log.severe("server resumed a session that was given up on");
+			localEmit(sessionError,endpoint);
+			endpoint.close();
+			return;
+		}
+		log.info("session has resumed with server");
+		reconnected(endpoint);
+		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+		eventProtocol.setJournal(journal);
+		try {
+			endpoint.handleProtocol(eventProtocol);
+			eventProtocol.startAsServer();
+		} catch (ProtocolAlreadyRunning e) {
+			// hmmm... already requested by the server
+		}
+		eventProtocol.resume(oldEvents,receivedSeq);
+		localEmit(sessionResumed,endpoint,old);
+	}
+	
+	/**
+	 * Keep the session of an endpoint whose connection dropped, so that
+	 * it can be resumed when we reconnect, if the server agreed that it can
+	 * be, or so that its events can be sent on the next session if there is
+	 * a journal. Must be called before the endpoint is closed.
+	 * @param endpoint
+	 * @return true if the session was kept
+	 */
+	private boolean suspendSession(Endpoint endpoint) {
+		boolean expired=false;
+		synchronized(suspendedLock) {
+			if(resuming) {
+				// the connection that was to resume the session dropped
+				resuming=false;
+				expired = System.currentTimeMillis()>=suspendedUntil;
+			}
+		}
+		// with a journal the events wait for the next session regardless
+		if(expired && journal==null) expireSession();
+		if(endpoint.getSessionId()==null && journal==null) return false;
+		EventProtocol eventProtocol = (EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+		if(eventProtocol==null) return false;
+		int grace = endpoint.getSessionId()!=null ? Utils.getInstance().getSessionResumeGrace() : 0;
+		synchronized(suspendedLock) {
+			if(suspendedEndpoint==endpoint) return true;
+			eventProtocol.suspend();
+			suspendedEndpoint=endpoint;
+			suspendedEvents=eventProtocol;
+			suspendedUntil=System.currentTimeMillis()+grace;
+		}
+		if(journal==null) {
+			Utils.getInstance().setTimeout(()->{
+				synchronized(suspendedLock) {
+					if(suspendedEndpoint!=endpoint || resuming) return;
+				}
+				expireSession();
+			}, grace);
+		}
+		log.info("keeping session with server to be resumed");
+		localEmit(sessionSuspended,endpoint);
+		return true;
+	}
+	
+	/**
+	 * Give up on the session whose connection dropped, if there is one.
+	 */
+	private void expireSession() {
+		Endpoint old;
+		EventProtocol oldEvents;
+		synchronized(suspendedLock) {
+			old=suspendedEndpoint;
+			oldEvents=suspendedEvents;
+			suspendedEndpoint=null;
+			suspendedEvents=null;
+			resuming=false;
+		}
+		if(oldEvents==null) return;
+		log.warning("session with server was not resumed");
+		oldEvents.abandon();
+		localEmit(sessionError,old);
+	}
+	
 	/**
 	 * The session protocol is indicating that the session has stopped. 
 	 * @param endpoint
@@ -2,9 +2,11 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.logging.Logger;
 
 /**
@@ -14,16 +16,37 @@ import java.util.logging.Logger;
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
+ * <br/>
+ * In {@link Mode#Reactor} mode the server socket is created from a channel,
+ * and each accepted connection is passed on as a socket channel using
+ * {@link pb.managers.ServerManager#acceptClient(java.nio.channels.SocketChannel)}
+ * so that it can be driven by the {@link pb.managers.endpoint.Reactor} rather
+ * than having a thread of its own.
  * 
  * @see {@link pb.managers.ServerManager}
  * @author aaron
  *
  */
-public class IOThread extends Thread {
+public final class IOThread extends Thread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
 	private ServerSocket serverSocket=null;
 	private int port;
 	private ServerManager serverManager;
+	private Mode mode;
+	
+	/**
+	 * How accepted connections are handled.
+	 */
+	static public enum Mode {
+		/**
+		 * A blocking endpoint thread per connection.
+		 */
+		Blocking,
+		/**
+		 * Non-blocking endpoints driven by a few selector threads.
+		 */
+		Reactor
+	}
 	
 	/**
 	 * Emitted when the io thread has started. The argument
@@ -43,9 +66,29 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		this(port,serverManager,Mode.Blocking);
+	}
+	
+	/**
+	 * Initialise the IOThread with a port number to listen on, reference
+	 * to the {@link pb.managers.ServerManager} and how accepted connections
+	 * should be handled.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param mode blocking or reactor
+	 * @throws IOException whenever the server socket can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, Mode mode) throws IOException{
+		if(mode==Mode.Reactor) {
+			// accept still blocks, but accepted sockets will have a channel
+			serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.bind(new InetSocketAddress(port));
+		} else {
+			serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		}
 		this.port=port;
 		this.serverManager=serverManager;
+		this.mode=mode;
 		setName("IOThread");
 		start();
 	}
@@ -80,7 +123,11 @@ public class IOThread extends Thread {
 			try {
 				clientSocket = serverSocket.accept();
 				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
+				if(mode==Mode.Reactor) {
+					serverManager.acceptClient(clientSocket.getChannel());
+				} else {
+					serverManager.acceptClient(clientSocket);
+				}
 			} catch (IOException e) {
 				log.warning("exception accepting connection: "+e.getMessage());
 			} 
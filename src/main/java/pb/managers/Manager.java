@@ -5,7 +5,7 @@ import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.IEndpointHandler;
 import pb.protocols.IProtocolHandler;
 import pb.protocols.Protocol;
-import pb.utils.Eventable;
+import pb.utils.ThreadedEventable;
 
 /**
  * Manager base class. Methods must be overriden.
@@ -15,7 +15,21 @@ import pb.utils.Eventable;
  * @author aaron
  *
  */
-public class Manager extends Eventable implements IProtocolHandler, IEndpointHandler{
+public class Manager extends ThreadedEventable implements IProtocolHandler, IEndpointHandler{
+	
+	/**
+	 * Run on a platform thread unless told otherwise.
+	 */
+	public Manager() {
+	}
+	
+	/**
+	 * @param name the name to give the manager's thread
+	 * @param virtual true to run on a virtual thread
+	 */
+	protected Manager(String name, boolean virtual) {
+		super(name,virtual);
+	}
 	
 	/**
 	 * Shut this manager down, closing all connections gracefully where possible.
@@ -62,6 +76,24 @@ public class Manager extends Eventable implements IProtocolHandler, IEndpointHan
 		
 	}
 	
+	/**
+	 * The endpoint has too many bytes queued to send.
+	 * @param endpoint
+	 */
+	@Override
+	public void endpointCongested(Endpoint endpoint) {
+		
+	}
+	
+	/**
+	 * The endpoint no longer has too many bytes queued to send.
+	 * @param endpoint
+	 */
+	@Override
+	public void endpointUncongested(Endpoint endpoint) {
+		
+	}
+	
 
 	/**
 	 * The protocol on the endpoint is not responding.
@@ -84,6 +84,7 @@ public class PeerManager extends Manager {
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
+		super("PeerManager",false);
 		clientManagers = new HashSet<>();
 		this.myServerPort=myServerPort;
 	}
@@ -2,12 +2,18 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.managers.endpoint.Reactor;
+import pb.managers.endpoint.ReactorEndpoint;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
@@ -16,6 +22,8 @@ import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.TimingWheel;
+import pb.utils.Utils;
 
 
 /**
@@ -63,6 +71,45 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when the connection of a session that can be resumed has
+	 * dropped. Events emitted on the endpoint are held until the session is
+	 * resumed, or until {@link #sessionError} is emitted for the endpoint if
+	 * it is not resumed in time.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionSuspended="SESSION_SUSPENDED";
+	
+	/**
+	 * Emitted when a session whose connection dropped has been resumed on
+	 * a new endpoint. Events emitted on the old endpoint are sent on the new
+	 * one, but callbacks for received events must be added to the new one.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint} the new endpoint</li>
+	 * <li>{@code args[1] instanceof Endpoint} the old endpoint</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
+	/**
+	 * Emitted when a client is not keeping up with what is being sent
+	 * to it. Sending to it should be paused if possible.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String endpointCongested="ENDPOINT_CONGESTED";
+	
+	/**
+	 * Emitted when a client that was congested has caught up.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String endpointUncongested="ENDPOINT_UNCONGESTED";
+	
 	/**
 	 * Emitted when a session should shutdown. Message is reason
 	 * for shutting down.
@@ -125,14 +172,50 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private String password=null;
 	
+	/**
+	 * How the io thread should handle accepted connections.
+	 */
+	private IOThread.Mode ioMode=IOThread.Mode.Blocking;
+	
+	/**
+	 * A session that can be resumed.
+	 */
+	private static final class Session {
+		/**
+		 * The endpoint the session is on, or is being resumed on.
+		 */
+		Endpoint endpoint;
+		
+		/**
+		 * The endpoint and event protocol of the session when its connection
+		 * dropped, null while it is connected.
+		 */
+		Endpoint suspendedEndpoint=null;
+		EventProtocol suspendedEvents=null;
+		
+		/**
+		 * Gives up on the session once the grace period is up.
+		 */
+		TimingWheel.Timeout expiry=null;
+		
+		Session(Endpoint endpoint) {
+			this.endpoint=endpoint;
+		}
+	}
+	
+	/**
+	 * Sessions that can be resumed, by session id, guarded by itself.
+	 */
+	private final HashMap<String,Session> sessions = new HashMap<>();
+	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
 	 */
 	public ServerManager(int port) {
+		super("ServerManager",false); // name the thread, urgh simple log can't print it :-(
 		this.port=port;
 		liveEndpoints=new HashSet<>();
-		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
 	/**
@@ -142,10 +225,19 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param password to use by admin clients
 	 */
 	public ServerManager(int port,String password) {
+		super("ServerManager",false); // name the thread, urgh simple log can't print it :-(
 		this.port=port;
 		liveEndpoints=new HashSet<>();
 		this.password = password;
-		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
+	}
+	
+	/**
+	 * Choose how client connections are handled, must be called before
+	 * the server manager is started.
+	 * @param ioMode either a thread per connection, or a reactor
+	 */
+	public void setIOMode(IOThread.Mode ioMode) {
+		this.ioMode=ioMode;
 	}
 	
 	/**
@@ -190,9 +282,16 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
-			ioThread = new IOThread(port,this);
+			if(ioMode==IOThread.Mode.Reactor) Reactor.acquire();
+		} catch (IOException e1) {
+			log.severe("could not start the reactor");
+			return;
+		}
+		try {
+			ioThread = new IOThread(port,this,ioMode);
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
+			if(ioMode==IOThread.Mode.Reactor) Reactor.release();
 			return;
 		}
 		
@@ -258,6 +357,8 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				});
 			}
 		}
+		// the selector threads are not needed once the endpoints have finished
+		if(ioMode==IOThread.Mode.Reactor) Reactor.release();
 		log.info("terminated");
 	}
 	
@@ -272,6 +373,18 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		endpoint.start();
 	}
 	
+	/**
+	 * A new client has connected to the server, when the io thread is
+	 * in reactor mode. The endpoint is driven by the reactor's selector
+	 * threads rather than a thread of its own, otherwise it is the same
+	 * as {@link #acceptClient(Socket)}.
+	 * @param clientChannel the socket channel for the client.
+	 */
+	public void acceptClient(SocketChannel clientChannel) {
+		Endpoint endpoint = new ReactorEndpoint(clientChannel,this);
+		endpoint.start();
+	}
+	
 	/**
 	 * Called by a client endpoint to signal that it is now ready for
 	 * use, the server can send data and it may start receiving messages
@@ -347,6 +460,25 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		}
 	}
 
+	/**
+	 * The client is not keeping up, let the application know so that
+	 * it can pause sending to it.
+	 * @param endpoint
+	 */
+	@Override
+	public void endpointCongested(Endpoint endpoint) {
+		localEmit(endpointCongested,endpoint);
+	}
+	
+	/**
+	 * The client has caught up.
+	 * @param endpoint
+	 */
+	@Override
+	public void endpointUncongested(Endpoint endpoint) {
+		localEmit(endpointUncongested,endpoint);
+	}
+
 	/**
 	 * The session has started for this client endpoint. Other protocols
 	 * may now be started, etc. We will start the event protocol now.
@@ -372,11 +504,176 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
+		if(endpoint.getSessionId()!=null) {
+			synchronized(sessions) {
+				sessions.put(endpoint.getSessionId(),new Session(endpoint));
+			}
+		}
+		
 		// the event protocol has started but still no events
 		// could have been received at this point
 		localEmit(sessionStarted,endpoint);
 		
 	}
+	
+	/**
+	 * A client is asking to resume a session on a new endpoint. If the
+	 * session's old endpoint has not been seen to drop yet then it is
+	 * suspended and closed now.
+	 * @param endpoint the new endpoint
+	 * @param sessionId
+	 * @param resumeToken
+	 * @return the number up to which every event in the session was received,
+	 * or -1 if there is no such session or the token is wrong
+	 */
+	@Override
+	public long resumeSession(Endpoint endpoint, String sessionId, String resumeToken) {
+		Endpoint live=null;
+		EventProtocol eventProtocol;
+		synchronized(sessions) {
+			Session session = sessions.get(sessionId);
+			if(session==null || resumeToken==null) return -1;
+			// being resumed on another endpoint already
+			if(session.suspendedEndpoint!=null && session.endpoint!=session.suspendedEndpoint) return -1;
+			// compared in constant time, so as not to give the token away
+			if(!MessageDigest.isEqual(resumeToken.getBytes(StandardCharsets.UTF_8),
+					session.endpoint.getResumeToken().getBytes(StandardCharsets.UTF_8))) {
+				log.warning("wrong resume token given by client: "+endpoint.getOtherEndpointId());
+				return -1;
+			}
+			if(session.suspendedEndpoint==null) {
+				live = session.endpoint;
+				eventProtocol = (EventProtocol) live.getProtocol(EventProtocol.protocolName);
+				if(eventProtocol==null) return -1;
+				eventProtocol.suspend();
+				session.suspendedEndpoint=live;
+				session.suspendedEvents=eventProtocol;
+			} else {
+				eventProtocol=session.suspendedEvents;
+				session.expiry.cancel();
+			}
+			session.endpoint=endpoint;
+		}
+		if(live!=null) {
+			log.info("client "+live.getOtherEndpointId()+" reconnected before it was seen to drop");
+			localEmit(sessionSuspended,live);
+			// closing may wait for the old connection to drain
+			final Endpoint old = live;
+			Utils.getInstance().setTimeout(()->{
+				old.close();
+			}, 0);
+		}
+		return eventProtocol.getReceivedSeq();
+	}
+	
+	/**
+	 * The session has been resumed on a new endpoint. A new event protocol
+	 * takes over from the one on the old endpoint.
+	 * @param endpoint the new endpoint
+	 * @param receivedSeq number up to which the client received every event
+	 */
+	@Override
+	public void sessionResumed(Endpoint endpoint, long receivedSeq) {
+		Endpoint old;
+		EventProtocol oldEvents;
+		synchronized(sessions) {
+			Session session = sessions.get(endpoint.getSessionId());
+			if(session==null || session.endpoint!=endpoint || session.suspendedEvents==null) {
+				log.warning("session was given up on while being resumed: "+endpoint.getOtherEndpointId());
+				return;
+			}
+			old=session.suspendedEndpoint;
+			oldEvents=session.suspendedEvents;
+			session.suspendedEndpoint=null;
+			session.suspendedEvents=null;
+			session.expiry=null;
+		}
+		log.info("session has resumed with client: "+endpoint.getOtherEndpointId());
+		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+		try {
+			endpoint.handleProtocol(eventProtocol);
+			eventProtocol.startAsServer();
+		} catch (ProtocolAlreadyRunning e) {
+			// hmmm... already requested by the client
+		}
+		eventProtocol.resume(oldEvents,receivedSeq);
+		localEmit(sessionResumed,endpoint,old);
+	}
+	
+	/**
+	 * Keep the session of an endpoint whose connection dropped, for the grace
+	 * period, if it can be resumed. Must be called before the endpoint is closed.
+	 * @param endpoint
+	 * @return true if the session was kept, or has already been resumed on
+	 * another endpoint, false if there is nothing to resume
+	 */
+	private boolean suspendSession(Endpoint endpoint) {
+		String sessionId = endpoint.getSessionId();
+		if(sessionId==null) return false;
+		Endpoint abandoned=null;
+		EventProtocol abandonedEvents=null;
+		synchronized(sessions) {
+			Session session = sessions.get(sessionId);
+			if(session==null) return false;
+			if(session.endpoint!=endpoint) return true;
+			if(session.suspendedEndpoint!=null) {
+				// dropped while being resumed, give up on it
+				sessions.remove(sessionId);
+				abandoned=session.suspendedEndpoint;
+				abandonedEvents=session.suspendedEvents;
+			} else {
+				EventProtocol eventProtocol = (EventProtocol) endpoint.getProtocol(EventProtocol.protocolName);
+				if(eventProtocol==null) {
+					sessions.remove(sessionId);
+					return false;
+				}
+				eventProtocol.suspend();
+				session.suspendedEndpoint=endpoint;
+				session.suspendedEvents=eventProtocol;
+				session.expiry=Utils.getInstance().setTimeout(()->{
+					expireSession(sessionId,session,endpoint);
+				}, Utils.getInstance().getSessionResumeGrace());
+			}
+		}
+		if(abandoned!=null) {
+			abandonedEvents.abandon();
+			localEmit(sessionError,abandoned);
+			return false;
+		}
+		log.info("keeping session with client "+endpoint.getOtherEndpointId()+" to be resumed");
+		localEmit(sessionSuspended,endpoint);
+		return true;
+	}
+	
+	/**
+	 * Give up on a session that was not resumed in time.
+	 * @param sessionId
+	 * @param session
+	 * @param endpoint the endpoint the session was on when it was suspended
+	 */
+	private void expireSession(String sessionId, Session session, Endpoint endpoint) {
+		EventProtocol eventProtocol;
+		synchronized(sessions) {
+			if(sessions.get(sessionId)!=session || session.endpoint!=endpoint) return;
+			sessions.remove(sessionId);
+			eventProtocol=session.suspendedEvents;
+		}
+		log.warning("session with client "+endpoint.getOtherEndpointId()+" was not resumed in time");
+		eventProtocol.abandon();
+		localEmit(sessionError,endpoint);
+	}
+	
+	/**
+	 * Forget the session of an endpoint, which can no longer be resumed.
+	 * @param endpoint
+	 */
+	private void forgetSession(Endpoint endpoint) {
+		if(endpoint.getSessionId()==null) return;
+		synchronized(sessions) {
+			Session session = sessions.get(endpoint.getSessionId());
+			if(session!=null && session.endpoint==endpoint) sessions.remove(endpoint.getSessionId());
+		}
+	}
 
 	/**
 	 * The session has been stopped (usually by the client). The session should
@@ -388,6 +685,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
+		forgetSession(endpoint);
 		
 		localEmit(sessionStopped,endpoint);
 		
@@ -434,6 +732,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" violated the protocol "+protocol.getProtocolName());
+		forgetSession(endpoint);
 		localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
@@ -441,13 +740,14 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	/**
 	 * The client connection died without warning. 
 	 * Server needs to clean up client data and possibly recover
-	 * from any faults that may occur due to this.
+	 * from any faults that may occur due to this, unless the session
+	 * can be resumed.
 	 * @param endpoint
 	 */
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("client disconnected abruptly "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		if(!suspendSession(endpoint)) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 	
@@ -459,20 +759,22 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("client sent an invalid message "+endpoint.getOtherEndpointId());
+		forgetSession(endpoint);
 		localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 
 	/**
 	 * The client has timed out.
-	 * Usual practice is to terminate the client connection.
+	 * Usual practice is to terminate the client connection, keeping
+	 * the session if it can be resumed.
 	 * @param endpoint
 	 * @param protocol
 	 */
 	@Override
 	public void endpointTimedOut(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" has timed out on protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		if(!suspendSession(endpoint)) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 
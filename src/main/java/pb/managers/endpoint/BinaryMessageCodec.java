@@ -0,0 +1,54 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+
+import pb.protocols.BinaryCodec;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.utils.BufferPool;
+
+/**
+ * Writes messages in a compact binary form, which needs the
+ * {@link Framing.Format#Length} format and the same protocol registry at both
+ * endpoints. Messages sent in the {@link Framing.Format#UTF} format, or that
+ * are not registered, are written as JSON instead.
+ *
+ * @see {@link pb.protocols.BinaryCodec}
+ */
+public class BinaryMessageCodec implements MessageCodec {
+	
+	/**
+	 * The name of the codec.
+	 */
+	public static final String name = "Binary";
+	
+	/**
+	 * The codec, which has no state.
+	 */
+	public static final BinaryMessageCodec instance = new BinaryMessageCodec();
+	
+	private BinaryMessageCodec() {
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public ByteBuffer encode(Message msg, Framing.Format format, int maxFrameSize, boolean direct) {
+		byte[] body = format==Framing.Format.Length ? BinaryCodec.encode(msg) : null;
+		if(body==null) return JsonMessageCodec.ids.encode(msg,format,maxFrameSize,direct);
+		if(body.length>maxFrameSize) return null;
+		ByteBuffer frame = BufferPool.getInstance().acquire(4+body.length,direct);
+		frame.putInt(0,body.length);
+		frame.put(4,body);
+		return frame;
+	}
+	
+	@Override
+	public Message decode(Framing.Format format, ByteBuffer in, int pos, int length,
+			char[] chars) throws InvalidMessage {
+		return BinaryCodec.decode(in,pos,length);
+	}
+}
@@ -1,36 +1,63 @@
 package pb.managers.endpoint;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
+import pb.utils.BufferPool;
 import pb.utils.Eventable;
+import pb.utils.SerialExecutor;
+import pb.utils.ThreadedEventable;
 import pb.utils.Utils;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
-import pb.protocols.event.EventProtocol;
-import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.ProtocolRegistry;
 import pb.protocols.ICallback;
+import pb.protocols.IReplyCallback;
 import pb.protocols.IRequestReplyProtocol;
-import pb.protocols.keepalive.IKeepAliveProtocolHandler;
-import pb.protocols.keepalive.KeepAliveProtocol;
-import pb.protocols.session.ISessionProtocolHandler;
-import pb.protocols.session.SessionProtocol;
+import pb.protocols.event.IEventCallback;
 
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * thread-per-connection model is being used. It also provides a method to send
+ * data to the other endpoint, which queues the data and returns immediately. A
+ * writer drains the queue, writing everything that is pending to the socket
+ * before flushing it, so that bursts of small messages go out in as few writes
+ * as possible. The writer is a virtual thread that is only started when
+ * there is something to write and stops once the queue is empty, so an idle
+ * endpoint has no writer at all.
+ * <br/>
+ * The number of bytes queued is watched so that a slow other endpoint can not
+ * use up memory without limit. When it goes above the high watermark the
+ * manager is told that the endpoint is congested, and when it falls back to
+ * the low watermark the manager is told that it is no longer congested. If
+ * the endpoint stays congested for longer than the congestion timeout then
+ * the {@link CongestionPolicy} is applied.
  * Any number of protocols can be handled by the endpoint, but there can be only
  * one instance of each protocol running at a time.
+ * <br/>
+ * The thread is a virtual thread when
+ * {@link pb.utils.Utils#useVirtualThreads()} is true, in which case blocking
+ * reads are cheap and many thousands of endpoints can be idle at once. A
+ * {@link pb.managers.endpoint.ReactorEndpoint} can be used instead when a
+ * thread per connection is too costly.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.protocols.session.SessionProtocol}
@@ -38,9 +65,78 @@ import pb.protocols.session.SessionProtocol;
  * @author aaron
  *
  */
-public class Endpoint extends Eventable {
+public class Endpoint extends ThreadedEventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * What to do when the other endpoint stays behind for too long.
+	 */
+	static public enum CongestionPolicy {
+		/**
+		 * Keep sending everything, having told the manager that the endpoint
+		 * is congested, so that the application can slow down if it wants.
+		 */
+		Notify,
+		/**
+		 * Reject messages that have a conflation key, i.e. events, until
+		 * the other endpoint catches up. Other messages are still sent.
+		 * Events with cumulative acks are dropped by the event protocol
+		 * before they are numbered.
+		 */
+		Drop,
+		/**
+		 * Replace an event that is still queued with a newer event of the same
+		 * name, until the other endpoint catches up. Only suits applications
+		 * where the latest event of a given name makes earlier ones redundant.
+		 * Events with cumulative acks are replaced by the event protocol
+		 * while they wait in its backlog, before they are numbered.
+		 */
+		Conflate,
+		/**
+		 * Close the connection.
+		 */
+		Disconnect
+	}
+	
+	/**
+	 * Where the callbacks for received events are run.
+	 */
+	static public enum EventDispatch {
+		/**
+		 * On the thread that received the event, so a slow callback holds
+		 * up everything else received on the endpoint.
+		 */
+		Inline,
+		/**
+		 * On the threads of {@link pb.utils.Utils#getEventExecutor()}, one
+		 * event at a time and in the order received. Callbacks added with
+		 * {@link Endpoint#onInline(String, IEventCallback)} are still run
+		 * on the thread that received the event.
+		 */
+		Async
+	}
+	
+	/**
+	 * How events sent on the endpoint are acknowledged by the other endpoint.
+	 */
+	static public enum EventAcks {
+		/**
+		 * Each event is replied to on its own and has its own timeout.
+		 */
+		Each,
+		/**
+		 * Events are numbered, bulk events apart from the rest, and the other
+		 * endpoint acknowledges the number up to which it has received every
+		 * event, every so many events or milliseconds. Needs to be agreed at
+		 * session start, otherwise Each is used.
+		 */
+		Cumulative,
+		/**
+		 * Events are not acknowledged, and may be lost if the connection is.
+		 */
+		None
+	}
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
@@ -49,17 +145,54 @@ public class Endpoint extends Eventable {
 	/**
 	 * The manager to report to when things happen.
 	 */
-	private IEndpointHandler manager;
+	protected IEndpointHandler manager;
+	
+	/**
+	 * The input stream on the socket.
+	 */
+	private InputStream in=null;
+	
+	/**
+	 * Splits what is read from the socket into messages.
+	 */
+	protected final FrameReader frameReader;
+	
+	/**
+	 * Messages waiting to be written to the socket, already framed.
+	 */
+	protected final FrameWriter frameWriter;
+	
+	/**
+	 * The buffered output stream on the socket, only used while holding the
+	 * write lock.
+	 */
+	private OutputStream out=null;
+	
+	/**
+	 * Size of the buffer on the output stream.
+	 */
+	private static final int outBufferSize = 64*1024;
+	
+	/**
+	 * How long close will wait for queued messages to be written.
+	 */
+	protected static final int closeDrainTimeout = 5000;
+	
+	/**
+	 * The writer thread last started, if any.
+	 */
+	private volatile Thread writer=null;
 	
 	/**
-	 * The input data stream on the socket.
+	 * Set once writing to the socket has failed, after which nothing more is
+	 * written.
 	 */
-	private DataInputStream in=null;
+	private volatile boolean writeFailed=false;
 	
 	/**
-	 * The output data stream on the socket.
+	 * Set while a writer thread is running, so that only one runs at a time.
 	 */
-	private DataOutputStream out=null;
+	private final AtomicBoolean writing = new AtomicBoolean();
 	
 	/**
 	 * A protocol name to protocol map, of protocols in use.
@@ -67,50 +200,655 @@ public class Endpoint extends Eventable {
 	private Map<String,Protocol> protocols;
 	
 	/**
-	 * Timeout id to use.
+	 * Last timeout id used.
 	 */
-	private long timeoutId=1;
+	private final AtomicLong timeoutIds = new AtomicLong();
 	
 	/**
-	 * Oustanding ids
+	 * Requests waiting for a reply.
 	 */
-	private Set<Long> outstandingIds;
+	private final PendingRequests pendingRequests = new PendingRequests();
+	
+	/**
+	 * Round trip times of requests that have been replied to.
+	 */
+	private final RoundTripTimes roundTripTimes = new RoundTripTimes();
 	
 	/**
 	 * stopped flag
 	 */
 	private volatile boolean stopped=true; // the use of send will return false always
 	
+	/**
+	 * Queued bytes above which the endpoint is congested.
+	 */
+	private volatile long highWatermark;
+	
+	/**
+	 * Queued bytes at or below which the endpoint is no longer congested.
+	 */
+	private volatile long lowWatermark;
+	
+	/**
+	 * What to do when congested for too long.
+	 */
+	private volatile CongestionPolicy congestionPolicy;
+	
+	/**
+	 * How long, in milliseconds, the endpoint can be congested before the
+	 * policy is applied.
+	 */
+	private volatile int congestionTimeout;
+	
+	/**
+	 * Whether the endpoint is congested.
+	 */
+	private final AtomicBoolean congested = new AtomicBoolean();
+	
+	/**
+	 * Counts the times the endpoint has become congested, so that a timeout
+	 * from an earlier time is ignored.
+	 */
+	private volatile int congestions=0;
+	
+	/**
+	 * Whether the policy is being applied to messages that are sent.
+	 */
+	private volatile boolean shedding=false;
+	
+	/**
+	 * How messages are encoded when they are sent; names in JSON until the
+	 * other endpoint agrees to something else.
+	 */
+	private volatile MessageCodec codec=JsonMessageCodec.names;
+	
+	/**
+	 * How events sent on the endpoint should be acknowledged.
+	 */
+	private volatile EventAcks eventAcks=EventAcks.Each;
+	
+	/**
+	 * How urgently events sent on the endpoint are written, by event name,
+	 * for those that are not interactive.
+	 */
+	private final ConcurrentHashMap<String,Message.Priority> eventPriorities = new ConcurrentHashMap<>();
+	
+	/**
+	 * When a message was last received from the other endpoint, and when one
+	 * was last queued to it, as given by System.nanoTime().
+	 */
+	private volatile long lastReceived, lastSent;
+	
+	/**
+	 * Whether the other endpoint has agreed to cumulative acks.
+	 */
+	private volatile boolean cumulativeAcks=false;
+	
+	/**
+	 * Whether keep alive replies carry the timeout id of their request, as
+	 * agreed with the other endpoint.
+	 */
+	private volatile boolean keepAliveIds=false;
+	
+	/**
+	 * Whether the other endpoint takes any message as a sign of life, so
+	 * that keep alives are only needed on idle links, as agreed.
+	 */
+	private volatile boolean idleKeepAlives=false;
+	
+	/**
+	 * The id of the session on this endpoint and the token to resume it
+	 * with, null if it can not be resumed.
+	 */
+	private volatile String sessionId=null, resumeToken=null;
+	
+	/**
+	 * The id of the journal the other endpoint keeps its events in across
+	 * connections, null if it does not.
+	 */
+	private volatile String journalId=null;
+	
+	/**
+	 * Runs the callbacks for received events in order, null if they are
+	 * run inline.
+	 */
+	private volatile SerialExecutor dispatcher=null;
+	
+	/**
+	 * Callbacks for received events that are always run inline.
+	 */
+	private final Eventable inlineCallbacks = new Eventable();
+	
 	/**
 	 * Initialise the endpoint with a socket and a manager.
 	 * @param socket
 	 * @param manager
 	 */
 	public Endpoint(Socket socket, IEndpointHandler manager) {
+		this("Endpoint",socket,manager,false);
+	}
+	
+	/**
+	 * Initialise the endpoint with a socket and a manager.
+	 * @param name the name to give the thread
+	 * @param socket
+	 * @param manager
+	 * @param direct true if messages are read and written using direct
+	 * buffers, which suits channels but not streams
+	 */
+	protected Endpoint(String name, Socket socket, IEndpointHandler manager, boolean direct) {
+		super(name,Utils.getInstance().useVirtualThreads());
 		this.socket = socket;
+		frameReader = new FrameReader(direct);
+		frameWriter = new FrameWriter(direct);
 		this.manager = manager;
 		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
-		setName("Endpoint"); // name the thread
+		setWatermarks(Utils.getInstance().getLowWatermark(),Utils.getInstance().getHighWatermark());
+		setCongestionPolicy(Utils.getInstance().getCongestionPolicy(),
+				Utils.getInstance().getCongestionTimeout());
+		setEventDispatch(Utils.getInstance().getEventDispatch());
+		eventAcks=Utils.getInstance().getEventAcks();
+		lastReceived=lastSent=System.nanoTime();
+	}
+	
+	/**
+	 * Set how events sent from now on should be acknowledged.
+	 * @param eventAcks
+	 */
+	public void setEventAcks(EventAcks eventAcks) {
+		this.eventAcks=eventAcks;
+	}
+	
+	/**
+	 * @return how events sent from now on are acknowledged, which is Each
+	 * if Cumulative was asked for but not agreed with the other endpoint
+	 */
+	public EventAcks getEventAcks() {
+		EventAcks acks = eventAcks;
+		if(acks==EventAcks.Cumulative && !cumulativeAcks) return EventAcks.Each;
+		return acks;
+	}
+	
+	/**
+	 * Set how urgently events with the given name are written, with respect
+	 * to the other messages sent on the endpoint. Events are interactive
+	 * unless set otherwise, and events with the same name are always written
+	 * in order. With cumulative acks, bulk events are numbered in a lane of
+	 * their own and control events are written as interactive, so that the
+	 * events in each lane go out in number order.
+	 * @param eventName
+	 * @param priority
+	 * @see {@link pb.managers.endpoint.FrameWriter}
+	 */
+	public void setEventPriority(String eventName, Message.Priority priority) {
+		if(priority==Message.Priority.Interactive) {
+			eventPriorities.remove(eventName);
+		} else {
+			eventPriorities.put(eventName,priority);
+		}
+	}
+	
+	/**
+	 * @param eventName
+	 * @return how urgently events with the given name are written
+	 */
+	public Message.Priority getEventPriority(String eventName) {
+		return eventPriorities.getOrDefault(eventName,Message.Priority.Interactive);
+	}
+	
+	/**
+	 * Set where the callbacks for events received from now on are run.
+	 * @param eventDispatch
+	 */
+	public final void setEventDispatch(EventDispatch eventDispatch) {
+		if(eventDispatch==EventDispatch.Async) {
+			if(dispatcher==null) dispatcher = new SerialExecutor(Utils.getInstance().getEventExecutor());
+		} else {
+			dispatcher=null;
+		}
+	}
+	
+	/**
+	 * Add a callback for a received event that is always run on the thread
+	 * that received it, even when events are dispatched asynchronously. It
+	 * should be quick and must not block.
+	 * @param eventName
+	 * @param callback
+	 * @return this endpoint for chaining
+	 */
+	public Endpoint onInline(String eventName, IEventCallback callback) {
+		inlineCallbacks.on(eventName,callback);
+		return this;
+	}
+	
+	/**
+	 * Remove a callback added with {@link #onInline(String, IEventCallback)}.
+	 * @param eventName
+	 * @param callback
+	 * @return true if the callback was removed
+	 */
+	public boolean offInline(String eventName, IEventCallback callback) {
+		return inlineCallbacks.off(eventName,callback);
+	}
+	
+	/**
+	 * Pass an event received from the other endpoint to the callbacks for it.
+	 * Inline callbacks are run straight away, the rest are run straight away
+	 * or given to the dispatcher depending on the
+	 * {@link #setEventDispatch(EventDispatch)}.
+	 * @param eventName
+	 * @param args
+	 */
+	public void dispatchEvent(String eventName, Object... args) {
+		inlineCallbacks.localEmit(eventName,args);
+		SerialExecutor d = dispatcher;
+		if(d==null) {
+			localEmit(eventName,args);
+			return;
+		}
+		try {
+			d.execute(()->{
+				localEmit(eventName,args);
+			});
+		} catch (RejectedExecutionException e) {
+			log.warning("event dropped, dispatcher is not accepting: "+eventName);
+		}
+	}
+	
+	/**
+	 * @return the number of received events waiting for their callbacks
+	 * to run, always 0 when events are dispatched inline
+	 */
+	public int getDispatchQueueDepth() {
+		SerialExecutor d = dispatcher;
+		return d==null ? 0 : d.getDepth();
+	}
+	
+	/**
+	 * @return the most received events that have been waiting for their
+	 * callbacks to run at once
+	 */
+	public int getMaxDispatchQueueDepth() {
+		SerialExecutor d = dispatcher;
+		return d==null ? 0 : d.getMaxDepth();
+	}
+	
+	/**
+	 * @return the number of received events whose callbacks have been run
+	 * by the dispatcher
+	 */
+	public long getDispatchedEvents() {
+		SerialExecutor d = dispatcher;
+		return d==null ? 0 : d.getCompleted();
+	}
+	
+	/**
+	 * Set the watermarks used to tell if the other endpoint is falling behind.
+	 * @param lowWatermark queued bytes at or below which the endpoint is no longer congested
+	 * @param highWatermark queued bytes above which the endpoint is congested
+	 */
+	public final void setWatermarks(long lowWatermark, long highWatermark) {
+		this.lowWatermark=lowWatermark;
+		this.highWatermark=highWatermark;
+	}
+	
+	/**
+	 * Set what to do when the other endpoint is falling behind.
+	 * @param congestionPolicy
+	 * @param congestionTimeout milliseconds the endpoint can be congested
+	 * before the policy is applied
+	 */
+	public final void setCongestionPolicy(CongestionPolicy congestionPolicy, int congestionTimeout) {
+		this.congestionPolicy=congestionPolicy;
+		this.congestionTimeout=congestionTimeout;
+	}
+	
+	/**
+	 * @return true if the number of bytes queued is above the high watermark
+	 * and has not yet fallen back to the low watermark
+	 */
+	public boolean isCongested() {
+		return congested.get();
+	}
+	
+	/**
+	 * @return the congestion policy being applied to messages that are sent,
+	 * or null if none is, as when the other endpoint is keeping up
+	 */
+	public CongestionPolicy getSheddingPolicy() {
+		return shedding ? congestionPolicy : null;
+	}
+	
+	/**
+	 * @return the number of bytes queued to be written to the other endpoint
+	 */
+	public long getQueuedBytes() {
+		return frameWriter.getQueuedBytes();
+	}
+	
+	/**
+	 * @return the largest frame body that can be sent to the other endpoint
+	 */
+	public int getMaxFrameSize() {
+		return frameWriter.getMaxFrameSize();
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * @return when a message was last received from the other endpoint, as
+	 * given by System.nanoTime(), or when the endpoint became ready if none
+	 * has been
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	
+	/**
+	 * @return when a message was last queued to the other endpoint, as
+	 * given by System.nanoTime(), or when the endpoint became ready if none
+	 * has been
+	 */
+	public long getLastSent() {
+		return lastSent;
+	}
+	
+	/**
+	 * Queue a Message to be sent on the socket for this endpoint. The message
+	 * is encoded on the calling thread and written later by the writer thread,
+	 * so this does not wait for the other endpoint. Messages of the same
+	 * {@link Message.Priority} are written in the order that they are queued.
 	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * @return true if the message was queued, false if it was rejected because
+	 * the endpoint is stopped, the message is too large, or the message was
+	 * dropped because the other endpoint is too far behind
 	 */
-	public synchronized boolean send(Message msg) {
+	public boolean send(Message msg) {
 		if(stopped) return false;
+		boolean queued;
+		String key = msg.getConflationKey();
+		if(shedding && key!=null && congestionPolicy==CongestionPolicy.Drop) {
+			log.fine("dropping "+msg.getName()+" to "+getOtherEndpointId());
+			return false;
+		} else if(shedding && key!=null && congestionPolicy==CongestionPolicy.Conflate) {
+			long replacedId = msg.getTimeoutId();
+			queued = frameWriter.add(msg,codec,key,()->{
+				// a reply to the replaced message will never come
+				pendingRequests.remove(replacedId);
+			});
+		} else {
+			queued = frameWriter.add(msg,codec);
+		}
+		if(!queued) {
+			log.warning("message is too large to send: "+msg.getName());
+			return false;
+		}
+		lastSent=System.nanoTime();
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		if(frameWriter.getQueuedBytes()>highWatermark) congested();
+		wakeWriter();
+		return true;
+	}
+	
+	/**
+	 * The number of bytes queued has gone above the high watermark, tell
+	 * the manager if the endpoint was not already congested and start
+	 * the congestion timeout.
+	 */
+	private void congested() {
+		if(!congested.compareAndSet(false,true)) return;
+		int congestion = ++congestions;
+		log.warning("endpoint is congested with "+frameWriter.getQueuedBytes()+
+				" bytes queued to "+getOtherEndpointId());
+		manager.endpointCongested(this);
+		Utils.getInstance().setTimeout(()->{
+			if(congested.get() && congestions==congestion && !stopped) fallenBehind();
+		}, congestionTimeout);
+	}
+	
+	/**
+	 * Called by the writer after taking from the queue, to tell the manager
+	 * once the number of bytes queued has fallen to the low watermark.
+	 */
+	protected void checkCongestion() {
+		if(!congested.get() || frameWriter.getQueuedBytes()>lowWatermark) return;
+		if(!congested.compareAndSet(true,false)) return;
+		shedding=false;
+		log.info("endpoint is no longer congested to "+getOtherEndpointId());
+		manager.endpointUncongested(this);
+	}
+	
+	/**
+	 * The endpoint has been congested for longer than the congestion
+	 * timeout, so apply the congestion policy.
+	 */
+	private void fallenBehind() {
+		log.warning("endpoint has fallen behind, applying "+congestionPolicy+
+				" policy to "+getOtherEndpointId());
+		if(congestionPolicy==CongestionPolicy.Disconnect) {
+			abort();
+		} else if(congestionPolicy!=CongestionPolicy.Notify) {
+			shedding=true;
+		}
+	}
+	
+	/**
+	 * Drop the connection without waiting for queued messages to be
+	 * written. The reading thread will report it as an abrupt disconnection.
+	 */
+	protected void abort() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+	
+	/**
+	 * Let the writer know there is something to write, starting a writer
+	 * thread unless one is already running. The writer writes while holding
+	 * the write lock of the {@link FrameWriter}, and stops once the queue
+	 * is empty.
+	 */
+	protected void wakeWriter() {
+		if(!writing.compareAndSet(false,true)) return;
+		// set before it starts, so that drain never waits for an older writer
+		Thread w = Thread.ofVirtual().name("EndpointWriter").unstarted(()->{
+			ReentrantLock lock = frameWriter.writeLock;
+			do {
+				lock.lock();
+				try {
+					write();
+				} finally {
+					lock.unlock();
+				}
+				writing.set(false);
+				// something may have been queued after the last poll, but
+				// nothing more is written once writing has failed
+			} while(!writeFailed && !frameWriter.isEmpty() && writing.compareAndSet(false,true));
+		});
+		writer = w;
+		w.start();
+	}
+	
+	/**
+	 * Change the frame format in both directions, as agreed with the other
+	 * endpoint. Messages sent from now on will use the new format once
+	 * those already queued are written, and received messages will
+	 * use the new format once the other endpoint marks the change. Must be
+	 * called by the thread that is processing received messages.
+	 * @see {@link pb.managers.endpoint.Framing}
+	 * @param format the new format
+	 * @param maxFrameSize the largest message body allowed in the new format
+	 * @param compression the compression to use in the new format
+	 * @param compressionThreshold the smallest message body to compress
+	 */
+	public void useFraming(Framing.Format format, int maxFrameSize,
+			Framing.Compression compression, int compressionThreshold) {
+		log.info("using "+format+" framing with "+compression+" compression with "
+			+getOtherEndpointId());
+		frameReader.expect(format,maxFrameSize,compression);
+		frameWriter.change(format,maxFrameSize,compression,compressionThreshold);
+		wakeWriter();
+	}
+	
+	/**
+	 * Send messages with their compact ids from now on, as agreed with the
+	 * other endpoint. Received messages may use either.
+	 * @see {@link pb.protocols.ProtocolRegistry}
+	 */
+	public void useMessageIds() {
+		log.info("using message ids with "+getOtherEndpointId());
+		if(codec==JsonMessageCodec.names) codec=JsonMessageCodec.ids;
+	}
+	
+	/**
+	 * Send messages with the given codec from now on, as agreed with the
+	 * other endpoint. Received messages may use any codec, each frame is
+	 * decoded with the codec it was written with.
+	 * @param codec
+	 * @see {@link pb.managers.endpoint.Framing#codecOf(Framing.Format, java.nio.ByteBuffer, int, int)}
+	 */
+	public void useCodec(MessageCodec codec) {
+		log.info("using "+codec.getName()+" codec with "+getOtherEndpointId());
+		this.codec=codec;
+	}
+	
+	/**
+	 * Allow events to be acknowledged cumulatively from now on, as agreed
+	 * with the other endpoint.
+	 * @see {@link pb.protocols.event.EventProtocol}
+	 */
+	public void useCumulativeAcks() {
+		log.info("using cumulative event acks with "+getOtherEndpointId());
+		cumulativeAcks=true;
+	}
+	
+	/**
+	 * Match keep alive replies to their requests by timeout id from now on,
+	 * as agreed with the other endpoint.
+	 * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+	 */
+	public void useKeepAliveIds() {
+		keepAliveIds=true;
+	}
+	
+	/**
+	 * @return true if keep alive replies carry the timeout id of their
+	 * request, false if the other endpoint may not send it
+	 */
+	public boolean hasKeepAliveIds() {
+		return keepAliveIds;
+	}
+	
+	/**
+	 * Only send keep alives on idle links from now on, as agreed with the
+	 * other endpoint.
+	 * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+	 */
+	public void useIdleKeepAlives() {
+		idleKeepAlives=true;
+	}
+	
+	/**
+	 * @return true if keep alives are only needed on idle links, false if the
+	 * other endpoint may expect them however busy the link is
+	 */
+	public boolean hasIdleKeepAlives() {
+		return idleKeepAlives;
+	}
+	
+	/**
+	 * Note the session on this endpoint, as agreed with the other endpoint,
+	 * so that it can be resumed on another connection if this one drops.
+	 * @param sessionId
+	 * @param resumeToken
+	 * @see {@link pb.protocols.session.SessionProtocol}
+	 */
+	public void setSession(String sessionId, String resumeToken) {
+		this.resumeToken=resumeToken;
+		this.sessionId=sessionId;
+	}
+	
+	/**
+	 * @return the id of the session on this endpoint, or null if it can
+	 * not be resumed
+	 */
+	public String getSessionId() {
+		return sessionId;
+	}
+	
+	/**
+	 * @return the token to resume the session on this endpoint with, or
+	 * null if it can not be resumed
+	 */
+	public String getResumeToken() {
+		return resumeToken;
+	}
+	
+	/**
+	 * Note the journal the other endpoint keeps its events in across
+	 * connections, so that events it sends again are only passed on once.
+	 * @param journalId
+	 * @see {@link pb.protocols.event.EventDedup}
+	 */
+	public void setJournalId(String journalId) {
+		this.journalId=journalId;
+	}
+	
+	/**
+	 * @return the id of the journal the other endpoint keeps its events in,
+	 * or null if it does not keep them across connections
+	 */
+	public String getJournalId() {
+		return journalId;
+	}
+	
+	/**
+	 * Write queued messages to the socket until the queue is empty, and then
+	 * flush. Only called while holding the write lock. If writing fails then
+	 * the socket is closed, which the reading thread will report as an abrupt
+	 * disconnection.
+	 */
+	private void write() {
+		if(writeFailed) return;
 		try {
-			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
+			ByteBuffer frame;
+			while((frame=frameWriter.poll())!=null) {
+				out.write(frame.array(),frame.arrayOffset()+frame.position(),frame.remaining());
+				BufferPool.getInstance().release(frame);
+				checkCongestion();
+			}
 			out.flush();
 		} catch (IOException e) {
-			manager.endpointDisconnectedAbruptly(this);
-			return false;
+			writeFailed=true;
+			try {
+				socket.close();
+			} catch (IOException e2) {
+				// ignore
+			}
 		}
-		return true;
+	}
+	
+	/**
+	 * Wait for the writer thread to write whatever was queued, unless
+	 * called by the writer thread. Close interrupts the endpoint thread,
+	 * which may be the one closing, so an interrupt does not cut the wait
+	 * short; it is kept for the caller.
+	 */
+	protected void drain() {
+		wakeWriter();
+		Thread w = writer;
+		if(w==null || w==Thread.currentThread()) return;
+		boolean interrupted = Thread.interrupted();
+		long deadline = System.currentTimeMillis()+closeDrainTimeout;
+		long left;
+		while(w.isAlive() && (left=deadline-System.currentTimeMillis())>0) {
+			try {
+				w.join(left);
+			} catch (InterruptedException e) {
+				interrupted=true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
 	}
 	
 	/**
@@ -122,23 +860,163 @@ public class Endpoint extends Eventable {
 	 * @param timeInterval
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendWithTimeout(Message msg,
+	public boolean sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
-		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
-		}
+		return sendWithTimeout(msg,null,timeoutCallback,timeInterval);
+	}
+	
+	/**
+	 * Send a message and attach a timeout identifier to it. The reply
+	 * callback is triggered with the reply to the message, after the protocol
+	 * has received it, and the timeout callback is triggered instead if no
+	 * reply to the message was seen within the given time interval. The
+	 * timeout is cancelled as soon as the reply arrives.
+	 * @param msg
+	 * @param replyCallback may be null
+	 * @param timeoutCallback may be null
+	 * @param timeInterval
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendWithTimeout(Message msg, IReplyCallback replyCallback,
+			ICallback timeoutCallback, int timeInterval) {
+		return sendWithTimeout(msg,replyCallback,timeoutCallback,timeInterval,false);
+	}
+	
+	/**
+	 * Send a message and attach a timeout identifier to it. The callback
+	 * is triggered if no reply to the message was seen within the request
+	 * timeout of the endpoint.
+	 * @param msg
+	 * @param timeoutCallback
+	 * @return true if the message was sent and false otherwise
+	 * @see {@link #getRequestTimeRemaining(long)}
+	 */
+	public boolean sendWithTimeout(Message msg, ICallback timeoutCallback) {
+		return sendWithTimeout(msg,null,timeoutCallback);
+	}
+	
+	/**
+	 * Send a message and attach a timeout identifier to it. The reply
+	 * callback is triggered with the reply to the message, after the protocol
+	 * has received it, and the timeout callback is triggered instead if no
+	 * reply to the message was seen within the request timeout of the
+	 * endpoint. The timeout is cancelled as soon as the reply arrives.
+	 * @param msg
+	 * @param replyCallback may be null
+	 * @param timeoutCallback may be null
+	 * @return true if the message was sent and false otherwise
+	 * @see {@link #getRequestTimeRemaining(long)}
+	 */
+	public boolean sendWithTimeout(Message msg, IReplyCallback replyCallback,
+			ICallback timeoutCallback) {
+		return sendWithTimeout(msg,replyCallback,timeoutCallback,getRequestTimeout(),true);
+	}
+	
+	private boolean sendWithTimeout(Message msg, IReplyCallback replyCallback,
+			ICallback timeoutCallback, int timeInterval, boolean adaptive) {
+		long nextId = timeoutIds.incrementAndGet();
 		msg.setTimeoutId(nextId);
-		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
+		// added before sending, since the reply may come back straight away
+		PendingRequests.Entry entry = pendingRequests.add(nextId,replyCallback,timeoutCallback);
+		armRequestTimeout(entry,timeInterval,adaptive);
+		if(!send(msg)) {
+			pendingRequests.remove(nextId);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Time out a request after a delay, unless its reply arrives first. A
+	 * request with an adaptive timeout is given longer if the request
+	 * timeout has grown since it was sent, or if the other endpoint has
+	 * been heard from recently.
+	 * @param entry
+	 * @param delay milliseconds
+	 * @param adaptive
+	 */
+	private void armRequestTimeout(PendingRequests.Entry entry, long delay, boolean adaptive) {
+		entry.setTimeout(Utils.getInstance().setTimeout(()->{
+			if(adaptive) {
+				long remaining = getRequestTimeRemaining(
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-entry.getSent()));
+				if(remaining>0) {
+					armRequestTimeout(entry,remaining,true);
+					return;
+				}
 			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
-		return sent;
+			PendingRequests.Entry timedout = pendingRequests.expire(entry.getId());
+			if(timedout!=null && timedout.getOnTimeout()!=null) timedout.getOnTimeout().callback();
+		}, delay));
+	}
+	
+	/**
+	 * @return milliseconds to wait for the reply to a request, from the
+	 * round trip times measured so far, or
+	 * {@link pb.utils.Utils#getRequestTimeout()} if none have been
+	 */
+	public int getRequestTimeout() {
+		Utils utils = Utils.getInstance();
+		return roundTripTimes.getTimeout(utils.getRequestTimeout(),
+				utils.getMinRequestTimeout(),utils.getMaxRequestTimeout());
+	}
+	
+	/**
+	 * How much longer to wait for the reply to a request. A reply that is
+	 * later than the request timeout is still waited for while the other
+	 * endpoint has been heard from within the request timeout, since it is
+	 * then most likely queued behind other messages, but never for longer
+	 * than {@link pb.utils.Utils#getMaxRequestTimeout()} in all.
+	 * @param waited milliseconds the request has waited so far
+	 * @return milliseconds more to wait, or 0 if the request has timed out
+	 */
+	public long getRequestTimeRemaining(long waited) {
+		int timeout = getRequestTimeout();
+		if(waited<timeout) return timeout-waited;
+		long heard = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-lastReceived);
+		long max = Utils.getInstance().getMaxRequestTimeout();
+		if(heard<timeout && waited<max) return Math.max(1,Math.min(timeout-heard,max-waited));
+		return 0;
+	}
+	
+	/**
+	 * @return the smoothed round trip time of requests in milliseconds, 0 if
+	 * no request has been replied to
+	 */
+	public double getRoundTripTime() {
+		return roundTripTimes.getSmoothed();
+	}
+	
+	/**
+	 * @return the mean deviation of the round trip time of requests in
+	 * milliseconds, 0 if no request has been replied to
+	 */
+	public double getRoundTripTimeDeviation() {
+		return roundTripTimes.getDeviation();
+	}
+	
+	/**
+	 * @param percentile between 0 and 100, e.g. 99
+	 * @return the round trip time in milliseconds that the given percentage
+	 * of requests were replied to within, to within an eighth, 0 if no
+	 * request has been replied to
+	 */
+	public double getRoundTripTimePercentile(double percentile) {
+		return roundTripTimes.getPercentile(percentile);
+	}
+	
+	/**
+	 * @return the number of requests whose round trip time has been measured
+	 */
+	public long getRoundTripSamples() {
+		return roundTripTimes.getSamples();
+	}
+	
+	/**
+	 * @return the number of requests sent that are waiting for a reply
+	 */
+	public int getPendingRequests() {
+		return pendingRequests.size();
 	}
 	
 	/**
@@ -149,7 +1027,7 @@ public class Endpoint extends Eventable {
 	 * @param replyingTo
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendAndCancelTimeout(Message msg,
+	public boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
 		return(send(msg));
@@ -175,6 +1053,10 @@ public class Endpoint extends Eventable {
 		if(protocolNames!=null)
 			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
 		
+		// no replies will come now, and the protocols have stopped so they
+		// do not need to hear about the timeouts
+		pendingRequests.clear();
+		
 		/*
 		 *  The endpoint thread itself will not process any more messages if we
 		 *  interrupt it.
@@ -185,25 +1067,30 @@ public class Endpoint extends Eventable {
 		
 		/**
 		 * At this point there may be exactly one _currently executing_ timer
-		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
+		 * thread callback (which is a pain, but it will only be queueing
+		 * messages that are refused once stopped), plus there may
 		 * be pending timer thread callbacks that will want to use this endpoint
 		 * (which wont run since protocol stopped has been set in the protocols).
 		 * The endpoint is at this point just "closing", not closed.
+		 * Messages that were queued before we stopped should still be sent.
 		 */
-		
-		try {
-			if(out!=null) out.close();
-			out=null;
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
-		}
+		drain();
+		closeSocket();
+		manager.endpointClosed(this);
+	}
+	
+	/**
+	 * Close the socket once the messages queued before closing have been
+	 * written, as far as {@link #drain()} allows.
+	 */
+	protected void closeSocket() {
+		// closing the socket also closes the output stream, and will stop
+		// whichever thread is still stuck writing
 		try {
 			socket.close();
 		} catch (IOException e) {
 			log.warning("socket did not close properly: "+e.getMessage());
 		}
-		manager.endpointClosed(this);
 	}
 	
 	/**
@@ -212,55 +1099,21 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			in = socket.getInputStream();
+			out = new BufferedOutputStream(socket.getOutputStream(),outBufferSize);
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
-		stopped=false; // allow use of the out stream
-		manager.endpointReady(this);
-		log.info("endpoint has started to: "+getOtherEndpointId());
+		ready();
 		while(!isInterrupted()) {
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
-					break;
+				Message msg = frameReader.next();
+				if(msg==null) {
+					if(frameReader.fill(in)==-1) throw new EOFException();
+					continue;
 				}
+				receive(msg);
 			} catch (IOException e) {
 				manager.endpointDisconnectedAbruptly(this);
 				// we can't continue here
@@ -275,9 +1128,79 @@ public class Endpoint extends Eventable {
 		} catch (IOException e) {
 			log.warning("connection did not close properly: "+e.getMessage());
 		}
+		frameReader.release();
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
+	/**
+	 * Allow the use of send and tell the manager that the endpoint is
+	 * ready. Called once the underlying connection can carry data.
+	 */
+	protected void ready() {
+		lastReceived=lastSent=System.nanoTime();
+		stopped=false; // allow use of the out stream
+		manager.endpointReady(this);
+		log.info("endpoint has started to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Process a single message that was received from the other endpoint,
+	 * passing it to the appropriate protocol. The protocol
+	 * is created, from the {@link pb.protocols.ProtocolRegistry}, if it is not
+	 * already running and the manager allows it.
+	 * @param msg the received message
+	 * @throws InvalidMessage if the message is not valid
+	 */
+	protected void receive(Message msg) throws InvalidMessage {
+		// any message shows that the other endpoint is alive
+		long now = System.nanoTime();
+		lastReceived=now;
+		// cancel any related time out
+		PendingRequests.Entry request = null;
+		if(msg.getType()==Message.Type.Reply) {
+			request=pendingRequests.remove(msg.getTimeoutId());
+			if(request!=null) roundTripTimes.add(now-request.getSent());
+		}
+		// find the protocol
+		Protocol protocol=null;
+		synchronized(protocols) {
+			protocol=protocols.get(msg.getProtocolName());
+		}
+		if(protocol==null) {
+			if(stopped) {
+				// closing stopped the protocol, so it must not be started
+				// again for messages read before the socket closed
+				log.info("message dropped, endpoint is closed: "+msg.getName());
+				return;
+			}
+			// the message was registered, so its protocol was too
+			protocol=ProtocolRegistry.getInstance().getProtocol(msg.getProtocolName())
+					.newProtocol(this,manager);
+			if(!manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.getName());
+				return;
+			}
+		}
+		log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			if(request!=null && request.getOnReply()!=null) request.getOnReply().callback(msg);
+			break;
+		}
+	}
+	
+	/**
+	 * @return true if the endpoint can not be used to send, either because
+	 * it has not started yet or because it has been closed
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
 	 * at a time. Either client or server may start/initiate the use of the protocol.
@@ -0,0 +1,269 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.utils.BufferPool;
+
+/**
+ * Splits the bytes read from a socket into frames and decodes each frame as
+ * a message, with the {@link MessageCodec} that the frame was written with.
+ * Bytes are read into a buffer from the {@link pb.utils.BufferPool} that
+ * is reused for the life of the endpoint; it only grows while a frame larger
+ * than it is being read, and shrinks back afterwards. The buffer is direct when
+ * reading from a channel, so the channel does not have to copy into a direct
+ * buffer of its own, and heap when reading from a stream. Starts in the {@link Framing.Format#UTF} format and
+ * changes format when told to expect a change and then the marking empty frame
+ * arrives, at which point it also starts to decompress compressed frames if
+ * that was agreed. Not thread safe, it is only used by the thread reading the socket.
+ *
+ * @see {@link pb.managers.endpoint.Framing}
+ */
+public class FrameReader {
+
+	/**
+	 * Usual size of the read buffer.
+	 */
+	private static final int bufferSize = 8*1024;
+
+	/**
+	 * Whether the buffer is direct.
+	 */
+	private final boolean direct;
+
+	/**
+	 * Bytes read that are not yet part of a decoded frame, always
+	 * left ready for more bytes to be put in it. Null until first
+	 * filled and after being released.
+	 */
+	private ByteBuffer buffer = null;
+
+	/**
+	 * Scratch space for decoding modified UTF-8.
+	 */
+	private char[] chars = new char[bufferSize];
+
+	/**
+	 * Current format.
+	 */
+	private Framing.Format format = Framing.Format.UTF;
+
+	/**
+	 * Largest frame body accepted in the current format.
+	 */
+	private int maxFrameSize = Framing.maxUTFFrameSize;
+
+	/**
+	 * The inflate stream when compressed frames are allowed, otherwise null.
+	 */
+	private Inflater inflater = null;
+
+	/**
+	 * Space to decompress into.
+	 */
+	private byte[] inflated = new byte[bufferSize];
+
+	/**
+	 * Format to change to when the empty frame is read, or null.
+	 */
+	private Framing.Format nextFormat = null;
+
+	/**
+	 * Largest frame body for the next format.
+	 */
+	private int nextMaxFrameSize;
+
+	/**
+	 * Compression for the next format.
+	 */
+	private Framing.Compression nextCompression;
+
+	/**
+	 * @param direct true to read into a direct buffer, which can only be
+	 * filled from a channel
+	 */
+	public FrameReader(boolean direct) {
+		this.direct=direct;
+	}
+
+	/**
+	 * Change to a new format once the empty frame marking the change is read.
+	 * @param format
+	 * @param maxFrameSize
+	 * @param compression compression the other endpoint may use, only for
+	 * the {@link Framing.Format#Length} format
+	 */
+	public void expect(Framing.Format format, int maxFrameSize, Framing.Compression compression) {
+		nextFormat=format;
+		nextMaxFrameSize=maxFrameSize;
+		nextCompression=compression;
+	}
+
+	/**
+	 * @return the current format
+	 */
+	public Framing.Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * Read whatever bytes are available from a blocking stream, waiting
+	 * for at least one.
+	 * @param in
+	 * @return number of bytes read, or -1 at end of stream
+	 * @throws IOException
+	 */
+	public int fill(InputStream in) throws IOException {
+		if(buffer==null) buffer = BufferPool.getInstance().acquireHeap(bufferSize);
+		int read = in.read(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+		if(read>0) buffer.position(buffer.position()+read);
+		return read;
+	}
+
+	/**
+	 * Read whatever bytes are available from a channel.
+	 * @param channel
+	 * @return number of bytes read, or -1 at end of stream
+	 * @throws IOException
+	 */
+	public int fill(ReadableByteChannel channel) throws IOException {
+		if(buffer==null) buffer = BufferPool.getInstance().acquire(bufferSize,direct);
+		return channel.read(buffer);
+	}
+
+	/**
+	 * Decode the next complete frame from the bytes read so far.
+	 * @return the message in the frame or null if more bytes need to be read first
+	 * @throws IOException if the frame is larger than allowed or can not be decoded
+	 * @throws InvalidMessage if the frame is not a valid message, in which case
+	 * the frame is skipped
+	 */
+	public Message next() throws IOException, InvalidMessage {
+		if(buffer==null) return null;
+		buffer.flip();
+		try {
+			while(true) {
+				int header = Framing.headerSize(format);
+				if(buffer.remaining()<header) return null;
+				int pos = buffer.position();
+				int length = format==Framing.Format.UTF ?
+						buffer.getShort(pos) & 0xffff : buffer.getInt(pos);
+				boolean compressed = length<0 && inflater!=null;
+				if(compressed) length&=~Framing.compressedFlag;
+				int max = compressed ? Framing.maxDeflatedSize(maxFrameSize) : maxFrameSize;
+				if(length<0 || length>max) {
+					throw new IOException("frame of "+length+" bytes is larger than "+max);
+				}
+				if(length==0 && nextFormat!=null) {
+					// the other endpoint has changed format
+					buffer.position(pos+header);
+					format=nextFormat;
+					maxFrameSize=nextMaxFrameSize;
+					if(format==Framing.Format.Length &&
+							nextCompression==Framing.Compression.Deflate) {
+						if(inflater==null) inflater = new Inflater();
+					} else {
+						inflater=null;
+					}
+					nextFormat=null;
+					continue;
+				}
+				if(buffer.remaining()<header+length) {
+					ensureCapacity(header+length);
+					return null;
+				}
+				// skip the frame before decoding, in case it is not valid
+				buffer.position(pos+header+length);
+				if(compressed) return inflate(pos+header,length);
+				if(chars.length<length && (format==Framing.Format.UTF || direct)) {
+					chars = new char[length];
+				}
+				return Framing.codecOf(format,buffer,pos+header,length)
+						.decode(format,buffer,pos+header,length,chars);
+			}
+		} finally {
+			if(!buffer.hasRemaining() && buffer.capacity()>bufferSize) {
+				// done with a large frame
+				BufferPool.getInstance().release(buffer);
+				buffer = BufferPool.getInstance().acquire(bufferSize,direct);
+				chars = new char[bufferSize];
+			} else {
+				buffer.compact();
+			}
+		}
+	}
+
+	/**
+	 * Decompress the body of a compressed frame in the buffer, which must not
+	 * be larger than the largest frame body once decompressed.
+	 * @param pos where the body starts
+	 * @param length length of the body
+	 * @return the decoded message
+	 * @throws IOException if the body can not be decompressed or is too large
+	 * @throws InvalidMessage if the body is not a valid message
+	 */
+	private Message inflate(int pos, int length) throws IOException, InvalidMessage {
+		int limit = buffer.limit();
+		int position = buffer.position();
+		buffer.limit(pos+length).position(pos);
+		inflater.setInput(buffer);
+		int n=0;
+		try {
+			while(true) {
+				n+=inflater.inflate(inflated,n,inflated.length-n);
+				if(n<inflated.length) break;
+				if(n>maxFrameSize) {
+					throw new IOException("compressed frame is larger than "+maxFrameSize);
+				}
+				// there may be more to come
+				inflated=Arrays.copyOf(inflated,(int)Math.min(2L*inflated.length,maxFrameSize+1L));
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("compressed frame is not valid: "+e.getMessage());
+		} finally {
+			buffer.limit(limit).position(position);
+		}
+		ByteBuffer body = ByteBuffer.wrap(inflated,0,n);
+		try {
+			return Framing.codecOf(Framing.Format.Length,body,0,n)
+					.decode(Framing.Format.Length,body,0,n,chars);
+		} finally {
+			if(inflated.length>bufferSize) {
+				// done with a large frame
+				inflated = new byte[bufferSize];
+			}
+		}
+	}
+
+	/**
+	 * Make sure a frame of the given size fits in the buffer, which
+	 * is ready for reading.
+	 * @param size
+	 */
+	private void ensureCapacity(int size) {
+		if(buffer.capacity()>=size) return;
+		ByteBuffer larger = BufferPool.getInstance().acquire(size,direct);
+		larger.limit(larger.capacity());
+		larger.put(buffer);
+		larger.flip();
+		BufferPool.getInstance().release(buffer);
+		buffer=larger;
+	}
+
+	/**
+	 * Give the buffer back to the pool, dropping anything that has not been
+	 * decoded. The reader can still be used afterwards, it will get another
+	 * buffer when next filled.
+	 */
+	public void release() {
+		BufferPool.getInstance().release(buffer);
+		buffer=null;
+	}
+}
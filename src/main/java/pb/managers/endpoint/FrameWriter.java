@@ -0,0 +1,384 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import pb.protocols.Message;
+import pb.utils.BufferPool;
+import pb.utils.Utils;
+
+/**
+ * The outbound queue of an endpoint, which turns queued messages into the
+ * frames to write to the socket. Any thread may add to the queue without
+ * locking; only the thread holding the {@link #writeLock}, or the selector
+ * thread of a {@link ReactorEndpoint}, takes from it using {@link #poll()}.
+ * <br/>
+ * The queue is really a lane for each {@link Message.Priority}, and messages
+ * are only kept in order within a lane. Control messages are always written
+ * first, so that keep alives and replies are never stuck behind large
+ * transfers. Otherwise interactive messages are written before bulk messages,
+ * but a bulk frame is written after every {@link pb.utils.Utils#getInteractiveWeight()}
+ * interactive frames so that bulk messages are not starved.
+ * <br/>
+ * Messages are encoded by the thread that sends them, with the
+ * {@link MessageCodec} they are sent with, so that the writer only
+ * has to write bytes. A change of format is itself an entry in the control lane:
+ * every message queued before it is written in the old format, followed by the
+ * empty frame that marks the change, and every message queued after it is
+ * written in the new format. A message encoded in a format other than the
+ * one being written, just as the format changes or because it was overtaken
+ * by the change, is encoded again by the writer. Compression, when agreed, is done by
+ * the writer since the frames must go through the deflate stream in the order
+ * they are written. Frames are encoded into buffers from the
+ * {@link pb.utils.BufferPool}, which the writer releases once it has written them.
+ * <br/>
+ * The number of bytes queued is kept, so that the endpoint can tell when the
+ * other endpoint is falling behind. A message can also be queued with a key,
+ * in which case it replaces any message with the same key that is still
+ * queued.
+ *
+ * @see {@link pb.managers.endpoint.Framing}
+ */
+public class FrameWriter {
+	private static Logger log = Logger.getLogger(FrameWriter.class.getName());
+
+	/**
+	 * An entry in the queue.
+	 */
+	private static class Pending {
+		/**
+		 * The message, null if this is a change of format.
+		 */
+		final Message msg;
+		
+		/**
+		 * The codec the message was encoded with.
+		 */
+		final MessageCodec codec;
+
+		/**
+		 * The encoded frame, null if this is a change of format.
+		 */
+		final ByteBuffer frame;
+
+		/**
+		 * The format the frame was encoded in, or to change to.
+		 */
+		final Framing.Format format;
+
+		/**
+		 * The largest frame body allowed, when changing format.
+		 */
+		final int maxFrameSize;
+
+		/**
+		 * The compression to use, when changing format.
+		 */
+		final Framing.Compression compression;
+
+		/**
+		 * The smallest frame body to compress, when changing format.
+		 */
+		final int compressionThreshold;
+
+		/**
+		 * The key of a message that can be replaced, otherwise null.
+		 */
+		String key;
+
+		/**
+		 * Set by whichever of the writer or a replacing message gets to
+		 * the entry first, only used when there is a key.
+		 */
+		AtomicBoolean claimed;
+
+		/**
+		 * Called if the message is replaced, only used when there is a key.
+		 */
+		Runnable onReplaced;
+
+		Pending(Message msg, MessageCodec codec, ByteBuffer frame, Framing.Format format,
+				int maxFrameSize, Framing.Compression compression, int compressionThreshold) {
+			this.msg=msg;
+			this.codec=codec;
+			this.frame=frame;
+			this.format=format;
+			this.maxFrameSize=maxFrameSize;
+			this.compression=compression;
+			this.compressionThreshold=compressionThreshold;
+		}
+	}
+
+	/**
+	 * Held by the endpoint's writer while taking frames from the queue and
+	 * writing them, so that frames are written in the order they are taken
+	 * even when one writer thread follows another.
+	 */
+	final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * Whether frames are encoded into direct buffers.
+	 */
+	private final boolean direct;
+
+	/**
+	 * The lanes, indexed by priority.
+	 */
+	private final List<ConcurrentLinkedQueue<Pending>> lanes;
+	
+	/**
+	 * Interactive frames to write for each bulk frame.
+	 */
+	private final int interactiveWeight;
+	
+	/**
+	 * Interactive frames written since the last bulk frame, only used by the writer.
+	 */
+	private int interactiveRun=0;
+
+	/**
+	 * The latest message queued for each key.
+	 */
+	private final ConcurrentHashMap<String,Pending> keyed = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of bytes of messages in the queue.
+	 */
+	private final AtomicLong queuedBytes = new AtomicLong();
+
+	/**
+	 * The format of the last change queued, which senders encode with.
+	 */
+	private volatile Framing.Format queuedFormat = Framing.Format.UTF;
+
+	/**
+	 * The largest frame body allowed by the last change queued.
+	 */
+	private volatile int queuedMaxFrameSize = Framing.maxUTFFrameSize;
+
+	/**
+	 * The format the writer is currently writing, only used by the writer.
+	 */
+	private Framing.Format format = Framing.Format.UTF;
+
+	/**
+	 * The largest frame body allowed in the current format, only used by the writer.
+	 */
+	private int maxFrameSize = Framing.maxUTFFrameSize;
+
+	/**
+	 * The deflate stream when compressing, only used by the writer.
+	 */
+	private Deflater deflater = null;
+
+	/**
+	 * The smallest frame body to compress, only used by the writer.
+	 */
+	private int compressionThreshold;
+
+	/**
+	 * @param direct true to encode frames into direct buffers, for writing
+	 * to a channel, false for heap buffers, for writing to a stream
+	 */
+	public FrameWriter(boolean direct) {
+		this.direct=direct;
+		lanes = new ArrayList<>(Message.Priority.values().length);
+		for(int i=0;i<Message.Priority.values().length;i++) lanes.add(new ConcurrentLinkedQueue<>());
+		interactiveWeight = Math.max(1,Utils.getInstance().getInteractiveWeight());
+	}
+
+	/**
+	 * Encode a message and add it to the queue.
+	 * @param msg
+	 * @param codec
+	 * @return true if queued, false if the message is too large
+	 */
+	public boolean add(Message msg, MessageCodec codec) {
+		Framing.Format f = queuedFormat;
+		ByteBuffer frame = codec.encode(msg,f,queuedMaxFrameSize,direct);
+		if(frame==null) return false;
+		queuedBytes.addAndGet(frame.remaining());
+		lanes.get(msg.getPriority().ordinal()).add(new Pending(msg,codec,frame,f,0,null,0));
+		return true;
+	}
+
+	/**
+	 * Encode a message and add it to the queue, replacing the message
+	 * queued with the same key if it has not been taken by the writer yet.
+	 * The replacement goes to the back of the queue.
+	 * @param msg
+	 * @param codec
+	 * @param key
+	 * @param onReplaced called if this message is itself replaced later
+	 * @return true if queued, false if the message is too large
+	 */
+	public boolean add(Message msg, MessageCodec codec, String key, Runnable onReplaced) {
+		Framing.Format f = queuedFormat;
+		ByteBuffer frame = codec.encode(msg,f,queuedMaxFrameSize,direct);
+		if(frame==null) return false;
+		Pending pending = new Pending(msg,codec,frame,f,0,null,0);
+		pending.key=key;
+		pending.claimed=new AtomicBoolean();
+		pending.onReplaced=onReplaced;
+		queuedBytes.addAndGet(frame.remaining());
+		Pending previous = keyed.put(key,pending);
+		if(previous!=null && previous.claimed.compareAndSet(false,true)) {
+			queuedBytes.addAndGet(-previous.frame.remaining());
+			BufferPool.getInstance().release(previous.frame);
+			if(previous.onReplaced!=null) previous.onReplaced.run();
+		}
+		lanes.get(msg.getPriority().ordinal()).add(pending);
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes of messages in the queue
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+	
+	/**
+	 * @return the largest frame body allowed for messages added from now on
+	 */
+	public int getMaxFrameSize() {
+		return queuedMaxFrameSize;
+	}
+
+	/**
+	 * Queue a change of format. Should not be called by more than one
+	 * thread at a time.
+	 * @param format
+	 * @param maxFrameSize largest frame body allowed in the new format
+	 * @param compression compression to use, only for the {@link Framing.Format#Length} format
+	 * @param compressionThreshold smallest frame body to compress
+	 */
+	public void change(Framing.Format format, int maxFrameSize,
+			Framing.Compression compression, int compressionThreshold) {
+		lanes.get(Message.Priority.Control.ordinal()).add(
+				new Pending(null,null,null,format,maxFrameSize,compression,compressionThreshold));
+		queuedMaxFrameSize=maxFrameSize;
+		queuedFormat=format;
+	}
+
+	/**
+	 * Take the next frame to write, only called by the writer, which should
+	 * release it to the {@link pb.utils.BufferPool} once written.
+	 * @return the bytes to write, from position to limit, or null if the
+	 * queue is empty
+	 */
+	public ByteBuffer poll() {
+		Pending pending;
+		while((pending=next())!=null) {
+			if(pending.msg==null) {
+				ByteBuffer marker = Framing.emptyFrame(format);
+				format=pending.format;
+				maxFrameSize=pending.maxFrameSize;
+				compressionThreshold=pending.compressionThreshold;
+				if(format==Framing.Format.Length &&
+						pending.compression==Framing.Compression.Deflate) {
+					if(deflater==null) deflater = new Deflater();
+				} else {
+					deflater=null;
+				}
+				return marker;
+			}
+			if(pending.claimed!=null) {
+				// skip it if it was replaced
+				if(!pending.claimed.compareAndSet(false,true)) continue;
+				keyed.remove(pending.key,pending);
+			}
+			queuedBytes.addAndGet(-pending.frame.remaining());
+			ByteBuffer frame = pending.frame;
+			if(pending.format!=format) {
+				// the format changed while the message was being queued
+				BufferPool.getInstance().release(frame);
+				frame = pending.codec.encode(pending.msg,format,maxFrameSize,direct);
+				if(frame==null) {
+					log.warning("message is too large to send, dropped");
+					continue;
+				}
+			}
+			if(deflater!=null && frame.remaining()-4>=compressionThreshold) return deflate(frame);
+			return frame;
+		}
+		return null;
+	}
+
+	/**
+	 * Take the next entry from the lanes: control first, then interactive,
+	 * giving bulk a turn after every interactiveWeight interactive entries.
+	 * @return the entry or null if all the lanes are empty
+	 */
+	private Pending next() {
+		Pending pending = lanes.get(Message.Priority.Control.ordinal()).poll();
+		if(pending!=null) return pending;
+		ConcurrentLinkedQueue<Pending> interactive = lanes.get(Message.Priority.Interactive.ordinal());
+		if(interactiveRun<interactiveWeight) {
+			pending = interactive.poll();
+			if(pending!=null) {
+				interactiveRun++;
+				return pending;
+			}
+		}
+		interactiveRun=0;
+		pending = lanes.get(Message.Priority.Bulk.ordinal()).poll();
+		if(pending!=null) return pending;
+		return interactive.poll();
+	}
+
+	/**
+	 * Compress a frame in the {@link Framing.Format#Length} format, sync
+	 * flushing so that the other endpoint can decompress all of it straight
+	 * away. The uncompressed frame is released.
+	 * @param frame the uncompressed frame, header included
+	 * @return the compressed frame, header included
+	 */
+	private ByteBuffer deflate(ByteBuffer frame) {
+		BufferPool pool = BufferPool.getInstance();
+		frame.position(4);
+		deflater.setInput(frame);
+		// big enough for the whole body even if it does not compress
+		ByteBuffer deflated = pool.acquire(4+Framing.maxDeflatedSize(frame.remaining()),direct);
+		deflated.position(4);
+		while(true) {
+			deflater.deflate(deflated,Deflater.SYNC_FLUSH);
+			if(deflated.hasRemaining()) break;
+			// there may be more to come
+			ByteBuffer larger = pool.acquire(deflated.capacity()*2,direct);
+			deflated.flip();
+			larger.put(deflated);
+			pool.release(deflated);
+			deflated=larger;
+		}
+		pool.release(frame);
+		deflated.flip();
+		deflated.putInt(0,(deflated.limit()-4) | Framing.compressedFlag);
+		return deflated;
+	}
+
+	/**
+	 * @return true if there is nothing queued
+	 */
+	public boolean isEmpty() {
+		for(ConcurrentLinkedQueue<Pending> lane : lanes) {
+			if(!lane.isEmpty()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the format of the last change queued
+	 */
+	public Framing.Format getFormat() {
+		return queuedFormat;
+	}
+}
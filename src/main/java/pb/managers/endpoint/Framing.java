@@ -0,0 +1,355 @@
+package pb.managers.endpoint;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import pb.protocols.BinaryCodec;
+import pb.utils.BufferPool;
+
+/**
+ * How messages are delimited on the socket. Two formats are supported:
+ * <ul>
+ * <li>{@link Format#UTF} is the original format, as written by
+ * {@link java.io.DataOutputStream#writeUTF(String)}: a 2 byte length followed by
+ * modified UTF-8, so a message can be at most 65535 bytes. All endpoints start
+ * with this format.</li>
+ * <li>{@link Format#Length} is a 4 byte length followed by standard UTF-8, up to
+ * a maximum frame size that both endpoints agree to at session start.</li>
+ * </ul>
+ * An endpoint that has agreed to change format writes one empty frame in the
+ * old format and then writes everything after it in the new format. An empty
+ * frame is never a valid message, so the other endpoint can tell exactly where
+ * the change happens.
+ * <br/>
+ * The {@link Format#Length} format can also be compressed, as agreed at
+ * session start. Each direction is a single deflate stream that is sync
+ * flushed at the end of every compressed frame, so that later frames can refer
+ * back to earlier ones. Frames smaller than a threshold are not compressed;
+ * compressed frames have the top bit of their length set.
+ * <br/>
+ * The body of a frame is a message written by a {@link MessageCodec}. Frames
+ * in the {@link Format#UTF} format are always JSON, frames in the
+ * {@link Format#Length} format may also be binary, which is told apart by
+ * the first byte of the body.
+ *
+ * @see {@link pb.managers.endpoint.FrameReader}
+ * @see {@link pb.managers.endpoint.FrameWriter}
+ * @see {@link pb.protocols.session.SessionProtocol}
+ */
+public class Framing {
+	/**
+	 * The frame formats.
+	 */
+	static public enum Format {
+		UTF,
+		Length
+	}
+
+	/**
+	 * The kinds of compression.
+	 */
+	static public enum Compression {
+		None,
+		Deflate
+	}
+
+	/**
+	 * Largest frame in the {@link Format#UTF} format.
+	 */
+	public static final int maxUTFFrameSize = 65535;
+
+	/**
+	 * Default largest frame in the {@link Format#Length} format.
+	 */
+	public static final int defaultMaxFrameSize = 16*1024*1024;
+
+	/**
+	 * Largest frame that can be agreed in the {@link Format#Length} format,
+	 * leaving the top bit of the length free to mark compression.
+	 */
+	public static final int maxLengthFrameSize = 1024*1024*1024;
+
+	/**
+	 * Default smallest frame body that is compressed, smaller ones are
+	 * not worth it.
+	 */
+	public static final int defaultCompressionThreshold = 256;
+
+	/**
+	 * Marks a compressed frame in the {@link Format#Length} format.
+	 */
+	public static final int compressedFlag = 0x80000000;
+
+	/**
+	 * Parse a format name, as sent during session start.
+	 * @param name
+	 * @return the format or null if the name is not known
+	 */
+	public static Format toFormat(String name) {
+		if(name==null) return null;
+		for(Format format : Format.values()) {
+			if(format.toString().equals(name)) return format;
+		}
+		return null;
+	}
+
+	/**
+	 * Parse a compression name, as sent during session start.
+	 * @param name
+	 * @return the compression or null if the name is not known
+	 */
+	public static Compression toCompression(String name) {
+		if(name==null) return null;
+		for(Compression compression : Compression.values()) {
+			if(compression.toString().equals(name)) return compression;
+		}
+		return null;
+	}
+
+	/**
+	 * @param format the format the frame was received in
+	 * @param in the bytes, heap or direct
+	 * @param pos where the body starts
+	 * @param length length of the body
+	 * @return the codec to decode the body of a frame with
+	 */
+	public static MessageCodec codecOf(Format format, ByteBuffer in, int pos, int length) {
+		if(format==Format.Length && BinaryCodec.isBinary(in,pos,length)) {
+			return BinaryMessageCodec.instance;
+		}
+		return JsonMessageCodec.names;
+	}
+
+	/**
+	 * @param format
+	 * @return the number of bytes before the body of a frame
+	 */
+	public static int headerSize(Format format) {
+		return format==Format.UTF ? 2 : 4;
+	}
+
+	/**
+	 * Encode text as a complete frame, header included, in a buffer from
+	 * the {@link pb.utils.BufferPool} which should be released once written.
+	 * @param format the format to use
+	 * @param text the text to encode
+	 * @param maxFrameSize the largest body allowed
+	 * @param direct true for a direct buffer, false for a heap buffer
+	 * @return the frame, with position 0 and limit at its end, or null if the
+	 * body would be larger than allowed
+	 */
+	public static ByteBuffer encode(Format format, String text, int maxFrameSize,
+			boolean direct) {
+		int length;
+		if(format==Format.UTF) {
+			length = utfLength(text);
+			if(length>Math.min(maxFrameSize,maxUTFFrameSize)) return null;
+		} else {
+			length = utf8Length(text);
+			if(length>maxFrameSize) return null;
+		}
+		int header = headerSize(format);
+		ByteBuffer frame = BufferPool.getInstance().acquire(header+length,direct);
+		if(format==Format.UTF) {
+			frame.putShort(0,(short)length);
+			encodeUTF(text,frame,header);
+		} else {
+			frame.putInt(0,length);
+			encodeUTF8(text,frame,header);
+		}
+		return frame;
+	}
+
+	/**
+	 * @param maxFrameSize
+	 * @return the largest a frame body of the given size can become when
+	 * deflated, which happens when it does not compress at all
+	 */
+	public static int maxDeflatedSize(int maxFrameSize) {
+		return maxFrameSize+(maxFrameSize>>>10)+64;
+	}
+
+	/**
+	 * @param format
+	 * @return an empty frame, used to mark a change of format
+	 */
+	public static ByteBuffer emptyFrame(Format format) {
+		return ByteBuffer.allocate(headerSize(format));
+	}
+
+	/**
+	 * @param text
+	 * @return the number of bytes the text takes in modified UTF-8
+	 */
+	public static int utfLength(String text) {
+		int length=0;
+		for(int i=0;i<text.length();i++) {
+			char c=text.charAt(i);
+			if(c>=0x01 && c<0x80) {
+				length++;
+			} else if(c<0x800) {
+				length+=2;
+			} else {
+				length+=3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @param text
+	 * @return the number of bytes the text takes in standard UTF-8, where
+	 * an unpaired surrogate takes one byte as it is replaced by '?'
+	 */
+	public static int utf8Length(String text) {
+		int length=0;
+		for(int i=0;i<text.length();i++) {
+			char c=text.charAt(i);
+			if(c<0x80) {
+				length++;
+			} else if(c<0x800) {
+				length+=2;
+			} else if(Character.isHighSurrogate(c) && i+1<text.length() &&
+					Character.isLowSurrogate(text.charAt(i+1))) {
+				length+=4;
+				i++;
+			} else if(Character.isSurrogate(c)) {
+				length++;
+			} else {
+				length+=3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Write text as modified UTF-8.
+	 */
+	private static void encodeUTF(String text, ByteBuffer out, int pos) {
+		for(int i=0;i<text.length();i++) {
+			char c=text.charAt(i);
+			if(c>=0x01 && c<0x80) {
+				out.put(pos++,(byte)c);
+			} else if(c<0x800) {
+				out.put(pos++,(byte)(0xc0 | (c>>6)));
+				out.put(pos++,(byte)(0x80 | (c & 0x3f)));
+			} else {
+				out.put(pos++,(byte)(0xe0 | (c>>12)));
+				out.put(pos++,(byte)(0x80 | ((c>>6) & 0x3f)));
+				out.put(pos++,(byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	/**
+	 * Write text as standard UTF-8, as {@link String#getBytes(java.nio.charset.Charset)}
+	 * would, but without making a copy.
+	 */
+	private static void encodeUTF8(String text, ByteBuffer out, int pos) {
+		for(int i=0;i<text.length();i++) {
+			char c=text.charAt(i);
+			if(c<0x80) {
+				out.put(pos++,(byte)c);
+			} else if(c<0x800) {
+				out.put(pos++,(byte)(0xc0 | (c>>6)));
+				out.put(pos++,(byte)(0x80 | (c & 0x3f)));
+			} else if(Character.isHighSurrogate(c) && i+1<text.length() &&
+					Character.isLowSurrogate(text.charAt(i+1))) {
+				int cp=Character.toCodePoint(c,text.charAt(++i));
+				out.put(pos++,(byte)(0xf0 | (cp>>18)));
+				out.put(pos++,(byte)(0x80 | ((cp>>12) & 0x3f)));
+				out.put(pos++,(byte)(0x80 | ((cp>>6) & 0x3f)));
+				out.put(pos++,(byte)(0x80 | (cp & 0x3f)));
+			} else if(Character.isSurrogate(c)) {
+				out.put(pos++,(byte)'?');
+			} else {
+				out.put(pos++,(byte)(0xe0 | (c>>12)));
+				out.put(pos++,(byte)(0x80 | ((c>>6) & 0x3f)));
+				out.put(pos++,(byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	/**
+	 * Decode the body of a frame.
+	 * @param format
+	 * @param in the bytes, heap or direct
+	 * @param pos where the body starts
+	 * @param length length of the body
+	 * @param chars scratch space of at least length chars
+	 * @return the decoded text
+	 * @throws UTFDataFormatException if the body is not valid modified UTF-8
+	 */
+	public static String decodeBody(Format format, ByteBuffer in, int pos, int length,
+			char[] chars) throws UTFDataFormatException {
+		if(format==Format.Length) {
+			if(in.hasArray()) {
+				return new String(in.array(),in.arrayOffset()+pos,length,StandardCharsets.UTF_8);
+			}
+			return decodeUTF8(in,pos,length,chars);
+		}
+		int end=pos+length;
+		int n=0;
+		while(pos<end) {
+			int b=in.get(pos++) & 0xff;
+			if(b<0x80) {
+				chars[n++]=(char)b;
+			} else if((b & 0xe0)==0xc0) {
+				if(pos>=end) throw new UTFDataFormatException();
+				chars[n++]=(char)(((b & 0x1f)<<6) | (in.get(pos++) & 0x3f));
+			} else if((b & 0xf0)==0xe0) {
+				if(pos+1>=end) throw new UTFDataFormatException();
+				chars[n++]=(char)(((b & 0x0f)<<12) | ((in.get(pos) & 0x3f)<<6) | (in.get(pos+1) & 0x3f));
+				pos+=2;
+			} else {
+				throw new UTFDataFormatException();
+			}
+		}
+		return new String(chars,0,n);
+	}
+
+	/**
+	 * Decode standard UTF-8 from a buffer without an array, replacing
+	 * anything that is not valid with U+FFFD.
+	 */
+	private static String decodeUTF8(ByteBuffer in, int pos, int length, char[] chars) {
+		int end=pos+length;
+		int n=0;
+		while(pos<end) {
+			int b=in.get(pos++) & 0xff;
+			int more, cp;
+			if(b<0x80) {
+				chars[n++]=(char)b;
+				continue;
+			} else if((b & 0xe0)==0xc0) {
+				more=1;
+				cp=b & 0x1f;
+			} else if((b & 0xf0)==0xe0) {
+				more=2;
+				cp=b & 0x0f;
+			} else if((b & 0xf8)==0xf0) {
+				more=3;
+				cp=b & 0x07;
+			} else {
+				chars[n++]='\ufffd';
+				continue;
+			}
+			int i=0;
+			while(i<more && pos<end && (in.get(pos) & 0xc0)==0x80) {
+				cp=(cp<<6) | (in.get(pos++) & 0x3f);
+				i++;
+			}
+			if(i<more || cp<(more==1 ? 0x80 : more==2 ? 0x800 : 0x10000) ||
+					cp>Character.MAX_CODE_POINT || (cp>=0xd800 && cp<=0xdfff)) {
+				chars[n++]='\ufffd';
+			} else if(cp>=0x10000) {
+				chars[n++]=Character.highSurrogate(cp);
+				chars[n++]=Character.lowSurrogate(cp);
+			} else {
+				chars[n++]=(char)cp;
+			}
+		}
+		return new String(chars,0,n);
+	}
+}
@@ -28,6 +28,20 @@ public interface IEndpointHandler {
 	 */
 	public void endpointSentInvalidMessage(Endpoint endpoint);
 	
+	/**
+	 * The number of bytes queued to be sent on the endpoint has gone above
+	 * its high watermark, i.e. the other endpoint is not keeping up.
+	 * @param endpoint
+	 */
+	public void endpointCongested(Endpoint endpoint);
+	
+	/**
+	 * The number of bytes queued to be sent on the endpoint has fallen back
+	 * to its low watermark, after it was congested.
+	 * @param endpoint
+	 */
+	public void endpointUncongested(Endpoint endpoint);
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
@@ -0,0 +1,55 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.JsonCodec;
+import pb.protocols.Message;
+
+/**
+ * Writes messages as JSON text, which is what every endpoint understands.
+ * Messages are identified by their names, or by their compact ids once both
+ * endpoints have agreed to them.
+ *
+ * @see {@link pb.protocols.JsonCodec}
+ */
+public class JsonMessageCodec implements MessageCodec {
+	
+	/**
+	 * The name of the codec.
+	 */
+	public static final String name = "Json";
+	
+	/**
+	 * Identifies messages by their names.
+	 */
+	public static final JsonMessageCodec names = new JsonMessageCodec(false);
+	
+	/**
+	 * Identifies messages by their compact ids.
+	 */
+	public static final JsonMessageCodec ids = new JsonMessageCodec(true);
+	
+	private final boolean compact;
+	
+	private JsonMessageCodec(boolean compact) {
+		this.compact=compact;
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public ByteBuffer encode(Message msg, Framing.Format format, int maxFrameSize, boolean direct) {
+		return Framing.encode(format,JsonCodec.encode(msg,compact),maxFrameSize,direct);
+	}
+	
+	@Override
+	public Message decode(Framing.Format format, ByteBuffer in, int pos, int length,
+			char[] chars) throws IOException, InvalidMessage {
+		return JsonCodec.decode(Framing.decodeBody(format,in,pos,length,chars));
+	}
+}
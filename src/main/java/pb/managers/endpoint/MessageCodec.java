@@ -0,0 +1,49 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * How messages are written in the body of a frame. Endpoints send with the
+ * codec agreed at session start, {@link JsonMessageCodec} until then, and
+ * receive whatever the other endpoint sends, as the codec of each received
+ * frame can be told from its first byte.
+ *
+ * @see {@link pb.managers.endpoint.Framing#codecOf(Framing.Format, ByteBuffer, int, int)}
+ */
+public interface MessageCodec {
+	
+	/**
+	 * @return the name of the codec, as sent during session start
+	 */
+	public String getName();
+	
+	/**
+	 * Encode a message as a complete frame, header included, in a buffer
+	 * from the {@link pb.utils.BufferPool} which should be released once written.
+	 * @param msg the message to encode
+	 * @param format the frame format to use
+	 * @param maxFrameSize the largest body allowed
+	 * @param direct true for a direct buffer, false for a heap buffer
+	 * @return the frame, with position 0 and limit at its end, or null if the
+	 * body would be larger than allowed
+	 */
+	public ByteBuffer encode(Message msg, Framing.Format format, int maxFrameSize, boolean direct);
+	
+	/**
+	 * Decode the body of a frame.
+	 * @param format the frame format it was received in
+	 * @param in the bytes, heap or direct
+	 * @param pos where the body starts
+	 * @param length length of the body
+	 * @param chars scratch space of at least length chars
+	 * @return the message
+	 * @throws IOException if the body can not be decoded at all
+	 * @throws InvalidMessage if the body is not a valid message
+	 */
+	public Message decode(Framing.Format format, ByteBuffer in, int pos, int length,
+			char[] chars) throws IOException, InvalidMessage;
+}
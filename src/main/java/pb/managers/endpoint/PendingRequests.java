@@ -0,0 +1,248 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.protocols.ICallback;
+import pb.protocols.IReplyCallback;
+import pb.utils.TimingWheel;
+
+/**
+ * The requests sent by an endpoint that are waiting for a reply, keyed by
+ * their timeout id. Each entry holds what to call when the reply arrives and
+ * the timeout to cancel when it does. Whichever of the reply or the timeout
+ * takes the entry out of the table first gets to handle it.
+ * <br/>
+ * The table is split into segments, chosen by the low bits of the id, each
+ * with its own lock. Within a segment the ids are kept in a plain long array
+ * using open addressing, so nothing is boxed. Timeout ids are handed out in
+ * sequence, so consecutive requests land in different segments.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#sendWithTimeout(pb.protocols.Message, IReplyCallback, ICallback, int)}
+ */
+public class PendingRequests {
+
+	/**
+	 * A request waiting for a reply.
+	 */
+	public static final class Entry {
+		private final long id;
+		private final IReplyCallback onReply;
+		private final ICallback onTimeout;
+		private final long sent = System.nanoTime();
+		private volatile TimingWheel.Timeout timeout;
+
+		Entry(long id, IReplyCallback onReply, ICallback onTimeout) {
+			this.id=id;
+			this.onReply=onReply;
+			this.onTimeout=onTimeout;
+		}
+
+		/**
+		 * @return when the request was sent, as given by System.nanoTime()
+		 */
+		public long getSent() {
+			return sent;
+		}
+
+		/**
+		 * @return the timeout id of the request
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * @return what to call with the reply, may be null
+		 */
+		public IReplyCallback getOnReply() {
+			return onReply;
+		}
+
+		/**
+		 * @return what to call if no reply arrives in time, may be null
+		 */
+		public ICallback getOnTimeout() {
+			return onTimeout;
+		}
+
+		void setTimeout(TimingWheel.Timeout timeout) {
+			this.timeout=timeout;
+		}
+
+		/**
+		 * Cancel the timeout, if it has been set.
+		 */
+		void cancelTimeout() {
+			TimingWheel.Timeout t = timeout;
+			if(t!=null) t.cancel();
+		}
+	}
+
+	private static final int segmentBits = 4;
+	private static final int numSegments = 1<<segmentBits;
+
+	/**
+	 * Marks an empty slot; ids are always greater than 0.
+	 */
+	private static final long empty = 0;
+
+	/**
+	 * Marks a slot whose entry was removed.
+	 */
+	private static final long removed = -1;
+
+	private final Segment[] segments = new Segment[numSegments];
+
+	public PendingRequests() {
+		for(int i=0;i<numSegments;i++) segments[i]=new Segment();
+	}
+
+	/**
+	 * Add a request that is about to be sent.
+	 * @param id the timeout id, greater than 0
+	 * @param onReply called with the reply, may be null
+	 * @param onTimeout called if no reply arrives in time, may be null
+	 * @return the entry, whose timeout should be set once scheduled
+	 */
+	public Entry add(long id, IReplyCallback onReply, ICallback onTimeout) {
+		Entry entry = new Entry(id,onReply,onTimeout);
+		segmentFor(id).put(id,entry);
+		return entry;
+	}
+
+	/**
+	 * Take a request out of the table and cancel its timeout.
+	 * @param id the timeout id
+	 * @return the entry, or null if it was not in the table
+	 */
+	public Entry remove(long id) {
+		if(id<=0) return null;
+		Entry entry = segmentFor(id).remove(id);
+		if(entry!=null) entry.cancelTimeout();
+		return entry;
+	}
+
+	/**
+	 * Take a request out of the table because it timed out.
+	 * @param id the timeout id
+	 * @return the entry, or null if it was not in the table
+	 */
+	Entry expire(long id) {
+		return segmentFor(id).remove(id);
+	}
+
+	/**
+	 * Take every request out of the table and cancel their timeouts.
+	 * @return the entries that were in the table
+	 */
+	public List<Entry> clear() {
+		List<Entry> entries = new ArrayList<>();
+		for(Segment segment : segments) segment.drainTo(entries);
+		for(Entry entry : entries) entry.cancelTimeout();
+		return entries;
+	}
+
+	/**
+	 * @return the number of requests waiting for a reply
+	 */
+	public int size() {
+		int size=0;
+		for(Segment segment : segments) size+=segment.size();
+		return size;
+	}
+
+	private Segment segmentFor(long id) {
+		return segments[(int)(id & (numSegments-1))];
+	}
+
+	/**
+	 * One segment of the table, an open addressed hash table using linear probing.
+	 */
+	private static final class Segment {
+		private long[] keys = new long[16];
+		private Entry[] values = new Entry[16];
+
+		/**
+		 * Number of entries, and number of slots that are not empty, i.e.
+		 * including removed ones.
+		 */
+		private int size=0, used=0;
+
+		private static int slot(long id, int mask) {
+			long h = (id>>>segmentBits)*0x9E3779B97F4A7C15L;
+			return (int)(h>>>32) & mask;
+		}
+
+		synchronized void put(long id, Entry entry) {
+			if(used+1>keys.length*3/4) rehash();
+			int mask=keys.length-1;
+			int i=slot(id,mask);
+			int free=-1;
+			while(keys[i]!=empty) {
+				if(keys[i]==id) {
+					values[i]=entry;
+					return;
+				}
+				if(keys[i]==removed && free==-1) free=i;
+				i=(i+1) & mask;
+			}
+			if(free==-1) {
+				free=i;
+				used++;
+			}
+			keys[free]=id;
+			values[free]=entry;
+			size++;
+		}
+
+		synchronized Entry remove(long id) {
+			int mask=keys.length-1;
+			int i=slot(id,mask);
+			while(keys[i]!=empty) {
+				if(keys[i]==id) {
+					Entry entry=values[i];
+					keys[i]=removed;
+					values[i]=null;
+					size--;
+					return entry;
+				}
+				i=(i+1) & mask;
+			}
+			return null;
+		}
+
+		synchronized void drainTo(List<Entry> entries) {
+			for(int i=0;i<keys.length;i++) {
+				if(keys[i]>0) entries.add(values[i]);
+			}
+			keys = new long[16];
+			values = new Entry[16];
+			size=used=0;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Grow if more than half full, otherwise just clear out removed slots.
+		 */
+		private void rehash() {
+			long[] oldKeys=keys;
+			Entry[] oldValues=values;
+			int capacity = size+1>oldKeys.length/2 ? oldKeys.length*2 : oldKeys.length;
+			keys = new long[capacity];
+			values = new Entry[capacity];
+			int mask=capacity-1;
+			for(int j=0;j<oldKeys.length;j++) {
+				if(oldKeys[j]<=0) continue;
+				int i=slot(oldKeys[j],mask);
+				while(keys[i]!=empty) i=(i+1) & mask;
+				keys[i]=oldKeys[j];
+				values[i]=oldValues[j];
+			}
+			used=size;
+		}
+	}
+}
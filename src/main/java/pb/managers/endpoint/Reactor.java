@@ -0,0 +1,193 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A small, fixed set of selector threads that drive any number of
+ * {@link pb.managers.endpoint.ReactorEndpoint}s using non-blocking socket
+ * channels. Each endpoint is assigned to exactly one selector thread for its
+ * lifetime, so all of its reads and writes happen on that thread. There is one
+ * selector thread per core by default. Like {@link pb.utils.Utils}, it must be
+ * accessed statically as Reactor.getInstance()...
+ *
+ * @see {@link pb.managers.endpoint.ReactorEndpoint}
+ * @see {@link pb.managers.IOThread}
+ */
+public class Reactor {
+	private static Logger log = Logger.getLogger(Reactor.class.getName());
+
+	private static Reactor reactor;
+	
+	/**
+	 * Number of server managers that have acquired the reactor and not yet
+	 * released it.
+	 */
+	private static int users=0;
+
+	/**
+	 * The selector threads.
+	 */
+	private final Loop[] loops;
+
+	/**
+	 * Used to assign endpoints to selector threads in a round robin way.
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Initialise the reactor with a given number of selector threads.
+	 * @param numLoops number of selector threads, at least 1
+	 * @throws IOException if a selector could not be opened
+	 */
+	public Reactor(int numLoops) throws IOException {
+		loops = new Loop[Math.max(1,numLoops)];
+		for(int i=0;i<loops.length;i++) {
+			loops[i]=new Loop(i);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * @return the reactor, which is created with one selector thread per
+	 * available core the first time it is asked for
+	 * @throws IOException if a selector could not be opened
+	 */
+	public static synchronized Reactor getInstance() throws IOException {
+		if(reactor==null) reactor=new Reactor(Runtime.getRuntime().availableProcessors());
+		return reactor;
+	}
+
+	/**
+	 * Note that a server manager is going to accept connections for the
+	 * reactor, so that it keeps running until released.
+	 * @return the reactor
+	 * @throws IOException if a selector could not be opened
+	 */
+	public static synchronized Reactor acquire() throws IOException {
+		Reactor r = getInstance();
+		users++;
+		return r;
+	}
+	
+	/**
+	 * Note that a server manager no longer needs the reactor, shutting it
+	 * down once none do. A reactor is created again if asked for later.
+	 */
+	public static synchronized void release() {
+		if(users==0 || --users>0) return;
+		if(reactor!=null) reactor.shutdown();
+		reactor=null;
+	}
+
+	/**
+	 * Hand an endpoint to one of the selector threads. The endpoint becomes
+	 * ready (from the selector thread) once it has been registered.
+	 * @param endpoint
+	 */
+	public void register(ReactorEndpoint endpoint) {
+		Loop loop = loops[Math.floorMod(next.getAndIncrement(),loops.length)];
+		endpoint.setLoop(loop);
+		loop.execute(()->{
+			loop.register(endpoint);
+		});
+	}
+
+	/**
+	 * Stop all of the selector threads. Endpoints still registered will no
+	 * longer receive or send data.
+	 */
+	public void shutdown() {
+		for(Loop loop : loops) loop.interrupt();
+	}
+
+	/**
+	 * A single selector thread. Other threads hand it work using
+	 * {@link #execute(Runnable)}, which wakes up the selector.
+	 */
+	class Loop extends Thread {
+		private final Selector selector;
+
+		/**
+		 * Tasks from other threads, to be run on this thread.
+		 */
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		Loop(int id) throws IOException {
+			selector=Selector.open();
+			setName("Reactor-"+id);
+			setDaemon(true);
+		}
+
+		/**
+		 * @return true if the calling thread is this selector thread
+		 */
+		boolean inLoop() {
+			return Thread.currentThread()==this;
+		}
+
+		/**
+		 * Run the task on this selector thread, immediately if already
+		 * on it.
+		 * @param task
+		 */
+		void execute(Runnable task) {
+			if(inLoop()) {
+				task.run();
+			} else {
+				tasks.add(task);
+				selector.wakeup();
+			}
+		}
+
+		private void register(ReactorEndpoint endpoint) {
+			try {
+				endpoint.getChannel().configureBlocking(false);
+				SelectionKey key = endpoint.getChannel().register(selector,SelectionKey.OP_READ,endpoint);
+				endpoint.setKey(key);
+			} catch (ClosedChannelException e) {
+				endpoint.manager.endpointDisconnectedAbruptly(endpoint);
+				return;
+			} catch (IOException e) {
+				endpoint.manager.endpointDisconnectedAbruptly(endpoint);
+				return;
+			}
+			endpoint.ready();
+		}
+
+		@Override
+		public void run() {
+			log.info("selector thread started");
+			while(!isInterrupted()) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					log.severe("selector failed: "+e.getMessage());
+					break;
+				}
+				Runnable task;
+				while((task=tasks.poll())!=null) task.run();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ReactorEndpoint endpoint = (ReactorEndpoint) key.attachment();
+					if(key.isValid() && key.isWritable()) endpoint.writable();
+					if(key.isValid() && key.isReadable()) endpoint.readable();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warning("selector did not close properly: "+e.getMessage());
+			}
+			log.info("selector thread terminated");
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.utils.BufferPool;
+import pb.utils.Utils;
+
+/**
+ * An endpoint that does not have a thread of its own. Instead it is driven by
+ * one of the selector threads of the {@link pb.managers.endpoint.Reactor},
+ * using a non-blocking socket channel. It presents exactly the same interface
+ * to managers and protocols as the blocking {@link pb.managers.endpoint.Endpoint},
+ * sharing its outbound queue and framing, so the other endpoint can not
+ * tell the difference.
+ * <br/>
+ * Note that all received messages, and so all protocol and event callbacks,
+ * are processed on the selector thread. Callbacks that block will hold up every
+ * other endpoint on the same selector thread.
+ *
+ * @see {@link pb.managers.endpoint.Reactor}
+ * @see {@link pb.managers.IOThread}
+ */
+public class ReactorEndpoint extends Endpoint {
+	private static Logger log = Logger.getLogger(ReactorEndpoint.class.getName());
+
+	/**
+	 * The channel this endpoint is wrapped around.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The selector thread that drives this endpoint.
+	 */
+	private Reactor.Loop loop;
+
+	/**
+	 * The key of the channel with the selector, only used on the selector thread.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Most buffers handed to the channel in one gathering write.
+	 */
+	private static final int maxGather = 64;
+
+	/**
+	 * Buffers taken from the outbound queue that are not completely written,
+	 * only used on the selector thread.
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[maxGather];
+
+	/**
+	 * Number of buffers in {@link #gather}, and the first one with remaining data.
+	 */
+	private int gathered=0, gatherStart=0;
+
+	/**
+	 * Set once the endpoint has been closed, so that output is shut down as
+	 * soon as what is queued has been written, only used on the selector
+	 * thread.
+	 */
+	private boolean closing=false;
+	
+	/**
+	 * Set while a flush has been handed to the selector thread and not yet
+	 * started, so that a burst of sends wakes the selector only once.
+	 */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	/**
+	 * Initialise the endpoint with a connected socket channel and a manager.
+	 * @param channel
+	 * @param manager
+	 */
+	public ReactorEndpoint(SocketChannel channel, IEndpointHandler manager) {
+		super("ReactorEndpoint",channel.socket(),manager,true);
+		this.channel=channel;
+	}
+
+	/**
+	 * Register with the reactor rather than starting a thread.
+	 */
+	@Override
+	public synchronized void start() {
+		try {
+			Reactor.getInstance().register(this);
+		} catch (IOException e) {
+			log.severe("could not start the reactor: "+e.getMessage());
+			manager.endpointDisconnectedAbruptly(this);
+		}
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setLoop(Reactor.Loop loop) {
+		this.loop=loop;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key=key;
+	}
+
+	/**
+	 * Ask the selector thread to write what is queued, unless it has already
+	 * been asked and has not started yet.
+	 */
+	@Override
+	protected void wakeWriter() {
+		if(!flushScheduled.compareAndSet(false,true)) return;
+		loop.execute(()->{
+			// anything queued after this is written by the next flush
+			flushScheduled.set(false);
+			flush();
+		});
+	}
+
+	/**
+	 * Write as much of the queued data as the channel will take, gathering
+	 * up to {@link #maxGather} messages per write, and ask the selector to
+	 * tell us when the channel can take more if needed. Only called on the
+	 * selector thread.
+	 */
+	private void flush() {
+		if(key==null || !key.isValid()) return;
+		try {
+			while(true) {
+				ByteBuffer frame;
+				while(gathered<maxGather && (frame=frameWriter.poll())!=null) {
+					gather[gathered++]=frame;
+				}
+				checkCongestion();
+				if(gatherStart==gathered) break;
+				channel.write(gather,gatherStart,gathered-gatherStart);
+				while(gatherStart<gathered && !gather[gatherStart].hasRemaining()) {
+					BufferPool.getInstance().release(gather[gatherStart]);
+					gather[gatherStart++]=null;
+				}
+				if(gatherStart<gathered) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				gatherStart=gathered=0;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if(closing) channel.shutdownOutput();
+		} catch (IOException e) {
+			if(closing) super.closeSocket();
+			else manager.endpointDisconnectedAbruptly(this);
+		}
+	}
+
+	/**
+	 * Nothing to wait for, the queued messages are written by
+	 * {@link #closeSocket()} on the selector thread.
+	 */
+	@Override
+	protected void drain() {
+		
+	}
+	
+	/**
+	 * Close the channel on the selector thread, which is the only thread that
+	 * writes to it, so that final messages such as a session stop are not
+	 * lost whichever thread closes. Once what is queued has been written the
+	 * output is shut down, and the channel is closed when the other endpoint
+	 * closes its side; closing while it may still be sending would reset the
+	 * connection and lose what it has not read yet. The selector thread must
+	 * not wait for a slow consumer, so the channel is closed anyway after
+	 * {@link Endpoint#closeDrainTimeout}.
+	 */
+	@Override
+	protected void closeSocket() {
+		if(loop==null) {
+			// never registered, so nothing was written
+			super.closeSocket();
+			return;
+		}
+		loop.execute(()->{
+			closing=true;
+			flush();
+		});
+		Utils.getInstance().setTimeout(()->{
+			loop.execute(()->{
+				super.closeSocket();
+			});
+		}, closeDrainTimeout);
+	}
+
+	/**
+	 * Drop the connection without waiting for queued messages to be written.
+	 * The selector will not report anything more for a closed channel, so
+	 * the abrupt disconnection is reported here.
+	 */
+	@Override
+	protected void abort() {
+		super.abort();
+		manager.endpointDisconnectedAbruptly(this);
+	}
+
+	/**
+	 * The channel can take more data.
+	 */
+	void writable() {
+		flush();
+	}
+
+	/**
+	 * The channel has data to read, or has reached end of stream. Read what is
+	 * available and process every complete message in it.
+	 */
+	void readable() {
+		try {
+			if(frameReader.fill(channel)==-1) {
+				frameReader.release();
+				if(closing) super.closeSocket();
+				else manager.endpointDisconnectedAbruptly(this);
+				return;
+			}
+			while(!isStopped()) {
+				try {
+					Message msg = frameReader.next();
+					if(msg==null) break;
+					receive(msg);
+				} catch (InvalidMessage e) {
+					manager.endpointSentInvalidMessage(this);
+				}
+			}
+		} catch (IOException e) {
+			frameReader.release();
+			if(closing) super.closeSocket();
+			else manager.endpointDisconnectedAbruptly(this);
+		}
+	}
+}
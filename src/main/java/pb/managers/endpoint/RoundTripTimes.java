@@ -0,0 +1,129 @@
+package pb.managers.endpoint;
+
+/**
+ * Round trip times of the requests sent by an endpoint, measured from when
+ * each request was queued to when its reply was received, and the request
+ * timeout that follows from them. As in TCP, a smoothed round trip time and
+ * its mean deviation are kept, each new sample moving them by 1/8 and 1/4 of
+ * the difference, and the timeout is the smoothed time plus four times the
+ * deviation, kept between a floor and a ceiling. The floor allows for the time
+ * the other endpoint takes to handle a request, which a quiet link says
+ * little about.
+ * <br/>
+ * Every sample is also counted in a histogram with eight buckets for each
+ * power of two microseconds, so that percentiles can be given to within an
+ * eighth of their value without keeping the samples.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#getRequestTimeout()}
+ */
+public class RoundTripTimes {
+
+	/**
+	 * Buckets for each power of two, as a power of two.
+	 */
+	private static final int subBits = 3;
+
+	/**
+	 * Microseconds below which each value has a bucket of its own.
+	 */
+	private static final int linear = 2<<subBits;
+
+	/**
+	 * Enough buckets for any number of microseconds.
+	 */
+	private static final int numBuckets = linear+(64-subBits-1)*(1<<subBits);
+
+	private final long[] histogram = new long[numBuckets];
+
+	private long samples=0;
+
+	/**
+	 * Smoothed round trip time and its mean deviation, in microseconds.
+	 */
+	private double smoothed, deviation;
+
+	/**
+	 * Add a sample.
+	 * @param nanos the time from sending a request to receiving its reply
+	 */
+	public synchronized void add(long nanos) {
+		long micros = Math.max(0,nanos/1000);
+		if(samples==0) {
+			smoothed=micros;
+			deviation=micros/2.0;
+		} else {
+			deviation+=(Math.abs(smoothed-micros)-deviation)/4;
+			smoothed+=(micros-smoothed)/8;
+		}
+		samples++;
+		histogram[bucketOf(micros)]++;
+	}
+
+	/**
+	 * @return the number of samples added
+	 */
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the smoothed round trip time in milliseconds, 0 if there
+	 * are no samples
+	 */
+	public synchronized double getSmoothed() {
+		return smoothed/1000;
+	}
+
+	/**
+	 * @return the mean deviation of the round trip time in milliseconds,
+	 * 0 if there are no samples
+	 */
+	public synchronized double getDeviation() {
+		return deviation/1000;
+	}
+
+	/**
+	 * @param initial milliseconds to use when there are no samples
+	 * @param min least milliseconds
+	 * @param max most milliseconds
+	 * @return how long to wait for a reply to a request, in milliseconds
+	 */
+	public synchronized int getTimeout(int initial, int min, int max) {
+		if(samples==0) return initial;
+		double timeout = (smoothed+4*deviation)/1000;
+		return (int)Math.max(min,Math.min(max,Math.ceil(timeout)));
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the round trip time in milliseconds that the given percentage
+	 * of samples were at or below, 0 if there are no samples
+	 */
+	public synchronized double getPercentile(double percentile) {
+		if(samples==0) return 0;
+		long rank = (long)Math.ceil(Math.max(0,Math.min(100,percentile))/100*samples);
+		long seen=0;
+		for(int i=0;i<numBuckets;i++) {
+			seen+=histogram[i];
+			if(seen>=Math.max(1,rank)) return upperBoundOf(i)/1000.0;
+		}
+		return upperBoundOf(numBuckets-1)/1000.0;
+	}
+
+	private static int bucketOf(long micros) {
+		if(micros<linear) return (int)micros;
+		int power = 63-Long.numberOfLeadingZeros(micros);
+		int sub = (int)(micros>>>(power-subBits)) & ((1<<subBits)-1);
+		return linear+(power-subBits-1)*(1<<subBits)+sub;
+	}
+
+	/**
+	 * @return the largest number of microseconds in a bucket
+	 */
+	private static long upperBoundOf(int bucket) {
+		if(bucket<linear) return bucket;
+		int power = (bucket-linear>>subBits)+subBits+1;
+		int sub = (bucket-linear) & ((1<<subBits)-1);
+		return ((1L<<subBits|sub)+1<<(power-subBits))-1;
+	}
+}
@@ -0,0 +1,342 @@
+package pb.protocols;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Reads and writes messages in a compact binary form, for endpoints that
+ * have agreed to it at session start. A message is written as:
+ * <ul>
+ * <li>the byte {@link #magic}, which can never start a JSON message, so a
+ * receiver can tell the two apart frame by frame;</li>
+ * <li>the compact id of the message as a varint, so both endpoints must
+ * have the same {@link pb.protocols.ProtocolRegistry};</li>
+ * <li>the number of parameters as a varint, and then each parameter as
+ * its key and its value.</li>
+ * </ul>
+ * A key is a varint: 0 followed by the key as a string, or the position plus
+ * one of the key in a fixed dictionary of the keys that most messages use. A
+ * value is a type byte followed by: nothing for null, true and false; a
+ * zigzag varint for integers, so timeout ids and sequence numbers take a few
+ * bytes; 8 bytes for doubles; a varint length and the UTF-8 or raw bytes for
+ * strings and byte arrays; a varint count and the contents for objects and
+ * arrays. Decoding gives the doc of the message the same value types as
+ * {@link pb.protocols.JsonCodec} does, plus byte[] for byte arrays.
+ * <br/>
+ * The dictionary is part of the format: changing it needs a new codec name.
+ *
+ * @see {@link pb.protocols.Message}
+ * @see {@link pb.managers.endpoint.MessageCodec}
+ */
+public class BinaryCodec {
+
+	/**
+	 * First byte of every message.
+	 */
+	public static final byte magic = 0x01;
+
+	/**
+	 * Keys that are written as a single byte.
+	 */
+	private static final String[] dictionary = {
+		"timeoutId","eventName","eventData","seq","ack","events",
+		"framing","maxFrameSize","compression","compressionThreshold",
+		"messageIds","eventAcks","codec"
+	};
+
+	private static final int typeNull=0, typeString=1, typeLong=2, typeFalse=3,
+			typeTrue=4, typeDouble=5, typeObject=6, typeArray=7, typeBytes=8;
+
+	/**
+	 * The bytes written so far, when encoding.
+	 */
+	private byte[] out;
+
+	/**
+	 * Number of bytes written so far, when encoding.
+	 */
+	private int length=0;
+
+	/**
+	 * The bytes being decoded.
+	 */
+	private ByteBuffer in;
+
+	/**
+	 * The position of the next byte to decode, and the end of the message.
+	 */
+	private int pos, end;
+
+	private BinaryCodec() {
+	}
+
+	/*
+	 * Encoding
+	 */
+
+	/**
+	 * Encode a message that is in the {@link pb.protocols.ProtocolRegistry}.
+	 * @param msg
+	 * @return the encoded message, or null if the message is not registered
+	 */
+	public static byte[] encode(Message msg) {
+		ProtocolRegistry.MessageType messageType = ProtocolRegistry.getInstance().getMessage(msg.getName());
+		if(messageType==null) return null;
+		BinaryCodec codec = new BinaryCodec();
+		codec.out = new byte[128];
+		codec.writeByte(magic);
+		codec.writeVarint(messageType.getCompactId());
+		codec.writeFields((Map<?,?>)msg.doc.obj,0);
+		return Arrays.copyOf(codec.out,codec.length);
+	}
+
+	private void ensure(int n) {
+		if(length+n>out.length) out=Arrays.copyOf(out,Math.max(out.length*2,length+n));
+	}
+
+	private void writeByte(int b) {
+		ensure(1);
+		out[length++]=(byte)b;
+	}
+
+	private void writeVarint(long v) {
+		ensure(10);
+		while((v & ~0x7fL)!=0) {
+			out[length++]=(byte)((v & 0x7f) | 0x80);
+			v>>>=7;
+		}
+		out[length++]=(byte)v;
+	}
+
+	private void writeFields(Map<?,?> fields, int depth) {
+		if(depth>=JsonCodec.maxDepth) throw new IllegalArgumentException("nested too deep");
+		writeVarint(fields.size());
+		for(Map.Entry<?,?> entry : fields.entrySet()) {
+			String key = String.valueOf(entry.getKey());
+			int k = dictionaryIndex(key);
+			if(k>=0) {
+				writeVarint(k+1);
+			} else {
+				writeVarint(0);
+				writeString(key);
+			}
+			writeValue(entry.getValue(),depth);
+		}
+	}
+
+	private static int dictionaryIndex(String key) {
+		for(int i=0;i<dictionary.length;i++) {
+			if(dictionary[i].equals(key)) return i;
+		}
+		return -1;
+	}
+
+	private void writeValue(Object value, int depth) {
+		if(value==null) {
+			writeByte(typeNull);
+		} else if(value instanceof String) {
+			writeByte(typeString);
+			writeString((String)value);
+		} else if(value instanceof Long || value instanceof Integer ||
+				value instanceof Short || value instanceof Byte) {
+			writeByte(typeLong);
+			long v = ((Number)value).longValue();
+			writeVarint((v<<1) ^ (v>>63));
+		} else if(value instanceof Boolean) {
+			writeByte(((Boolean)value) ? typeTrue : typeFalse);
+		} else if(value instanceof Number) {
+			writeByte(typeDouble);
+			long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+			ensure(8);
+			for(int i=56;i>=0;i-=8) out[length++]=(byte)(bits>>>i);
+		} else if(value instanceof byte[]) {
+			byte[] bytes = (byte[])value;
+			writeByte(typeBytes);
+			writeVarint(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes,0,out,length,bytes.length);
+			length+=bytes.length;
+		} else if(value instanceof Document) {
+			writeValue(((Document)value).obj,depth);
+		} else if(value instanceof Map) {
+			writeByte(typeObject);
+			writeFields((Map<?,?>)value,depth+1);
+		} else if(value instanceof List) {
+			if(depth>=JsonCodec.maxDepth) throw new IllegalArgumentException("nested too deep");
+			List<?> list = (List<?>)value;
+			writeByte(typeArray);
+			writeVarint(list.size());
+			for(Object element : list) writeValue(element,depth+1);
+		} else {
+			writeByte(typeString);
+			writeString(value.toString());
+		}
+	}
+
+	/**
+	 * Write the UTF-8 length and bytes of a string. ASCII strings, which
+	 * most are, are written without making a copy. Unpaired surrogates
+	 * become '?'.
+	 */
+	private void writeString(String s) {
+		int n = s.length();
+		// at most 3 bytes per char, plus the length
+		ensure(3*n+5);
+		int ascii=0;
+		while(ascii<n && s.charAt(ascii)<0x80) ascii++;
+		if(ascii==n) {
+			writeVarint(n);
+			for(int i=0;i<n;i++) out[length++]=(byte)s.charAt(i);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		System.arraycopy(bytes,0,out,length,bytes.length);
+		length+=bytes.length;
+	}
+
+	/*
+	 * Decoding
+	 */
+
+	/**
+	 * @param in
+	 * @param pos where the message starts
+	 * @param length length of the message
+	 * @return true if the message is in binary rather than JSON
+	 */
+	public static boolean isBinary(ByteBuffer in, int pos, int length) {
+		return length>0 && in.get(pos)==magic;
+	}
+
+	/**
+	 * Decode a message, using the messages in the {@link pb.protocols.ProtocolRegistry}.
+	 * @param in the bytes, heap or direct
+	 * @param pos where the message starts
+	 * @param length length of the message
+	 * @return the message
+	 * @throws InvalidMessage if the bytes are not a valid message or no
+	 * message matches them
+	 */
+	public static Message decode(ByteBuffer in, int pos, int length) throws InvalidMessage {
+		BinaryCodec codec = new BinaryCodec();
+		codec.in=in;
+		codec.pos=pos;
+		codec.end=pos+length;
+		try {
+			if(codec.readByte()!=magic) throw new InvalidMessage();
+			long id = codec.readVarint();
+			ProtocolRegistry.MessageType messageType = ProtocolRegistry.getInstance().getMessage(id);
+			if(messageType==null) throw new InvalidMessage();
+			JSONObject obj = codec.readFields(0);
+			if(codec.pos!=codec.end) throw new InvalidMessage();
+			Document doc = new Document(obj);
+			// the message checks and removes the id
+			doc.append("id",id);
+			return messageType.newMessage(doc);
+		} catch (IndexOutOfBoundsException e) {
+			throw new InvalidMessage();
+		}
+	}
+
+	private int readByte() {
+		if(pos>=end) throw new IndexOutOfBoundsException();
+		return in.get(pos++);
+	}
+
+	private long readVarint() throws InvalidMessage {
+		long v=0;
+		for(int shift=0;shift<64;shift+=7) {
+			int b=readByte();
+			v|=(long)(b & 0x7f)<<shift;
+			if((b & 0x80)==0) return v;
+		}
+		throw new InvalidMessage();
+	}
+
+	/**
+	 * @return a length that fits in what is left of the message
+	 */
+	private int readLength() throws InvalidMessage {
+		long n = readVarint();
+		if(n<0 || n>end-pos) throw new InvalidMessage();
+		return (int)n;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject readFields(int depth) throws InvalidMessage {
+		if(depth>=JsonCodec.maxDepth) throw new InvalidMessage();
+		int n = readLength();
+		JSONObject obj = new JSONObject();
+		for(int i=0;i<n;i++) {
+			long k = readVarint();
+			String key;
+			if(k==0) {
+				key = readString();
+			} else if(k<=dictionary.length) {
+				key = dictionary[(int)k-1];
+			} else {
+				throw new InvalidMessage();
+			}
+			obj.put(key,readValue(depth));
+		}
+		return obj;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object readValue(int depth) throws InvalidMessage {
+		int type = readByte();
+		switch(type) {
+		case typeNull:
+			return null;
+		case typeString:
+			return readString();
+		case typeLong:
+			long v = readVarint();
+			return Long.valueOf((v>>>1) ^ -(v & 1));
+		case typeFalse:
+			return Boolean.FALSE;
+		case typeTrue:
+			return Boolean.TRUE;
+		case typeDouble:
+			long bits=0;
+			for(int i=0;i<8;i++) bits=(bits<<8) | (readByte() & 0xff);
+			return Double.valueOf(Double.longBitsToDouble(bits));
+		case typeBytes:
+			byte[] bytes = new byte[readLength()];
+			in.get(pos,bytes);
+			pos+=bytes.length;
+			return bytes;
+		case typeObject:
+			return readFields(depth+1);
+		case typeArray:
+			if(depth+1>=JsonCodec.maxDepth) throw new InvalidMessage();
+			int n = readLength();
+			JSONArray array = new JSONArray();
+			for(int i=0;i<n;i++) array.add(readValue(depth+1));
+			return array;
+		default:
+			throw new InvalidMessage();
+		}
+	}
+
+	private String readString() throws InvalidMessage {
+		int n = readLength();
+		String s;
+		if(in.hasArray()) {
+			s = new String(in.array(),in.arrayOffset()+pos,n,StandardCharsets.UTF_8);
+		} else {
+			byte[] bytes = new byte[n];
+			in.get(pos,bytes);
+			s = new String(bytes,StandardCharsets.UTF_8);
+		}
+		pos+=n;
+		return s;
+	}
+}
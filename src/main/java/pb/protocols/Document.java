@@ -1,11 +1,10 @@
 package pb.protocols;
 
 import java.util.ArrayList;
+import java.util.Base64;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  * Helper class for using JSON. Example usage:
@@ -74,6 +73,15 @@ public class Document {
 		obj.put(key,list);
 	}
 	
+	/**
+	 * Bytes are kept as they are, not copied, so must not be changed after.
+	 * They are written as Base64 text in JSON.
+	 */
+	@SuppressWarnings("unchecked")
+	public void append(String key,byte[] val){
+		obj.put(key, val);
+	}
+	
 	@SuppressWarnings("unchecked")
 	public void append(String key,long val){
 		obj.put(key, Long.valueOf(val));
@@ -85,21 +93,21 @@ public class Document {
 	}
 	
 	public String toJson(){
-		return obj.toJSONString();
+		return JsonCodec.encode(this);
 	}
 	
 	public static Document parse(String json) {
-		JSONParser parser = new JSONParser();
 		try {
-			JSONObject obj  = (JSONObject) parser.parse(json);
-			return new Document(obj);
-		} catch (ParseException e) {
-			return new Document();
-		} catch (ClassCastException e){
+			return JsonCodec.decodeDocument(json);
+		} catch (InvalidMessage e) {
 			return new Document();
 		}
 	}
 	
+	public void remove(String key){
+		obj.remove(key);
+	}
+	
 	public boolean containsKey(String key){
 		return obj.containsKey(key);
 	}
@@ -110,7 +118,7 @@ public class Document {
 	
 	private ArrayList<Object> getList(JSONArray o){
 		ArrayList<Object> list = new ArrayList<Object>();
-		for(Object l : (JSONArray)o){
+		for(Object l : o){
 			if(l instanceof JSONObject){
 				list.add(new Document((JSONObject) l));
 			} else if(l instanceof JSONArray){
@@ -145,4 +153,16 @@ public class Document {
 	public boolean getBoolean(String key){
 		return (boolean) obj.get(key);
 	}
+	
+	/**
+	 * @return the bytes, decoding them if they were read as Base64 text
+	 * @throws IllegalArgumentException if the text is not Base64
+	 */
+	public byte[] getBytes(String key){
+		Object o = obj.get(key);
+		if(o instanceof String){
+			return Base64.getDecoder().decode((String) o);
+		}
+		return (byte[]) o;
+	}
 }
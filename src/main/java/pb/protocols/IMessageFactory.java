@@ -0,0 +1,16 @@
+package pb.protocols;
+
+/**
+ * Creates a message from a received doc, usually the message's
+ * constructor that takes a doc.
+ * @see {@link pb.protocols.ProtocolRegistry}
+ */
+@FunctionalInterface
+public interface IMessageFactory {
+	/**
+	 * @param doc with the message details
+	 * @return the message
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public Message create(Document doc) throws InvalidMessage;
+}
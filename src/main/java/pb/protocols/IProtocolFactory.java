@@ -0,0 +1,18 @@
+package pb.protocols;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IEndpointHandler;
+
+/**
+ * Creates a protocol for an endpoint when the other endpoint starts using it.
+ * @see {@link pb.protocols.ProtocolRegistry}
+ */
+@FunctionalInterface
+public interface IProtocolFactory {
+	/**
+	 * @param endpoint the endpoint that will handle the protocol
+	 * @param manager the manager of the endpoint
+	 * @return a new instance of the protocol
+	 */
+	public Protocol create(Endpoint endpoint, IEndpointHandler manager);
+}
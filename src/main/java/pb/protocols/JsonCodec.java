@@ -0,0 +1,389 @@
+package pb.protocols;
+
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Reads and writes messages as JSON text in a single pass, without going
+ * through the json-simple parser and printer. Decoding scans the text once,
+ * putting each value straight into the doc of the message with the same
+ * types that json-simple would give, i.e. String, Long, Double, Boolean,
+ * JSONObject and JSONArray, so that messages and applications see no
+ * difference. Byte arrays are written as Base64 text, and so are read back
+ * as strings. Encoding writes the message identifiers and then the doc
+ * straight into one string builder, rather than printing the doc to a
+ * string and copying it.
+ * <br/>
+ * Only what is needed to read JSON is accepted; anything that is not valid
+ * JSON, or is nested more than {@link #maxDepth} deep, makes the message
+ * invalid.
+ *
+ * @see {@link pb.protocols.Message}
+ * @see {@link pb.protocols.Document}
+ */
+public class JsonCodec {
+
+	/**
+	 * Most objects and arrays that can be nested inside each other.
+	 */
+	public static final int maxDepth = 64;
+
+	/**
+	 * Hex digits for escapes.
+	 */
+	private static final char[] hex = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The text being decoded.
+	 */
+	private final String json;
+
+	/**
+	 * The position of the next character to read.
+	 */
+	private int pos=0;
+
+	private JsonCodec(String json) {
+		this.json=json;
+	}
+
+	/*
+	 * Encoding
+	 */
+
+	/**
+	 * Convert a message to JSON text.
+	 * @param msg
+	 * @param compact true to identify the message by its compact id, if it
+	 * has one, rather than by its names
+	 * @return the text
+	 */
+	public static String encode(Message msg, boolean compact) {
+		StringBuilder out = new StringBuilder(128);
+		out.append('{');
+		ProtocolRegistry.MessageType messageType =
+				compact ? ProtocolRegistry.getInstance().getMessage(msg.getName()) : null;
+		if(messageType!=null) {
+			out.append("\"id\":").append(messageType.getCompactId());
+		} else {
+			// names are checked when registered, so need no escaping
+			out.append("\"name\":\"").append(msg.getName())
+				.append("\",\"protocolName\":\"").append(msg.getProtocolName())
+				.append("\",\"type\":\"").append(msg.getType()).append('"');
+		}
+		for(Map.Entry<?,?> entry : ((Map<?,?>)msg.doc.obj).entrySet()) {
+			out.append(',');
+			writeString(out,String.valueOf(entry.getKey()));
+			out.append(':');
+			writeValue(out,entry.getValue(),0);
+		}
+		out.append('}');
+		return out.toString();
+	}
+
+	/**
+	 * Convert a doc to JSON text.
+	 * @param doc
+	 * @return the text
+	 */
+	public static String encode(Document doc) {
+		StringBuilder out = new StringBuilder(64);
+		writeValue(out,doc.obj,0);
+		return out.toString();
+	}
+
+	private static void writeValue(StringBuilder out, Object value, int depth) {
+		if(value==null) {
+			out.append("null");
+		} else if(value instanceof String) {
+			writeString(out,(String)value);
+		} else if(value instanceof Long || value instanceof Integer ||
+				value instanceof Short || value instanceof Byte) {
+			out.append(((Number)value).longValue());
+		} else if(value instanceof Boolean) {
+			out.append(((Boolean)value).booleanValue());
+		} else if(value instanceof Double || value instanceof Float) {
+			double d = ((Number)value).doubleValue();
+			if(Double.isNaN(d) || Double.isInfinite(d)) {
+				out.append("null");
+			} else {
+				out.append(value.toString());
+			}
+		} else if(value instanceof byte[]) {
+			out.append('"').append(Base64.getEncoder().encodeToString((byte[])value)).append('"');
+		} else if(value instanceof Document) {
+			writeValue(out,((Document)value).obj,depth);
+		} else if(value instanceof Map) {
+			if(depth>=maxDepth) throw new IllegalArgumentException("nested too deep");
+			out.append('{');
+			boolean first=true;
+			for(Map.Entry<?,?> entry : ((Map<?,?>)value).entrySet()) {
+				if(!first) out.append(',');
+				first=false;
+				writeString(out,String.valueOf(entry.getKey()));
+				out.append(':');
+				writeValue(out,entry.getValue(),depth+1);
+			}
+			out.append('}');
+		} else if(value instanceof List) {
+			if(depth>=maxDepth) throw new IllegalArgumentException("nested too deep");
+			out.append('[');
+			boolean first=true;
+			for(Object element : (List<?>)value) {
+				if(!first) out.append(',');
+				first=false;
+				writeValue(out,element,depth+1);
+			}
+			out.append(']');
+		} else if(value instanceof Number) {
+			out.append(value.toString());
+		} else {
+			writeString(out,value.toString());
+		}
+	}
+
+	/**
+	 * Write a string in quotes, escaping only what JSON requires. Runs of
+	 * characters that need no escaping are appended in one go.
+	 */
+	private static void writeString(StringBuilder out, String s) {
+		out.append('"');
+		int start=0;
+		int len=s.length();
+		for(int i=0;i<len;i++) {
+			char c=s.charAt(i);
+			if(c>=' ' && c!='"' && c!='\\') continue;
+			out.append(s,start,i);
+			start=i+1;
+			switch(c) {
+			case '"': out.append("\\\""); break;
+			case '\\': out.append("\\\\"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			case '\b': out.append("\\b"); break;
+			case '\f': out.append("\\f"); break;
+			default:
+				out.append("\\u00").append(hex[c>>4]).append(hex[c&0xf]);
+			}
+		}
+		out.append(s,start,len);
+		out.append('"');
+	}
+
+	/*
+	 * Decoding
+	 */
+
+	/**
+	 * Convert JSON text to a message, using the messages in the
+	 * {@link pb.protocols.ProtocolRegistry}.
+	 * @param json
+	 * @return the message
+	 * @throws InvalidMessage if the text is not a JSON object or no message
+	 * matches it
+	 */
+	public static Message decode(String json) throws InvalidMessage {
+		Document doc = decodeDocument(json);
+		ProtocolRegistry.MessageType messageType;
+		Object id = doc.obj.get("id");
+		if(id!=null) {
+			if(!(id instanceof Long)) throw new InvalidMessage();
+			messageType = ProtocolRegistry.getInstance().getMessage(((Long)id).longValue());
+		} else {
+			Object name = doc.obj.get("name");
+			if(!(name instanceof String)) throw new InvalidMessage();
+			messageType = ProtocolRegistry.getInstance().getMessage((String)name);
+		}
+		// if nothing matches, its invalid
+		if(messageType==null) throw new InvalidMessage();
+		return messageType.newMessage(doc);
+	}
+
+	/**
+	 * Convert JSON text to a doc.
+	 * @param json
+	 * @return the doc
+	 * @throws InvalidMessage if the text is not a JSON object
+	 */
+	public static Document decodeDocument(String json) throws InvalidMessage {
+		JsonCodec codec = new JsonCodec(json);
+		try {
+			codec.skipWhitespace();
+			if(codec.peek()!='{') throw new InvalidMessage();
+			JSONObject obj = codec.readObject(0);
+			codec.skipWhitespace();
+			if(codec.pos!=json.length()) throw new InvalidMessage();
+			return new Document(obj);
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			throw new InvalidMessage();
+		}
+	}
+
+	private char peek() {
+		return json.charAt(pos);
+	}
+
+	private void skipWhitespace() {
+		int len=json.length();
+		while(pos<len) {
+			char c=json.charAt(pos);
+			if(c!=' ' && c!='\n' && c!='\r' && c!='\t') return;
+			pos++;
+		}
+	}
+
+	private void expect(char c) throws InvalidMessage {
+		if(json.charAt(pos)!=c) throw new InvalidMessage();
+		pos++;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject readObject(int depth) throws InvalidMessage {
+		if(depth>=maxDepth) throw new InvalidMessage();
+		expect('{');
+		JSONObject obj = new JSONObject();
+		skipWhitespace();
+		if(peek()=='}') {
+			pos++;
+			return obj;
+		}
+		while(true) {
+			skipWhitespace();
+			String key = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			obj.put(key,readValue(depth));
+			skipWhitespace();
+			char c=json.charAt(pos++);
+			if(c=='}') return obj;
+			if(c!=',') throw new InvalidMessage();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONArray readArray(int depth) throws InvalidMessage {
+		if(depth>=maxDepth) throw new InvalidMessage();
+		expect('[');
+		JSONArray array = new JSONArray();
+		skipWhitespace();
+		if(peek()==']') {
+			pos++;
+			return array;
+		}
+		while(true) {
+			skipWhitespace();
+			array.add(readValue(depth));
+			skipWhitespace();
+			char c=json.charAt(pos++);
+			if(c==']') return array;
+			if(c!=',') throw new InvalidMessage();
+		}
+	}
+
+	private Object readValue(int depth) throws InvalidMessage {
+		char c=peek();
+		switch(c) {
+		case '"':
+			return readString();
+		case '{':
+			return readObject(depth+1);
+		case '[':
+			return readArray(depth+1);
+		case 't':
+			readLiteral("true");
+			return Boolean.TRUE;
+		case 'f':
+			readLiteral("false");
+			return Boolean.FALSE;
+		case 'n':
+			readLiteral("null");
+			return null;
+		default:
+			if(c=='-' || (c>='0' && c<='9')) return readNumber();
+			throw new InvalidMessage();
+		}
+	}
+
+	private void readLiteral(String literal) throws InvalidMessage {
+		if(!json.startsWith(literal,pos)) throw new InvalidMessage();
+		pos+=literal.length();
+	}
+
+	/**
+	 * Integers are Longs and anything else is a Double, as in json-simple.
+	 */
+	private Object readNumber() throws InvalidMessage {
+		int start=pos;
+		boolean integer=true;
+		int len=json.length();
+		while(pos<len) {
+			char c=json.charAt(pos);
+			if(c>='0' && c<='9' || c=='-') {
+				pos++;
+			} else if(c=='.' || c=='e' || c=='E' || c=='+') {
+				integer=false;
+				pos++;
+			} else {
+				break;
+			}
+		}
+		String number = json.substring(start,pos);
+		if(integer) return Long.valueOf(number);
+		return Double.valueOf(number);
+	}
+
+	/**
+	 * Strings without escapes, which is most of them, are taken as a
+	 * substring of the text without copying character by character.
+	 */
+	private String readString() throws InvalidMessage {
+		expect('"');
+		int start=pos;
+		int len=json.length();
+		while(pos<len) {
+			char c=json.charAt(pos);
+			if(c=='"') {
+				String s = json.substring(start,pos);
+				pos++;
+				return s;
+			}
+			if(c=='\\') break;
+			if(c<' ') throw new InvalidMessage();
+			pos++;
+		}
+		StringBuilder s = new StringBuilder(pos-start+16);
+		s.append(json,start,pos);
+		while(true) {
+			char c=json.charAt(pos++);
+			if(c=='"') return s.toString();
+			if(c<' ') throw new InvalidMessage();
+			if(c!='\\') {
+				s.append(c);
+				continue;
+			}
+			c=json.charAt(pos++);
+			switch(c) {
+			case '"': s.append('"'); break;
+			case '\\': s.append('\\'); break;
+			case '/': s.append('/'); break;
+			case 'b': s.append('\b'); break;
+			case 'f': s.append('\f'); break;
+			case 'n': s.append('\n'); break;
+			case 'r': s.append('\r'); break;
+			case 't': s.append('\t'); break;
+			case 'u':
+				s.append((char)Integer.parseInt(json.substring(pos,pos+4),16));
+				pos+=4;
+				break;
+			default:
+				throw new InvalidMessage();
+			}
+		}
+	}
+}
@@ -1,20 +1,14 @@
 package pb.protocols;
 
-import pb.protocols.event.EventReply;
-import pb.protocols.event.EventRequest;
-import pb.protocols.keepalive.KeepAliveReply;
-import pb.protocols.keepalive.KeepAliveRequest;
-import pb.protocols.session.SessionStartReply;
-import pb.protocols.session.SessionStartRequest;
-import pb.protocols.session.SessionStopReply;
-import pb.protocols.session.SessionStopRequest;
-
 /**
  * Message super class and factory for all protocol messages, to parse a
  * received UTF-8 line of text in JSON format, as an object that represents the
- * message.
+ * message. The message is identified either by its name, protocol name and
+ * type, or, once both endpoints have agreed to it, by the single compact id
+ * that it was given in the {@link pb.protocols.ProtocolRegistry}.
  * 
  * @see {@link pb.protocols.Protocol}
+ * @see {@link pb.protocols.ProtocolRegistry}
  * @author aaron
  *
  */
@@ -28,10 +22,48 @@ public class Message {
 	}
 	
 	/**
-	 * All of the message parameters are wrapped up in a Document class.
+	 * How urgently a message should be written, with respect to other
+	 * messages queued for the same endpoint.
+	 * @see {@link pb.managers.endpoint.FrameWriter}
+	 */
+	static public enum Priority {
+		/**
+		 * Written before anything else, for messages that keep the
+		 * session going and whose delay looks like a timeout.
+		 */
+		Control,
+		/**
+		 * Written before bulk messages, most of the time.
+		 */
+		Interactive,
+		/**
+		 * Large transfers that can wait.
+		 */
+		Bulk
+	}
+	
+	/**
+	 * All of the message parameters are wrapped up in a Document class,
+	 * apart from the name, protocol name and type which are added when
+	 * the message is converted to a string.
 	 */
 	protected Document doc;
 	
+	/**
+	 * The name of the message.
+	 */
+	private String name;
+	
+	/**
+	 * The name of the protocol the message belongs to.
+	 */
+	private String protocolName;
+	
+	/**
+	 * Whether its a Request or a Reply message.
+	 */
+	private Message.Type type;
+	
 	/**
 	 * Initialiser when given parameters explicitly.
 	 * @param name the name of the message (its classname by convention)
@@ -40,9 +72,9 @@ public class Message {
 	 */
 	public Message(String name, String protocolName, Message.Type type) {
 		doc = new Document();
-		doc.append("name", name);
-		doc.append("protocolName", protocolName);
-		doc.append("type", type.toString());
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
 	}
 	
 	static public void validateStringValue(String key,String val,Document doc) throws InvalidMessage {
@@ -57,53 +89,72 @@ public class Message {
 		if(!(doc.get(key) instanceof Long)) throw new InvalidMessage();
 	}
 	
+	static public void validateBooleanType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof Boolean)) throw new InvalidMessage();
+	}
+	
 	static public void validateStringType(String key,Document doc) throws InvalidMessage {
 		if(!doc.containsKey(key)) throw new InvalidMessage();
 		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
 	}
 	
 	/**
-	 * Initialiser when given parameters in a doc.
+	 * Bytes arrive as they are in binary messages, and as Base64 text in
+	 * JSON messages, which is decoded here once and for all.
+	 */
+	static public void validateBytesType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		try {
+			byte[] bytes = doc.getBytes(key);
+			if(bytes==null) throw new InvalidMessage();
+			doc.append(key,bytes);
+		} catch (IllegalArgumentException | ClassCastException e) {
+			throw new InvalidMessage();
+		}
+	}
+	
+	/**
+	 * Initialiser when given parameters in a doc. The name, protocol name
+	 * and type, or the compact id, are taken out of the doc.
 	 * @param name the name of the message that is being initialised
 	 * @param doc with the message details
 	 * @throws InvalidMessage when the name of the message in the doc is incorrect
 	 */
 	public Message(String name, String protocolName, 
 			Message.Type type, Document doc) throws InvalidMessage {
-		validateStringValue("name",name,doc);
-		validateStringValue("protocolName",protocolName,doc);
-		validateStringValue("type",type.toString(),doc);
+		if(doc.containsKey("id")) {
+			validateLongType("id",doc);
+			ProtocolRegistry.MessageType messageType = ProtocolRegistry.getInstance().getMessage(name);
+			if(messageType==null || messageType.getCompactId()!=doc.getLong("id") ||
+					!messageType.getProtocol().getName().equals(protocolName) ||
+					messageType.getType()!=type) throw new InvalidMessage();
+			doc.remove("id");
+		} else {
+			validateStringValue("name",name,doc);
+			validateStringValue("protocolName",protocolName,doc);
+			validateStringValue("type",type.toString(),doc);
+			doc.remove("name");
+			doc.remove("protocolName");
+			doc.remove("type");
+		}
 		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+		this.doc=doc;
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
 	}
 	
 	/**
-	 * Turn a json string into an appropriate message object.
+	 * Turn a json string into an appropriate message object, using the
+	 * messages in the {@link pb.protocols.ProtocolRegistry}.
+	 * @see {@link pb.protocols.JsonCodec#decode(String)}
 	 * @param json the string to parse, must be in JSON format
 	 * @return the appropriate message object
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
-		// the following test is somewhat repetitive, but it avoids having
-		// to test each message type, handling exceptions for those that are
-		// not the matching message type
-		if(!doc.containsKey("name")) throw new InvalidMessage();
-		if(!(doc.get("name") instanceof String)) throw new InvalidMessage();
-		String msg = doc.getString("name");
-		switch(msg) {
-			case KeepAliveRequest.name: return new KeepAliveRequest(doc);
-			case KeepAliveReply.name: return new KeepAliveReply(doc);
-			case SessionStartRequest.name: return new SessionStartRequest(doc);
-			case SessionStartReply.name: return new SessionStartReply(doc);
-			case SessionStopRequest.name: return new SessionStopRequest(doc);
-			case SessionStopReply.name: return new SessionStopReply(doc);
-			case EventRequest.name: return new EventRequest(doc);
-			case EventReply.name: return new EventReply(doc);
-			// put more message cases here
-			
-			// if nothing matches, its invalid
-			default: throw new InvalidMessage();
-		}
+		return JsonCodec.decode(json);
 	}
 	
 	/**
@@ -111,7 +162,18 @@ public class Message {
 	 * @return
 	 */
 	public String toJsonString() {
-		return doc.toJson();
+		return toJsonString(false);
+	}
+	
+	/**
+	 * Convert the message to a string for transmission.
+	 * @see {@link pb.protocols.JsonCodec#encode(Message, boolean)}
+	 * @param compact true to identify the message by its compact id, if
+	 * it has one, rather than by its names
+	 * @return
+	 */
+	public String toJsonString(boolean compact) {
+		return JsonCodec.encode(this,compact);
 	}
 	
 	/**
@@ -119,7 +181,7 @@ public class Message {
 	 * @return
 	 */
 	public String getProtocolName() {
-		return doc.getString("protocolName");
+		return protocolName;
 	}
 	
 	/**
@@ -127,7 +189,7 @@ public class Message {
 	 * @return
 	 */
 	public String getName() {
-		return doc.getString("name");
+		return name;
 	}
 	
 	/**
@@ -135,7 +197,25 @@ public class Message {
 	 * @return
 	 */
 	public final Message.Type getType() {
-		return Message.Type.valueOf(doc.getString("type"));
+		return type;
+	}
+	
+	/**
+	 * @return a key shared by messages that can replace each other when
+	 * the other endpoint is falling behind, or null if the message
+	 * must always be sent
+	 */
+	public String getConflationKey() {
+		return null;
+	}
+	
+	/**
+	 * @return how urgently the message should be written; replies are
+	 * control messages, since a late reply looks like a timeout, and
+	 * requests are interactive
+	 */
+	public Priority getPriority() {
+		return type==Type.Reply ? Priority.Control : Priority.Interactive;
 	}
 	
 	/**
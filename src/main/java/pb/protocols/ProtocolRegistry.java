@@ -0,0 +1,326 @@
+package pb.protocols;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IEndpointHandler;
+import pb.protocols.event.EventAck;
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventFragment;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.keepalive.IKeepAliveProtocolHandler;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * The protocols that endpoints know about, and the messages that belong to
+ * them. Every protocol has a unique name and a unique id from 0 to
+ * {@link #maxProtocolId}, and every message has a unique name and an id
+ * from 0 to {@link #maxMessageId} that is unique within its protocol. The
+ * protocol id and message id together make the message's compact id, which
+ * is sent instead of the message, protocol and type names once both endpoints
+ * have agreed to it at session start. Received messages are created by an
+ * array lookup on the compact id.
+ * <br/>
+ * The session, keep alive and event protocols are always registered.
+ * Applications can register protocols of their own, with ids from
+ * {@link #minApplicationId}, before any endpoints are started; both
+ * endpoints must register the same protocols and messages with the same
+ * ids, otherwise they fall back to sending names. Like
+ * {@link pb.utils.Utils}, it must be accessed statically as
+ * ProtocolRegistry.getInstance()...
+ *
+ * @see {@link pb.protocols.Message}
+ * @see {@link pb.protocols.session.SessionProtocol}
+ */
+public class ProtocolRegistry {
+	private static ProtocolRegistry registry;
+
+	/**
+	 * Largest protocol id.
+	 */
+	public static final int maxProtocolId = 255;
+
+	/**
+	 * Largest message id within a protocol.
+	 */
+	public static final int maxMessageId = 255;
+
+	/**
+	 * Smallest protocol id that applications should use, smaller ones are
+	 * kept for the protocols that come with the system.
+	 */
+	public static final int minApplicationId = 64;
+
+	/**
+	 * A registered protocol.
+	 */
+	public static class ProtocolType {
+		private final int id;
+		private final String name;
+		private final IProtocolFactory factory;
+
+		/**
+		 * The messages of the protocol, indexed by message id.
+		 */
+		private final MessageType[] messages = new MessageType[maxMessageId+1];
+
+		ProtocolType(int id, String name, IProtocolFactory factory) {
+			this.id=id;
+			this.name=name;
+			this.factory=factory;
+		}
+
+		/**
+		 * @return the protocol id
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * @return the protocol name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @param endpoint
+		 * @param manager
+		 * @return a new instance of the protocol for the endpoint
+		 */
+		public Protocol newProtocol(Endpoint endpoint, IEndpointHandler manager) {
+			return factory.create(endpoint,manager);
+		}
+	}
+
+	/**
+	 * A registered message.
+	 */
+	public static class MessageType {
+		private final ProtocolType protocol;
+		private final int id;
+		private final String name;
+		private final Message.Type type;
+		private final IMessageFactory factory;
+
+		MessageType(ProtocolType protocol, int id, String name, Message.Type type,
+				IMessageFactory factory) {
+			this.protocol=protocol;
+			this.id=id;
+			this.name=name;
+			this.type=type;
+			this.factory=factory;
+		}
+
+		/**
+		 * @return the protocol the message belongs to
+		 */
+		public ProtocolType getProtocol() {
+			return protocol;
+		}
+
+		/**
+		 * @return the protocol id and message id together
+		 */
+		public int getCompactId() {
+			return (protocol.id<<8) | id;
+		}
+
+		/**
+		 * @return the message name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return whether the message is a request or a reply
+		 */
+		public Message.Type getType() {
+			return type;
+		}
+
+		/**
+		 * @param doc with the message details
+		 * @return the message
+		 * @throws InvalidMessage when the doc does not contain all of the required parameters
+		 */
+		public Message newMessage(Document doc) throws InvalidMessage {
+			return factory.create(doc);
+		}
+	}
+
+	/**
+	 * Registered protocols, indexed by protocol id.
+	 */
+	private final ProtocolType[] protocols = new ProtocolType[maxProtocolId+1];
+
+	private final ConcurrentHashMap<String,ProtocolType> protocolsByName = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String,MessageType> messagesByName = new ConcurrentHashMap<>();
+
+	/**
+	 * Summary of everything registered, so that endpoints can tell if they
+	 * agree on the compact ids.
+	 */
+	private volatile long fingerprint;
+
+	/**
+	 * Initialise the registry with the protocols that come with the system.
+	 */
+	public ProtocolRegistry() {
+		registerProtocol(1,SessionProtocol.protocolName,(endpoint,manager)->
+			new SessionProtocol(endpoint,(ISessionProtocolHandler)manager));
+		registerMessage(SessionProtocol.protocolName,1,SessionStartRequest.name,
+				Message.Type.Request,SessionStartRequest::new);
+		registerMessage(SessionProtocol.protocolName,2,SessionStartReply.name,
+				Message.Type.Reply,SessionStartReply::new);
+		registerMessage(SessionProtocol.protocolName,3,SessionStopRequest.name,
+				Message.Type.Request,SessionStopRequest::new);
+		registerMessage(SessionProtocol.protocolName,4,SessionStopReply.name,
+				Message.Type.Reply,SessionStopReply::new);
+		registerProtocol(2,KeepAliveProtocol.protocolName,(endpoint,manager)->
+			new KeepAliveProtocol(endpoint,(IKeepAliveProtocolHandler)manager));
+		registerMessage(KeepAliveProtocol.protocolName,1,KeepAliveRequest.name,
+				Message.Type.Request,KeepAliveRequest::new);
+		registerMessage(KeepAliveProtocol.protocolName,2,KeepAliveReply.name,
+				Message.Type.Reply,KeepAliveReply::new);
+		registerProtocol(3,EventProtocol.protocolName,(endpoint,manager)->
+			new EventProtocol(endpoint,(IEventProtocolHandler)manager));
+		registerMessage(EventProtocol.protocolName,1,EventRequest.name,
+				Message.Type.Request,EventRequest::new);
+		registerMessage(EventProtocol.protocolName,2,EventReply.name,
+				Message.Type.Reply,EventReply::new);
+		registerMessage(EventProtocol.protocolName,3,EventAck.name,
+				Message.Type.Reply,EventAck::new);
+		registerMessage(EventProtocol.protocolName,4,EventBatchRequest.name,
+				Message.Type.Request,EventBatchRequest::new);
+		registerMessage(EventProtocol.protocolName,5,EventFragment.name,
+				Message.Type.Request,EventFragment::new);
+	}
+
+	public static synchronized ProtocolRegistry getInstance() {
+		if(registry==null) registry=new ProtocolRegistry();
+		return registry;
+	}
+
+	/**
+	 * Register a protocol, so that endpoints create it when the other
+	 * endpoint starts using it.
+	 * @param id the protocol id
+	 * @param name the protocol name, as returned by {@link Protocol#getProtocolName()}
+	 * @param factory creates the protocol for an endpoint
+	 * @throws IllegalArgumentException if the id or name is not valid or
+	 * is already registered
+	 */
+	public final synchronized void registerProtocol(int id, String name, IProtocolFactory factory) {
+		if(id<0 || id>maxProtocolId) throw new IllegalArgumentException("protocol id out of range: "+id);
+		checkName(name);
+		if(protocols[id]!=null || protocolsByName.containsKey(name)) {
+			throw new IllegalArgumentException("protocol already registered: "+id+" "+name);
+		}
+		ProtocolType protocol = new ProtocolType(id,name,factory);
+		protocolsByName.put(name,protocol);
+		protocols[id]=protocol;
+		updateFingerprint();
+	}
+
+	/**
+	 * Register a message of a protocol that is already registered.
+	 * @param protocolName the name of the protocol
+	 * @param id the message id within the protocol
+	 * @param name the message name, which must be unique over all protocols
+	 * @param type whether the message is a request or reply
+	 * @param factory creates the message from a received doc
+	 * @throws IllegalArgumentException if the protocol is not registered, or
+	 * the id or name is not valid or is already registered
+	 */
+	public final synchronized void registerMessage(String protocolName, int id, String name,
+			Message.Type type, IMessageFactory factory) {
+		ProtocolType protocol = protocolsByName.get(protocolName);
+		if(protocol==null) throw new IllegalArgumentException("protocol not registered: "+protocolName);
+		if(id<0 || id>maxMessageId) throw new IllegalArgumentException("message id out of range: "+id);
+		checkName(name);
+		if(protocol.messages[id]!=null || messagesByName.containsKey(name)) {
+			throw new IllegalArgumentException("message already registered: "+id+" "+name);
+		}
+		MessageType message = new MessageType(protocol,id,name,type,factory);
+		messagesByName.put(name,message);
+		protocol.messages[id]=message;
+		updateFingerprint();
+	}
+
+	/**
+	 * Names are written into messages without escaping.
+	 */
+	private static void checkName(String name) {
+		if(name==null || name.isEmpty()) throw new IllegalArgumentException("name is empty");
+		for(int i=0;i<name.length();i++) {
+			char c=name.charAt(i);
+			if(c=='"' || c=='\\' || c<0x20) throw new IllegalArgumentException("name is not valid: "+name);
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return the protocol with the given name, or null if not registered
+	 */
+	public ProtocolType getProtocol(String name) {
+		return protocolsByName.get(name);
+	}
+
+	/**
+	 * @param name
+	 * @return the message with the given name, or null if not registered
+	 */
+	public MessageType getMessage(String name) {
+		return messagesByName.get(name);
+	}
+
+	/**
+	 * @param compactId
+	 * @return the message with the given compact id, or null if not registered
+	 */
+	public MessageType getMessage(long compactId) {
+		if(compactId<0 || compactId>((maxProtocolId<<8) | maxMessageId)) return null;
+		ProtocolType protocol = protocols[(int)(compactId>>>8)];
+		if(protocol==null) return null;
+		return protocol.messages[(int)(compactId & maxMessageId)];
+	}
+
+	/**
+	 * @return a summary of everything registered, never 0, that is the
+	 * same for two registries with the same protocols and messages
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	private void updateFingerprint() {
+		long h=1;
+		for(ProtocolType protocol : protocols) {
+			if(protocol==null) continue;
+			h=31*h+protocol.id;
+			h=31*h+protocol.name.hashCode();
+			for(MessageType message : protocol.messages) {
+				if(message==null) continue;
+				h=31*h+message.id;
+				h=31*h+message.name.hashCode();
+				h=31*h+message.type.ordinal();
+			}
+		}
+		fingerprint = h==0 ? 1 : h;
+	}
+}
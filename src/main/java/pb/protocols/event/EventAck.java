@@ -0,0 +1,50 @@
+package pb.protocols.event;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Acknowledges every numbered event up to and including a sequence number
+ * in a lane, sent instead of an {@link EventReply} for each event once
+ * cumulative acks have been agreed at session start.
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public class EventAck extends Message {
+	static final public String name = "EventAck";
+	
+	/**
+	 * @param seq the sequence number up to which every event was received
+	 * @param lane the lane the events are numbered in
+	 */
+	public EventAck(long seq, int lane) {
+		super(name, EventProtocol.protocolName, Message.Type.Reply);
+		doc.append("seq", seq);
+		if(lane>0) doc.append("lane", lane);
+	}
+
+	public EventAck(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Reply,doc);
+		Message.validateLongType("seq", doc);
+		if(doc.containsKey("lane")) {
+			Message.validateLongType("lane", doc);
+			if(doc.getLong("lane")<0 || doc.getLong("lane")>=EventMessage.lanes) throw new InvalidMessage();
+		}
+		this.doc=doc;
+	}
+	
+	/**
+	 * @return the sequence number up to which every event was received
+	 */
+	public long getSeq() {
+		return doc.getLong("seq");
+	}
+	
+	/**
+	 * @return the lane the events are numbered in, 0 if not given
+	 */
+	public int getLane() {
+		if(!doc.containsKey("lane")) return 0;
+		return (int) doc.getLong("lane");
+	}
+}
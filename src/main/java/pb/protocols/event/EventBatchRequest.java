@@ -0,0 +1,64 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+
+/**
+ * Carries many events in one message, so that each does not need a message
+ * and frame of its own. The events are a flat list of event names and event
+ * data, one after the other, in the order they were emitted.
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public class EventBatchRequest extends EventMessage {
+	static final public String name = "EventBatchRequest";
+	
+	/**
+	 * Event names and event data, one after the other.
+	 */
+	private final List<?> events;
+	
+	/**
+	 * @param events event names and event data, one after the other
+	 */
+	public EventBatchRequest(ArrayList<String> events) {
+		super(name);
+		doc.append("events", events);
+		this.events=events;
+	}
+
+	public EventBatchRequest(Document doc) throws InvalidMessage {
+		super(name,doc);
+		if(!(doc.get("events") instanceof List)) throw new InvalidMessage();
+		events = (List<?>) doc.get("events");
+		if(events.size()%2!=0) throw new InvalidMessage();
+		for(Object o : events) {
+			if(!(o instanceof String)) throw new InvalidMessage();
+		}
+	}
+	
+	/**
+	 * @return the number of events in the batch
+	 */
+	public int size() {
+		return events.size()/2;
+	}
+	
+	/**
+	 * @param i from 0 to size()-1
+	 * @return the name of the i'th event
+	 */
+	public String getEventName(int i) {
+		return (String) events.get(2*i);
+	}
+	
+	/**
+	 * @param i from 0 to size()-1
+	 * @return the data of the i'th event
+	 */
+	public String getEventData(int i) {
+		return (String) events.get(2*i+1);
+	}
+}
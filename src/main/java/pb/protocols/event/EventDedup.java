@@ -0,0 +1,117 @@
+package pb.protocols.event;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * A singleton that remembers which events from the journals of clients have
+ * been passed on, so that an event a client sends again on a new session,
+ * because it was not acknowledged before the last connection dropped, is
+ * passed on only once. Events carry an id, from {@link EventMessage#getDedupId()},
+ * that is unique within the client's journal, and each journal is named in
+ * the session start request, from
+ * {@link pb.managers.endpoint.Endpoint#getJournalId()}.
+ * <br/>
+ * For each journal the ids passed on are kept as a floor, every id up to
+ * which has been passed on, and the ids above it. Ids mostly arrive in order,
+ * so the ids above the floor are few, but an id is only forgotten once the
+ * floor passes it, since the event before it may still be on its way. If the
+ * ids above the floors of all journals become more than {@link #maxIds}, or
+ * the journals more than {@link #maxJournals}, the journals heard from least
+ * recently are forgotten, and events they send again may be passed on twice.
+ *
+ * @see {@link pb.protocols.event.EventJournal}
+ */
+public class EventDedup {
+	private static Logger log = Logger.getLogger(EventDedup.class.getName());
+	private static EventDedup dedup;
+
+	/**
+	 * Most journals remembered.
+	 */
+	private final int maxJournals;
+
+	/**
+	 * Most ids above the floors remembered, for all journals.
+	 */
+	private final int maxIds;
+
+	/**
+	 * The ids passed on from a journal.
+	 */
+	private static final class Applied {
+		long floor=0;
+		final TreeSet<Long> above = new TreeSet<>();
+	}
+
+	/**
+	 * By journal id, in the order last heard from, guarded by this.
+	 */
+	private final LinkedHashMap<String,Applied> journals = new LinkedHashMap<>(16,0.75f,true);
+
+	/**
+	 * Ids above the floors of all journals, guarded by this.
+	 */
+	private int ids=0;
+
+	/**
+	 * @param maxJournals most journals remembered
+	 * @param maxIds most ids above the floors remembered, for all journals
+	 */
+	EventDedup(int maxJournals, int maxIds) {
+		this.maxJournals=maxJournals;
+		this.maxIds=maxIds;
+	}
+
+	public static synchronized EventDedup getInstance() {
+		if(dedup==null) dedup=new EventDedup(10000,1<<20);
+		return dedup;
+	}
+
+	/**
+	 * Note that an event from a journal is being passed on.
+	 * @param journalId
+	 * @param dedupId
+	 * @return true if the event has not been passed on before
+	 */
+	public synchronized boolean apply(String journalId, long dedupId) {
+		Applied applied = journals.get(journalId);
+		if(applied==null) {
+			applied = new Applied();
+			journals.put(journalId,applied);
+		}
+		if(dedupId<=applied.floor || !applied.above.add(dedupId)) return false;
+		ids++;
+		while(!applied.above.isEmpty() && applied.above.first()==applied.floor+1) {
+			applied.floor=applied.above.pollFirst();
+			ids--;
+		}
+		if(ids>maxIds || journals.size()>maxJournals) forget(applied);
+		return true;
+	}
+
+	/**
+	 * Forget the journals heard from least recently until the rest fit.
+	 * @param current the journal just heard from, which is kept
+	 */
+	private void forget(Applied current) {
+		Iterator<Map.Entry<String,Applied>> it = journals.entrySet().iterator();
+		while((ids>maxIds || journals.size()>maxJournals) && it.hasNext()) {
+			Map.Entry<String,Applied> eldest = it.next();
+			if(eldest.getValue()==current) continue;
+			if(ids>maxIds) log.warning("too many event ids to remember, forgetting journal "+eldest.getKey());
+			ids-=eldest.getValue().above.size();
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return the ids above the floors of all journals
+	 */
+	synchronized int size() {
+		return ids;
+	}
+}
@@ -0,0 +1,102 @@
+package pb.protocols.event;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Carries a piece of an event that is too large to send in one frame. The
+ * pieces of an event share a fragment id and are sent in order, the last
+ * of them without "more", and the other endpoint puts them back together
+ * before passing the event to the callbacks for it. Like an
+ * {@link EventRequest}, the data is either text, in "eventData", or bytes,
+ * in "eventBytes". Pieces are bulk messages, so that they do not hold up
+ * other events, and with cumulative acks they are numbered in the bulk lane.
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public final class EventFragment extends EventMessage {
+	static final public String name = "EventFragment";
+	
+	/**
+	 * @param fragId the same for every piece of the event
+	 * @param eventName
+	 * @param eventData a piece of the text of the event
+	 * @param more true if more pieces follow
+	 */
+	public EventFragment(long fragId, String eventName, String eventData, boolean more) {
+		super(name);
+		doc.append("fragId", fragId);
+		doc.append("eventName", eventName);
+		doc.append("eventData", eventData);
+		doc.append("more", more);
+		setPriority(Message.Priority.Bulk);
+	}
+	
+	/**
+	 * @param fragId the same for every piece of the event
+	 * @param eventName
+	 * @param eventBytes a piece of the bytes of the event
+	 * @param more true if more pieces follow
+	 */
+	public EventFragment(long fragId, String eventName, byte[] eventBytes, boolean more) {
+		super(name);
+		doc.append("fragId", fragId);
+		doc.append("eventName", eventName);
+		doc.append("eventBytes", eventBytes);
+		doc.append("more", more);
+		setPriority(Message.Priority.Bulk);
+	}
+
+	public EventFragment(Document doc) throws InvalidMessage {
+		super(name,doc);
+		Message.validateLongType("fragId", doc);
+		Message.validateStringType("eventName", doc);
+		Message.validateBooleanType("more", doc);
+		if(doc.containsKey("eventBytes")) {
+			Message.validateBytesType("eventBytes", doc);
+		} else {
+			Message.validateStringType("eventData", doc);
+		}
+		this.doc=doc;
+	}
+	
+	/**
+	 * @return the id shared by the pieces of the event
+	 */
+	public long getFragId() {
+		return doc.getLong("fragId");
+	}
+	
+	public String getEventName() {
+		return doc.getString("eventName");
+	}
+	
+	/**
+	 * @return true if more pieces of the event follow this one
+	 */
+	public boolean hasMore() {
+		return doc.getBoolean("more");
+	}
+	
+	/**
+	 * @return true if the data of the event is bytes rather than text
+	 */
+	public boolean isBinary() {
+		return doc.containsKey("eventBytes");
+	}
+	
+	/**
+	 * @return this piece of the text of the event, or null if it is bytes
+	 */
+	public String getEventData() {
+		return doc.getString("eventData");
+	}
+	
+	/**
+	 * @return this piece of the bytes of the event, or null if it is text
+	 */
+	public byte[] getEventBytes() {
+		if(!isBinary()) return null;
+		return doc.getBytes("eventBytes");
+	}
+}
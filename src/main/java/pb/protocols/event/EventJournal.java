@@ -0,0 +1,258 @@
+package pb.protocols.event;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import pb.protocols.BinaryCodec;
+import pb.protocols.InvalidMessage;
+import pb.protocols.JsonCodec;
+import pb.protocols.Message;
+
+/**
+ * The events a client has emitted that wait for room in the window, kept by
+ * the client across connections rather than by the event protocol of one
+ * connection, so that when a connection drops they are sent on the next
+ * session instead of being lost. Together with the events sent but not
+ * acknowledged, which the event protocol keeps while there is a journal, they
+ * are sent again in order on the next session, and the ids given to them by
+ * {@link #nextDedupId()} let the server pass each of them on only once.
+ * <br/>
+ * At most {@link pb.utils.Utils#getEventJournal()} events are kept in memory.
+ * Events after those are written to a ring of
+ * {@link pb.utils.Utils#getEventJournalFileSize()} bytes in the file given by
+ * {@link pb.utils.Utils#getEventJournalFile()}, which is mapped into memory,
+ * and read back when their turn comes; once an event has been written to the
+ * file, the events after it are too until the file is empty, so that they
+ * stay in order. Events that fit in neither are dropped, and whoever is
+ * waiting on them is told they will not be acknowledged.
+ * <br/>
+ * The journal only covers reconnects of a running client. Nothing is
+ * recovered when a client starts, not even from the file, so the events
+ * not yet acknowledged when a client stops are lost.
+ *
+ * @see {@link pb.protocols.event.EventProtocol#setJournal(EventJournal)}
+ * @see {@link pb.protocols.event.EventDedup}
+ */
+public class EventJournal {
+	private static Logger log = Logger.getLogger(EventJournal.class.getName());
+
+	/**
+	 * An event in the journal.
+	 */
+	static final class Entry {
+		/**
+		 * The event, null while it is in the file.
+		 */
+		EventMessage request;
+		final CompletableFuture<Boolean> acked;
+
+		/**
+		 * Not written to the file, so kept here.
+		 */
+		final Message.Priority priority;
+
+		/**
+		 * Bytes of the event in the file, 0 if it is in memory.
+		 */
+		final int length;
+
+		Entry(EventMessage request, CompletableFuture<Boolean> acked, int length) {
+			this.request=length>0 ? null : request;
+			this.acked=acked;
+			priority=request.getPriority();
+			this.length=length;
+		}
+	}
+
+	/**
+	 * Names the journal to the server.
+	 */
+	private final String id = UUID.randomUUID().toString();
+
+	/**
+	 * Most events kept in memory.
+	 */
+	private final int maxEvents;
+
+	/**
+	 * The events, in memory or in the file, in the order added.
+	 */
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+	/**
+	 * Number of the entries that are in memory.
+	 */
+	private int inMemory=0;
+
+	/**
+	 * The ring in the file, null if there is no file.
+	 */
+	private final MappedByteBuffer file;
+
+	/**
+	 * Where the oldest event in the file starts and bytes used in the file.
+	 */
+	private int head=0, used=0;
+
+	/**
+	 * The last dedup id given out.
+	 */
+	private long dedupId=0;
+
+	/**
+	 * Make a journal, mapping the file into memory if there is one. If the
+	 * file can not be mapped then events that do not fit in memory are dropped.
+	 * @param maxEvents most events kept in memory
+	 * @param fileName file to write events that do not fit in memory to,
+	 * null for none
+	 * @param fileSize bytes of the file
+	 */
+	public EventJournal(int maxEvents, String fileName, long fileSize) {
+		this.maxEvents=maxEvents;
+		MappedByteBuffer mapped=null;
+		if(fileName!=null && fileSize>0) {
+			try(RandomAccessFile raf = new RandomAccessFile(fileName,"rw")) {
+				// the mapping stays valid once the file is closed
+				mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,
+						Math.min(fileSize,Integer.MAX_VALUE));
+			} catch (IOException e) {
+				log.warning("could not map event journal file "+fileName+": "+e.getMessage());
+			}
+		}
+		file=mapped;
+	}
+
+	/**
+	 * @return the id that names the journal to the server
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return a new id for an event, which it keeps when sent again
+	 */
+	public synchronized long nextDedupId() {
+		return ++dedupId;
+	}
+
+	/**
+	 * Add an event, in memory if there is room and nothing is in the file,
+	 * otherwise in the file.
+	 * @param request
+	 * @param acked completed when the event is acknowledged, may be null
+	 * @return false if the event was dropped because there was no room
+	 */
+	public synchronized boolean add(EventMessage request, CompletableFuture<Boolean> acked) {
+		if(inMemory<maxEvents && inMemory==entries.size()) {
+			entries.add(new Entry(request,acked,0));
+			inMemory++;
+			return true;
+		}
+		if(file!=null) {
+			byte[] bytes = BinaryCodec.encode(request);
+			if(bytes==null) bytes = JsonCodec.encode(request,false).getBytes(StandardCharsets.UTF_8);
+			if((long)used+4+bytes.length<=file.capacity()) {
+				int tail = (int)(((long)head+used)%file.capacity());
+				tail=write(tail,ByteBuffer.allocate(4).putInt(bytes.length).array());
+				write(tail,bytes);
+				used+=4+bytes.length;
+				entries.add(new Entry(request,acked,bytes.length));
+				return true;
+			}
+		}
+		log.warning("event journal is full, dropping event "+request.getName());
+		return false;
+	}
+
+	/**
+	 * Take the oldest event, reading it from the file if it is there.
+	 * @return the event, or null if there are none; the event of the entry
+	 * is null if it could not be read back
+	 */
+	synchronized Entry poll() {
+		Entry entry = entries.poll();
+		if(entry==null) return null;
+		if(entry.length==0) {
+			inMemory--;
+			return entry;
+		}
+		byte[] bytes = new byte[entry.length];
+		head=read((int)(((long)head+4)%file.capacity()),bytes);
+		used-=4+bytes.length;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			Message msg = BinaryCodec.isBinary(in,0,bytes.length) ?
+					BinaryCodec.decode(in,0,bytes.length) :
+					JsonCodec.decode(new String(bytes,StandardCharsets.UTF_8));
+			entry.request=(EventMessage) msg;
+			entry.request.setPriority(entry.priority);
+		} catch (InvalidMessage | ClassCastException e) {
+			log.severe("could not read event back from the event journal");
+		}
+		return entry;
+	}
+
+	/**
+	 * @return true if there are no events
+	 */
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * @return the number of events, in memory and in the file
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drop every event.
+	 * @return the futures of the events that are waited on, to be told the
+	 * events will not be acknowledged
+	 */
+	public synchronized List<CompletableFuture<Boolean>> clear() {
+		List<CompletableFuture<Boolean>> failed = new ArrayList<>();
+		for(Entry entry : entries) {
+			if(entry.acked!=null) failed.add(entry.acked);
+		}
+		entries.clear();
+		inMemory=0;
+		head=0;
+		used=0;
+		return failed;
+	}
+
+	/**
+	 * Write bytes to the ring, wrapping round at the end.
+	 * @return where the next bytes go
+	 */
+	private int write(int pos, byte[] bytes) {
+		int first = Math.min(bytes.length,file.capacity()-pos);
+		file.put(pos,bytes,0,first);
+		file.put(0,bytes,first,bytes.length-first);
+		return (int)(((long)pos+bytes.length)%file.capacity());
+	}
+
+	/**
+	 * Read bytes from the ring, wrapping round at the end.
+	 * @return where the next bytes are
+	 */
+	private int read(int pos, byte[] bytes) {
+		int first = Math.min(bytes.length,file.capacity()-pos);
+		file.get(pos,bytes,0,first);
+		file.get(0,bytes,first,bytes.length-first);
+		return (int)(((long)pos+bytes.length)%file.capacity());
+	}
+}
@@ -0,0 +1,153 @@
+package pb.protocols.event;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Super class of the requests that carry events, with the optional
+ * parameters that say how they are acknowledged.
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public abstract class EventMessage extends Message {
+	
+	/**
+	 * Number of lanes that messages are numbered in, one for each priority
+	 * that events are written with.
+	 */
+	static final int lanes = 2;
+	
+	/**
+	 * How urgently the message should be written, which is not sent.
+	 */
+	private Message.Priority priority = Message.Priority.Interactive;
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param name the name of the message
+	 */
+	protected EventMessage(String name) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc.
+	 * @param name the name of the message
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	protected EventMessage(String name, Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		// sequence numbers and acks are optional, older endpoints do not send them
+		if(doc.containsKey("seq")) Message.validateLongType("seq", doc);
+		if(doc.containsKey("ack")) Message.validateBooleanType("ack", doc);
+		if(doc.containsKey("dedupId")) Message.validateLongType("dedupId", doc);
+		if(doc.containsKey("lane")) {
+			Message.validateLongType("lane", doc);
+			if(doc.getLong("lane")<0 || doc.getLong("lane")>=lanes) throw new InvalidMessage();
+		}
+		this.doc=doc;
+	}
+	
+	/**
+	 * Number the message, so that it is covered by the other endpoint's
+	 * cumulative acks rather than replied to on its own.
+	 * @param seq greater than 0
+	 */
+	public void setSeq(long seq) {
+		doc.append("seq", seq);
+	}
+	
+	/**
+	 * @return the sequence number of the message, or 0 if it has none
+	 */
+	public long getSeq() {
+		if(!doc.containsKey("seq")) return 0;
+		return doc.getLong("seq");
+	}
+	
+	/**
+	 * Say which lane the message is numbered in, since each lane has its own
+	 * numbers. Lane 0 is left out of the message.
+	 * @param lane from 0 to {@link #lanes}-1
+	 */
+	public void setLane(int lane) {
+		if(lane>0) {
+			doc.append("lane", lane);
+		} else {
+			doc.remove("lane");
+		}
+	}
+	
+	/**
+	 * @return the lane the message is numbered in, 0 if it has none
+	 */
+	public int getLane() {
+		if(!doc.containsKey("lane")) return 0;
+		return (int) doc.getLong("lane");
+	}
+	
+	/**
+	 * Give the message an id that stays the same when it is sent again on
+	 * a new session, so that the other endpoint passes it on only once.
+	 * @param dedupId greater than 0, unique within the sender's journal
+	 */
+	public void setDedupId(long dedupId) {
+		doc.append("dedupId", dedupId);
+	}
+	
+	/**
+	 * @return the id that the message keeps across sessions, or 0 if it has none
+	 */
+	public long getDedupId() {
+		if(!doc.containsKey("dedupId")) return 0;
+		return doc.getLong("dedupId");
+	}
+	
+	/**
+	 * Tell the other endpoint not to acknowledge the message at all.
+	 */
+	public void setNoAck() {
+		doc.append("ack", false);
+	}
+	
+	/**
+	 * @return false if the message must not be acknowledged
+	 */
+	public boolean isAcked() {
+		if(!doc.containsKey("ack")) return true;
+		return doc.getBoolean("ack");
+	}
+	
+	/**
+	 * Ask the other endpoint to acknowledge the message, and those before it,
+	 * as soon as it is received rather than waiting for more.
+	 */
+	public void setAckNow() {
+		doc.append("ack", true);
+	}
+	
+	/**
+	 * @return true if the message should be acknowledged as soon as it is received
+	 */
+	public boolean isAckNow() {
+		if(!doc.containsKey("ack")) return false;
+		return doc.getBoolean("ack");
+	}
+	
+	/**
+	 * @param priority how urgently the message should be written
+	 */
+	public final void setPriority(Message.Priority priority) {
+		this.priority=priority;
+	}
+	
+	/**
+	 * @return how urgently the message should be written, interactive
+	 * unless set otherwise
+	 */
+	@Override
+	public Message.Priority getPriority() {
+		return priority;
+	}
+}
@@ -1,5 +1,14 @@
 package pb.protocols.event;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
@@ -7,23 +16,488 @@ import pb.managers.endpoint.Endpoint;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Eventable;
+import pb.utils.TimingWheel;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
- * be a String. Complex data should be marshaled into a String.
+ * be a String, or bytes given as a byte[] or ByteBuffer. Complex data should
+ * be marshaled into a String, or into bytes. Bytes travel as they are when
+ * the binary codec is in use, and the callbacks for the event receive them as
+ * a read-only ByteBuffer. Events with bytes are never batched.
+ * <br/>
+ * Events are acknowledged as set by {@link Endpoint#setEventAcks(Endpoint.EventAcks)}.
+ * With cumulative acks each event is numbered and the other endpoint sends an
+ * {@link EventAck} for the number up to which it has received every event,
+ * as kept by {@link ReceivedSeqs}, every
+ * {@link pb.utils.Utils#getEventAckEvery()} events or after
+ * {@link pb.utils.Utils#getEventAckDelay()} milliseconds, whichever comes
+ * first, so an ack covers every event up to that number. The sender keeps the send times of the events not yet covered and
+ * a single timeout for the oldest of them, rather than a timeout per event.
+ * <br/>
+ * The numbered events of a lane not yet acknowledged form a sliding window
+ * of at most {@link pb.utils.Utils#getEventWindow()} events, so that a fast
+ * sender can not get further ahead of a slow receiver than that. Events sent while the
+ * window is full wait in a backlog, in order, until acks make room for them;
+ * {@link #sendEventBlocking(String, String, long)} waits for room instead and
+ * {@link #sendEventAsync(String, String)} says when the event has been
+ * acknowledged. The window should be large enough to cover the events sent in
+ * a round trip to the other endpoint. Every half a window the sender asks for
+ * an ack straight away, so that a window smaller than the ack batch does not
+ * stall until the ack delay is up.
+ * <br/>
+ * Numbered events can not be dropped or replaced once they have their
+ * number, since the other endpoint acknowledges numbers with no gaps, so
+ * when the endpoint applies the {@link Endpoint.CongestionPolicy#Drop} or
+ * {@link Endpoint.CongestionPolicy#Conflate} policy the protocol applies it
+ * before numbering them. Events are then dropped instead of numbered, or
+ * wait in the backlog until those in flight are acknowledged, where a newer
+ * event of the same name replaces an older one. Events held in a journal
+ * are not replaced.
+ * <br/>
+ * If {@link pb.utils.Utils#getEventLinger()} is more than 0 then emitted
+ * events are held for up to that many milliseconds and sent together in an
+ * {@link EventBatchRequest}, which is sent early once it reaches
+ * {@link pb.utils.Utils#getEventBatchSize()} events or
+ * {@link pb.utils.Utils#getEventBatchBytes()} characters. The receiver passes
+ * the events in a batch to the callbacks one by one, in order, just as if
+ * they had been sent on their own. A batch is a single message as far as
+ * acks and the window are concerned.
+ * <br/>
+ * Events are interactive messages unless
+ * {@link Endpoint#setEventPriority(String, Message.Priority)} says otherwise
+ * for their name, and only interactive events are batched. Messages are only
+ * written in order within a priority, so with cumulative acks the events
+ * written with each priority are a lane, numbered, acknowledged and held to
+ * the window on their own: bulk events, including pieces of large events,
+ * are one lane and the rest, written as interactive, are the other. Events
+ * in a lane go out in number order and an ack never covers an event still
+ * queued, while interactive events are not held up by bulk ones.
+ * <br/>
+ * Events with more data than fit in a frame, as given by
+ * {@link pb.utils.Utils#getEventFragmentSize()} and the largest frame of the
+ * endpoint, are sent in pieces as {@link EventFragment}s. Only
+ * {@link pb.utils.Utils#getEventFragmentsInFlight()} pieces of an event are
+ * sent before waiting for acks, so the pieces are interleaved with other
+ * events rather than holding them up; a large event can therefore reach the
+ * other endpoint after smaller events with other names sent after it. Events
+ * with the same name as a large event being sent are held back until its
+ * last piece is acknowledged, so events with one name arrive in the order
+ * sent. Pieces are always acknowledged. The other endpoint puts the pieces
+ * back together before passing the event to the callbacks for it, holding at most
+ * {@link pb.utils.Utils#getEventReassemblyBytes()} bytes while doing so, and
+ * drops events that do not fit.
+ * <br/>
+ * If the connection drops in a session that can be resumed, the manager
+ * calls {@link #suspend()} before closing the endpoint, and the protocol
+ * keeps the events not yet acknowledged, and holds new ones in the backlog,
+ * until the session is resumed on another connection by a new protocol
+ * calling {@link #resume(EventProtocol, long)}, or until the manager gives
+ * up on it with {@link #abandon()}. Only numbered events are kept, so only
+ * sessions with cumulative acks can be resumed. The backlog of each lane
+ * holds at most {@link pb.utils.Utils#getEventBacklog()} events, so events
+ * sent while it is full are dropped, and whoever is waiting on them is told
+ * they were not acknowledged.
+ * <br/>
+ * A client can also keep its events across sessions with an
+ * {@link EventJournal}, given by {@link #setJournal(EventJournal)}, which then
+ * holds the backlog of interactive events. The protocol keeps the events not yet acknowledged, and
+ * if the connection drops and a new session starts rather than the old one
+ * resuming, a new protocol calling {@link #replay(EventProtocol)} sends them
+ * again, followed by the backlog, with new numbers. Each event carries an id
+ * from the journal that it keeps when sent again, and the server passes on
+ * an event with an id it has already seen from the journal only once, as
+ * remembered by {@link EventDedup}. The journal covers reconnects only, the
+ * events are not recovered if the client restarts. Pieces of large events are not sent
+ * again on a new session, since the other endpoint has not got the pieces
+ * before them; whoever is waiting on them is told they were not acknowledged.
  * @author aaron
  *
  */
-public class EventProtocol extends Protocol implements IRequestReplyProtocol {
+public final class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	private static Logger log = Logger.getLogger(EventProtocol.class.getName());
 	
 	public static final String protocolName = "EventProtocol";
 	
-	public int eventTimeout = 40000;
-	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * Our callback for all events emitted on the endpoint.
+	 */
+	private final Eventable.Subscription subscription;
+	
+	/**
+	 * An event waiting for room in the window.
+	 */
+	private static final class Backlogged {
+		final EventMessage request;
+		final CompletableFuture<Boolean> acked;
+		
+		Backlogged(EventMessage request, CompletableFuture<Boolean> acked) {
+			this.request=request;
+			this.acked=acked;
+		}
+	}
+	
+	/**
+	 * The events written with one priority, which are numbered and
+	 * acknowledged apart from those written with another, since messages
+	 * are only written in order within a priority. The sending side is
+	 * guarded by the send lock and the receiving side by the receive lock.
+	 */
+	private static final class Lane {
+		final int index;
+		
+		/**
+		 * How urgently the events in the lane are written.
+		 */
+		final Message.Priority priority;
+		
+		/**
+		 * Number of the last event sent.
+		 */
+		long sentSeq=0;
+		
+		/**
+		 * Number of the last event acknowledged by the other endpoint.
+		 */
+		long ackedSeq=0;
+		
+		/**
+		 * Send times, in milliseconds, of the events not yet acknowledged,
+		 * indexed by their number modulo the length.
+		 */
+		long[] sentTimes = new long[64];
+		
+		/**
+		 * Completed when the events not yet acknowledged are acknowledged,
+		 * indexed like the send times, null for events nobody is waiting on.
+		 */
+		CompletableFuture<Boolean>[] sentFutures = newFutures(64);
+		
+		/**
+		 * The events not yet acknowledged, indexed like the send times, so that
+		 * they can be sent again if the session is resumed; only kept if it can be.
+		 */
+		EventMessage[] sentEvents = new EventMessage[64];
+		
+		/**
+		 * Number of the last event that asked for an ack straight away.
+		 */
+		long ackRequestedSeq=0;
+		
+		/**
+		 * Events waiting for room in the window, in the order sent.
+		 */
+		final ArrayDeque<Backlogged> backlog = new ArrayDeque<>();
+		
+		/**
+		 * Whether the last event put in the backlog was dropped for want of room.
+		 */
+		boolean backlogFull=false;
+		
+		/**
+		 * Checks that the oldest event not yet acknowledged is not too old,
+		 * null when not armed.
+		 */
+		TimingWheel.Timeout ackTimeout=null;
+		
+		/**
+		 * Numbers of the events received.
+		 */
+		ReceivedSeqs received = new ReceivedSeqs();
+		
+		/**
+		 * Number of received events not yet acknowledged.
+		 */
+		int unackedEvents=0;
+		
+		/**
+		 * Sends an ack for received events once the ack delay is up, null
+		 * when not armed.
+		 */
+		TimingWheel.Timeout ackDelay=null;
+		
+		Lane(int index, Message.Priority priority) {
+			this.index=index;
+			this.priority=priority;
+		}
+		
+		/**
+		 * @param seq
+		 * @return where the event with the number is kept
+		 */
+		int slot(long seq) {
+			return (int)(seq & (sentTimes.length-1));
+		}
+	}
+	
+	/**
+	 * Guards the sending side of the lanes.
+	 */
+	private final Object sendLock = new Object();
+	
+	/**
+	 * Interactive events, including control events, and then bulk events.
+	 */
+	private final Lane[] lanes = {
+		new Lane(0,Message.Priority.Interactive),
+		new Lane(1,Message.Priority.Bulk)
+	};
+	
+	/**
+	 * Most numbered events in a lane that can be waiting for an ack, 0 for
+	 * no limit.
+	 */
+	private final int window;
+	
+	/**
+	 * Most events in the backlog of a lane, 0 for no limit.
+	 */
+	private final int backlogMax;
+	
+	/**
+	 * Holds the backlog across sessions, null if there is none.
+	 */
+	private volatile EventJournal journal=null;
+	
+	/**
+	 * Whether a new session took over the events of this protocol, in which
+	 * case pieces of large events are no longer sent.
+	 */
+	private volatile boolean replayed=false;
+	
+	/**
+	 * Whether the connection has dropped and the session may yet be resumed.
+	 */
+	private volatile boolean suspended=false;
+	
+	/**
+	 * The protocol that took over when the session was resumed, null if none.
+	 */
+	private volatile EventProtocol resumedBy=null;
+	
+	/**
+	 * Guards the batch of events waiting to be sent.
+	 */
+	private final Object batchLock = new Object();
+	
+	/**
+	 * Event names and event data waiting to be sent together, null if none.
+	 */
+	private ArrayList<String> batch=null;
+	
+	/**
+	 * Characters in the batch so far.
+	 */
+	private int batchChars=0;
+	
+	/**
+	 * Sends the batch once the linger is up, null when not armed.
+	 */
+	private TimingWheel.Timeout lingerTimeout=null;
+	
+	/**
+	 * Most milliseconds an emitted event waits to be batched, 0 to not batch.
+	 */
+	private final int linger;
+	
+	/**
+	 * Guards the receiving side of the lanes.
+	 */
+	private final Object receiveLock = new Object();
+	
+	/**
+	 * Events held back until a large event with the same name has been sent,
+	 * by event name, so that they do not overtake it; a name is present while
+	 * a large event with it is being sent. Guarded by itself, and shared with
+	 * the protocol that takes over the session.
+	 */
+	private volatile HashMap<String,ArrayDeque<Runnable>> held = new HashMap<>();
+	
+	/**
+	 * A large event being sent in pieces, a few at a time.
+	 */
+	private final class Fragmented implements Runnable {
+		final long fragId;
+		final String eventName;
+		final String text;
+		final byte[] bytes;
+		final int length;
+		final int size;
+		
+		/**
+		 * Completed when the last piece is acknowledged.
+		 */
+		final CompletableFuture<Boolean> done = new CompletableFuture<>();
+		
+		/**
+		 * Where the next piece starts, guarded by this.
+		 */
+		private int offset=0;
+		
+		/**
+		 * Pieces sent but not acknowledged, guarded by this.
+		 */
+		private int inFlight=0;
+		
+		/**
+		 * Whether a piece could not be sent, guarded by this.
+		 */
+		private boolean failed=false;
+		
+		Fragmented(long fragId, EventRequest request, int size) {
+			this.fragId=fragId;
+			eventName=request.getEventName();
+			text=request.getEventData();
+			bytes=request.getEventByteArray();
+			length=bytes!=null ? bytes.length : text.length();
+			this.size=size;
+		}
+		
+		/**
+		 * Start sending the pieces, and then the events held back behind the
+		 * event once it is done.
+		 */
+		@Override
+		public void run() {
+			done.whenComplete((ok,e)->{
+				release(eventName);
+			});
+			send();
+		}
+		
+		/**
+		 * Send pieces until there are enough waiting for acks, or none are left.
+		 */
+		void send() {
+			int inFlightMax = Math.max(1,Utils.getInstance().getEventFragmentsInFlight());
+			while(true) {
+				EventFragment fragment;
+				synchronized(this) {
+					if(failed || offset>=length || inFlight>=inFlightMax) return;
+					if(stopped) failed=true;
+					if(!failed) {
+						fragment=next();
+						inFlight++;
+					} else {
+						fragment=null;
+					}
+				}
+				if(fragment==null) {
+					done.complete(false);
+					return;
+				}
+				boolean last = !fragment.hasMore();
+				CompletableFuture<Boolean> acked = sendAcked(fragment);
+				if(!acked.isDone()) {
+					acked.thenAccept((ok)->{
+						if(acked(ok,last)) send();
+					});
+					continue;
+				}
+				// not waiting for acks, carry on without going deeper
+				if(!acked(acked.join(),last)) return;
+			}
+		}
+		
+		/**
+		 * @return true if more pieces can be sent
+		 */
+		private boolean acked(boolean ok, boolean last) {
+			synchronized(this) {
+				inFlight--;
+				if(!ok) failed=true;
+			}
+			if(!ok || last) done.complete(ok);
+			return ok && !last;
+		}
+		
+		/**
+		 * Must hold this.
+		 * @return the next piece of the event
+		 */
+		private EventFragment next() {
+			int end = Math.min(length,offset+size);
+			EventFragment fragment;
+			if(bytes!=null) {
+				fragment = new EventFragment(fragId,eventName,
+						Arrays.copyOfRange(bytes,offset,end),end<length);
+			} else {
+				// do not split a surrogate pair
+				if(end<length && Character.isHighSurrogate(text.charAt(end-1))) end--;
+				fragment = new EventFragment(fragId,eventName,
+						text.substring(offset,end),end<length);
+			}
+			offset=end;
+			// acks make room for the next piece
+			fragment.setAckNow();
+			return fragment;
+		}
+	}
+	
+	/**
+	 * Numbers the large events that are sent.
+	 */
+	private final AtomicLong fragIds = new AtomicLong();
+	
+	/**
+	 * A large event being put back together.
+	 */
+	private static final class Reassembly {
+		final boolean binary;
+		
+		/**
+		 * The pieces so far, null once the event is dropped.
+		 */
+		ArrayList<Object> pieces = new ArrayList<>();
+		
+		/**
+		 * Characters or bytes in the pieces so far.
+		 */
+		int length=0;
+		
+		/**
+		 * Bytes held by the pieces so far.
+		 */
+		long bytes=0;
+		
+		Reassembly(boolean binary) {
+			this.binary=binary;
+		}
+		
+		/**
+		 * @return the event data, a String or a read-only ByteBuffer
+		 */
+		Object getEventArg() {
+			if(binary) {
+				byte[] data = new byte[length];
+				int pos=0;
+				for(Object piece : pieces) {
+					byte[] b = (byte[]) piece;
+					System.arraycopy(b,0,data,pos,b.length);
+					pos+=b.length;
+				}
+				return ByteBuffer.wrap(data).asReadOnlyBuffer();
+			}
+			StringBuilder data = new StringBuilder(length);
+			for(Object piece : pieces) data.append((String) piece);
+			return data.toString();
+		}
+	}
+	
+	/**
+	 * Large events being put back together, by fragment id, guarded by itself.
+	 */
+	private final HashMap<Long,Reassembly> reassembling = new HashMap<>();
+	
+	/**
+	 * Bytes held by the large events being put back together.
+	 */
+	private long reassemblyBytes=0;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -32,16 +506,24 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public EventProtocol(Endpoint endpoint, IEventProtocolHandler manager) {
 		super(endpoint, (Manager)manager);	
-		// Register an event to listen for all events ("*") emitted on this endpoint and
+		window = Utils.getInstance().getEventWindow();
+		backlogMax = Utils.getInstance().getEventBacklog();
+		linger = Utils.getInstance().getEventLinger();
+		// Register an event to listen for all events emitted on this endpoint and
 		// send them to the remote end point; making sure thats events have
-		// only a String argument
-		endpoint.on("*", (args)->{
-			String eventName = (String) args[0];
-			if(args.length==2 && args[1] instanceof String) {
-				String eventData = (String) args[1];
-				sendEvent(eventName,eventData);
+		// only a String or bytes argument
+		subscription = endpoint.subscribeAny((eventName,args)->{
+			// events emitted on the endpoint of a resumed session go to the new one
+			EventProtocol protocol = current();
+			if(args.length==1 && args[0] instanceof String) {
+				String eventData = (String) args[0];
+				protocol.sendEvent(eventName,eventData);
+			} else if(args.length==1 && args[0] instanceof byte[]) {
+				protocol.sendUnbatched(protocol.prioritised(new EventRequest(eventName,(byte[]) args[0])));
+			} else if(args.length==1 && args[0] instanceof ByteBuffer) {
+				protocol.sendUnbatched(protocol.prioritised(new EventRequest(eventName,(ByteBuffer) args[0])));
 			} else {
-				log.warning("emitted event must have only a single String data argument: "+eventName);
+				log.warning("emitted event must have only a single String or bytes data argument: "+eventName);
 			}			
 		});
 	}
@@ -53,12 +535,928 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		if(eventData!=null && eventData.length()>fragmentSize()) {
+			sendFragmented(prioritised(new EventRequest(eventName,eventData)));
+			return;
+		}
+		sendInOrder(eventName,()->{
+			if(linger>0 && endpoint.getEventPriority(eventName)==Message.Priority.Interactive) {
+				addToBatch(eventName,eventData);
+			} else {
+				sendMessage(prioritised(new EventRequest(eventName,eventData)));
+			}
+		});
 	}
 	
+	/**
+	 * Send an event with bytes to the other side.
+	 * @param eventName
+	 * @param eventBytes kept rather than copied, so must not be changed after
+	 */
+	public void sendEvent(String eventName, byte[] eventBytes) {
+		sendUnbatched(prioritised(new EventRequest(eventName,eventBytes)));
+	}
+	
+	/**
+	 * Send an event that is not batched, after any batch so far.
+	 * @param request
+	 */
+	private void sendUnbatched(EventRequest request) {
+		if(stopped)return;
+		if(isLarge(request)) {
+			sendFragmented(request);
+			return;
+		}
+		sendInOrder(request.getEventName(),()->{
+			if(linger>0) {
+				synchronized(batchLock) {
+					// must not overtake the batch
+					sendBatch();
+					sendMessage(request);
+				}
+			} else {
+				sendMessage(request);
+			}
+		});
+	}
+	
+	/**
+	 * @param request
+	 * @return the request, written as urgently as set for its event name
+	 */
+	private EventRequest prioritised(EventRequest request) {
+		request.setPriority(endpoint.getEventPriority(request.getEventName()));
+		return request;
+	}
+	
+	/**
+	 * @return most characters or bytes of data in a piece of a large event;
+	 * escapes and UTF-8 can make text several times larger once encoded
+	 */
+	private int fragmentSize() {
+		return Math.max(2,Math.min(Utils.getInstance().getEventFragmentSize(),
+				endpoint.getMaxFrameSize()/8));
+	}
+	
+	/**
+	 * @param request
+	 * @return true if the event must be sent in pieces
+	 */
+	private boolean isLarge(EventRequest request) {
+		return request.getDataSize()>fragmentSize();
+	}
+	
+	/**
+	 * Send a large event in pieces.
+	 * @param request
+	 * @return completed with true when the last piece is acknowledged, and
+	 * with false if a piece could not be sent or the protocol stopped
+	 */
+	private CompletableFuture<Boolean> sendFragmented(EventRequest request) {
+		Fragmented fragmented = new Fragmented(fragIds.incrementAndGet(),request,fragmentSize());
+		HashMap<String,ArrayDeque<Runnable>> held = this.held;
+		synchronized(held) {
+			ArrayDeque<Runnable> waiting = held.get(fragmented.eventName);
+			if(waiting!=null) {
+				// after the large event, and anything, with the same name before it
+				waiting.add(fragmented);
+				return fragmented.done;
+			}
+			held.put(fragmented.eventName,new ArrayDeque<>());
+		}
+		fragmented.run();
+		return fragmented.done;
+	}
+	
+	/**
+	 * Hold an event back if a large event with the same name is being sent.
+	 * @param eventName
+	 * @param send sends the event once the large event is done
+	 * @return true if the event was held back, otherwise it must be sent now
+	 */
+	private boolean holdBack(String eventName, Runnable send) {
+		HashMap<String,ArrayDeque<Runnable>> held = this.held;
+		synchronized(held) {
+			ArrayDeque<Runnable> waiting = held.get(eventName);
+			if(waiting==null) return false;
+			waiting.add(send);
+			return true;
+		}
+	}
+	
+	/**
+	 * Send an event now, unless a large event with the same name is being
+	 * sent, in which case once that is done.
+	 * @param eventName
+	 * @param send sends the event
+	 */
+	private void sendInOrder(String eventName, Runnable send) {
+		if(!holdBack(eventName,send)) send.run();
+	}
+	
+	/**
+	 * Send the events held back behind a large event that is done, in order,
+	 * up to the next large event with the same name.
+	 * @param eventName
+	 */
+	private void release(String eventName) {
+		HashMap<String,ArrayDeque<Runnable>> held = this.held;
+		while(true) {
+			Runnable send;
+			synchronized(held) {
+				ArrayDeque<Runnable> waiting = held.get(eventName);
+				send = waiting!=null ? waiting.poll() : null;
+				if(send==null) {
+					held.remove(eventName);
+					return;
+				}
+			}
+			send.run();
+			// that one releases the rest when it is done
+			if(send instanceof Fragmented) return;
+		}
+	}
+	
+	/**
+	 * Send an event or batch of events, acknowledged as set for the endpoint.
+	 * @param msg
+	 */
+	private void sendMessage(EventMessage msg) {
+		switch(endpoint.getEventAcks()) {
+		case Each:
+			sendRequest(msg);
+			break;
+		case Cumulative:
+			sendNumbered(msg,null);
+			break;
+		case None:
+			msg.setNoAck();
+			endpoint.send(msg);
+			break;
+		}
+	}
+	
+	/**
+	 * Add an event to the batch, sending the batch if it is full, or
+	 * making sure it is sent once the linger is up.
+	 * @param eventName
+	 * @param eventData
+	 */
+	private void addToBatch(String eventName, String eventData) {
+		Utils utils = Utils.getInstance();
+		int chars = eventName.length()+(eventData==null ? 0 : eventData.length());
+		synchronized(batchLock) {
+			if(chars>=utils.getEventBatchBytes()) {
+				// too big to batch, but must not overtake the batch
+				sendBatch();
+				sendMessage(prioritised(new EventRequest(eventName,eventData)));
+				return;
+			}
+			if(batch!=null && batchChars+chars>utils.getEventBatchBytes()) sendBatch();
+			if(batch==null) batch = new ArrayList<>();
+			batch.add(eventName);
+			batch.add(eventData);
+			batchChars+=chars;
+			if(batch.size()/2>=utils.getEventBatchSize()) {
+				sendBatch();
+			} else if(lingerTimeout==null) {
+				lingerTimeout = utils.setTimeout(()->{
+					synchronized(batchLock) {
+						lingerTimeout=null;
+						if(!stopped) sendBatch();
+					}
+				}, linger);
+			}
+		}
+	}
+	
+	/**
+	 * Send the events waiting to be sent together, if any, as a single
+	 * event if there is only one. Must hold the batch lock.
+	 */
+	private void sendBatch() {
+		if(lingerTimeout!=null) {
+			lingerTimeout.cancel();
+			lingerTimeout=null;
+		}
+		if(batch==null) return;
+		ArrayList<String> events = batch;
+		batch=null;
+		batchChars=0;
+		if(events.size()==2) {
+			sendMessage(prioritised(new EventRequest(events.get(0),events.get(1))));
+		} else {
+			sendMessage(new EventBatchRequest(events));
+		}
+	}
+	
+	/**
+	 * Send the events waiting to be sent together now, so that an event
+	 * sent some other way does not overtake them.
+	 */
+	private void flushBatch() {
+		if(linger<=0) return;
+		synchronized(batchLock) {
+			sendBatch();
+		}
+	}
+	
+	/**
+	 * Send an event to the other side, either as usual or without it
+	 * being acknowledged at all, for events that can be lost.
+	 * @param eventName
+	 * @param eventData
+	 * @param acked false to fire and forget
+	 */
+	public void sendEvent(String eventName, String eventData, boolean acked) {
+		if(stopped)return;
+		if(acked && endpoint.getEventAcks()!=Endpoint.EventAcks.None) {
+			sendEvent(eventName,eventData);
+			return;
+		}
+		sendUnacked(prioritised(new EventRequest(eventName,eventData)));
+	}
+	
+	/**
+	 * Send an event with bytes to the other side, either as usual or without
+	 * it being acknowledged at all, for events that can be lost.
+	 * @param eventName
+	 * @param eventBytes kept rather than copied, so must not be changed after
+	 * @param acked false to fire and forget
+	 */
+	public void sendEvent(String eventName, byte[] eventBytes, boolean acked) {
+		if(stopped)return;
+		if(acked && endpoint.getEventAcks()!=Endpoint.EventAcks.None) {
+			sendEvent(eventName,eventBytes);
+			return;
+		}
+		sendUnacked(prioritised(new EventRequest(eventName,eventBytes)));
+	}
+	
+	private void sendUnacked(EventRequest request) {
+		if(isLarge(request)) {
+			// pieces are always acknowledged
+			sendFragmented(request);
+			return;
+		}
+		sendInOrder(request.getEventName(),()->{
+			flushBatch();
+			request.setNoAck();
+			endpoint.send(request);
+		});
+	}
+	
+	/**
+	 * Send an event to the other side, and find out when it has been
+	 * acknowledged. Does not wait for room in the window.
+	 * @param eventName
+	 * @param eventData
+	 * @return completed with true when the event is acknowledged, or straight
+	 * away if events are not acknowledged, and with false if it never will be
+	 * because it could not be sent, it timed out or the protocol stopped
+	 */
+	public CompletableFuture<Boolean> sendEventAsync(String eventName, String eventData) {
+		return sendAsync(prioritised(new EventRequest(eventName,eventData)));
+	}
+	
+	/**
+	 * Send an event with bytes to the other side, and find out when it has
+	 * been acknowledged, as for {@link #sendEventAsync(String, String)}.
+	 * @param eventName
+	 * @param eventBytes kept rather than copied, so must not be changed after
+	 * @return completed with true when the event is acknowledged
+	 */
+	public CompletableFuture<Boolean> sendEventAsync(String eventName, byte[] eventBytes) {
+		return sendAsync(prioritised(new EventRequest(eventName,eventBytes)));
+	}
+	
+	private CompletableFuture<Boolean> sendAsync(EventRequest request) {
+		if(isLarge(request)) return sendFragmented(request);
+		CompletableFuture<Boolean> acked = new CompletableFuture<>();
+		sendInOrder(request.getEventName(),()->{
+			sendAcked(request).thenAccept(acked::complete);
+		});
+		return acked;
+	}
+	
+	/**
+	 * Send an event, batch or piece of an event and find out when it has
+	 * been acknowledged.
+	 * @param request
+	 * @return completed with true when acknowledged
+	 */
+	private CompletableFuture<Boolean> sendAcked(EventMessage request) {
+		if(stopped) return CompletableFuture.completedFuture(false);
+		flushBatch();
+		CompletableFuture<Boolean> acked = new CompletableFuture<>();
+		Endpoint.EventAcks eventAcks = endpoint.getEventAcks();
+		// pieces of large events are paced by their acks
+		if(eventAcks==Endpoint.EventAcks.None && request instanceof EventFragment) {
+			eventAcks=Endpoint.EventAcks.Each;
+		}
+		switch(eventAcks) {
+		case Each:
+			if(!endpoint.sendWithTimeout(request,(reply)->{
+				acked.complete(true);
+			},()->{
+				acked.complete(false);
+				if(!stopped) manager.endpointTimedOut(endpoint, this);
+			})) acked.complete(false);
+			break;
+		case Cumulative:
+			sendNumbered(request,acked);
+			break;
+		case None:
+			request.setNoAck();
+			acked.complete(endpoint.send(request));
+			break;
+		}
+		return acked;
+	}
+	
+	/**
+	 * Send an event to the other side, waiting for room in the window if it
+	 * is full. Must not be called by the thread that receives messages for
+	 * the endpoint, since that is the thread that makes room.
+	 * @param eventName
+	 * @param eventData
+	 * @param timeout most milliseconds to wait for room
+	 * @return true if the event was sent, false if there was no room in time
+	 * or it could not be sent
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean sendEventBlocking(String eventName, String eventData, long timeout)
+			throws InterruptedException {
+		return sendEventBlocking(prioritised(new EventRequest(eventName,eventData)),timeout);
+	}
+	
+	/**
+	 * Send an event with bytes to the other side, waiting for room in the
+	 * window, as for {@link #sendEventBlocking(String, String, long)}.
+	 * @param eventName
+	 * @param eventBytes kept rather than copied, so must not be changed after
+	 * @param timeout most milliseconds to wait for room
+	 * @return true if the event was sent
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean sendEventBlocking(String eventName, byte[] eventBytes, long timeout)
+			throws InterruptedException {
+		return sendEventBlocking(prioritised(new EventRequest(eventName,eventBytes)),timeout);
+	}
+	
+	private boolean sendEventBlocking(EventRequest request, long timeout)
+			throws InterruptedException {
+		if(stopped) return false;
+		if(endpoint.getEventAcks()!=Endpoint.EventAcks.Cumulative) {
+			if(request.isBinary()) {
+				sendUnbatched(request);
+			} else {
+				sendEvent(request.getEventName(),request.getEventData());
+			}
+			return true;
+		}
+		if(isLarge(request)) {
+			// the pieces wait for acks on their own
+			sendFragmented(request);
+			return true;
+		}
+		if(holdBack(request.getEventName(),()->{
+			sendNumbered(request,null);
+		})) {
+			// behind a large event, which waits for acks on its own
+			return true;
+		}
+		flushBatch();
+		Lane lane = laneOf(request);
+		long deadline = System.currentTimeMillis()+timeout;
+		synchronized(sendLock) {
+			while(resumedBy==null && (suspended || !hasRoom(lane) || isBacklogged(lane))) {
+				long wait = deadline-System.currentTimeMillis();
+				if(stopped || wait<=0) return false;
+				sendLock.wait(wait);
+			}
+			if(resumedBy==null) {
+				if(stopped) return false;
+				return sendNow(lane,request,null);
+			}
+		}
+		// the session was resumed on another connection while waiting
+		return resumedBy.sendEventBlocking(request,Math.max(0,deadline-System.currentTimeMillis()));
+	}
+	
+	/**
+	 * Send a numbered event if there is room in the window and nothing
+	 * is waiting before it, otherwise put it in the backlog.
+	 * @param request
+	 * @param acked completed when the event is acknowledged, may be null
+	 */
+	private void sendNumbered(EventMessage request, CompletableFuture<Boolean> acked) {
+		boolean sent=false;
+		EventProtocol next;
+		Backlogged replaced=null;
+		Lane lane = laneOf(request);
+		synchronized(sendLock) {
+			next=resumedBy;
+			if(next==null) {
+				Endpoint.CongestionPolicy shedding = request.getConflationKey()!=null ?
+						endpoint.getSheddingPolicy() : null;
+				if(shedding==Endpoint.CongestionPolicy.Drop) {
+					log.fine("dropping "+request.getName()+" to "+endpoint.getOtherEndpointId());
+				} else if(suspended || !hasRoom(lane) || isBacklogged(lane) ||
+						(shedding==Endpoint.CongestionPolicy.Conflate && lane.sentSeq>lane.ackedSeq)) {
+					if(shedding==Endpoint.CongestionPolicy.Conflate) replaced=conflate(lane,request);
+					if(addToBacklog(lane,request,acked)) {
+						acked=null;
+					}
+				} else {
+					sent = sendNow(lane,request,acked);
+				}
+			}
+		}
+		if(replaced!=null && replaced.acked!=null) replaced.acked.complete(false);
+		if(next!=null && !(replayed && request instanceof EventFragment)) {
+			// the session was resumed, or its events replayed, on another connection
+			next.sendNumbered(request,acked);
+		} else if(!sent && acked!=null) {
+			acked.complete(false);
+		}
+	}
+	
+	/**
+	 * Take the event that a newer event replaces out of the backlog of the
+	 * lane, if there is one. Must hold the send lock.
+	 * @param lane
+	 * @param request the newer event, which goes to the back of the backlog
+	 * @return the event taken out, or null if none was
+	 */
+	private Backlogged conflate(Lane lane, EventMessage request) {
+		String key = request.getConflationKey();
+		Iterator<Backlogged> waiting = lane.backlog.iterator();
+		while(waiting.hasNext()) {
+			Backlogged older = waiting.next();
+			if(key.equals(older.request.getConflationKey())) {
+				waiting.remove();
+				return older;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @param request
+	 * @return the lane the event is numbered in, as written
+	 */
+	private Lane laneOf(EventMessage request) {
+		return request.getPriority()==Message.Priority.Bulk ? lanes[1] : lanes[0];
+	}
+	
+	/**
+	 * @return true if there is room in the window of the lane. Must hold
+	 * the send lock.
+	 */
+	private boolean hasRoom(Lane lane) {
+		return window<=0 || lane.sentSeq-lane.ackedSeq<window;
+	}
+	
+	/**
+	 * @return true if events are waiting for room in the window of the lane.
+	 * Must hold the send lock.
+	 */
+	private boolean isBacklogged(Lane lane) {
+		return !lane.backlog.isEmpty() ||
+				(lane==lanes[0] && journal!=null && !journal.isEmpty());
+	}
+	
+	/**
+	 * Put an event in the backlog of its lane, which for interactive events
+	 * is the journal if there is one. Must hold the send lock.
+	 * @param lane
+	 * @param request
+	 * @param acked completed when the event is acknowledged, may be null
+	 * @return false if the backlog, or the journal, had no room for the event
+	 */
+	private boolean addToBacklog(Lane lane, EventMessage request, CompletableFuture<Boolean> acked) {
+		if(journal==null || lane!=lanes[0]) {
+			if(backlogMax>0 && lane.backlog.size()>=backlogMax) {
+				if(!lane.backlogFull) {
+					log.warning("backlog is full, dropping events to "+endpoint.getOtherEndpointId());
+				}
+				lane.backlogFull=true;
+				return false;
+			}
+			lane.backlogFull=false;
+			lane.backlog.add(new Backlogged(request,acked));
+			return true;
+		}
+		return journal.add(request,acked);
+	}
+	
+	/**
+	 * Take the oldest event in the backlog of the lane, then from the journal
+	 * for interactive events. Must hold the send lock.
+	 * @param lane
+	 * @param failed to add the futures of events that could not be read
+	 * back from the journal to
+	 * @return the event, or null if there are none
+	 */
+	private Backlogged pollBacklog(Lane lane, List<CompletableFuture<Boolean>> failed) {
+		Backlogged next = lane.backlog.poll();
+		while(next==null && lane==lanes[0] && journal!=null) {
+			EventJournal.Entry entry = journal.poll();
+			if(entry==null) return null;
+			if(entry.request!=null) {
+				next = new Backlogged(entry.request,entry.acked);
+			} else if(entry.acked!=null) {
+				failed.add(entry.acked);
+			}
+		}
+		return next;
+	}
+	
+	/**
+	 * Number the event and send it, remembering when it was sent until it
+	 * is acknowledged. Numbering and queuing are done together so that the
+	 * events go out in number order. Must hold the send lock.
+	 * @param lane the lane of the event
+	 * @param request
+	 * @param acked completed when the event is acknowledged, may be null
+	 * @return true if the event was sent
+	 */
+	private boolean sendNow(Lane lane, EventMessage request, CompletableFuture<Boolean> acked) {
+		long seq = lane.sentSeq+1;
+		request.setSeq(seq);
+		request.setLane(lane.index);
+		// the id stays the same if the event is sent again on another session
+		if(journal!=null && request.getDedupId()==0 && !(request instanceof EventFragment)) {
+			request.setDedupId(journal.nextDedupId());
+		}
+		// control events are numbered, so written, with the interactive ones
+		request.setPriority(lane.priority);
+		boolean ackNow = window>0 && seq-lane.ackRequestedSeq>=Math.max(1,window/2);
+		if(ackNow) request.setAckNow();
+		if(!endpoint.send(request)) return false;
+		lane.sentSeq=seq;
+		if(ackNow) lane.ackRequestedSeq=seq;
+		if(seq-lane.ackedSeq>lane.sentTimes.length) growSentTimes(lane);
+		int i = lane.slot(seq);
+		lane.sentTimes[i]=System.currentTimeMillis();
+		lane.sentFutures[i]=acked;
+		if(endpoint.getSessionId()!=null || journal!=null) lane.sentEvents[i]=request;
+		if(lane.ackTimeout==null) armAckTimeout(lane,endpoint.getRequestTimeout());
+		return true;
+	}
+	
+	/**
+	 * Send backlogged events of the lane while there is room in its window.
+	 * Must hold the send lock.
+	 * @param lane
+	 * @param failed to add the futures of events that could not be sent to
+	 */
+	private void sendBacklog(Lane lane, List<CompletableFuture<Boolean>> failed) {
+		// while conflating, newer events replace those waiting until the
+		// events in flight are acknowledged
+		if(lane.sentSeq>lane.ackedSeq &&
+				endpoint.getSheddingPolicy()==Endpoint.CongestionPolicy.Conflate) return;
+		while(hasRoom(lane)) {
+			Backlogged next = pollBacklog(lane,failed);
+			if(next==null) return;
+			if(!sendNow(lane,next.request,next.acked) && next.acked!=null) failed.add(next.acked);
+		}
+	}
+	
+	/**
+	 * Double the room for send times in the lane, keeping those not yet
+	 * acknowledged.
+	 */
+	private static void growSentTimes(Lane lane) {
+		long[] times = new long[lane.sentTimes.length*2];
+		CompletableFuture<Boolean>[] futures = newFutures(times.length);
+		EventMessage[] events = new EventMessage[times.length];
+		for(long seq=lane.ackedSeq+1;seq<lane.sentSeq+1;seq++) {
+			int from = lane.slot(seq);
+			int to = (int)(seq & (times.length-1));
+			times[to]=lane.sentTimes[from];
+			futures[to]=lane.sentFutures[from];
+			events[to]=lane.sentEvents[from];
+		}
+		lane.sentTimes=times;
+		lane.sentFutures=futures;
+		lane.sentEvents=events;
+	}
+	
+	/**
+	 * @param length
+	 * @return room for the futures of that many events
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private static CompletableFuture<Boolean>[] newFutures(int length) {
+		return new CompletableFuture[length];
+	}
+	
+	/**
+	 * Check on the oldest event of the lane not yet acknowledged after a
+	 * delay. Must hold the send lock.
+	 * @param lane
+	 * @param delay milliseconds
+	 */
+	private void armAckTimeout(Lane lane, long delay) {
+		lane.ackTimeout = Utils.getInstance().setTimeout(()->{
+			checkAcks(lane);
+		}, delay);
+	}
+	
+	/**
+	 * Tell the manager if the oldest event of the lane not yet acknowledged
+	 * has waited too long for its ack, as for the reply to a request,
+	 * otherwise check again when it will have.
+	 * @param lane
+	 * @see {@link Endpoint#getRequestTimeRemaining(long)}
+	 */
+	private void checkAcks(Lane lane) {
+		synchronized(sendLock) {
+			lane.ackTimeout=null;
+			if(stopped || suspended || lane.ackedSeq==lane.sentSeq) return;
+			long waited = System.currentTimeMillis()-lane.sentTimes[lane.slot(lane.ackedSeq+1)];
+			long remaining = endpoint.getRequestTimeRemaining(waited);
+			if(remaining>0) {
+				armAckTimeout(lane,remaining);
+				return;
+			}
+		}
+		manager.endpointTimedOut(endpoint,this);
+	}
+	
+	/**
+	 * @return the number of events sent with cumulative acks that have
+	 * not yet been acknowledged, in every lane
+	 */
+	public long getUnackedEvents() {
+		synchronized(sendLock) {
+			long unacked=0;
+			for(Lane lane : lanes) unacked+=lane.sentSeq-lane.ackedSeq;
+			return unacked;
+		}
+	}
+	
+	/**
+	 * @return the number of events waiting for room in the window, in
+	 * every lane and including those in the journal
+	 */
+	public int getBackloggedEvents() {
+		synchronized(sendLock) {
+			int backlogged = journal!=null ? journal.size() : 0;
+			for(Lane lane : lanes) backlogged+=lane.backlog.size();
+			return backlogged;
+		}
+	}
+	
+	/**
+	 * Keep the backlog in a journal that outlives the protocol, and keep the
+	 * events not yet acknowledged, so that they can be sent on a new session
+	 * if the connection drops. Must be called before any events are sent.
+	 * @param journal
+	 */
+	public void setJournal(EventJournal journal) {
+		this.journal=journal;
+	}
+	
+	/**
+	 * @return the number up to which every interactive event has been
+	 * received, which a resumed session starts from
+	 */
+	public long getReceivedSeq() {
+		synchronized(receiveLock) {
+			return lanes[0].received.getFloor();
+		}
+	}
+	
+	/**
+	 * The connection has dropped but the session may be resumed on another,
+	 * so when the endpoint is closed keep the events not yet acknowledged,
+	 * and hold events emitted from now on in the backlog. Events received
+	 * from now on are ignored, so that the numbers received stay as they are
+	 * for the resume.
+	 */
+	public void suspend() {
+		synchronized(receiveLock) {
+			suspended=true;
+		}
+	}
+	
+	/**
+	 * @return true if the connection has dropped and the session may yet
+	 * be resumed
+	 */
+	public boolean isSuspended() {
+		return suspended;
+	}
+	
+	/**
+	 * Give up on resuming the session, doing what stopping would have done
+	 * when the endpoint was closed.
+	 */
+	public void abandon() {
+		suspended=false;
+		stopProtocol();
+	}
+	
+	/**
+	 * Take over the session of a suspended protocol, on this protocol's
+	 * endpoint. Interactive events after the number up to which the other
+	 * endpoint received every one are sent again with the same numbers, as
+	 * are the bulk events not yet acknowledged, followed by the backlog. This
+	 * protocol starts with the numbers the old one received, so that events
+	 * received again, including any that arrived after a gap, are
+	 * acknowledged but not passed on. From now on events emitted on the old
+	 * endpoint are sent by this protocol.
+	 * @param old the protocol of the session, suspended
+	 * @param peerReceivedSeq number up to which the other endpoint received
+	 * every interactive event in the session
+	 */
+	public void resume(EventProtocol old, long peerReceivedSeq) {
+		List<CompletableFuture<Boolean>> acked = new ArrayList<>();
+		List<CompletableFuture<Boolean>> failed = new ArrayList<>();
+		// events batched before the connection dropped go to the backlog first
+		synchronized(old.batchLock) {
+			old.sendBatch();
+		}
+		synchronized(old.sendLock) {
+			synchronized(sendLock) {
+				for(Lane lane : lanes) {
+					Lane oldLane = old.lanes[lane.index];
+					lane.sentSeq=oldLane.sentSeq;
+					lane.ackedSeq=oldLane.ackedSeq;
+					lane.ackRequestedSeq=lane.sentSeq;
+					lane.sentTimes=oldLane.sentTimes;
+					lane.sentFutures=oldLane.sentFutures;
+					lane.sentEvents=oldLane.sentEvents;
+					// what the other endpoint received acknowledges the events
+					long seq = lane.index>0 ? lane.ackedSeq :
+						Math.max(lane.ackedSeq,Math.min(peerReceivedSeq,lane.sentSeq));
+					while(lane.ackedSeq<seq) {
+						lane.ackedSeq++;
+						int i = lane.slot(lane.ackedSeq);
+						if(lane.sentFutures[i]!=null) acked.add(lane.sentFutures[i]);
+						lane.sentFutures[i]=null;
+						lane.sentEvents[i]=null;
+					}
+					long now = System.currentTimeMillis();
+					for(seq=lane.ackedSeq+1;seq<=lane.sentSeq;seq++) {
+						int i = lane.slot(seq);
+						lane.sentTimes[i]=now;
+						if(lane.sentEvents[i]==null) continue;
+						if(seq==lane.sentSeq) lane.sentEvents[i].setAckNow();
+						endpoint.send(lane.sentEvents[i]);
+					}
+					if(lane.ackedSeq<lane.sentSeq) armAckTimeout(lane,endpoint.getRequestTimeout());
+					lane.backlog.addAll(oldLane.backlog);
+					oldLane.backlog.clear();
+					sendBacklog(lane,failed);
+				}
+				fragIds.set(old.fragIds.get());
+				held=old.held;
+				old.resumedBy=this;
+				old.suspended=false;
+				old.sendLock.notifyAll();
+			}
+		}
+		synchronized(old.receiveLock) {
+			synchronized(receiveLock) {
+				for(Lane lane : lanes) {
+					lane.received=new ReceivedSeqs(old.lanes[lane.index].received);
+				}
+			}
+		}
+		synchronized(old.reassembling) {
+			synchronized(reassembling) {
+				reassembling.putAll(old.reassembling);
+				reassemblyBytes=old.reassemblyBytes;
+			}
+		}
+		acked.forEach((future)->{future.complete(true);});
+		failed.forEach((future)->{future.complete(false);});
+	}
+	
+	/**
+	 * Take over the events of a suspended protocol whose session could not
+	 * be resumed, on this protocol's new session. Events not acknowledged
+	 * are sent again with new numbers, followed by the backlog, keeping their
+	 * dedup ids so that the other endpoint passes each on only once. Pieces
+	 * of large events are dropped. From now on events emitted on the old
+	 * endpoint are sent by this protocol.
+	 * @param old the protocol of the session, suspended
+	 */
+	public void replay(EventProtocol old) {
+		List<CompletableFuture<Boolean>> failed = new ArrayList<>();
+		// events batched before the connection dropped go to the backlog first
+		synchronized(old.batchLock) {
+			old.sendBatch();
+		}
+		synchronized(old.sendLock) {
+			synchronized(sendLock) {
+				for(Lane lane : lanes) {
+					Lane oldLane = old.lanes[lane.index];
+					for(long seq=oldLane.ackedSeq+1;seq<=oldLane.sentSeq;seq++) {
+						int i = oldLane.slot(seq);
+						EventMessage request = oldLane.sentEvents[i];
+						CompletableFuture<Boolean> acked = oldLane.sentFutures[i];
+						oldLane.sentEvents[i]=null;
+						oldLane.sentFutures[i]=null;
+						if(request!=null && !(request instanceof EventFragment)) {
+							lane.backlog.add(new Backlogged(request,acked));
+						} else if(acked!=null) {
+							failed.add(acked);
+						}
+					}
+					oldLane.ackedSeq=oldLane.sentSeq;
+					for(Backlogged waiting : oldLane.backlog) {
+						if(!(waiting.request instanceof EventFragment)) {
+							lane.backlog.add(waiting);
+						} else if(waiting.acked!=null) {
+							failed.add(waiting.acked);
+						}
+					}
+					oldLane.backlog.clear();
+					sendBacklog(lane,failed);
+				}
+				held=old.held;
+				old.replayed=true;
+				old.resumedBy=this;
+				old.suspended=false;
+				old.sendLock.notifyAll();
+			}
+		}
+		failed.forEach((future)->{future.complete(false);});
+	}
+	
+	/**
+	 * @return the protocol that events for this session are sent by
+	 */
+	private EventProtocol current() {
+		EventProtocol protocol = this;
+		while(protocol.resumedBy!=null) protocol=protocol.resumedBy;
+		return protocol;
+	}
+	
+	/**
+	 * Stop listening for events, and tell anyone waiting on an event that
+	 * it will not be acknowledged. If the protocol is suspended, or another
+	 * has taken over its session, then only the timeouts are stopped.
+	 */
 	@Override
 	public void stopProtocol() {
+		if(suspended || resumedBy!=null) {
+			synchronized(sendLock) {
+				for(Lane lane : lanes) {
+					if(lane.ackTimeout!=null) lane.ackTimeout.cancel();
+					lane.ackTimeout=null;
+				}
+			}
+			synchronized(receiveLock) {
+				for(Lane lane : lanes) {
+					if(lane.ackDelay!=null) lane.ackDelay.cancel();
+					lane.ackDelay=null;
+				}
+			}
+			synchronized(batchLock) {
+				if(lingerTimeout!=null) lingerTimeout.cancel();
+				lingerTimeout=null;
+			}
+			return;
+		}
 		stopped=true;
+		subscription.off();
+		List<CompletableFuture<Boolean>> failed = new ArrayList<>();
+		synchronized(sendLock) {
+			for(Lane lane : lanes) {
+				if(lane.ackTimeout!=null) lane.ackTimeout.cancel();
+				for(int i=0;i<lane.sentFutures.length;i++) {
+					if(lane.sentFutures[i]!=null) failed.add(lane.sentFutures[i]);
+					lane.sentFutures[i]=null;
+					lane.sentEvents[i]=null;
+				}
+				for(Backlogged waiting : lane.backlog) {
+					if(waiting.acked!=null) failed.add(waiting.acked);
+				}
+				lane.backlog.clear();
+			}
+			if(journal!=null) failed.addAll(journal.clear());
+			sendLock.notifyAll();
+		}
+		synchronized(receiveLock) {
+			for(Lane lane : lanes) {
+				if(lane.ackDelay!=null) lane.ackDelay.cancel();
+			}
+		}
+		synchronized(batchLock) {
+			if(lingerTimeout!=null) lingerTimeout.cancel();
+			batch=null;
+		}
+		synchronized(reassembling) {
+			reassembling.clear();
+			reassemblyBytes=0;
+		}
+		failed.forEach((acked)->{acked.complete(false);});
 	}
 
 	@Override
@@ -78,22 +1476,177 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		if(stopped)return;
 		endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
-		}, eventTimeout);
+		});
 		
 	}
 
+	/**
+	 * An event reply needs nothing more, its timeout has been cancelled. An
+	 * event ack drops the send times of all the events it covers in its
+	 * lane, which makes room in the window for backlogged events.
+	 * @param msg
+	 */
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		if(!(msg instanceof EventAck)) return;
+		long seq = ((EventAck)msg).getSeq();
+		Lane lane = lanes[((EventAck)msg).getLane()];
+		List<CompletableFuture<Boolean>> acked = new ArrayList<>();
+		List<CompletableFuture<Boolean>> failed = new ArrayList<>();
+		synchronized(sendLock) {
+			if(seq>lane.sentSeq) {
+				log.warning("ack for an event that was not sent: "+seq);
+				return;
+			}
+			while(lane.ackedSeq<seq) {
+				lane.ackedSeq++;
+				int i = lane.slot(lane.ackedSeq);
+				if(lane.sentFutures[i]!=null) {
+					acked.add(lane.sentFutures[i]);
+					lane.sentFutures[i]=null;
+				}
+				lane.sentEvents[i]=null;
+			}
+			sendBacklog(lane,failed);
+			sendLock.notifyAll();
+		}
+		// completed outside of the lock, since they may send more events
+		acked.forEach((future)->{future.complete(true);});
+		failed.forEach((future)->{future.complete(false);});
 	}
 
+	/**
+	 * Acknowledge the event, or batch of events, unless asked not to, and
+	 * pass the events to the callbacks for them in order.
+	 * @param msg
+	 */
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
-		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		EventMessage eventMessage = (EventMessage)msg;
+		if(eventMessage.getSeq()>0) {
+			if(!receivedNumbered(lanes[eventMessage.getLane()],eventMessage.getSeq(),
+					eventMessage.isAckNow())) return;
+		} else if(eventMessage.isAcked()) {
+			endpoint.sendAndCancelTimeout(new EventReply(), msg);
+		}
+		// events sent again from the other endpoint's journal are passed on once
+		if(eventMessage.getDedupId()>0 && endpoint.getJournalId()!=null &&
+				!EventDedup.getInstance().apply(endpoint.getJournalId(),eventMessage.getDedupId())) return;
+		if(msg instanceof EventBatchRequest) {
+			EventBatchRequest batchRequest = (EventBatchRequest)msg;
+			for(int i=0;i<batchRequest.size();i++) {
+				endpoint.dispatchEvent(batchRequest.getEventName(i),batchRequest.getEventData(i));
+			}
+		} else if(msg instanceof EventFragment) {
+			receiveFragment((EventFragment)msg);
+		} else {
+			EventRequest eventRequest = (EventRequest)msg;
+			endpoint.dispatchEvent(eventRequest.getEventName(),eventRequest.getEventArg());
+		}
+	}
+	
+	/**
+	 * Add a piece of a large event to those received so far, and pass the
+	 * event to the callbacks for it once it is complete. The event is
+	 * dropped if there is no room to hold it.
+	 * @param fragment
+	 */
+	private void receiveFragment(EventFragment fragment) {
+		Object eventArg=null;
+		synchronized(reassembling) {
+			Reassembly reassembly = reassembling.get(fragment.getFragId());
+			if(reassembly==null) {
+				reassembly = new Reassembly(fragment.isBinary());
+				reassembling.put(fragment.getFragId(),reassembly);
+			}
+			if(reassembly.pieces!=null) {
+				Object piece;
+				int length;
+				long bytes;
+				if(fragment.isBinary()) {
+					byte[] b = fragment.getEventBytes();
+					piece=b;
+					length=b.length;
+					bytes=b.length;
+				} else {
+					String text = fragment.getEventData();
+					piece=text;
+					length=text.length();
+					bytes=2L*text.length();
+				}
+				if(reassembly.binary!=fragment.isBinary() ||
+						reassemblyBytes+bytes>Utils.getInstance().getEventReassemblyBytes()) {
+					log.warning("dropping large event "+fragment.getEventName()+
+							", too many bytes are being put back together");
+					reassemblyBytes-=reassembly.bytes;
+					reassembly.pieces=null;
+					reassembly.bytes=0;
+				} else {
+					reassembly.pieces.add(piece);
+					reassembly.length+=length;
+					reassembly.bytes+=bytes;
+					reassemblyBytes+=bytes;
+				}
+			}
+			if(!fragment.hasMore()) {
+				reassembling.remove(fragment.getFragId());
+				reassemblyBytes-=reassembly.bytes;
+				if(reassembly.pieces!=null) eventArg=reassembly.getEventArg();
+			}
+		}
+		if(eventArg!=null) endpoint.dispatchEvent(fragment.getEventName(),eventArg);
+	}
+	
+	/**
+	 * @return the number of bytes held by large events being put back together
+	 */
+	public long getReassemblyBytes() {
+		synchronized(reassembling) {
+			return reassemblyBytes;
+		}
+	}
+	
+	/**
+	 * Acknowledge the received events of the lane once enough of them have
+	 * been received, or when asked to, otherwise make sure they are
+	 * acknowledged after the ack delay.
+	 * @param lane the lane the event is numbered in
+	 * @param seq the number of the received event
+	 * @param ackNow true if the sender asked for an ack straight away
+	 * @return true if the event should be passed on, false if the protocol
+	 * is suspended or the event has been received before
+	 */
+	private boolean receivedNumbered(Lane lane, long seq, boolean ackNow) {
+		synchronized(receiveLock) {
+			if(suspended) return false;
+			boolean first = lane.received.add(seq);
+			if(++lane.unackedEvents>=Utils.getInstance().getEventAckEvery() || ackNow) {
+				sendAck(lane);
+			} else if(lane.ackDelay==null) {
+				lane.ackDelay = Utils.getInstance().setTimeout(()->{
+					synchronized(receiveLock) {
+						lane.ackDelay=null;
+						if(!stopped && lane.unackedEvents>0) sendAck(lane);
+					}
+				}, Utils.getInstance().getEventAckDelay());
+			}
+			return first;
+		}
+	}
+	
+	/**
+	 * Acknowledge every event of the lane received so far with no gap before
+	 * it. Must hold the receive lock.
+	 * @param lane
+	 */
+	private void sendAck(Lane lane) {
+		lane.unackedEvents=0;
+		if(lane.ackDelay!=null) {
+			lane.ackDelay.cancel();
+			lane.ackDelay=null;
+		}
+		endpoint.send(new EventAck(lane.received.getFloor(),lane.index));
 	}
 
 	@Override
@@ -1,22 +1,61 @@
 package pb.protocols.event;
 
+import java.nio.ByteBuffer;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
-public class EventRequest extends Message {
+/**
+ * Carries a single event, whose data is either text, in "eventData", or
+ * bytes, in "eventBytes". Bytes are sent as they are by the binary codec and
+ * as Base64 text by the JSON codec.
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @author aaron
+ *
+ */
+public class EventRequest extends EventMessage {
 	static final public String name = "EventRequest";
 	
 	public EventRequest(String eventName, String eventData) {
-		super(name, EventProtocol.protocolName, Message.Type.Request);
+		super(name);
 		doc.append("eventName", eventName);
 		doc.append("eventData", eventData);
 	}
+	
+	/**
+	 * @param eventName
+	 * @param eventBytes kept rather than copied, so must not be changed after
+	 */
+	public EventRequest(String eventName, byte[] eventBytes) {
+		super(name);
+		doc.append("eventName", eventName);
+		doc.append("eventBytes", eventBytes);
+	}
+	
+	/**
+	 * @param eventName
+	 * @param eventBytes the remaining bytes are copied, so the buffer can be
+	 * reused straight away
+	 */
+	public EventRequest(String eventName, ByteBuffer eventBytes) {
+		this(eventName,toBytes(eventBytes));
+	}
+	
+	private static byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(buffer.position(),bytes);
+		return bytes;
+	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
-		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		super(name,doc);
 		Message.validateStringType("eventName", doc);
-		Message.validateStringType("eventData", doc);
+		if(doc.containsKey("eventBytes")) {
+			Message.validateBytesType("eventBytes", doc);
+		} else {
+			Message.validateStringType("eventData", doc);
+		}
 		this.doc=doc;
 	}
 	
@@ -24,7 +63,60 @@ public class EventRequest extends Message {
 		return doc.getString("eventName");
 	}
 	
+	/**
+	 * @return the data of the event, or null if it is bytes
+	 */
 	public String getEventData() {
 		return doc.getString("eventData");
 	}
+	
+	/**
+	 * @return true if the data of the event is bytes rather than text
+	 */
+	public boolean isBinary() {
+		return doc.containsKey("eventBytes");
+	}
+	
+	/**
+	 * @return the number of characters or bytes of data in the event
+	 */
+	public int getDataSize() {
+		if(isBinary()) return doc.getBytes("eventBytes").length;
+		String eventData = getEventData();
+		return eventData==null ? 0 : eventData.length();
+	}
+	
+	/**
+	 * @return the bytes of the event, without copying them, or null if the
+	 * data is text
+	 */
+	public ByteBuffer getEventBytes() {
+		if(!isBinary()) return null;
+		return ByteBuffer.wrap(doc.getBytes("eventBytes")).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * @return the bytes of the event as they are, or null if the data is text
+	 */
+	byte[] getEventByteArray() {
+		if(!isBinary()) return null;
+		return doc.getBytes("eventBytes");
+	}
+	
+	/**
+	 * @return the data of the event as passed to the callbacks for it, a
+	 * String or a read-only ByteBuffer
+	 */
+	public Object getEventArg() {
+		return isBinary() ? getEventBytes() : getEventData();
+	}
+	
+	/**
+	 * Events of the same name can replace each other, unless they are
+	 * numbered, since the other endpoint acknowledges numbers with no gaps.
+	 */
+	@Override
+	public String getConflationKey() {
+		return getSeq()>0 ? null : getEventName();
+	}
 }
@@ -0,0 +1,12 @@
+package pb.protocols.event;
+
+@FunctionalInterface
+public interface IWildcardCallback {
+	/**
+	 * Handle every event, with its name passed separately from its arguments
+	 * so that they do not need to be copied.
+	 * @param eventName
+	 * @param args
+	 */
+	public void callback(String eventName, Object... args);
+}
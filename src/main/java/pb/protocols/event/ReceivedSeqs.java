@@ -0,0 +1,78 @@
+package pb.protocols.event;
+
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * The numbers of the events received with cumulative acks, kept as a floor,
+ * every number up to which has been received, and the numbers received above
+ * it. Only the floor is acknowledged, so an ack never covers an event that
+ * has not arrived, and the numbers above it tell events received again from
+ * new ones. Events arrive in number order on a connection, so the numbers
+ * above the floor are few; if they become more than {@link #maxAbove}, because
+ * an event never arrived, then the floor is moved up past the oldest gap.
+ * Not thread safe, the event protocol guards it with its receive lock.
+ *
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public class ReceivedSeqs {
+	private static Logger log = Logger.getLogger(ReceivedSeqs.class.getName());
+
+	/**
+	 * Most numbers above the floor remembered.
+	 */
+	private static final int maxAbove = 4096;
+
+	/**
+	 * Every number up to this has been received.
+	 */
+	private long floor=0;
+
+	/**
+	 * Numbers received above the floor, never including floor+1.
+	 */
+	private final TreeSet<Long> above = new TreeSet<>();
+
+	public ReceivedSeqs() {
+
+	}
+
+	/**
+	 * @param other numbers to start with, as when a session is resumed
+	 */
+	public ReceivedSeqs(ReceivedSeqs other) {
+		floor=other.floor;
+		above.addAll(other.above);
+	}
+
+	/**
+	 * Note that an event has been received.
+	 * @param seq the number of the event
+	 * @return true if the event has not been received before
+	 */
+	public boolean add(long seq) {
+		if(seq<=floor || !above.add(seq)) return false;
+		if(above.size()>maxAbove) {
+			log.warning("event "+(floor+1)+" never arrived, no longer waiting for it");
+			floor=above.first()-1;
+		}
+		while(!above.isEmpty() && above.first()==floor+1) {
+			floor=above.pollFirst();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number up to which every event has been received
+	 */
+	public long getFloor() {
+		return floor;
+	}
+
+	/**
+	 * @return the number of events received above the floor
+	 */
+	public int getAbove() {
+		return above.size();
+	}
+}
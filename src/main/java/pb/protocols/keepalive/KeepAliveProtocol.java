@@ -1,6 +1,6 @@
 package pb.protocols.keepalive;
 
-import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
@@ -12,26 +12,39 @@ import pb.protocols.IRequestReplyProtocol;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
- * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
- * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
- * it will assume the server is dead
- * and signal its manager using
- * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
- * the client is dead and signal its manager. Upon initialisation, the client
- * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
- * when a timeout occurs.
+ * the KeepAlive protocol. Any message received shows that the other endpoint
+ * is alive, so if the other endpoint agreed at the start of the session, see
+ * {@link pb.managers.endpoint.Endpoint#hasIdleKeepAlives()}, KeepAlive
+ * requests are only needed on links that are idle. The client then sends a
+ * KeepAlive request to the server when nothing has been sent or
+ * nothing has been received for {@link #keepAliveInterval} milliseconds, and
+ * otherwise, as older servers expect, every {@link #keepAliveInterval}
+ * milliseconds. The server must send a KeepAlive reply to the client upon receiving the
+ * request. If the client does not receive the reply within the request
+ * timeout of the endpoint, which follows the round trip times measured on it,
+ * or either of them receives nothing for the interval plus the request
+ * timeout, it will assume the other is dead and signal its manager using
+ * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. The protocol
+ * stops when a timeout occurs.
+ * <br/>
+ * Replies carry the timeout id of their request only if that was agreed at
+ * the start of the session, see
+ * {@link pb.managers.endpoint.Endpoint#hasKeepAliveIds()}. Otherwise, as
+ * with older servers, any reply answers the outstanding request, and the
+ * sweeper times the request out itself.
+ * <br/>
+ * Apart from waiting for replies, the protocol does not set timeouts of its
+ * own. The endpoint notes when
+ * messages are sent and received, and the
+ * {@link pb.protocols.keepalive.LivenessSweeper} looks at the link when a
+ * request or a timeout may be due.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
  * @see {@link pb.protocols.Message}
  * @see {@link pb.protocols.keepalive.KeepAliveRequest}
  * @see {@link pb.protocols.keepalive.KeepaliveRespopnse}
+ * @see {@link pb.protocols.keepalive.LivenessSweeper}
  * @see {@link pb.protocols.Protocol}
  * @see {@link pb.protocols.IRequestReqplyProtocol}
  * @author aaron
@@ -47,38 +60,43 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	public static final String protocolName="KeepAliveProtocol";
 	
 	/**
-	 * Default keep alive request interval
+	 * Nanoseconds a link can be idle before the client sends a keep alive request.
 	 */
-	private int keepAliveRequestInterval = 20000;
+	private final long keepAliveInterval = TimeUnit.MILLISECONDS.toNanos(
+			Utils.getInstance().getKeepAliveInterval());
 	
 	/**
-	 * Default keep alive timeout
+	 * Whether we are the client, which sends the requests.
 	 */
-	private int keepAliveTimeout = 40000;
-	
-	// Use of volatile is because the timer thread is different to the endpoint thread
-	// and they make use of the same flags/variables.
+	private volatile boolean client=false;
 	
 	/**
-	 * Time that a request was last sent.
+	 * When a request was last sent, or the protocol started, only used by
+	 * the sweeper.
 	 */
-	private volatile long timeReplySeen;
+	private long timeRequestSent;
 	
 	/**
-	 * Time that a request was last seen.
+	 * Whether a request has been sent that the sweeper must time out itself,
+	 * only used by the sweeper.
 	 */
-	private volatile long timeRequestSeen;
+	private boolean awaitingReply;
 	
+	/**
+	 * When a reply was last received.
+	 */
+	private volatile long timeReplySeen;
 	
 	/**
-	 * Set to true to avoid any further timeouts. 
+	 * The tick of the sweeper that the link is next due to be looked at on,
+	 * only used by the sweeper.
 	 */
-	private volatile boolean stopped=false;
+	long dueTick;
 	
 	/**
-	 * Whether we should timeout or not.
+	 * Set to true to avoid any further timeouts. 
 	 */
-	private volatile boolean timeout=false; 
+	private volatile boolean stopped=false;
 	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
@@ -98,7 +116,8 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	}
 
 	/**
-	 * Just set a flag to avoid any further timeout callbacks.
+	 * Just set a flag to avoid any further timeout callbacks; the
+	 * sweeper drops the protocol the next time it looks at it.
 	 */
 	@Override
 	public void stopProtocol() {
@@ -111,111 +130,125 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
-	 * then timeout. Keep doing this until cancelled.
+	 * timeout if nothing is received for {@link #keepAliveInterval} plus
+	 * the request timeout.
 	 */
 	public void startAsServer() {
-		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
-	}
-	
-	/**
-	 * callback to check for client timeout
-	 */
-	public void checkClientTimeout() {
-		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
-			// timeout :-(
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
-		}
+		LivenessSweeper.getInstance().watch(this);
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
-	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * send a keep alive every {@link #keepAliveInterval}, or only when the
+	 * link has been idle for that long if agreed, and timeout if no reply is
+	 * received within the request timeout.
 	 */
 	public void startAsClient() {
-		// assume we saw a reply already
-		timeReplySeen = Instant.now().toEpochMilli();
-		// send a request straight away
-		sendAnotherRequest();	
+		timeRequestSent=System.nanoTime();
+		client=true;
+		LivenessSweeper.getInstance().watch(this);
 	}
 	
 	/**
-	 * callback to send new request
-	 */
-	public void sendAnotherRequest() {
-		if(stopped)return;
-		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
-			sendAnotherRequest();
-		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
+	 * Called by the sweeper to look at the link, sending a request or
+	 * timing out if either is due.
+	 * @param now as given by System.nanoTime()
+	 * @return when the link should next be looked at, as given by
+	 * System.nanoTime(), or -1 if it no longer needs to be
+	 */
+	long sweep(long now) {
+		if(stopped) return -1;
+		long received = endpoint.getLastReceived();
+		long keepAliveTimeout = keepAliveInterval+
+				TimeUnit.MILLISECONDS.toNanos(endpoint.getRequestTimeout());
+		if(now-received > keepAliveTimeout) {
+			// the manager may wait for the endpoint to close, which
+			// should not hold up the sweeper
+			Utils.getInstance().setTimeout(()->{
+				timedOut();
+			}, 0);
+			return -1;
+		}
+		long timeoutDue = received+keepAliveTimeout+1;
+		if(!client) return timeoutDue;
+		boolean idleOnly = endpoint.hasIdleKeepAlives();
+		long used = Math.min(received,endpoint.getLastSent());
+		if((!idleOnly || now-used >= keepAliveInterval) &&
+				now-timeRequestSent >= keepAliveInterval) {
+			timeRequestSent=now;
+			awaitingReply=!endpoint.hasKeepAliveIds();
+			sendRequest(new KeepAliveRequest());
+			used = Math.min(received,endpoint.getLastSent());
+		}
+		long requestDue = timeRequestSent+keepAliveInterval;
+		if(idleOnly) requestDue = Math.max(requestDue,used+keepAliveInterval);
+		if(awaitingReply && timeReplySeen-timeRequestSent<0) {
+			// the reply cannot be matched by id, so time the request out here
+			long replyTimeout = TimeUnit.MILLISECONDS.toNanos(endpoint.getRequestTimeout());
+			if(now-timeRequestSent > replyTimeout) {
+				Utils.getInstance().setTimeout(()->{
+					timedOut();
+				}, 0);
+				return -1;
+			}
+			timeoutDue = Math.min(timeoutDue,timeRequestSent+replyTimeout+1);
+		}
+		return Math.min(requestDue,timeoutDue);
 	}
-	
+
 	/**
-	 * callback to check for server timeout
+	 * Tell the manager that the other endpoint is not responding, once.
 	 */
-	public void checkServerTimeout(long timeSent) {
-		if(stopped)return;
-		if(timeout) {
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
-		}
+	private synchronized void timedOut() {
+		if(stopped) return;
+		// timeout :-(
+		stopProtocol();
+		manager.endpointTimedOut(endpoint,this);
 	}
 
 	/**
-	 * Send a keep alive request.
+	 * Send a keep alive request, timing out if no reply is received
+	 * within the request timeout of the endpoint. If the reply will not
+	 * carry the timeout id of the request, the sweeper times it out instead.
 	 * @param msg
 	 */
 	@Override
 	public void sendRequest(Message msg) {
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		endpoint.send(keepAliveRequest);
+		if(endpoint.hasKeepAliveIds()) {
+			endpoint.sendWithTimeout(keepAliveRequest,()->{
+				timedOut();
+			});
+		} else {
+			endpoint.send(keepAliveRequest);
+		}
 	}
 
 	/**
-	 * If we receive a keep alive reply, make a note of the time.
+	 * Note when the reply was received, in case it could not be matched
+	 * to its request by timeout id.
 	 * @param msg
 	 */
 	@Override
 	public void receiveReply(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		timeReplySeen = Instant.now().toEpochMilli();
+		timeReplySeen=System.nanoTime();
 	}
 
 	/**
-	 * Received a keep alive request so make a note of when that was.
+	 * Received a keep alive request so reply to it, with its timeout id if
+	 * agreed so that the other endpoint can tell how long it took.
 	 * @param msg
 	 */
 	@Override
 	public void receiveRequest(Message msg) {
-		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		timeRequestSeen = Instant.now().toEpochMilli();
-		sendReply(new KeepAliveReply());
+		if(endpoint.hasKeepAliveIds()) {
+			endpoint.sendAndCancelTimeout(new KeepAliveReply(),keepAliveRequest);
+		} else {
+			endpoint.send(new KeepAliveReply());
+		}
 	}
 
 	/**
@@ -33,4 +33,11 @@ public class KeepAliveRequest extends Message {
 		this.doc=doc;
 	}
 	
+	/**
+	 * Written before anything else.
+	 */
+	@Override
+	public Message.Priority getPriority() {
+		return Message.Priority.Control;
+	}
 }
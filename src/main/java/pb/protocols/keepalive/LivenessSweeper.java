@@ -0,0 +1,170 @@
+package pb.protocols.keepalive;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * A singleton that watches the links of every running keep alive protocol,
+ * so that there is one timeout scheduled for the whole system rather than
+ * several per connection. Endpoints note when they last received and sent a
+ * message, which costs them nothing more than writing a time, and the
+ * sweeper looks at each protocol only when it is next due: once a keep alive
+ * interval after the link was last used, or once a keep alive timeout after
+ * the other endpoint was last heard from.
+ * <br/>
+ * Protocols are kept in a ring of buckets, one for each {@link #sweepTick}
+ * milliseconds, in the bucket for the tick they are next due on. Every tick
+ * the sweeper takes the buckets that have come due and asks each protocol
+ * in them what it should do; the protocol answers with when it is next due,
+ * and is put back in that bucket. Traffic on a link simply moves the time the
+ * protocol answers with, so a busy link is looked at once per interval and
+ * never sends a keep alive. Protocols that have stopped are dropped the next
+ * time they come due. Links are checked up to one tick late.
+ *
+ * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+ * @see {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}
+ */
+public class LivenessSweeper {
+	private static Logger log = Logger.getLogger(LivenessSweeper.class.getName());
+	private static LivenessSweeper sweeper;
+
+	/**
+	 * Milliseconds per tick of the sweeper, can be set on the command line
+	 * with -Dpb.livenessTick=...
+	 */
+	private static final int sweepTick = Integer.getInteger("pb.livenessTick",1000);
+
+	/**
+	 * Number of buckets in the ring; protocols due further ahead than
+	 * one revolution wait in their bucket for the revolution to come round.
+	 */
+	private static final int buckets = 128;
+
+	/**
+	 * Protocols by the tick they are next due on, only used by the sweep.
+	 */
+	private final ArrayList<ArrayList<KeepAliveProtocol>> ring = new ArrayList<>(buckets);
+
+	/**
+	 * Protocols that have started since the last sweep.
+	 */
+	private final ConcurrentLinkedQueue<KeepAliveProtocol> arrivals = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Whether a sweep is scheduled.
+	 */
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	/**
+	 * When the sweeper started, as given by System.nanoTime().
+	 */
+	private final long start = System.nanoTime();
+
+	/**
+	 * The last tick that was swept, only used by the sweep.
+	 */
+	private long sweptTick = 0;
+
+	/**
+	 * Number of protocols in the ring, only used by the sweep.
+	 */
+	private volatile int watching = 0;
+
+	private LivenessSweeper() {
+		for(int i=0;i<buckets;i++) ring.add(new ArrayList<>());
+	}
+
+	public static synchronized LivenessSweeper getInstance() {
+		if(sweeper==null) sweeper=new LivenessSweeper();
+		return sweeper;
+	}
+
+	/**
+	 * Start watching the link of a protocol, until the protocol stops.
+	 * @param protocol
+	 */
+	public void watch(KeepAliveProtocol protocol) {
+		arrivals.add(protocol);
+		if(running.compareAndSet(false,true)) schedule();
+	}
+
+	/**
+	 * @return the number of protocols being watched, as of the last sweep
+	 */
+	public int getWatching() {
+		return watching;
+	}
+
+	private void schedule() {
+		Utils.getInstance().setTimeout(()->{
+			sweep();
+		}, sweepTick);
+	}
+
+	/**
+	 * @param time as given by System.nanoTime()
+	 * @return the tick that the time falls in
+	 */
+	private long tickOf(long time) {
+		return TimeUnit.NANOSECONDS.toMillis(time-start)/sweepTick;
+	}
+
+	/**
+	 * Put a protocol in the bucket for the tick it is next due on, or the
+	 * next tick if that has already been swept.
+	 * @param protocol
+	 * @param due as given by System.nanoTime(), or -1 to stop watching it
+	 */
+	private void place(KeepAliveProtocol protocol, long due) {
+		if(due==-1) return;
+		protocol.dueTick = Math.max(tickOf(due),sweptTick+1);
+		ring.get((int)(protocol.dueTick%buckets)).add(protocol);
+		watching++;
+	}
+
+	/**
+	 * Check the protocols in the buckets that have come due, then schedule
+	 * the next sweep unless there is nothing left to watch.
+	 */
+	private void sweep() {
+		long now = System.nanoTime();
+		long tick = tickOf(now);
+		ArrayList<KeepAliveProtocol> due = new ArrayList<>();
+		KeepAliveProtocol protocol;
+		while((protocol=arrivals.poll())!=null) due.add(protocol);
+		// if the sweep is late, take every bucket it missed, but each only once
+		long from = Math.max(sweptTick+1,tick-buckets+1);
+		for(long t=from;t<=tick;t++) {
+			ArrayList<KeepAliveProtocol> bucket = ring.get((int)(t%buckets));
+			for(int i=bucket.size()-1;i>=0;i--) {
+				KeepAliveProtocol p = bucket.get(i);
+				if(p.dueTick>tick) continue;
+				// swap remove, order within a bucket does not matter
+				bucket.set(i,bucket.get(bucket.size()-1));
+				bucket.remove(bucket.size()-1);
+				watching--;
+				due.add(p);
+			}
+		}
+		sweptTick=Math.max(sweptTick,tick);
+		for(KeepAliveProtocol p : due) {
+			try {
+				place(p,p.sweep(now));
+			} catch (RuntimeException e) {
+				log.warning("dropping keep alive that failed: "+e);
+			}
+		}
+		if(watching>0) {
+			schedule();
+			return;
+		}
+		running.set(false);
+		// a protocol may have arrived after the last look
+		if(!arrivals.isEmpty() && running.compareAndSet(false,true)) schedule();
+	}
+}
@@ -14,4 +14,23 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+	
+	/**
+	 * The other endpoint has asked to resume a session whose connection
+	 * dropped, which it may do if it has the resume token for it.
+	 * @param endpoint the new connection
+	 * @param sessionId
+	 * @param resumeToken
+	 * @return number of the last event received in the session, or -1 if
+	 * the session can not be resumed and a new one should be started
+	 */
+	public long resumeSession(Endpoint endpoint, String sessionId, String resumeToken);
+	
+	/**
+	 * The session has been resumed on a new connection, rather than started.
+	 * @param endpoint the new connection
+	 * @param receivedSeq number up to which the other endpoint received every
+	 * event in the session
+	 */
+	public void sessionResumed(Endpoint endpoint, long receivedSeq);
 }
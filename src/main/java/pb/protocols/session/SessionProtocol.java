@@ -1,11 +1,16 @@
 package pb.protocols.session;
 
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
+import pb.managers.endpoint.BinaryMessageCodec;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Framing;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.ProtocolRegistry;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +23,16 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * If both want to, the server gives the session an id and a resume token
+ * in the start reply. If the connection drops, the client can ask to resume
+ * the session on a new connection by giving them in the start request,
+ * within {@link pb.utils.Utils#getSessionResumeGrace()} milliseconds, in
+ * which case events that the other endpoint did not receive are sent again
+ * rather than the session starting afresh. The token is changed every
+ * time the session is resumed. A client that keeps its events across
+ * connections names its {@link pb.protocols.event.EventJournal} in the start
+ * request, so that events it sends again on a new session are passed on once.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -39,7 +54,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	public static final String protocolName="SessionProtocol";
 	
 	/**
-	 * Default request timeout
+	 * How long the server waits for the session start request.
 	 */
 	private int sessionTimeout = 40000;
 	
@@ -57,6 +72,28 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * Makes session ids and resume tokens.
+	 */
+	private static final SecureRandom random = new SecureRandom();
+	
+	/**
+	 * The session the client asks to resume, null to start a new session.
+	 */
+	private String resumeSessionId=null, resumeToken=null;
+	
+	/**
+	 * Number up to which the client received every event in the session
+	 * it asks to resume.
+	 */
+	private long resumeReceivedSeq=0;
+	
+	/**
+	 * The journal the client keeps its events in across connections,
+	 * null if it does not.
+	 */
+	private String journalId=null;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -86,6 +123,38 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 		stopped=true;
 	}
 	
+	/**
+	 * Ask to resume a session whose connection dropped rather than start
+	 * a new one, must be called before {@link #startAsClient()}.
+	 * @param sessionId
+	 * @param resumeToken
+	 * @param receivedSeq number up to which every event in the session was
+	 * received
+	 */
+	public void setResume(String sessionId, String resumeToken, long receivedSeq) {
+		resumeSessionId=sessionId;
+		this.resumeToken=resumeToken;
+		resumeReceivedSeq=receivedSeq;
+	}
+	
+	/**
+	 * Tell the server which journal the client keeps its events in across
+	 * connections, must be called before {@link #startAsClient()}.
+	 * @param journalId
+	 */
+	public void setJournalId(String journalId) {
+		this.journalId=journalId;
+	}
+	
+	/**
+	 * @return a new random session id or resume token
+	 */
+	private static String newSecret() {
+		byte[] secret = new byte[16];
+		random.nextBytes(secret);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+	}
+	
 	/*
 	 * Interface methods
 	 */
@@ -93,12 +162,34 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	/**
 	 * Called by the manager that is acting as a client. Timeout if
-	 * a response is not seen.
+	 * a response is not seen. The request offers to use length prefixed
+	 * framing, compression, message ids, the binary codec, cumulative
+	 * event acks, keep alive replies with timeout ids and keep alives only
+	 * on idle links for the rest of the session, and either to resume a
+	 * session or to make this one resumable if resuming sessions is turned on.
 	 */
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		Utils utils = Utils.getInstance();
+		SessionStartRequest request = new SessionStartRequest(Framing.Format.Length.toString(),
+				utils.getMaxFrameSize(),utils.getCompression().toString(),
+				utils.getCompressionThreshold());
+		if(utils.useMessageIds()) {
+			request.setMessageIds(ProtocolRegistry.getInstance().getFingerprint());
+			// binary messages are identified by their ids
+			if(BinaryMessageCodec.name.equals(utils.getCodec())) request.setCodec(BinaryMessageCodec.name);
+		}
+		request.setEventAcks(Endpoint.EventAcks.Cumulative.toString());
+		request.setKeepAliveIds();
+		request.setKeepAliveIdle();
+		if(resumeSessionId!=null) {
+			request.setResume(resumeSessionId,resumeToken,resumeReceivedSeq);
+		} else if(utils.getSessionResumeGrace()>0) {
+			request.setResumable();
+		}
+		if(journalId!=null) request.setJournalId(journalId);
+		sendRequest(request);
 	}
 
 	/**
@@ -122,7 +213,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	}
 	
 	/**
-	 * Just send a request, nothing special.
+	 * Just send a request, timing out if no reply is received within the
+	 * request timeout of the endpoint.
 	 * @param msg
 	 */
 	@Override
@@ -131,7 +223,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 			// the message timed out
 			if(!stopped)
 			manager.endpointTimedOut(endpoint, this);
-		},sessionTimeout);
+		});
 	}
 
 	/**
@@ -150,7 +242,40 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			SessionStartReply reply = (SessionStartReply) msg;
+			Framing.Format format = Framing.toFormat(reply.getFraming());
+			if(format!=null) {
+				// the server agreed to change framing
+				Framing.Compression compression = Framing.toCompression(reply.getCompression());
+				if(compression==null) compression=Framing.Compression.None;
+				endpoint.useFraming(format,(int)reply.getMaxFrameSize(),
+						compression,(int)reply.getCompressionThreshold());
+			}
+			if(reply.getMessageIds()!=0 &&
+					reply.getMessageIds()==ProtocolRegistry.getInstance().getFingerprint()) {
+				endpoint.useMessageIds();
+				if(format==Framing.Format.Length && BinaryMessageCodec.name.equals(reply.getCodec())) {
+					endpoint.useCodec(BinaryMessageCodec.instance);
+				}
+			}
+			if(Endpoint.EventAcks.Cumulative.toString().equals(reply.getEventAcks())) {
+				endpoint.useCumulativeAcks();
+			}
+			if(reply.isKeepAliveIds()) endpoint.useKeepAliveIds();
+			if(reply.isKeepAliveIdle()) endpoint.useIdleKeepAlives();
+			if(reply.getSessionId()!=null) {
+				endpoint.setSession(reply.getSessionId(),reply.getResumeToken());
+			}
+			if(reply.isResumed()) {
+				if(resumeSessionId==null || !resumeSessionId.equals(reply.getSessionId())) {
+					// error, resumed a session we did not ask for
+					manager.protocolViolation(endpoint,this);
+					return;
+				}
+				((ISessionProtocolHandler)manager).sessionResumed(endpoint,reply.getReceivedSeq());
+			} else {
+				((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			}
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
 				// error, received a second reply?
@@ -164,7 +289,18 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 
 	/**
 	 * If the received request is a session start request then reply and
-	 * tell the manager that the session has started. If the received request
+	 * tell the manager that the session has started. If the request offers
+	 * a frame format that we know then we agree to it in the reply, using
+	 * the smaller of the two maximum frame sizes, and change to it straight
+	 * after the reply is sent. Compression is used only if both of us want
+	 * it, with the larger of the two thresholds. Message ids are used if both
+	 * of us want them and have the same protocols registered, and then the
+	 * binary codec is used if both of us want it and length prefixed framing
+	 * was agreed. Cumulative event acks, keep alive replies with timeout
+	 * ids and keep alives only on idle links are agreed whenever they are
+	 * offered.
+	 * With cumulative acks the session is made resumable if both of us want
+	 * it, and a session is resumed if the manager agrees to it. If the received request
 	 * is a session stop request then reply and tell the manager that
 	 * the session has stopped. If something weird has happened then...
 	 * @param msg
@@ -178,8 +314,70 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
-			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
+			SessionStartRequest request = (SessionStartRequest) msg;
+			Utils utils = Utils.getInstance();
+			long fingerprint = ProtocolRegistry.getInstance().getFingerprint();
+			boolean messageIds = utils.useMessageIds() && request.getMessageIds()==fingerprint;
+			boolean cumulativeAcks = Endpoint.EventAcks.Cumulative.toString().equals(request.getEventAcks());
+			boolean keepAliveIds = request.isKeepAliveIds();
+			boolean keepAliveIdle = request.isKeepAliveIdle();
+			Framing.Format format = Framing.toFormat(request.getFraming());
+			boolean binary = false;
+			ISessionProtocolHandler handler = (ISessionProtocolHandler)manager;
+			String sessionId = null;
+			long resumedSeq = -1;
+			if(cumulativeAcks && request.isResumable() && utils.getSessionResumeGrace()>0) {
+				if(request.getSessionId()!=null) {
+					resumedSeq = handler.resumeSession(endpoint,request.getSessionId(),
+							request.getResumeToken());
+					if(resumedSeq>=0) sessionId=request.getSessionId();
+				}
+				if(sessionId==null) sessionId=newSecret();
+				endpoint.setSession(sessionId,newSecret());
+			}
+			// events sent again from the client's journal are only passed on once
+			if(cumulativeAcks) endpoint.setJournalId(request.getJournalId());
+			SessionStartReply reply;
+			if(format!=null && request.getMaxFrameSize()>0) {
+				int maxFrameSize = (int) Math.min(Math.min(request.getMaxFrameSize(),
+						utils.getMaxFrameSize()),Framing.maxLengthFrameSize);
+				Framing.Compression compression = Framing.toCompression(request.getCompression());
+				if(compression==null) compression=Framing.Compression.None;
+				if(compression!=utils.getCompression()) compression=Framing.Compression.None;
+				int compressionThreshold = (int) Math.max(request.getCompressionThreshold(),
+						utils.getCompressionThreshold());
+				reply = new SessionStartReply(format.toString(),maxFrameSize,
+						compression.toString(),compressionThreshold);
+				if(messageIds) reply.setMessageIds(fingerprint);
+				binary = messageIds && format==Framing.Format.Length &&
+						BinaryMessageCodec.name.equals(request.getCodec()) &&
+						BinaryMessageCodec.name.equals(utils.getCodec());
+				if(binary) reply.setCodec(BinaryMessageCodec.name);
+				if(cumulativeAcks) reply.setEventAcks(Endpoint.EventAcks.Cumulative.toString());
+				if(keepAliveIds) reply.setKeepAliveIds();
+				if(keepAliveIdle) reply.setKeepAliveIdle();
+				setSession(reply,resumedSeq);
+				endpoint.sendAndCancelTimeout(reply,msg);
+				endpoint.useFraming(format,maxFrameSize,compression,compressionThreshold);
+			} else {
+				reply = new SessionStartReply();
+				if(messageIds) reply.setMessageIds(fingerprint);
+				if(cumulativeAcks) reply.setEventAcks(Endpoint.EventAcks.Cumulative.toString());
+				if(keepAliveIds) reply.setKeepAliveIds();
+				if(keepAliveIdle) reply.setKeepAliveIdle();
+				setSession(reply,resumedSeq);
+				endpoint.sendAndCancelTimeout(reply,msg);
+			}
+			if(messageIds) endpoint.useMessageIds();
+			if(binary) endpoint.useCodec(BinaryMessageCodec.instance);
+			if(cumulativeAcks) endpoint.useCumulativeAcks();
+			if(keepAliveIds) endpoint.useKeepAliveIds();
+			if(keepAliveIdle) endpoint.useIdleKeepAlives();
+			if(resumedSeq>=0) {
+				handler.sessionResumed(endpoint,request.getReceivedSeq());
+			} else {
+				handler.sessionStarted(endpoint);
+			}
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
 				// error, received a second request?
@@ -193,6 +391,18 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 		
 	}
 
+	/**
+	 * Put the session of the endpoint in the start reply, if it can be resumed.
+	 * @param reply
+	 * @param resumedSeq number up to which every event in the resumed session
+	 * was received, or -1 if the session is new
+	 */
+	private void setSession(SessionStartReply reply, long resumedSeq) {
+		if(endpoint.getSessionId()==null) return;
+		reply.setSession(endpoint.getSessionId(),endpoint.getResumeToken());
+		if(resumedSeq>=0) reply.setResumed(resumedSeq);
+	}
+	
 	/**
 	 * Just send a reply, nothing special to do.
 	 * @param msg
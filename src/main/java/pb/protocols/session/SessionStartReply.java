@@ -21,6 +21,33 @@ public class SessionStartReply extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
 	
+	/**
+	 * Initialiser that also accepts a frame format to use for the rest
+	 * of the session.
+	 * @param framing name of the frame format
+	 * @param maxFrameSize largest message body, in bytes, agreed for both directions
+	 */
+	public SessionStartReply(String framing, long maxFrameSize) {
+		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		doc.append("framing", framing);
+		doc.append("maxFrameSize", maxFrameSize);
+	}
+	
+	/**
+	 * Initialiser that also accepts a frame format and compression to use for
+	 * the rest of the session.
+	 * @param framing name of the frame format
+	 * @param maxFrameSize largest message body, in bytes, agreed for both directions
+	 * @param compression name of the compression
+	 * @param compressionThreshold smallest message body, in bytes, that is compressed
+	 */
+	public SessionStartReply(String framing, long maxFrameSize, String compression,
+			long compressionThreshold) {
+		this(framing,maxFrameSize);
+		doc.append("compression", compression);
+		doc.append("compressionThreshold", compressionThreshold);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -29,7 +56,200 @@ public class SessionStartReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc);
+		// framing is optional, older endpoints do not send it
+		if(doc.containsKey("framing")) {
+			Message.validateStringType("framing", doc);
+			Message.validateLongType("maxFrameSize", doc);
+		}
+		// as is compression
+		if(doc.containsKey("compression")) {
+			Message.validateStringType("compression", doc);
+			Message.validateLongType("compressionThreshold", doc);
+		}
+		// and message ids
+		if(doc.containsKey("messageIds")) Message.validateLongType("messageIds", doc);
+		// and event acknowledgements
+		if(doc.containsKey("eventAcks")) Message.validateStringType("eventAcks", doc);
+		if(doc.containsKey("codec")) Message.validateStringType("codec", doc);
+		// and keep alives
+		if(doc.containsKey("keepAliveIds")) Message.validateBooleanType("keepAliveIds", doc);
+		if(doc.containsKey("keepAliveIdle")) Message.validateBooleanType("keepAliveIdle", doc);
+		// and resuming the session
+		if(doc.containsKey("sessionId")) {
+			Message.validateStringType("sessionId", doc);
+			Message.validateStringType("resumeToken", doc);
+		}
+		if(doc.containsKey("receivedSeq")) Message.validateLongType("receivedSeq", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return the name of the frame format, or null if none was given
+	 */
+	public String getFraming() {
+		if(!doc.containsKey("framing")) return null;
+		return doc.getString("framing");
+	}
+	
+	/**
+	 * @return the largest message body in the frame format, or 0 if
+	 * no frame format was given
+	 */
+	public long getMaxFrameSize() {
+		if(!doc.containsKey("maxFrameSize")) return 0;
+		return doc.getLong("maxFrameSize");
+	}
+	
+	/**
+	 * @return the name of the compression, or null if none was given
+	 */
+	public String getCompression() {
+		if(!doc.containsKey("compression")) return null;
+		return doc.getString("compression");
+	}
+	
+	/**
+	 * @return the smallest message body that is compressed, or 0 if
+	 * no compression was given
+	 */
+	public long getCompressionThreshold() {
+		if(!doc.containsKey("compressionThreshold")) return 0;
+		return doc.getLong("compressionThreshold");
+	}
+	
+	/**
+	 * Agree to identify messages by their compact ids for the rest of the session.
+	 * @param fingerprint the fingerprint of the protocol registry
+	 * @see {@link pb.protocols.ProtocolRegistry#getFingerprint()}
+	 */
+	public void setMessageIds(long fingerprint) {
+		doc.append("messageIds", fingerprint);
+	}
+	
+	/**
+	 * @return the fingerprint of the protocol registry if message ids were
+	 * agreed, or 0 if not
+	 */
+	public long getMessageIds() {
+		if(!doc.containsKey("messageIds")) return 0;
+		return doc.getLong("messageIds");
+	}
+	
+	/**
+	 * Agree to acknowledge events in the given way for the rest of the session.
+	 * @param eventAcks name of the way events are acknowledged
+	 * @see {@link pb.managers.endpoint.Endpoint.EventAcks}
+	 */
+	public void setEventAcks(String eventAcks) {
+		doc.append("eventAcks", eventAcks);
+	}
+	
+	/**
+	 * @return the name of the way events are acknowledged if it was
+	 * agreed, or null if not
+	 */
+	public String getEventAcks() {
+		if(!doc.containsKey("eventAcks")) return null;
+		return doc.getString("eventAcks");
+	}
+	
+	/**
+	 * Agree to encode messages with the given codec for the rest of the session.
+	 * @param codec name of the codec
+	 * @see {@link pb.managers.endpoint.MessageCodec}
+	 */
+	public void setCodec(String codec) {
+		doc.append("codec", codec);
+	}
+	
+	/**
+	 * @return the name of the codec if it was agreed, or null if not
+	 */
+	public String getCodec() {
+		if(!doc.containsKey("codec")) return null;
+		return doc.getString("codec");
+	}
+	
+	/**
+	 * Agree that keep alive replies carry the timeout id of their request.
+	 */
+	public void setKeepAliveIds() {
+		doc.append("keepAliveIds", true);
+	}
+	
+	/**
+	 * @return true if keep alive replies carry timeout ids
+	 */
+	public boolean isKeepAliveIds() {
+		return doc.containsKey("keepAliveIds") && doc.getBoolean("keepAliveIds");
+	}
+	
+	/**
+	 * Agree that any message counts as a sign of life, so that keep alive
+	 * requests are only sent on idle links.
+	 */
+	public void setKeepAliveIdle() {
+		doc.append("keepAliveIdle", true);
+	}
+	
+	/**
+	 * @return true if keep alive requests are only sent on idle links
+	 */
+	public boolean isKeepAliveIdle() {
+		return doc.containsKey("keepAliveIdle") && doc.getBoolean("keepAliveIdle");
+	}
+	
+	/**
+	 * Agree to keep the session for a while if the connection drops.
+	 * @param sessionId identifies the session
+	 * @param resumeToken must be given to resume the session, and is
+	 * only good until the session is next resumed
+	 */
+	public void setSession(String sessionId, String resumeToken) {
+		doc.append("sessionId", sessionId);
+		doc.append("resumeToken", resumeToken);
+	}
+	
+	/**
+	 * @return the id of the session if it can be resumed, or null if not
+	 */
+	public String getSessionId() {
+		if(!doc.containsKey("sessionId")) return null;
+		return doc.getString("sessionId");
+	}
+	
+	/**
+	 * @return the token to resume the session with, or null if it can not
+	 * be resumed
+	 */
+	public String getResumeToken() {
+		if(!doc.containsKey("resumeToken")) return null;
+		return doc.getString("resumeToken");
+	}
+	
+	/**
+	 * Say that the session asked for was resumed rather than a new one started.
+	 * @param receivedSeq number up to which every event in the session was
+	 * received
+	 */
+	public void setResumed(long receivedSeq) {
+		doc.append("receivedSeq", receivedSeq);
+	}
+	
+	/**
+	 * @return true if the session asked for was resumed
+	 */
+	public boolean isResumed() {
+		return doc.containsKey("receivedSeq");
+	}
+	
+	/**
+	 * @return number up to which every event in the resumed session was
+	 * received, or 0 if a new session was started
+	 */
+	public long getReceivedSeq() {
+		if(!doc.containsKey("receivedSeq")) return 0;
+		return doc.getLong("receivedSeq");
+	}
 }
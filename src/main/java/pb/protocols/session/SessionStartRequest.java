@@ -21,6 +21,33 @@ public class SessionStartRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser that also offers a frame format to use for the rest
+	 * of the session.
+	 * @param framing name of the frame format
+	 * @param maxFrameSize largest message body, in bytes, that can be received
+	 */
+	public SessionStartRequest(String framing, long maxFrameSize) {
+		super(name,SessionProtocol.protocolName,Message.Type.Request);
+		doc.append("framing", framing);
+		doc.append("maxFrameSize", maxFrameSize);
+	}
+	
+	/**
+	 * Initialiser that also offers a frame format and compression to use for
+	 * the rest of the session.
+	 * @param framing name of the frame format
+	 * @param maxFrameSize largest message body, in bytes, that can be received
+	 * @param compression name of the compression
+	 * @param compressionThreshold smallest message body, in bytes, that is compressed
+	 */
+	public SessionStartRequest(String framing, long maxFrameSize, String compression,
+			long compressionThreshold) {
+		this(framing,maxFrameSize);
+		doc.append("compression", compression);
+		doc.append("compressionThreshold", compressionThreshold);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -29,7 +56,235 @@ public class SessionStartRequest extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
+		super(name,SessionProtocol.protocolName,Message.Type.Request,doc);
+		// framing is optional, older endpoints do not send it
+		if(doc.containsKey("framing")) {
+			Message.validateStringType("framing", doc);
+			Message.validateLongType("maxFrameSize", doc);
+		}
+		// as is compression
+		if(doc.containsKey("compression")) {
+			Message.validateStringType("compression", doc);
+			Message.validateLongType("compressionThreshold", doc);
+		}
+		// and message ids
+		if(doc.containsKey("messageIds")) Message.validateLongType("messageIds", doc);
+		// and event acknowledgements
+		if(doc.containsKey("eventAcks")) Message.validateStringType("eventAcks", doc);
+		if(doc.containsKey("codec")) Message.validateStringType("codec", doc);
+		// and keep alives
+		if(doc.containsKey("keepAliveIds")) Message.validateBooleanType("keepAliveIds", doc);
+		if(doc.containsKey("keepAliveIdle")) Message.validateBooleanType("keepAliveIdle", doc);
+		// and resuming a session
+		if(doc.containsKey("resumable")) Message.validateBooleanType("resumable", doc);
+		if(doc.containsKey("sessionId")) {
+			Message.validateStringType("sessionId", doc);
+			Message.validateStringType("resumeToken", doc);
+			Message.validateLongType("receivedSeq", doc);
+		}
+		// and the journal of the events the client keeps across connections
+		if(doc.containsKey("journalId")) Message.validateStringType("journalId", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return the name of the frame format, or null if none was given
+	 */
+	public String getFraming() {
+		if(!doc.containsKey("framing")) return null;
+		return doc.getString("framing");
+	}
+	
+	/**
+	 * @return the largest message body in the frame format, or 0 if
+	 * no frame format was given
+	 */
+	public long getMaxFrameSize() {
+		if(!doc.containsKey("maxFrameSize")) return 0;
+		return doc.getLong("maxFrameSize");
+	}
+	
+	/**
+	 * @return the name of the compression, or null if none was given
+	 */
+	public String getCompression() {
+		if(!doc.containsKey("compression")) return null;
+		return doc.getString("compression");
+	}
+	
+	/**
+	 * @return the smallest message body that is compressed, or 0 if
+	 * no compression was given
+	 */
+	public long getCompressionThreshold() {
+		if(!doc.containsKey("compressionThreshold")) return 0;
+		return doc.getLong("compressionThreshold");
+	}
+	
+	/**
+	 * Offer to identify messages by their compact ids for the rest of the session.
+	 * @param fingerprint the fingerprint of the protocol registry
+	 * @see {@link pb.protocols.ProtocolRegistry#getFingerprint()}
+	 */
+	public void setMessageIds(long fingerprint) {
+		doc.append("messageIds", fingerprint);
+	}
+	
+	/**
+	 * @return the fingerprint of the protocol registry if message ids were
+	 * offered, or 0 if not
+	 */
+	public long getMessageIds() {
+		if(!doc.containsKey("messageIds")) return 0;
+		return doc.getLong("messageIds");
+	}
+	
+	/**
+	 * Offer to acknowledge events in the given way for the rest of the session.
+	 * @param eventAcks name of the way events are acknowledged
+	 * @see {@link pb.managers.endpoint.Endpoint.EventAcks}
+	 */
+	public void setEventAcks(String eventAcks) {
+		doc.append("eventAcks", eventAcks);
+	}
+	
+	/**
+	 * @return the name of the way events are acknowledged if it was
+	 * offered, or null if not
+	 */
+	public String getEventAcks() {
+		if(!doc.containsKey("eventAcks")) return null;
+		return doc.getString("eventAcks");
+	}
+	
+	/**
+	 * Offer to encode messages with the given codec for the rest of the session.
+	 * @param codec name of the codec
+	 * @see {@link pb.managers.endpoint.MessageCodec}
+	 */
+	public void setCodec(String codec) {
+		doc.append("codec", codec);
+	}
+	
+	/**
+	 * @return the name of the codec if it was offered, or null if not
+	 */
+	public String getCodec() {
+		if(!doc.containsKey("codec")) return null;
+		return doc.getString("codec");
+	}
+	
+	/**
+	 * Ask for keep alive replies to carry the timeout id of their request,
+	 * so that each reply can be matched to its request.
+	 */
+	public void setKeepAliveIds() {
+		doc.append("keepAliveIds", true);
+	}
+	
+	/**
+	 * @return true if keep alive replies with timeout ids were asked for
+	 */
+	public boolean isKeepAliveIds() {
+		return doc.containsKey("keepAliveIds") && doc.getBoolean("keepAliveIds");
+	}
+	
+	/**
+	 * Ask for any message to count as a sign of life, so that keep alive
+	 * requests are only sent on idle links.
+	 */
+	public void setKeepAliveIdle() {
+		doc.append("keepAliveIdle", true);
+	}
+	
+	/**
+	 * @return true if keep alive requests only on idle links were asked for
+	 */
+	public boolean isKeepAliveIdle() {
+		return doc.containsKey("keepAliveIdle") && doc.getBoolean("keepAliveIdle");
+	}
+	
+	/**
+	 * Offer to keep the session for a while if the connection drops, so
+	 * that it can be resumed.
+	 */
+	public void setResumable() {
+		doc.append("resumable", true);
+	}
+	
+	/**
+	 * @return true if keeping the session was offered, either for a new
+	 * session or by asking to resume one
+	 */
+	public boolean isResumable() {
+		return (doc.containsKey("resumable") && doc.getBoolean("resumable")) ||
+				doc.containsKey("sessionId");
+	}
+	
+	/**
+	 * Ask to resume a session whose connection dropped, rather than start
+	 * a new one.
+	 * @param sessionId the id of the session given by its start reply
+	 * @param resumeToken the resume token given by its start reply
+	 * @param receivedSeq number up to which every event in the session was
+	 * received
+	 */
+	public void setResume(String sessionId, String resumeToken, long receivedSeq) {
+		doc.append("sessionId", sessionId);
+		doc.append("resumeToken", resumeToken);
+		doc.append("receivedSeq", receivedSeq);
+	}
+	
+	/**
+	 * @return the id of the session to resume, or null if a new session
+	 * is wanted
+	 */
+	public String getSessionId() {
+		if(!doc.containsKey("sessionId")) return null;
+		return doc.getString("sessionId");
+	}
+	
+	/**
+	 * @return the resume token of the session to resume, or null if a new
+	 * session is wanted
+	 */
+	public String getResumeToken() {
+		if(!doc.containsKey("resumeToken")) return null;
+		return doc.getString("resumeToken");
+	}
+	
+	/**
+	 * @return number up to which every event in the session to resume was
+	 * received, or 0 if a new session is wanted
+	 */
+	public long getReceivedSeq() {
+		if(!doc.containsKey("receivedSeq")) return 0;
+		return doc.getLong("receivedSeq");
+	}
+	
+	/**
+	 * Say which journal the client keeps its events in across connections,
+	 * so that events sent again on a new session are only passed on once.
+	 * @param journalId
+	 */
+	public void setJournalId(String journalId) {
+		doc.append("journalId", journalId);
+	}
+	
+	/**
+	 * @return the id of the journal the client keeps its events in, or null
+	 * if it does not keep them across connections
+	 */
+	public String getJournalId() {
+		if(!doc.containsKey("journalId")) return null;
+		return doc.getString("journalId");
+	}
+	
+	/**
+	 * Written before anything else.
+	 */
+	@Override
+	public Message.Priority getPriority() {
+		return Message.Priority.Control;
+	}
 }
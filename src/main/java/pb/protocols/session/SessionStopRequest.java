@@ -32,4 +32,12 @@ public class SessionStopRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
 		this.doc=doc;
 	}
+	
+	/**
+	 * Written before anything else.
+	 */
+	@Override
+	public Message.Priority getPriority() {
+		return Message.Priority.Control;
+	}
 }
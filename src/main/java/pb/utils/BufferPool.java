@@ -0,0 +1,237 @@
+package pb.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of byte buffers, so that sending and receiving messages does not
+ * have to allocate a new buffer each time. Buffers come in size classes that
+ * are powers of two, from {@link #minSize} to {@link #maxSize}; asking for a
+ * buffer gives one of the smallest class that fits. Larger buffers are not
+ * pooled. There are two arenas: direct buffers, for channels which would
+ * otherwise copy heap buffers into direct buffers of their own, and heap
+ * buffers, for streams which can only write arrays.
+ * <br/>
+ * Each platform thread keeps a few buffers of each class to itself so that
+ * most acquires and releases do not touch shared state. Virtual threads are
+ * too many and too short lived to be worth caching for, so they use the
+ * shared lists directly. Like {@link pb.utils.Utils}, it must be accessed
+ * statically as BufferPool.getInstance()...
+ * <br/>
+ * A released buffer must not be used again by whoever released it.
+ *
+ */
+public class BufferPool {
+	private static BufferPool bufferPool;
+
+	/**
+	 * Smallest size class.
+	 */
+	public static final int minSize = 256;
+
+	/**
+	 * Largest size class.
+	 */
+	public static final int maxSize = 64*1024;
+
+	/**
+	 * Number of size classes.
+	 */
+	private static final int numClasses = Integer.numberOfTrailingZeros(maxSize)-
+			Integer.numberOfTrailingZeros(minSize)+1;
+
+	/**
+	 * Most buffers of each class a thread keeps to itself.
+	 */
+	private static final int threadCacheSize = 8;
+
+	/**
+	 * Most bytes of each class kept in the shared lists of an arena.
+	 */
+	private static final int sharedBytesPerClass = 1024*1024;
+
+	/**
+	 * Acquires that were given a pooled buffer.
+	 */
+	private final LongAdder hits = new LongAdder();
+
+	/**
+	 * Acquires that had to allocate a buffer.
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * The arena of direct buffers.
+	 */
+	private final Arena direct = new Arena(true);
+
+	/**
+	 * The arena of heap buffers.
+	 */
+	private final Arena heap = new Arena(false);
+
+	public static synchronized BufferPool getInstance() {
+		if(bufferPool==null) bufferPool=new BufferPool();
+		return bufferPool;
+	}
+
+	/**
+	 * Get a direct buffer.
+	 * @param size the number of bytes needed
+	 * @return a buffer with position 0 and limit size
+	 */
+	public ByteBuffer acquireDirect(int size) {
+		return direct.acquire(size);
+	}
+
+	/**
+	 * Get a heap buffer, which always has an accessible array.
+	 * @param size the number of bytes needed
+	 * @return a buffer with position 0 and limit size
+	 */
+	public ByteBuffer acquireHeap(int size) {
+		return heap.acquire(size);
+	}
+
+	/**
+	 * Get a direct or a heap buffer.
+	 * @param size the number of bytes needed
+	 * @param direct true for a direct buffer
+	 * @return a buffer with position 0 and limit size
+	 */
+	public ByteBuffer acquire(int size, boolean direct) {
+		return direct ? acquireDirect(size) : acquireHeap(size);
+	}
+
+	/**
+	 * Give a buffer back to the pool. Buffers that are not the size of a
+	 * class, or are slices of another buffer, are left to the garbage collector.
+	 * @param buffer may be null
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer==null || buffer.isReadOnly()) return;
+		if(buffer.hasArray() && (buffer.arrayOffset()!=0 ||
+				buffer.array().length!=buffer.capacity())) return;
+		(buffer.isDirect() ? direct : heap).release(buffer);
+	}
+
+	/**
+	 * @return the number of acquires that were given a pooled buffer
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of acquires that had to allocate a buffer
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @param size
+	 * @return the index of the smallest class that fits size, or -1 if
+	 * it is larger than any class
+	 */
+	private static int classOf(int size) {
+		if(size<=minSize) return 0;
+		if(size>maxSize) return -1;
+		return 32-Integer.numberOfLeadingZeros(size-1)-Integer.numberOfTrailingZeros(minSize);
+	}
+
+	/**
+	 * Buffers of one kind, direct or heap.
+	 */
+	private class Arena {
+		private final boolean isDirect;
+
+		/**
+		 * Buffers shared by all threads, per class.
+		 */
+		private final List<ConcurrentLinkedQueue<ByteBuffer>> shared;
+
+		/**
+		 * Number of buffers in each of the shared lists, which is slow
+		 * to count otherwise.
+		 */
+		private final AtomicInteger[] sharedCounts;
+
+		/**
+		 * Buffers kept by each thread, per class.
+		 */
+		private final ThreadLocal<ByteBuffer[][]> cache;
+
+		/**
+		 * Number of buffers kept by each thread, per class.
+		 */
+		private final ThreadLocal<int[]> cacheCounts;
+
+		Arena(boolean isDirect) {
+			this.isDirect=isDirect;
+			shared = new ArrayList<>(numClasses);
+			sharedCounts = new AtomicInteger[numClasses];
+			for(int i=0;i<numClasses;i++) {
+				shared.add(new ConcurrentLinkedQueue<>());
+				sharedCounts[i]=new AtomicInteger();
+			}
+			cache = ThreadLocal.withInitial(()->new ByteBuffer[numClasses][threadCacheSize]);
+			cacheCounts = ThreadLocal.withInitial(()->new int[numClasses]);
+		}
+
+		ByteBuffer acquire(int size) {
+			int c = classOf(size);
+			if(c==-1) {
+				misses.increment();
+				return allocate(size);
+			}
+			ByteBuffer buffer=null;
+			if(!Thread.currentThread().isVirtual()) {
+				int[] counts = cacheCounts.get();
+				if(counts[c]>0) {
+					ByteBuffer[] cached = cache.get()[c];
+					buffer=cached[--counts[c]];
+					cached[counts[c]]=null;
+				}
+			}
+			if(buffer==null) {
+				buffer=shared.get(c).poll();
+				if(buffer!=null) sharedCounts[c].decrementAndGet();
+			}
+			if(buffer==null) {
+				misses.increment();
+				buffer=allocate(minSize<<c);
+			} else {
+				hits.increment();
+				buffer.clear();
+			}
+			buffer.limit(size);
+			return buffer;
+		}
+
+		void release(ByteBuffer buffer) {
+			int c = classOf(buffer.capacity());
+			if(c==-1 || buffer.capacity()!=minSize<<c) return;
+			if(!Thread.currentThread().isVirtual()) {
+				int[] counts = cacheCounts.get();
+				if(counts[c]<threadCacheSize) {
+					cache.get()[c][counts[c]++]=buffer;
+					return;
+				}
+			}
+			if(sharedCounts[c].incrementAndGet()*(long)(minSize<<c)>sharedBytesPerClass) {
+				sharedCounts[c].decrementAndGet();
+				return;
+			}
+			shared.get(c).add(buffer);
+		}
+
+		private ByteBuffer allocate(int capacity) {
+			return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+	}
+}
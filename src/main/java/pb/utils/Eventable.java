@@ -1,32 +1,93 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
+import pb.protocols.event.IWildcardCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. It has no thread of its own, see
+ * {@link pb.utils.ThreadedEventable} for that.
+ * <br/>
+ * The callbacks for each event are kept in an array that is never changed;
+ * adding or removing a callback swaps in a new array. Emitting an event
+ * therefore takes no lock, and no lock is held while the callbacks run, so
+ * callbacks can emit, add and remove callbacks freely, from any thread.
+ * A callback that is added or removed while an event is being emitted may
+ * or may not receive that event.
  * @author aaron
  *
  */
-public class Eventable extends Thread {
+public class Eventable {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
 	
+	private static final IWildcardCallback[] noWildcards = new IWildcardCallback[0];
+	
+	/**
+	 * A callback that has been added, which can be removed again.
+	 */
+	public static final class Subscription {
+		private final Eventable eventable;
+		private final String eventName;
+		private final IEventCallback callback;
+		private final IWildcardCallback wildcard;
+		
+		private Subscription(Eventable eventable, String eventName,
+				IEventCallback callback, IWildcardCallback wildcard) {
+			this.eventable=eventable;
+			this.eventName=eventName;
+			this.callback=callback;
+			this.wildcard=wildcard;
+		}
+		
+		/**
+		 * Remove the callback.
+		 * @return true if it was removed, false if it had already been
+		 */
+		public boolean off() {
+			if(wildcard!=null) return eventable.offAny(wildcard);
+			return eventable.off(eventName,callback);
+		}
+	}
+	
+	/**
+	 * Adapts a callback added for "*", which expects the event name as its
+	 * first argument.
+	 */
+	private static final class WildcardAdapter implements IWildcardCallback {
+		private final IEventCallback callback;
+		
+		WildcardAdapter(IEventCallback callback) {
+			this.callback=callback;
+		}
+		
+		@Override
+		public void callback(String eventName, Object... args) {
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args,0,newargs,1,args.length);
+			callback.callback(newargs);
+		}
+	}
+	
 	/**
 	 * Event callbacks
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
+	private final ConcurrentHashMap<String,IEventCallback[]> callbacks;
+	
+	/**
+	 * Callbacks for all events
+	 */
+	private final AtomicReference<IWildcardCallback[]> wildcards;
 	
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=new ConcurrentHashMap<>();
+		wildcards=new AtomicReference<>(noWildcards);
 	}
 	
 	/**
@@ -37,18 +98,13 @@ public class Eventable extends Thread {
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
-				callback.callback(newargs);
-			});
-			hit=true;
+		IWildcardCallback[] any=wildcards.get();
+		for(IWildcardCallback callback : any) {
+			callback.callback(eventName,args);
 		}
+		if(any.length>0) hit=true;
 		if(localEmit(eventName,args)) hit=true;
 		if(!hit)log.warning("no callbacks for event: "+eventName);
 		return hit;
@@ -61,29 +117,128 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
-			hit=true;
+	public boolean localEmit(String eventName, Object... args) {
+		IEventCallback[] list=callbacks.get(eventName);
+		if(list==null) return false;
+		for(IEventCallback callback : list) {
+			callback.callback(args);
 		}
-		return hit;
+		return true;
 	}
 	
 	/**
 	 * Add a new callback for an event. The special event name "*" is used
-	 * for callbacks that want to receive all events.
+	 * for callbacks that want to receive all events, with the event name
+	 * as the first argument; {@link #onAny(IWildcardCallback)} does the same
+	 * without copying the arguments.
 	 * @param eventName event name
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
+	public Eventable on(String eventName, IEventCallback callback) {
+		subscribe(eventName,callback);
+		return this;
+	}
+	
+	/**
+	 * Add a new callback for an event, as for {@link #on(String, IEventCallback)}.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return the subscription, to remove the callback with
+	 */
+	public Subscription subscribe(String eventName, IEventCallback callback) {
+		if(eventName.equals("*")) {
+			return subscribeAny(new WildcardAdapter(callback));
 		}
-		callbacks.get(eventName).add(callback);
+		callbacks.compute(eventName,(name,list)->{
+			if(list==null) return new IEventCallback[] {callback};
+			IEventCallback[] newList=new IEventCallback[list.length+1];
+			System.arraycopy(list,0,newList,0,list.length);
+			newList[list.length]=callback;
+			return newList;
+		});
+		return new Subscription(this,eventName,callback,null);
+	}
+	
+	/**
+	 * Add a new callback for all events.
+	 * @param callback callback to handle events
+	 * @return this event handler for chaining
+	 */
+	public Eventable onAny(IWildcardCallback callback) {
+		subscribeAny(callback);
 		return this;
 	}
+	
+	/**
+	 * Add a new callback for all events.
+	 * @param callback callback to handle events
+	 * @return the subscription, to remove the callback with
+	 */
+	public Subscription subscribeAny(IWildcardCallback callback) {
+		wildcards.updateAndGet((list)->{
+			IWildcardCallback[] newList=new IWildcardCallback[list.length+1];
+			System.arraycopy(list,0,newList,0,list.length);
+			newList[list.length]=callback;
+			return newList;
+		});
+		return new Subscription(this,"*",null,callback);
+	}
+	
+	/**
+	 * Remove a callback for an event. If it was added more than once then
+	 * only one is removed.
+	 * @param eventName event name, "*" for a callback added for all events
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed
+	 */
+	public boolean off(String eventName, IEventCallback callback) {
+		if(eventName.equals("*")) {
+			IWildcardCallback[] list=wildcards.get();
+			for(IWildcardCallback wildcard : list) {
+				if(wildcard instanceof WildcardAdapter &&
+						((WildcardAdapter)wildcard).callback==callback) {
+					return offAny(wildcard);
+				}
+			}
+			return false;
+		}
+		boolean[] removed=new boolean[1];
+		callbacks.computeIfPresent(eventName,(name,list)->{
+			int i=indexOf(list,callback);
+			if(i==-1) return list;
+			removed[0]=true;
+			if(list.length==1) return null;
+			IEventCallback[] newList=new IEventCallback[list.length-1];
+			System.arraycopy(list,0,newList,0,i);
+			System.arraycopy(list,i+1,newList,i,list.length-i-1);
+			return newList;
+		});
+		return removed[0];
+	}
+	
+	/**
+	 * Remove a callback for all events.
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed
+	 */
+	public boolean offAny(IWildcardCallback callback) {
+		while(true) {
+			IWildcardCallback[] list=wildcards.get();
+			int i=indexOf(list,callback);
+			if(i==-1) return false;
+			IWildcardCallback[] newList=list.length==1 ? noWildcards :
+				new IWildcardCallback[list.length-1];
+			System.arraycopy(list,0,newList,0,i);
+			System.arraycopy(list,i+1,newList,i,list.length-i-1);
+			if(wildcards.compareAndSet(list,newList)) return true;
+		}
+	}
+	
+	private static int indexOf(Object[] list, Object callback) {
+		for(int i=0;i<list.length;i++) {
+			if(list[i]==callback) return i;
+		}
+		return -1;
+	}
 }
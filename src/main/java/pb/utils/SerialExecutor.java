@@ -0,0 +1,128 @@
+package pb.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time, in the order they were given, using the threads
+ * of a shared executor. Any number of serial executors can share the same
+ * executor; each only ever has one task running on it at a time, and gives
+ * its thread back after a batch of tasks so that others get a turn.
+ *
+ */
+public class SerialExecutor implements Executor {
+	private static Logger log = Logger.getLogger(SerialExecutor.class.getName());
+
+	/**
+	 * Most tasks run before giving the thread back.
+	 */
+	private static final int batchSize = 64;
+
+	private final Executor executor;
+
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Whether a batch is on the executor, or about to be.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * Number of tasks waiting to run.
+	 */
+	private final AtomicInteger depth = new AtomicInteger();
+
+	/**
+	 * Most tasks that have been waiting at once.
+	 */
+	private volatile int maxDepth=0;
+
+	/**
+	 * Number of tasks run.
+	 */
+	private final LongAdder completed = new LongAdder();
+
+	/**
+	 * @param executor the shared executor to run the tasks on
+	 */
+	public SerialExecutor(Executor executor) {
+		this.executor=executor;
+	}
+
+	/**
+	 * Run the task after all of those given before it.
+	 * @param task
+	 * @throws RejectedExecutionException if the shared executor will not run
+	 * it, in which case the task is not kept
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		int d = depth.incrementAndGet();
+		if(d>maxDepth) maxDepth=d; // close enough
+		try {
+			schedule();
+		} catch (RejectedExecutionException e) {
+			// nothing is running the tasks, so it is still queued
+			if(tasks.remove(task)) depth.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private void schedule() {
+		if(!scheduled.compareAndSet(false,true)) return;
+		try {
+			executor.execute(()->{
+				runBatch();
+			});
+		} catch (RejectedExecutionException e) {
+			scheduled.set(false);
+			throw e;
+		}
+	}
+
+	private void runBatch() {
+		try {
+			Runnable task;
+			for(int i=0;i<batchSize && (task=tasks.poll())!=null;i++) {
+				depth.decrementAndGet();
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.warning("task failed: "+e);
+				}
+				completed.increment();
+			}
+		} finally {
+			scheduled.set(false);
+			// more may have arrived after the last poll
+			if(!tasks.isEmpty()) schedule();
+		}
+	}
+
+	/**
+	 * @return the number of tasks waiting to run
+	 */
+	public int getDepth() {
+		return depth.get();
+	}
+
+	/**
+	 * @return the most tasks that have been waiting to run at once
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return the number of tasks that have been run
+	 */
+	public long getCompleted() {
+		return completed.sum();
+	}
+}
@@ -0,0 +1,141 @@
+package pb.utils;
+
+/**
+ * An eventable object that runs its {@link #run()} method on a thread of its
+ * own once {@link #start()} is called. The thread is either a platform thread
+ * or, if {@link #setVirtual(boolean)} was given true, a virtual thread. The
+ * methods mirror those of {@link java.lang.Thread} so that subclasses can
+ * be written in the same blocking style as before, e.g. looping
+ * until {@link #isInterrupted()}.
+ * <br/>
+ * Note that virtual threads never prevent the JVM from exiting, so something
+ * should {@link #join()} with them.
+ *
+ * @see {@link pb.utils.Utils#useVirtualThreads()}
+ */
+public class ThreadedEventable extends Eventable implements Runnable {
+
+	/**
+	 * Name to give the thread.
+	 */
+	private String name="ThreadedEventable";
+
+	/**
+	 * Whether to start a virtual thread.
+	 */
+	private boolean virtual=false;
+
+	/**
+	 * The thread, null until started.
+	 */
+	private volatile Thread thread;
+
+	/**
+	 * Run on a platform thread unless told otherwise.
+	 */
+	public ThreadedEventable() {
+	}
+
+	/**
+	 * For subclasses to set up the thread without calling overridable
+	 * methods from their constructors.
+	 * @param name the name to give the thread when it is started
+	 * @param virtual true to run on a virtual thread, false for a platform thread
+	 */
+	protected ThreadedEventable(String name, boolean virtual) {
+		this.name=name;
+		this.virtual=virtual;
+	}
+
+	/**
+	 * @param name the name to give the thread when it is started
+	 */
+	public final void setName(String name) {
+		this.name=name;
+	}
+
+	/**
+	 * @return the name of the thread
+	 */
+	public final String getName() {
+		return name;
+	}
+
+	/**
+	 * @param virtual true to run on a virtual thread, false for a platform thread,
+	 * has no effect once started
+	 */
+	public final void setVirtual(boolean virtual) {
+		this.virtual=virtual;
+	}
+
+	/**
+	 * @return true if this runs, or will run, on a virtual thread
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Start a new thread that calls {@link #run()}.
+	 * @throws IllegalThreadStateException if already started
+	 */
+	public synchronized void start() {
+		if(thread!=null) throw new IllegalThreadStateException();
+		thread = startThread(name,this);
+	}
+	
+	/**
+	 * Start a helper thread of the same kind, virtual or platform, as
+	 * this object's own thread.
+	 * @param name the name to give the thread
+	 * @param runnable what the thread should do
+	 * @return the started thread
+	 */
+	protected Thread startThread(String name, Runnable runnable) {
+		Thread.Builder builder = virtual ? Thread.ofVirtual() : Thread.ofPlatform();
+		return builder.name(name).start(runnable);
+	}
+
+	/**
+	 * Override this to do the work of the thread.
+	 */
+	@Override
+	public void run() {
+
+	}
+
+	/**
+	 * Wait for the thread to terminate, returns immediately if it was
+	 * never started.
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		Thread t = thread;
+		if(t!=null) t.join();
+	}
+
+	/**
+	 * Interrupt the thread, has no effect if it was never started.
+	 */
+	public void interrupt() {
+		Thread t = thread;
+		if(t!=null) t.interrupt();
+	}
+
+	/**
+	 * @return true if the thread has been interrupted
+	 */
+	public boolean isInterrupted() {
+		Thread t = thread;
+		return t!=null && t.isInterrupted();
+	}
+
+	/**
+	 * @return true if the thread has started and not yet terminated
+	 */
+	public boolean isAlive() {
+		Thread t = thread;
+		return t!=null && t.isAlive();
+	}
+}
@@ -0,0 +1,326 @@
+package pb.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A hashed timing wheel, which schedules callbacks after a delay. Time is
+ * divided into ticks and the wheel has a bucket for each tick of one
+ * revolution; a timeout goes in the bucket for the tick it expires on,
+ * together with the number of whole revolutions still to wait. Scheduling and
+ * cancelling are O(1) and do not lock: both are handed to the tick thread
+ * through queues, and the tick thread only ever looks at the one bucket for
+ * the current tick. Timeouts expire up to one tick late. While the wheel is
+ * empty the tick thread parks rather than ticking, until a timeout is scheduled.
+ * <br/>
+ * The tick thread does not run the callbacks itself. They are handed to an
+ * executor, so that a slow callback can not hold up other timeouts. Callbacks
+ * may therefore run at the same time as each other.
+ *
+ * @see {@link pb.utils.Utils#setTimeout(ICallback, long)}
+ */
+public class TimingWheel {
+	private static Logger log = Logger.getLogger(TimingWheel.class.getName());
+
+	/**
+	 * A scheduled callback, which can be cancelled.
+	 */
+	public static final class Timeout {
+		private static final int waiting=0, cancelled=1, expired=2;
+
+		private final TimingWheel wheel;
+		private final ICallback callback;
+
+		/**
+		 * Nanoseconds from the start of the wheel.
+		 */
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(waiting);
+
+		/**
+		 * Revolutions still to wait, only used by the tick thread.
+		 */
+		private long remainingRounds;
+
+		/**
+		 * The bucket, and neighbours in it, only used by the tick thread.
+		 */
+		private Bucket bucket;
+		private Timeout next, prev;
+
+		Timeout(TimingWheel wheel, ICallback callback, long deadline) {
+			this.wheel=wheel;
+			this.callback=callback;
+			this.deadline=deadline;
+		}
+
+		/**
+		 * Stop the callback from being called, if it has not already been.
+		 * @return true if cancelled, false if it has expired or was already
+		 * cancelled
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(waiting,cancelled)) return false;
+			wheel.cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * @return true if it was cancelled
+		 */
+		public boolean isCancelled() {
+			return state.get()==cancelled;
+		}
+
+		/**
+		 * @return true if the callback has been handed to the executor
+		 */
+		public boolean isExpired() {
+			return state.get()==expired;
+		}
+
+		private void expire() {
+			if(!state.compareAndSet(waiting,expired)) return;
+			try {
+				wheel.executor.execute(()->{
+					try {
+						callback.callback();
+					} catch (RuntimeException e) {
+						log.warning("timeout callback failed: "+e);
+					}
+				});
+			} catch (RuntimeException e) {
+				log.warning("timeout callback could not be run: "+e);
+			}
+		}
+	}
+
+	/**
+	 * The timeouts that expire on a tick of the wheel, only used by the tick thread.
+	 */
+	private static final class Bucket {
+		private Timeout head, tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket=this;
+			if(head==null) {
+				head=tail=timeout;
+			} else {
+				tail.next=timeout;
+				timeout.prev=tail;
+				tail=timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if(timeout.prev!=null) timeout.prev.next=timeout.next;
+			if(timeout.next!=null) timeout.next.prev=timeout.prev;
+			if(timeout==head) head=timeout.next;
+			if(timeout==tail) tail=timeout.prev;
+			timeout.prev=timeout.next=null;
+			timeout.bucket=null;
+		}
+
+		/**
+		 * Expire every timeout that is due by the deadline, and count down
+		 * the revolutions of the rest.
+		 * @return the number of timeouts taken out of the bucket
+		 */
+		int expire(long deadline) {
+			int removed=0;
+			Timeout timeout=head;
+			while(timeout!=null) {
+				Timeout next=timeout.next;
+				if(timeout.remainingRounds<=0 && timeout.deadline<=deadline) {
+					remove(timeout);
+					timeout.expire();
+					removed++;
+				} else if(timeout.isCancelled()) {
+					remove(timeout);
+					removed++;
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout=next;
+			}
+			return removed;
+		}
+	}
+
+	/**
+	 * Most newly scheduled timeouts put in buckets per tick, so that a burst
+	 * of scheduling can not stop the wheel from turning.
+	 */
+	private static final int maxTransferPerTick = 100000;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	/**
+	 * Timeouts scheduled but not yet put in a bucket.
+	 */
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Timeouts cancelled but not yet taken out of their bucket.
+	 */
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Runs the callbacks.
+	 */
+	private volatile Executor executor;
+
+	/**
+	 * System.nanoTime() when the wheel started.
+	 */
+	private final long startTime;
+
+	/**
+	 * Ticks done so far, only used by the tick thread.
+	 */
+	private long tick=0;
+
+	/**
+	 * Timeouts in the buckets, only used by the tick thread.
+	 */
+	private int size=0;
+
+	/**
+	 * Whether the tick thread is parked, or about to park, because the
+	 * wheel is empty.
+	 */
+	private volatile boolean idle=false;
+
+	private volatile boolean stopped=false;
+
+	private final Thread worker;
+
+	/**
+	 * Initialise and start the wheel.
+	 * @param tickDuration milliseconds per tick, at least 1
+	 * @param ticksPerWheel number of buckets, rounded up to a power of two
+	 * @param executor runs the callbacks
+	 */
+	public TimingWheel(long tickDuration, int ticksPerWheel, Executor executor) {
+		tickNanos=TimeUnit.MILLISECONDS.toNanos(Math.max(1,tickDuration));
+		int size=1;
+		while(size<ticksPerWheel) size<<=1;
+		wheel=new Bucket[size];
+		for(int i=0;i<size;i++) wheel[i]=new Bucket();
+		mask=size-1;
+		this.executor=executor;
+		startTime=System.nanoTime();
+		worker=new Thread(()->{
+			run();
+		},"TimingWheel");
+		worker.start();
+	}
+
+	/**
+	 * Call the callback after a delay.
+	 * @param callback
+	 * @param delay milliseconds
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout schedule(ICallback callback, long delay) {
+		long deadline=System.nanoTime()-startTime+TimeUnit.MILLISECONDS.toNanos(Math.max(0,delay));
+		Timeout timeout = new Timeout(this,callback,deadline);
+		if(stopped) {
+			// will never run
+			timeout.state.set(Timeout.cancelled);
+			return timeout;
+		}
+		pending.add(timeout);
+		if(idle) LockSupport.unpark(worker);
+		return timeout;
+	}
+
+	/**
+	 * Set what runs the callbacks from now on.
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor=executor;
+	}
+
+	/**
+	 * Stop the wheel. Timeouts that have not expired never will.
+	 */
+	public void stop() {
+		stopped=true;
+		worker.interrupt();
+	}
+
+	private void run() {
+		while(!stopped) {
+			if(size==0 && pending.isEmpty()) waitForTimeout();
+			long deadline=waitForNextTick();
+			if(stopped) break;
+			removeCancelled();
+			transferPending();
+			size-=wheel[(int)(tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	/**
+	 * Park until a timeout is scheduled, and then skip the ticks that
+	 * passed meanwhile, which had nothing to expire.
+	 */
+	private void waitForTimeout() {
+		idle=true;
+		while(pending.isEmpty() && !stopped) LockSupport.park();
+		idle=false;
+		tick=Math.max(tick,(System.nanoTime()-startTime)/tickNanos);
+	}
+
+	/**
+	 * Sleep until the end of the current tick.
+	 * @return nanoseconds from the start of the wheel to the end of the tick
+	 */
+	private long waitForNextTick() {
+		long deadline=tickNanos*(tick+1);
+		while(true) {
+			long sleepNanos=deadline-(System.nanoTime()-startTime);
+			if(sleepNanos<=0) return deadline;
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				if(stopped) return deadline;
+			}
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout=cancelled.poll())!=null) {
+			if(timeout.bucket!=null) {
+				timeout.bucket.remove(timeout);
+				size--;
+			}
+		}
+	}
+
+	private void transferPending() {
+		for(int i=0;i<maxTransferPerTick;i++) {
+			Timeout timeout=pending.poll();
+			if(timeout==null) break;
+			if(timeout.isCancelled()) continue;
+			long calculated=timeout.deadline/tickNanos;
+			timeout.remainingRounds=(calculated-tick)/wheel.length;
+			// if it is already due then it goes in the current bucket
+			long ticks=Math.max(calculated,tick);
+			wheel[(int)(ticks & mask)].add(timeout);
+			size++;
+		}
+	}
+}
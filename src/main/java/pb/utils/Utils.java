@@ -1,8 +1,11 @@
 package pb.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Framing;
 import pb.protocols.ICallback;
 
 /**
@@ -36,13 +39,264 @@ public class Utils {
 	public static final int chunkSize = 16*1024;
 	
 	/**
-	 * Use of a single timer object over the entire system helps
+	 * Milliseconds per tick of the timing wheel, can be set on the command
+	 * line with -Dpb.timerTick=...
+	 */
+	private static final int timerTick = Integer.getInteger("pb.timerTick",10);
+	
+	/**
+	 * Number of ticks in one revolution of the timing wheel.
+	 */
+	private static final int timerTicksPerWheel = 512;
+	
+	/**
+	 * Number of threads that run timeout callbacks by default, can be set
+	 * on the command line with -Dpb.timeoutThreads=...
+	 */
+	private static final int timeoutThreads = Integer.getInteger("pb.timeoutThreads",
+			Math.max(2,Runtime.getRuntime().availableProcessors()));
+	
+	/**
+	 * Use of a single timing wheel over the entire system helps
 	 * to reduce thread usage.
 	 */
-	private Timer timer = new Timer();
+	private TimingWheel timer;
+	
+	/**
+	 * Whether endpoints and client managers should run on virtual threads,
+	 * can be set on the command line with -Dpb.virtualThreads=true
+	 */
+	private volatile boolean virtualThreads = Boolean.getBoolean("pb.virtualThreads");
+	
+	/**
+	 * Largest message, in bytes, that endpoints will offer to send and receive
+	 * when agreeing to use length prefixed framing, can be set on the command
+	 * line with -Dpb.maxFrameSize=...
+	 */
+	private volatile int maxFrameSize = Integer.getInteger("pb.maxFrameSize",
+			Framing.defaultMaxFrameSize);
+	
+	/**
+	 * Compression that endpoints will offer when agreeing to use length
+	 * prefixed framing, can be set on the command line with
+	 * -Dpb.compression=None or Deflate
+	 */
+	private volatile Framing.Compression compression = Framing.toCompression(
+			System.getProperty("pb.compression",Framing.Compression.Deflate.toString()));
+	
+	/**
+	 * Smallest message, in bytes, that is compressed, can be set on the
+	 * command line with -Dpb.compressionThreshold=...
+	 */
+	private volatile int compressionThreshold = Integer.getInteger("pb.compressionThreshold",
+			Framing.defaultCompressionThreshold);
+	
+	/**
+	 * Bytes queued on an endpoint above which it is congested, can be set on
+	 * the command line with -Dpb.highWatermark=...
+	 */
+	private volatile long highWatermark = Long.getLong("pb.highWatermark",4*1024*1024);
+	
+	/**
+	 * Bytes queued on an endpoint at or below which it is no longer congested,
+	 * can be set on the command line with -Dpb.lowWatermark=...
+	 */
+	private volatile long lowWatermark = Long.getLong("pb.lowWatermark",1024*1024);
+	
+	/**
+	 * What to do with an endpoint that stays congested, can be set on the
+	 * command line with -Dpb.congestionPolicy=Notify, Drop, Conflate or
+	 * Disconnect; by default the manager is only told
+	 */
+	private volatile Endpoint.CongestionPolicy congestionPolicy = Endpoint.CongestionPolicy.valueOf(
+			System.getProperty("pb.congestionPolicy",Endpoint.CongestionPolicy.Notify.toString()));
+	
+	/**
+	 * Milliseconds an endpoint can stay congested before the congestion policy
+	 * is applied, can be set on the command line with -Dpb.congestionTimeout=...
+	 */
+	private volatile int congestionTimeout = Integer.getInteger("pb.congestionTimeout",10000);
+	
+	/**
+	 * Interactive frames an endpoint writes for each bulk frame, while both
+	 * are waiting, can be set on the command line with -Dpb.interactiveWeight=...
+	 */
+	private volatile int interactiveWeight = Integer.getInteger("pb.interactiveWeight",8);
+	
+	/**
+	 * Milliseconds an endpoint waits for the reply to a request before it
+	 * has measured any round trip times, can be set on the command line
+	 * with -Dpb.requestTimeout=...
+	 */
+	private volatile int requestTimeout = Integer.getInteger("pb.requestTimeout",20000);
+	
+	/**
+	 * Least milliseconds an endpoint waits for the reply to a request, can
+	 * be set on the command line with -Dpb.minRequestTimeout=...
+	 */
+	private volatile int minRequestTimeout = Integer.getInteger("pb.minRequestTimeout",5000);
+	
+	/**
+	 * Most milliseconds an endpoint waits for the reply to a request, can
+	 * be set on the command line with -Dpb.maxRequestTimeout=...
+	 */
+	private volatile int maxRequestTimeout = Integer.getInteger("pb.maxRequestTimeout",120000);
+	
+	/**
+	 * Milliseconds a link can be idle before a client sends a keep alive
+	 * request, can be set on the command line with -Dpb.keepAliveInterval=...
+	 */
+	private volatile int keepAliveInterval = Integer.getInteger("pb.keepAliveInterval",20000);
+	
+	/**
+	 * Milliseconds a session that ended abruptly is kept so that the client
+	 * can resume it by reconnecting, 0 to not resume sessions, can be set on
+	 * the command line with -Dpb.sessionResumeGrace=...
+	 */
+	private volatile int sessionResumeGrace = Integer.getInteger("pb.sessionResumeGrace",0);
+	
+	/**
+	 * Most times in a row a client tries to reconnect before giving up, 0
+	 * for no limit, can be set on the command line with -Dpb.reconnectAttempts=...
+	 */
+	private volatile int reconnectAttempts = Integer.getInteger("pb.reconnectAttempts",10);
+	
+	/**
+	 * Milliseconds a client may wait before its second try to reconnect,
+	 * doubling for each try after, can be set on the command line with
+	 * -Dpb.reconnectBaseDelay=...
+	 */
+	private volatile int reconnectBaseDelay = Integer.getInteger("pb.reconnectBaseDelay",1000);
+	
+	/**
+	 * Most milliseconds a client may wait before trying to reconnect, can
+	 * be set on the command line with -Dpb.reconnectMaxDelay=...
+	 */
+	private volatile int reconnectMaxDelay = Integer.getInteger("pb.reconnectMaxDelay",30000);
+	
+	/**
+	 * Most events a client keeps in memory while they wait to be sent or
+	 * acknowledged, across connections but not across restarts of the
+	 * client, 0 to not keep them across connections, can be set on the
+	 * command line with -Dpb.eventJournal=...
+	 */
+	private volatile int eventJournal = Integer.getInteger("pb.eventJournal",0);
+	
+	/**
+	 * File that events a client can not keep in memory are written to, null
+	 * to not write them, can be set on the command line with
+	 * -Dpb.eventJournalFile=...
+	 */
+	private volatile String eventJournalFile = System.getProperty("pb.eventJournalFile");
+	
+	/**
+	 * Bytes of the file that events are written to, can be set on the
+	 * command line with -Dpb.eventJournalFileSize=...
+	 */
+	private volatile long eventJournalFileSize = Long.getLong("pb.eventJournalFileSize",64*1024*1024);
+	
+	/**
+	 * Whether endpoints will offer to identify messages by their compact ids,
+	 * can be turned off on the command line with -Dpb.messageIds=false
+	 */
+	private volatile boolean messageIds = !"false".equals(System.getProperty("pb.messageIds"));
+	
+	/**
+	 * The codec endpoints will offer to encode messages with, can be set
+	 * on the command line with -Dpb.codec=Binary or Json
+	 */
+	private volatile String codec = System.getProperty("pb.codec","Binary");
+	
+	/**
+	 * Where endpoints run the callbacks for received events, can be set on
+	 * the command line with -Dpb.eventDispatch=Inline or Async
+	 */
+	private volatile Endpoint.EventDispatch eventDispatch = Endpoint.EventDispatch.valueOf(
+			System.getProperty("pb.eventDispatch",Endpoint.EventDispatch.Inline.toString()));
+	
+	/**
+	 * How endpoints ask for the events they send to be acknowledged, can be
+	 * set on the command line with -Dpb.eventAcks=Each, Cumulative or None
+	 */
+	private volatile Endpoint.EventAcks eventAcks = Endpoint.EventAcks.valueOf(
+			System.getProperty("pb.eventAcks",Endpoint.EventAcks.Cumulative.toString()));
+	
+	/**
+	 * Most events received before they are cumulatively acknowledged, can
+	 * be set on the command line with -Dpb.eventAckEvery=...
+	 */
+	private volatile int eventAckEvery = Integer.getInteger("pb.eventAckEvery",32);
+	
+	/**
+	 * Most milliseconds a received event waits to be cumulatively
+	 * acknowledged, can be set on the command line with -Dpb.eventAckDelay=...
+	 */
+	private volatile int eventAckDelay = Integer.getInteger("pb.eventAckDelay",100);
+	
+	/**
+	 * Most events sent with cumulative acks that can be waiting for an ack,
+	 * 0 for no limit, can be set on the command line with -Dpb.eventWindow=...
+	 */
+	private volatile int eventWindow = Integer.getInteger("pb.eventWindow",4096);
+	
+	/**
+	 * Most events that can wait for room in the window of an event protocol,
+	 * for each priority, 0 for no limit, can be set on the command line with
+	 * -Dpb.eventBacklog=...
+	 */
+	private volatile int eventBacklog = Integer.getInteger("pb.eventBacklog",65536);
+	
+	/**
+	 * Most milliseconds an emitted event waits to be sent in a batch with
+	 * others, 0 to send each on its own, can be set on the command line
+	 * with -Dpb.eventLinger=...
+	 */
+	private volatile int eventLinger = Integer.getInteger("pb.eventLinger",0);
+	
+	/**
+	 * Most events in a batch, can be set on the command line with
+	 * -Dpb.eventBatchSize=...
+	 */
+	private volatile int eventBatchSize = Integer.getInteger("pb.eventBatchSize",256);
+	
+	/**
+	 * Most characters of event names and data in a batch, can be set on the
+	 * command line with -Dpb.eventBatchBytes=...
+	 */
+	private volatile int eventBatchBytes = Integer.getInteger("pb.eventBatchBytes",16*1024);
+	
+	/**
+	 * Most characters or bytes of data in a piece of a large event, can be
+	 * set on the command line with -Dpb.eventFragmentSize=...
+	 */
+	private volatile int eventFragmentSize = Integer.getInteger("pb.eventFragmentSize",64*1024);
+	
+	/**
+	 * Most pieces of a large event sent but not yet acknowledged, can be
+	 * set on the command line with -Dpb.eventFragmentsInFlight=...
+	 */
+	private volatile int eventFragmentsInFlight = Integer.getInteger("pb.eventFragmentsInFlight",4);
+	
+	/**
+	 * Most bytes of large events an endpoint holds while putting them back
+	 * together, can be set on the command line with -Dpb.eventReassemblyBytes=...
+	 */
+	private volatile long eventReassemblyBytes = Long.getLong("pb.eventReassemblyBytes",64*1024*1024);
+	
+	/**
+	 * Runs the callbacks for received events when they are dispatched
+	 * asynchronously, created when first needed.
+	 */
+	private Executor eventExecutor = null;
 	
 	public Utils() {
-		timer=new Timer();
+		AtomicInteger threads = new AtomicInteger();
+		Executor executor = Executors.newFixedThreadPool(timeoutThreads,(runnable)->{
+			Thread thread = new Thread(runnable,"Timeout-"+threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer=new TimingWheel(timerTick,timerTicksPerWheel,executor);
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -58,25 +312,562 @@ public class Utils {
 	 * <code>
 	 * Utils.getInstance().setTimeout(()->{doSomething();},10000);
 	 * </code>
+	 * The callback runs on one of the timeout executor's threads, so it may
+	 * run at the same time as other callbacks.
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return the timeout, which can be cancelled
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public TimingWheel.Timeout setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
+		return timer.schedule(callback,delay);
+	}
+	
+	/**
+	 * Set what runs timeout callbacks from now on, e.g. to use virtual
+	 * threads or to run them all on one thread.
+	 * @param executor
+	 */
+	public void setTimeoutExecutor(Executor executor) {
+		timer.setExecutor(executor);
+	}
+	
+	/**
+	 * @return true if endpoints and client managers should run on virtual
+	 * threads rather than platform threads
+	 */
+	public boolean useVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	/**
+	 * Choose whether endpoints and client managers that are created from now
+	 * on will run on virtual threads.
+	 * @param virtualThreads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+	
+	/**
+	 * @return the largest message, in bytes, that endpoints will offer to
+	 * send and receive
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/**
+	 * Set the largest message, in bytes, that endpoints will offer to send
+	 * and receive, for sessions that start from now on.
+	 * @param maxFrameSize
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * @return the compression that endpoints will offer, never null
+	 */
+	public Framing.Compression getCompression() {
+		return compression==null ? Framing.Compression.None : compression;
+	}
+	
+	/**
+	 * Set the compression that endpoints will offer, for sessions that start
+	 * from now on.
+	 * @param compression
+	 */
+	public void setCompression(Framing.Compression compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * @return the smallest message, in bytes, that is compressed
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	/**
+	 * Set the smallest message, in bytes, that is compressed, for sessions
+	 * that start from now on.
+	 * @param compressionThreshold
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	/**
+	 * @return bytes queued on an endpoint above which it is congested
+	 */
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+	
+	/**
+	 * @return bytes queued on an endpoint at or below which it is no longer congested
+	 */
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+	
+	/**
+	 * Set the watermarks for endpoints created from now on.
+	 * @param lowWatermark
+	 * @param highWatermark
+	 */
+	public void setWatermarks(long lowWatermark, long highWatermark) {
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+	
+	/**
+	 * @return what to do with an endpoint that stays congested
+	 */
+	public Endpoint.CongestionPolicy getCongestionPolicy() {
+		return congestionPolicy;
+	}
+	
+	/**
+	 * @return milliseconds an endpoint can stay congested before the
+	 * congestion policy is applied
+	 */
+	public int getCongestionTimeout() {
+		return congestionTimeout;
+	}
+	
+	/**
+	 * Set what to do with endpoints, created from now on, that stay congested.
+	 * @param congestionPolicy
+	 * @param congestionTimeout
+	 */
+	public void setCongestionPolicy(Endpoint.CongestionPolicy congestionPolicy, int congestionTimeout) {
+		this.congestionPolicy = congestionPolicy;
+		this.congestionTimeout = congestionTimeout;
+	}
+	
+	/**
+	 * @return interactive frames an endpoint writes for each bulk frame,
+	 * while both are waiting
+	 * @see {@link pb.managers.endpoint.FrameWriter}
+	 */
+	public int getInteractiveWeight() {
+		return interactiveWeight;
+	}
+	
+	/**
+	 * Set the interactive frames that endpoints, created from now on, write
+	 * for each bulk frame while both are waiting.
+	 * @param interactiveWeight at least 1
+	 */
+	public void setInteractiveWeight(int interactiveWeight) {
+		this.interactiveWeight = interactiveWeight;
+	}
+	
+	/**
+	 * @return milliseconds an endpoint waits for the reply to a request
+	 * before it has measured any round trip times
+	 */
+	public int getRequestTimeout() {
+		return requestTimeout;
+	}
+	
+	/**
+	 * @return least milliseconds an endpoint waits for the reply to a request
+	 */
+	public int getMinRequestTimeout() {
+		return minRequestTimeout;
+	}
+	
+	/**
+	 * @return most milliseconds an endpoint waits for the reply to a request
+	 */
+	public int getMaxRequestTimeout() {
+		return maxRequestTimeout;
+	}
+	
+	/**
+	 * Set how long endpoints wait for the reply to a request.
+	 * @param requestTimeout milliseconds before any round trip times have
+	 * been measured
+	 * @param minRequestTimeout least milliseconds
+	 * @param maxRequestTimeout most milliseconds
+	 */
+	public void setRequestTimeouts(int requestTimeout, int minRequestTimeout, int maxRequestTimeout) {
+		this.requestTimeout = requestTimeout;
+		this.minRequestTimeout = minRequestTimeout;
+		this.maxRequestTimeout = maxRequestTimeout;
+	}
+	
+	/**
+	 * @return milliseconds a link can be idle before a client sends a keep
+	 * alive request
+	 */
+	public int getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+	
+	/**
+	 * @param keepAliveInterval milliseconds a link can be idle before a
+	 * client sends a keep alive request, for keep alive protocols started
+	 * from now on
+	 */
+	public void setKeepAliveInterval(int keepAliveInterval) {
+		this.keepAliveInterval = keepAliveInterval;
+	}
+	
+	/**
+	 * @return milliseconds a session that ended abruptly is kept so that
+	 * it can be resumed, 0 if sessions are not resumed
+	 */
+	public int getSessionResumeGrace() {
+		return sessionResumeGrace;
+	}
+	
+	/**
+	 * @param sessionResumeGrace milliseconds a session that ended abruptly
+	 * is kept so that it can be resumed, 0 to not resume sessions, for
+	 * sessions started from now on
+	 */
+	public void setSessionResumeGrace(int sessionResumeGrace) {
+		this.sessionResumeGrace = sessionResumeGrace;
+	}
+	
+	/**
+	 * @return most times in a row a client tries to reconnect, 0 for no limit
+	 */
+	public int getReconnectAttempts() {
+		return reconnectAttempts;
+	}
+	
+	/**
+	 * @return milliseconds a client may wait before its second try to
+	 * reconnect, doubling for each try after
+	 */
+	public int getReconnectBaseDelay() {
+		return reconnectBaseDelay;
+	}
+	
+	/**
+	 * @return most milliseconds a client may wait before trying to reconnect
+	 */
+	public int getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+	
+	/**
+	 * Set how clients try to reconnect when their connection fails.
+	 * @param reconnectAttempts most times in a row, 0 for no limit
+	 * @param reconnectBaseDelay milliseconds a client may wait before its
+	 * second try, doubling for each try after
+	 * @param reconnectMaxDelay most milliseconds a client may wait
+	 */
+	public void setReconnectPolicy(int reconnectAttempts, int reconnectBaseDelay, int reconnectMaxDelay) {
+		this.reconnectAttempts = reconnectAttempts;
+		this.reconnectBaseDelay = reconnectBaseDelay;
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+	
+	/**
+	 * @return most events a client keeps in memory across connections,
+	 * 0 if they are not kept across connections
+	 */
+	public int getEventJournal() {
+		return eventJournal;
+	}
+	
+	/**
+	 * @return the file that events a client can not keep in memory are
+	 * written to, null if they are not written
+	 */
+	public String getEventJournalFile() {
+		return eventJournalFile;
+	}
+	
+	/**
+	 * @return bytes of the file that events are written to
+	 */
+	public long getEventJournalFileSize() {
+		return eventJournalFileSize;
+	}
+	
+	/**
+	 * Set how clients keep the events that wait to be sent or acknowledged
+	 * across connections, for clients made from now on.
+	 * @param eventJournal most events kept in memory, 0 to not keep them
+	 * across connections
+	 * @param eventJournalFile file that events that do not fit in memory are
+	 * written to, null to not write them
+	 * @param eventJournalFileSize bytes of the file
+	 */
+	public void setEventJournal(int eventJournal, String eventJournalFile, long eventJournalFileSize) {
+		this.eventJournal = eventJournal;
+		this.eventJournalFile = eventJournalFile;
+		this.eventJournalFileSize = eventJournalFileSize;
+	}
+	
+	/**
+	 * @return true if endpoints will offer to identify messages by their
+	 * compact ids
+	 */
+	public boolean useMessageIds() {
+		return messageIds;
+	}
+	
+	/**
+	 * Choose whether endpoints will offer to identify messages by their
+	 * compact ids, for sessions that start from now on.
+	 * @param messageIds
+	 */
+	public void setMessageIds(boolean messageIds) {
+		this.messageIds = messageIds;
+	}
+	
+	/**
+	 * @return the name of the codec endpoints will offer to encode messages with
+	 * @see {@link pb.managers.endpoint.MessageCodec}
+	 */
+	public String getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Choose the codec endpoints will offer to encode messages with, for
+	 * sessions that start from now on.
+	 * @param codec name of the codec
+	 */
+	public void setCodec(String codec) {
+		this.codec = codec;
+	}
+	
+	/**
+	 * @return where endpoints run the callbacks for received events
+	 */
+	public Endpoint.EventDispatch getEventDispatch() {
+		return eventDispatch;
+	}
+	
+	/**
+	 * Set where endpoints, created from now on, run the callbacks for
+	 * received events.
+	 * @param eventDispatch
+	 */
+	public void setEventDispatch(Endpoint.EventDispatch eventDispatch) {
+		this.eventDispatch = eventDispatch;
+	}
+	
+	/**
+	 * @return how endpoints ask for the events they send to be acknowledged
+	 */
+	public Endpoint.EventAcks getEventAcks() {
+		return eventAcks;
+	}
+	
+	/**
+	 * Set how endpoints, created from now on, ask for the events they send
+	 * to be acknowledged.
+	 * @param eventAcks
+	 */
+	public void setEventAcks(Endpoint.EventAcks eventAcks) {
+		this.eventAcks = eventAcks;
+	}
+	
+	/**
+	 * @return most events received before they are cumulatively acknowledged
+	 */
+	public int getEventAckEvery() {
+		return eventAckEvery;
+	}
+	
+	/**
+	 * @param eventAckEvery most events received before they are cumulatively
+	 * acknowledged
+	 */
+	public void setEventAckEvery(int eventAckEvery) {
+		this.eventAckEvery = eventAckEvery;
+	}
+	
+	/**
+	 * @return most milliseconds a received event waits to be cumulatively
+	 * acknowledged
+	 */
+	public int getEventAckDelay() {
+		return eventAckDelay;
+	}
+	
+	/**
+	 * @param eventAckDelay most milliseconds a received event waits to be
+	 * cumulatively acknowledged
+	 */
+	public void setEventAckDelay(int eventAckDelay) {
+		this.eventAckDelay = eventAckDelay;
+	}
+	
+	/**
+	 * @return most events sent with cumulative acks that can be waiting
+	 * for an ack, 0 for no limit
+	 */
+	public int getEventWindow() {
+		return eventWindow;
+	}
+	
+	/**
+	 * Set the most events sent with cumulative acks that can be waiting
+	 * for an ack, for event protocols started from now on.
+	 * @param eventWindow 0 for no limit
+	 */
+	public void setEventWindow(int eventWindow) {
+		this.eventWindow = eventWindow;
+	}
+	
+	/**
+	 * @return most events that can wait for room in the window, for each
+	 * priority, 0 for no limit
+	 */
+	public int getEventBacklog() {
+		return eventBacklog;
+	}
+	
+	/**
+	 * Set the most events that can wait for room in the window, for each
+	 * priority, for event protocols started from now on.
+	 * @param eventBacklog 0 for no limit
+	 */
+	public void setEventBacklog(int eventBacklog) {
+		this.eventBacklog = eventBacklog;
+	}
+	
+	/**
+	 * @return most milliseconds an emitted event waits to be sent in a
+	 * batch with others, 0 if events are sent on their own
+	 */
+	public int getEventLinger() {
+		return eventLinger;
+	}
+	
+	/**
+	 * Set how long emitted events wait to be sent in a batch with others,
+	 * for event protocols started from now on.
+	 * @param eventLinger milliseconds, 0 to send each on its own
+	 */
+	public void setEventLinger(int eventLinger) {
+		this.eventLinger = eventLinger;
+	}
+	
+	/**
+	 * @return most events in a batch
+	 */
+	public int getEventBatchSize() {
+		return eventBatchSize;
+	}
+	
+	/**
+	 * @param eventBatchSize most events in a batch
+	 */
+	public void setEventBatchSize(int eventBatchSize) {
+		this.eventBatchSize = eventBatchSize;
+	}
+	
+	/**
+	 * @return most characters of event names and data in a batch
+	 */
+	public int getEventBatchBytes() {
+		return eventBatchBytes;
+	}
+	
+	/**
+	 * @param eventBatchBytes most characters of event names and data in a
+	 * batch, which should leave room for the rest of the message in a frame
+	 */
+	public void setEventBatchBytes(int eventBatchBytes) {
+		this.eventBatchBytes = eventBatchBytes;
+	}
+	
+	/**
+	 * @return most characters or bytes of data in a piece of a large event;
+	 * events with more data than this are sent in pieces
+	 */
+	public int getEventFragmentSize() {
+		return eventFragmentSize;
+	}
+	
+	/**
+	 * @param eventFragmentSize most characters or bytes of data in a piece
+	 * of a large event, for endpoints whose frames allow it
+	 */
+	public void setEventFragmentSize(int eventFragmentSize) {
+		this.eventFragmentSize = eventFragmentSize;
+	}
+	
+	/**
+	 * @return most pieces of a large event sent but not yet acknowledged
+	 */
+	public int getEventFragmentsInFlight() {
+		return eventFragmentsInFlight;
+	}
+	
+	/**
+	 * @param eventFragmentsInFlight most pieces of a large event sent but
+	 * not yet acknowledged, at least 1
+	 */
+	public void setEventFragmentsInFlight(int eventFragmentsInFlight) {
+		this.eventFragmentsInFlight = eventFragmentsInFlight;
+	}
+	
+	/**
+	 * @return most bytes of large events an endpoint holds while putting
+	 * them back together
+	 */
+	public long getEventReassemblyBytes() {
+		return eventReassemblyBytes;
+	}
+	
+	/**
+	 * @param eventReassemblyBytes most bytes of large events an endpoint
+	 * holds while putting them back together; events that do not fit are
+	 * dropped
+	 */
+	public void setEventReassemblyBytes(long eventReassemblyBytes) {
+		this.eventReassemblyBytes = eventReassemblyBytes;
+	}
+	
+	/**
+	 * @return what runs the callbacks for received events when they are
+	 * dispatched asynchronously; virtual threads if
+	 * {@link #useVirtualThreads()}, otherwise a thread per core
+	 */
+	public synchronized Executor getEventExecutor() {
+		if(eventExecutor==null) {
+			if(virtualThreads) {
+				eventExecutor = Executors.newThreadPerTaskExecutor(
+						Thread.ofVirtual().name("EventDispatch-",1).factory());
+			} else {
+				AtomicInteger threads = new AtomicInteger();
+				eventExecutor = Executors.newFixedThreadPool(
+						Runtime.getRuntime().availableProcessors(),(runnable)->{
+					Thread thread = new Thread(runnable,"EventDispatch-"+threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
 			}
-			
-		}, delay);
+		}
+		return eventExecutor;
+	}
+	
+	/**
+	 * Set what runs the callbacks for received events when they are
+	 * dispatched asynchronously, for endpoints created from now on.
+	 * @param eventExecutor
+	 */
+	public synchronized void setEventExecutor(Executor eventExecutor) {
+		this.eventExecutor = eventExecutor;
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
 	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+		timer.stop(); // allow jvm to quit
 	}
 }
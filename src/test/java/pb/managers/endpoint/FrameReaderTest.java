@@ -0,0 +1,64 @@
+package pb.managers.endpoint;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+import pb.protocols.event.EventRequest;
+
+/**
+ * Checks that a {@link FrameReader} will not decompress a frame to more
+ * than the largest frame body agreed, however small the frame is.
+ */
+public class FrameReaderTest {
+
+	private static final int maxFrameSize = 64*1024;
+
+	@Test
+	public void compressedFramesUpToTheLargestBodyAreRead() throws Exception {
+		String data = "a".repeat(maxFrameSize-1000);
+		FrameReader reader = new FrameReader(false);
+		reader.expect(Framing.Format.Length,maxFrameSize,Framing.Compression.Deflate);
+		assertEquals(List.of(data),FrameWriterTest.read(reader,compressed(data)));
+	}
+
+	@Test
+	public void compressedFramesLargerThanTheLargestBodyAreRefused() throws Exception {
+		byte[] bytes = compressed("a".repeat(100*maxFrameSize));
+		// small enough to be let in before it is decompressed
+		assertTrue(bytes.length<Framing.maxDeflatedSize(maxFrameSize));
+		FrameReader reader = new FrameReader(false);
+		reader.expect(Framing.Format.Length,maxFrameSize,Framing.Compression.Deflate);
+		IOException e = assertThrows(IOException.class,()->FrameWriterTest.read(reader,bytes));
+		assertTrue(e.getMessage().contains("larger than "+maxFrameSize),e.getMessage());
+	}
+
+	/**
+	 * @return the empty frame that changes to the length prefixed format,
+	 * followed by an event compressed as the other endpoint would
+	 */
+	private static byte[] compressed(String data) {
+		ByteBuffer frame = JsonMessageCodec.names.encode(new EventRequest("event",data),
+				Framing.Format.Length,Integer.MAX_VALUE,false);
+		Deflater deflater = new Deflater();
+		deflater.setInput(frame.array(),frame.arrayOffset()+frame.position()+4,frame.remaining()-4);
+		byte[] body = new byte[frame.remaining()+1024];
+		int length = deflater.deflate(body,0,body.length,Deflater.SYNC_FLUSH);
+		deflater.end();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0);
+		out.write(0);
+		ByteBuffer header = ByteBuffer.allocate(4).putInt(0,length | Framing.compressedFlag);
+		out.write(header.array(),0,4);
+		out.write(body,0,length);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,98 @@
+package pb.managers.endpoint;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import pb.protocols.Message;
+import pb.protocols.event.EventRequest;
+import pb.utils.Utils;
+
+/**
+ * Checks the order that the lanes of a {@link FrameWriter} are written in,
+ * and that a {@link FrameReader} reads back every message across a change
+ * of format.
+ */
+public class FrameWriterTest {
+
+	@Test
+	public void bulkFramesGetATurnAfterInteractiveWeight() throws Exception {
+		Utils utils = Utils.getInstance();
+		int weight = utils.getInteractiveWeight();
+		utils.setInteractiveWeight(3);
+		FrameWriter writer;
+		try {
+			writer = new FrameWriter(false);
+		} finally {
+			utils.setInteractiveWeight(weight);
+		}
+		for(int i=0;i<9;i++) add(writer,"i"+i,Message.Priority.Interactive);
+		for(int i=0;i<3;i++) add(writer,"b"+i,Message.Priority.Bulk);
+		add(writer,"c",Message.Priority.Control);
+		assertEquals(List.of("c","i0","i1","i2","b0","i3","i4","i5","b1","i6","i7","i8","b2"),
+				read(new FrameReader(false),write(writer)));
+		assertTrue(writer.isEmpty());
+		assertEquals(0,writer.getQueuedBytes());
+	}
+
+	@Test
+	public void messagesQueuedAroundAChangeOfFormatAreReadBack() throws Exception {
+		FrameWriter writer = new FrameWriter(false);
+		add(writer,"before",Message.Priority.Interactive);
+		writer.change(Framing.Format.Length,1<<20,Framing.Compression.Deflate,256);
+		assertEquals(Framing.Format.Length,writer.getFormat());
+		add(writer,"after",Message.Priority.Interactive);
+		add(writer,"a".repeat(100000),Message.Priority.Bulk);
+		byte[] bytes = write(writer);
+		// the change is written first, and the message queued before it is
+		// encoded again in the new format
+		assertEquals(0,bytes[0]);
+		assertEquals(0,bytes[1]);
+		assertTrue(bytes.length<10000,"large frame was not compressed");
+		FrameReader reader = new FrameReader(false);
+		reader.expect(Framing.Format.Length,1<<20,Framing.Compression.Deflate);
+		assertEquals(List.of("before","after","a".repeat(100000)),read(reader,bytes));
+		assertEquals(Framing.Format.Length,reader.getFormat());
+	}
+
+	private static void add(FrameWriter writer, String data, Message.Priority priority) {
+		EventRequest request = new EventRequest("event",data);
+		request.setPriority(priority);
+		assertTrue(writer.add(request,JsonMessageCodec.names));
+	}
+
+	/**
+	 * @return every frame in the queue, in the order the writer takes them
+	 */
+	private static byte[] write(FrameWriter writer) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer frame;
+		while((frame=writer.poll())!=null) {
+			out.write(frame.array(),frame.arrayOffset()+frame.position(),frame.remaining());
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the data of the events in the frames
+	 */
+	static List<String> read(FrameReader reader, byte[] bytes) throws Exception {
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+		List<String> data = new ArrayList<>();
+		while(true) {
+			Message msg = reader.next();
+			if(msg!=null) {
+				data.add(((EventRequest)msg).getEventData());
+			} else if(reader.fill(in)==-1) {
+				return data;
+			}
+		}
+	}
+}
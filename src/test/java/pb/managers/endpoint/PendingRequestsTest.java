@@ -0,0 +1,75 @@
+package pb.managers.endpoint;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that requests are found by their timeout id whichever segment and
+ * slot they land in, and that removing some does not lose the others.
+ */
+public class PendingRequestsTest {
+
+	@Test
+	public void idsWrappingRoundTheSegmentsAreFound() {
+		PendingRequests pending = new PendingRequests();
+		List<PendingRequests.Entry> entries = new ArrayList<>();
+		// many times round the segments, so each one grows
+		for(long id=1;id<=1000;id++) entries.add(pending.add(id,null,null));
+		assertEquals(1000,pending.size());
+		for(long id=2;id<=1000;id+=2) assertSame(entries.get((int)id-1),pending.remove(id));
+		assertEquals(500,pending.size());
+		for(long id=1;id<=1000;id++) {
+			if(id%2==0) {
+				assertNull(pending.remove(id));
+			} else {
+				assertSame(entries.get((int)id-1),pending.expire(id));
+			}
+		}
+		assertEquals(0,pending.size());
+	}
+
+	@Test
+	public void probesWrappingRoundASegmentAreFound() {
+		PendingRequests pending = new PendingRequests();
+		// ids in one segment that all hash to its last slot, so each one
+		// after the first wraps round to the start
+		List<Long> ids = new ArrayList<>();
+		for(long id=16;ids.size()<4;id+=16) {
+			if(slot(id,15)==15) ids.add(id);
+		}
+		List<PendingRequests.Entry> entries = new ArrayList<>();
+		for(long id : ids) entries.add(pending.add(id,null,null));
+		// removing the first leaves a removed slot that must be probed past
+		assertSame(entries.get(0),pending.remove(ids.get(0)));
+		assertNull(pending.remove(ids.get(0)));
+		for(int i=ids.size()-1;i>0;i--) assertSame(entries.get(i),pending.remove(ids.get(i)));
+		assertEquals(0,pending.size());
+	}
+
+	@Test
+	public void clearTakesEveryRequest() {
+		PendingRequests pending = new PendingRequests();
+		Set<PendingRequests.Entry> entries = new HashSet<>();
+		for(long id=1;id<=100;id++) entries.add(pending.add(id,null,null));
+		for(long id=1;id<=100;id+=3) entries.remove(pending.remove(id));
+		assertEquals(entries,new HashSet<>(pending.clear()));
+		assertEquals(0,pending.size());
+		assertNull(pending.remove(2));
+	}
+
+	/**
+	 * The slot an id starts probing from in a segment, as the table works it out.
+	 */
+	private static int slot(long id, int mask) {
+		long h = (id>>>4)*0x9E3779B97F4A7C15L;
+		return (int)(h>>>32) & mask;
+	}
+}
@@ -0,0 +1,163 @@
+package pb.protocols;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import pb.protocols.event.EventRequest;
+
+/**
+ * Checks that {@link BinaryCodec} reads back exactly what it writes, from
+ * heap and direct buffers at any position, and that bytes that are not a
+ * valid message are rejected with {@link InvalidMessage} rather than anything
+ * else.
+ */
+public class BinaryCodecTest {
+	private final Random random = new Random(2);
+
+	@Test
+	public void randomMessagesRoundTrip() throws InvalidMessage {
+		for(int i=0;i<20000;i++) {
+			Message msg = randomMessage(i);
+			byte[] bytes = BinaryCodec.encode(msg);
+			assertNotNull(bytes);
+			ByteBuffer in = i%2==0 ? ByteBuffer.allocateDirect(bytes.length+3) :
+				ByteBuffer.allocate(bytes.length+3);
+			in.position(3);
+			in.put(bytes);
+			assertTrue(BinaryCodec.isBinary(in,3,bytes.length));
+			Message decoded = BinaryCodec.decode(in,3,bytes.length);
+			assertEquals(JsonCodec.encode(msg,false),JsonCodec.encode(decoded,false));
+		}
+	}
+
+	@Test
+	public void bytesRoundTrip() throws InvalidMessage {
+		byte[] data = new byte[1000];
+		random.nextBytes(data);
+		EventRequest request = new EventRequest("bytes",data);
+		request.setSeq(1L<<40);
+		request.setTimeoutId(-7);
+		byte[] bytes = BinaryCodec.encode(request);
+		EventRequest decoded = (EventRequest) BinaryCodec.decode(ByteBuffer.wrap(bytes),0,bytes.length);
+		assertTrue(decoded.isBinary());
+		assertEquals(ByteBuffer.wrap(data),decoded.getEventBytes());
+		assertEquals(1L<<40,decoded.getSeq());
+		assertEquals(-7,decoded.getTimeoutId());
+	}
+
+	@Test
+	public void jsonIsNotBinary() {
+		byte[] json = JsonCodec.encode(new EventRequest("name","data"),true).getBytes(StandardCharsets.UTF_8);
+		assertFalse(BinaryCodec.isBinary(ByteBuffer.wrap(json),0,json.length));
+		assertFalse(BinaryCodec.isBinary(ByteBuffer.wrap(json),0,0));
+		assertThrows(InvalidMessage.class,()->BinaryCodec.decode(ByteBuffer.wrap(json),0,json.length));
+	}
+
+	@Test
+	public void truncatedBytesAreRejected() {
+		for(int i=0;i<200;i++) {
+			byte[] bytes = BinaryCodec.encode(randomMessage(i));
+			for(int length=0;length<bytes.length;length++) {
+				int end=length;
+				assertThrows(InvalidMessage.class,()->BinaryCodec.decode(ByteBuffer.wrap(bytes),0,end));
+			}
+		}
+	}
+
+	@Test
+	public void trailingBytesAreRejected() {
+		byte[] bytes = BinaryCodec.encode(new EventRequest("name","data"));
+		ByteBuffer in = ByteBuffer.allocate(bytes.length+1).put(bytes);
+		assertThrows(InvalidMessage.class,()->BinaryCodec.decode(in,0,bytes.length+1));
+	}
+
+	@Test
+	public void corruptBytesAreRejectedOrRead() {
+		for(int i=0;i<20000;i++) {
+			byte[] bytes = BinaryCodec.encode(randomMessage(i));
+			for(int j=random.nextInt(4);j>=0;j--) {
+				bytes[random.nextInt(bytes.length)]=(byte) random.nextInt(256);
+			}
+			decodeOrReject(bytes);
+		}
+		for(int i=0;i<20000;i++) {
+			byte[] bytes = new byte[1+random.nextInt(64)];
+			random.nextBytes(bytes);
+			bytes[0]=BinaryCodec.magic;
+			decodeOrReject(bytes);
+		}
+	}
+
+	/**
+	 * Any exception other than InvalidMessage fails the test.
+	 */
+	private void decodeOrReject(byte[] bytes) {
+		try {
+			BinaryCodec.decode(ByteBuffer.wrap(bytes),0,bytes.length);
+		} catch (InvalidMessage e) {
+			// rejected
+		}
+	}
+
+	/**
+	 * @return an event request with a random doc added to it
+	 */
+	private Message randomMessage(int i) {
+		EventRequest request = new EventRequest("event"+i,randomString());
+		request.setTimeoutId(random.nextLong());
+		request.setSeq(i+1);
+		request.doc.append("extra",randomDocument(0));
+		return request;
+	}
+
+	private Document randomDocument(int depth) {
+		Document doc = new Document();
+		for(int i=random.nextInt(5);i>=0;i--) {
+			String key = randomString();
+			switch(random.nextInt(depth>3 ? 4 : 6)) {
+			case 0: doc.append(key,randomString()); break;
+			case 1: doc.append(key,random.nextLong()); break;
+			case 2: doc.append(key,random.nextBoolean()); break;
+			case 3: doc.append(key,(String)null); break;
+			case 4: doc.append(key,randomDocument(depth+1)); break;
+			default: doc.append(key,randomList(depth+1)); break;
+			}
+		}
+		return doc;
+	}
+
+	private ArrayList<Object> randomList(int depth) {
+		ArrayList<Object> list = new ArrayList<>();
+		for(int i=random.nextInt(4);i>0;i--) {
+			switch(random.nextInt(depth>3 ? 3 : 4)) {
+			case 0: list.add(randomString()); break;
+			case 1: list.add(random.nextDouble()*1e6); break;
+			case 2: list.add(random.nextLong()); break;
+			default: list.add(randomList(depth+1)); break;
+			}
+		}
+		return list;
+	}
+
+	private String randomString() {
+		StringBuilder text = new StringBuilder();
+		for(int i=random.nextInt(20);i>0;i--) {
+			switch(random.nextInt(3)) {
+			case 0: text.append((char) random.nextInt(128)); break;
+			case 1: text.append((char) (0x80+random.nextInt(0x3000))); break;
+			default: text.appendCodePoint(0x1f600+random.nextInt(64)); break;
+			}
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,148 @@
+package pb.protocols;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import pb.protocols.event.EventRequest;
+
+/**
+ * Checks that {@link JsonCodec} reads back exactly what it writes, and that
+ * text that is not a valid message is rejected with {@link InvalidMessage}
+ * rather than anything else.
+ */
+public class JsonCodecTest {
+	private final Random random = new Random(1);
+
+	@Test
+	public void randomDocumentsRoundTrip() throws InvalidMessage {
+		for(int i=0;i<20000;i++) {
+			String json = JsonCodec.encode(randomDocument(0));
+			assertEquals(json,JsonCodec.encode(JsonCodec.decodeDocument(json)));
+		}
+	}
+
+	@Test
+	public void messagesRoundTrip() throws InvalidMessage {
+		EventRequest request = new EventRequest("a\"b\\c","x\ny\u2028\u0000\ud83d\ude00");
+		request.setSeq(5);
+		request.setTimeoutId(9);
+		for(boolean compact : new boolean[]{false,true}) {
+			EventRequest decoded = (EventRequest) JsonCodec.decode(JsonCodec.encode(request,compact));
+			assertEquals(request.getEventName(),decoded.getEventName());
+			assertEquals(request.getEventData(),decoded.getEventData());
+			assertEquals(5,decoded.getSeq());
+			assertEquals(9,decoded.getTimeoutId());
+		}
+	}
+
+	@Test
+	public void escapesAndWhitespaceAreRead() throws InvalidMessage {
+		EventRequest decoded = (EventRequest) JsonCodec.decode(" {\"name\":\"EventRequest\","+
+				"\"protocolName\":\"EventProtocol\",\"type\":\"Request\","+
+				"\"eventName\":\"a\\/b\\u0041\",\"eventData\":\"\"} ");
+		assertEquals("a/bA",decoded.getEventName());
+	}
+
+	@Test
+	public void malformedTextIsRejected() {
+		String[] malformed = {"","{","}","[]","\"a\"","{\"id\":1x}","{\"id\":1}{",
+				"{\"a\":tru}","{\"a\":\"\\q\"}","{\"a\":1,}","{\"a\" 1}","{a:1}",
+				"{\"a\":\"\\u12\"}","{\"a\":[1,]}","{\"a\":-}","{\"a\":1e}"};
+		for(String json : malformed) {
+			assertThrows(InvalidMessage.class,()->JsonCodec.decodeDocument(json),json);
+		}
+	}
+
+	@Test
+	public void unknownMessagesAreRejected() {
+		assertThrows(InvalidMessage.class,()->JsonCodec.decode("{\"name\":\"NoSuchMessage\"}"));
+		assertThrows(InvalidMessage.class,()->JsonCodec.decode("{\"id\":\"1\"}"));
+		assertThrows(InvalidMessage.class,()->JsonCodec.decode("{}"));
+	}
+
+	@Test
+	public void deepNestingIsRejected() throws InvalidMessage {
+		assertThrows(InvalidMessage.class,()->JsonCodec.decodeDocument(
+				"{\"a\":"+"[".repeat(100000)+"}"));
+		String shallow = "[".repeat(JsonCodec.maxDepth-2)+"]".repeat(JsonCodec.maxDepth-2);
+		JsonCodec.decodeDocument("{\"a\":"+shallow+"}");
+	}
+
+	@Test
+	public void truncatedTextIsRejected() {
+		EventRequest request = new EventRequest("name","some event data");
+		request.setSeq(12345);
+		String json = JsonCodec.encode(request,true);
+		for(int length=0;length<json.length();length++) {
+			String truncated = json.substring(0,length);
+			assertThrows(InvalidMessage.class,()->JsonCodec.decode(truncated),truncated);
+		}
+	}
+
+	@Test
+	public void corruptTextIsRejectedOrRead() {
+		for(int i=0;i<20000;i++) {
+			char[] json = JsonCodec.encode(randomDocument(0)).toCharArray();
+			for(int j=random.nextInt(4);j>=0;j--) {
+				json[random.nextInt(json.length)]=randomChar();
+			}
+			try {
+				JsonCodec.decode(new String(json));
+			} catch (InvalidMessage e) {
+				// any other exception fails the test
+			}
+		}
+	}
+
+	private Document randomDocument(int depth) {
+		Document doc = new Document();
+		for(int i=random.nextInt(5);i>=0;i--) {
+			String key = randomString();
+			switch(random.nextInt(depth>3 ? 4 : 6)) {
+			case 0: doc.append(key,randomString()); break;
+			case 1: doc.append(key,random.nextLong()); break;
+			case 2: doc.append(key,random.nextBoolean()); break;
+			case 3: doc.append(key,(String)null); break;
+			case 4: doc.append(key,randomDocument(depth+1)); break;
+			default: doc.append(key,randomList(depth+1)); break;
+			}
+		}
+		return doc;
+	}
+
+	private ArrayList<Object> randomList(int depth) {
+		ArrayList<Object> list = new ArrayList<>();
+		for(int i=random.nextInt(4);i>0;i--) {
+			switch(random.nextInt(depth>3 ? 3 : 5)) {
+			case 0: list.add(randomString()); break;
+			case 1: list.add(random.nextDouble()*1e6); break;
+			case 2: list.add(random.nextLong()); break;
+			case 3: list.add(null); break;
+			default: list.add(randomList(depth+1)); break;
+			}
+		}
+		return list;
+	}
+
+	private String randomString() {
+		StringBuilder text = new StringBuilder();
+		for(int i=random.nextInt(20);i>0;i--) text.append(randomChar());
+		if(random.nextInt(10)==0) text.appendCodePoint(0x1f600+random.nextInt(64));
+		return text.toString();
+	}
+
+	private char randomChar() {
+		switch(random.nextInt(6)) {
+		case 0: return (char) random.nextInt(32);
+		case 1: return '"';
+		case 2: return '\\';
+		case 3: return (char) (0x80+random.nextInt(0x3000));
+		default: return (char) ('a'+random.nextInt(26));
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package pb.protocols.event;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that an event from a journal is passed on once, whatever order its
+ * id arrives in, and which journals are forgotten when there are too many ids.
+ */
+public class EventDedupTest {
+
+	@Test
+	public void idsSeenAgainAreDuplicates() {
+		EventDedup dedup = new EventDedup(10,100);
+		for(long id=1;id<=50;id++) assertTrue(dedup.apply("a",id));
+		for(long id=1;id<=50;id++) assertFalse(dedup.apply("a",id));
+		assertEquals(0,dedup.size());
+		// each journal has its own ids
+		assertTrue(dedup.apply("b",1));
+	}
+
+	@Test
+	public void idsAboveAGapAreKept() {
+		EventDedup dedup = new EventDedup(10,100);
+		assertTrue(dedup.apply("a",1));
+		for(long id=3;id<=100;id++) assertTrue(dedup.apply("a",id));
+		assertEquals(98,dedup.size());
+		// the event before the others is still on its way, and passed on once
+		assertTrue(dedup.apply("a",2));
+		assertFalse(dedup.apply("a",2));
+		assertFalse(dedup.apply("a",99));
+		assertEquals(0,dedup.size());
+	}
+
+	@Test
+	public void tooManyIdsForgetTheJournalHeardFromLeast() {
+		EventDedup dedup = new EventDedup(10,100);
+		for(long id=2;id<=60;id++) assertTrue(dedup.apply("a",id));
+		for(long id=2;id<=40;id++) assertTrue(dedup.apply("b",id));
+		assertEquals(98,dedup.size());
+		assertTrue(dedup.apply("b",41));
+		assertTrue(dedup.apply("b",42));
+		assertTrue(dedup.apply("b",43));
+		// "a" was forgotten rather than any id of "b"
+		assertEquals(42,dedup.size());
+		assertTrue(dedup.apply("a",2));
+		assertFalse(dedup.apply("b",2));
+		assertTrue(dedup.apply("b",1));
+		assertEquals(1,dedup.size());
+	}
+
+	@Test
+	public void tooManyJournalsForgetTheOneHeardFromLeast() {
+		EventDedup dedup = new EventDedup(2,100);
+		assertTrue(dedup.apply("a",1));
+		assertTrue(dedup.apply("b",1));
+		assertFalse(dedup.apply("a",1));
+		assertTrue(dedup.apply("c",1));
+		assertFalse(dedup.apply("a",1));
+		assertTrue(dedup.apply("b",1));
+	}
+}
@@ -0,0 +1,563 @@
+package pb.protocols.event;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import pb.managers.ClientManager;
+import pb.managers.IOThread;
+import pb.managers.ServerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Message;
+import pb.utils.Utils;
+
+/**
+ * Checks the numbering, cumulative acks and window of the event protocol
+ * between a server and a client on this host.
+ */
+public class EventProtocolTest {
+	/**
+	 * Held so that its level stays set; a line for every message sent and
+	 * received would slow the tests right down.
+	 */
+	private static final Logger log = Logger.getLogger("pb");
+
+	static {
+		log.setLevel(Level.WARNING);
+	}
+
+	private ServerManager serverManager;
+	private ClientManager clientManager;
+
+	/**
+	 * The endpoints of the session, set once it has started.
+	 */
+	private volatile Endpoint server, client;
+
+	/**
+	 * Data of the events the server received, in the order passed on.
+	 */
+	private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * Data of the events the client received, in the order passed on.
+	 */
+	private final List<String> clientReceived = Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * Between the client and the server, if the connection is to be cut.
+	 */
+	private Relay relay;
+
+	private final int defaultWindow = Utils.getInstance().getEventWindow();
+
+	private final int defaultResumeGrace = Utils.getInstance().getSessionResumeGrace();
+
+	private final int defaultBacklog = Utils.getInstance().getEventBacklog();
+
+	private final int defaultJournal = Utils.getInstance().getEventJournal();
+
+	@AfterEach
+	public void shutdown() {
+		if(clientManager!=null) clientManager.shutdown();
+		if(serverManager!=null) serverManager.shutdown();
+		if(relay!=null) relay.close();
+	}
+
+	@Test
+	public void cumulativeAcksCoverEveryEvent() throws Exception {
+		connect();
+		assertEquals(Endpoint.EventAcks.Cumulative,client.getEventAcks());
+		int count=10000;
+		for(int i=0;i<count;i++) client.emit("event",""+i);
+		waitForEvents(count);
+		assertInOrder(count);
+		EventProtocol events = eventProtocol(client);
+		waitFor(()->events.getUnackedEvents()==0);
+		assertEquals(0,client.getPendingRequests());
+		assertEquals(count,eventProtocol(server).getReceivedSeq());
+	}
+
+	@Test
+	public void reactorStopsWithTheServer() throws Exception {
+		connect(false,IOThread.Mode.Reactor);
+		int count=1000;
+		for(int i=0;i<count;i++) client.emit("event",""+i);
+		waitForEvents(count);
+		assertInOrder(count);
+		assertTrue(reactorThreads()>0,"no selector threads");
+		clientManager.shutdown();
+		serverManager.shutdown();
+		waitFor(()->reactorThreads()==0);
+	}
+
+	private static long reactorThreads() {
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter((thread)->thread.getName().startsWith("Reactor-")).count();
+	}
+
+	@Test
+	public void numberedEventsOfEveryPriorityStayInOrder() throws Exception {
+		connect();
+		client.setEventPriority("bulk",Message.Priority.Bulk);
+		List<String> bulk = Collections.synchronizedList(new ArrayList<>());
+		server.on("bulk",(args)->{bulk.add((String)args[0]);});
+		int count=2000;
+		for(int i=0;i<count;i++) client.emit("bulk",""+i);
+		for(int i=0;i<count;i++) client.emit("event",""+i);
+		waitForEvents(count);
+		assertInOrder(count);
+		waitFor(()->bulk.size()>=count);
+		synchronized(bulk) {
+			assertEquals(count,bulk.size());
+			for(int i=0;i<count;i++) assertEquals(""+i,bulk.get(i));
+		}
+		EventProtocol events = eventProtocol(client);
+		waitFor(()->events.getUnackedEvents()==0);
+	}
+
+	@Test
+	public void interactiveEventsOvertakeBulkOnes() throws Exception {
+		Utils utils = Utils.getInstance();
+		int fragmentSize = utils.getEventFragmentSize();
+		int fragmentsInFlight = utils.getEventFragmentsInFlight();
+		utils.setEventFragmentSize(8*1024);
+		utils.setEventFragmentsInFlight(4096);
+		try {
+			overtake();
+		} finally {
+			utils.setEventFragmentSize(fragmentSize);
+			utils.setEventFragmentsInFlight(fragmentsInFlight);
+		}
+	}
+
+	/**
+	 * With the server not reading, queue the pieces of a large bulk event
+	 * and then an interactive event, and check that the interactive event
+	 * gets there first.
+	 */
+	private void overtake() throws Exception {
+		connect();
+		assertEquals(Endpoint.EventAcks.Cumulative,client.getEventAcks());
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch unblock = new CountDownLatch(1);
+		server.on("block",(args)->{
+			blocked.countDown();
+			try {
+				unblock.await(10,TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				// carry on
+			}
+		}).on("bulk",(args)->{
+			received.add("bulk");
+		});
+		client.setEventPriority("bulk",Message.Priority.Bulk);
+		client.emit("block","");
+		assertTrue(blocked.await(10,TimeUnit.SECONDS),"server did not block");
+		// random, so that it does not compress to nothing
+		byte[] data = new byte[16*1024*1024];
+		new Random(1).nextBytes(data);
+		client.emit("bulk",data);
+		client.emit("event","interactive");
+		unblock.countDown();
+		waitForEvents(2);
+		assertEquals("interactive",received.get(0));
+		assertEquals("bulk",received.get(1));
+	}
+
+	@Test
+	public void largeEventsAreNotOvertakenByEventsWithTheSameName() throws Exception {
+		Utils utils = Utils.getInstance();
+		int fragmentSize = utils.getEventFragmentSize();
+		utils.setEventFragmentSize(1024);
+		try {
+			connect();
+			char[] large = new char[256*1024];
+			Arrays.fill(large,'x');
+			client.emit("event",new String(large));
+			int count=100;
+			for(int i=0;i<count;i++) client.emit("event",""+i);
+			waitForEvents(count+1);
+			assertEquals(large.length,received.get(0).length());
+			for(int i=0;i<count;i++) assertEquals(""+i,received.get(i+1));
+		} finally {
+			utils.setEventFragmentSize(fragmentSize);
+		}
+	}
+
+	@Test
+	public void numberedEventsAreConflatedWhenFallingBehind() throws Exception {
+		Utils utils = Utils.getInstance();
+		int fragmentSize = utils.getEventFragmentSize();
+		int fragmentsInFlight = utils.getEventFragmentsInFlight();
+		utils.setEventFragmentSize(8*1024);
+		utils.setEventFragmentsInFlight(4096);
+		try {
+			conflate();
+		} finally {
+			utils.setEventFragmentSize(fragmentSize);
+			utils.setEventFragmentsInFlight(fragmentsInFlight);
+		}
+	}
+
+	/**
+	 * With the server not reading, queue enough of a large bulk event for
+	 * the client to start conflating, and check that of the events sent
+	 * after it the server gets the latest, in order, and not every one.
+	 */
+	private void conflate() throws Exception {
+		connect();
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch unblock = new CountDownLatch(1);
+		server.on("block",(args)->{
+			blocked.countDown();
+			try {
+				unblock.await(10,TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				// carry on
+			}
+		});
+		client.setEventPriority("bulk",Message.Priority.Bulk);
+		client.setWatermarks(1024*1024,4*1024*1024);
+		client.setCongestionPolicy(Endpoint.CongestionPolicy.Conflate,0);
+		client.emit("block","");
+		assertTrue(blocked.await(10,TimeUnit.SECONDS),"server did not block");
+		byte[] data = new byte[16*1024*1024];
+		new Random(1).nextBytes(data);
+		client.emit("bulk",data);
+		waitFor(()->client.getSheddingPolicy()==Endpoint.CongestionPolicy.Conflate);
+		int count=1000;
+		for(int i=0;i<count;i++) client.emit("event",""+i);
+		unblock.countDown();
+		waitFor(()->received.size()>0 && received.get(received.size()-1).equals(""+(count-1)));
+		assertTrue(received.size()<count,"nothing was conflated");
+		synchronized(received) {
+			for(int i=1;i<received.size();i++) {
+				assertTrue(Integer.parseInt(received.get(i-1))<Integer.parseInt(received.get(i)),"out of order");
+			}
+		}
+	}
+
+	@Test
+	public void windowLimitsEventsInFlight() throws Exception {
+		int window=16;
+		Utils.getInstance().setEventWindow(window);
+		try {
+			connect();
+		} finally {
+			Utils.getInstance().setEventWindow(defaultWindow);
+		}
+		EventProtocol events = eventProtocol(client);
+		int count=1500;
+		long mostInFlight=0;
+		List<CompletableFuture<Boolean>> acked = new ArrayList<>();
+		for(int i=0;i<count;i++) {
+			switch(i%3) {
+			case 0:
+				client.emit("event",""+i);
+				break;
+			case 1:
+				acked.add(events.sendEventAsync("event",""+i));
+				break;
+			default:
+				assertTrue(events.sendEventBlocking("event",""+i,10000),"no room in the window");
+				break;
+			}
+			mostInFlight=Math.max(mostInFlight,events.getUnackedEvents());
+		}
+		assertTrue(mostInFlight<=window,mostInFlight+" events in flight");
+		waitForEvents(count);
+		assertInOrder(count);
+		for(CompletableFuture<Boolean> future : acked) {
+			assertTrue(future.get(10,TimeUnit.SECONDS));
+		}
+		waitFor(()->events.getUnackedEvents()==0 && events.getBackloggedEvents()==0);
+	}
+
+	@Test
+	public void eventsAreDroppedWhenTheBacklogIsFull() throws Exception {
+		int window=1, backlog=10;
+		Utils.getInstance().setEventWindow(window);
+		Utils.getInstance().setEventBacklog(backlog);
+		try {
+			connect();
+		} finally {
+			Utils.getInstance().setEventWindow(defaultWindow);
+			Utils.getInstance().setEventBacklog(defaultBacklog);
+		}
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch unblock = new CountDownLatch(1);
+		server.on("block",(args)->{
+			blocked.countDown();
+			try {
+				unblock.await(10,TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				// carry on
+			}
+		});
+		EventProtocol events = eventProtocol(client);
+		client.emit("block","");
+		assertTrue(blocked.await(10,TimeUnit.SECONDS),"server did not block");
+		waitFor(()->events.getUnackedEvents()==0);
+		int count=100;
+		List<CompletableFuture<Boolean>> acked = new ArrayList<>();
+		for(int i=0;i<count;i++) acked.add(events.sendEventAsync("event",""+i));
+		assertEquals(backlog,events.getBackloggedEvents());
+		for(int i=window+backlog;i<count;i++) {
+			assertTrue(acked.get(i).isDone() && !acked.get(i).join(),"event "+i+" was kept");
+		}
+		unblock.countDown();
+		for(int i=0;i<window+backlog;i++) assertTrue(acked.get(i).get(10,TimeUnit.SECONDS));
+		waitForEvents(window+backlog);
+		assertInOrder(window+backlog);
+	}
+
+	@Test
+	public void sessionResumesWithoutLosingOrRepeatingEvents() throws Exception {
+		Utils.getInstance().setSessionResumeGrace(10000);
+		try {
+			resume();
+		} finally {
+			Utils.getInstance().setSessionResumeGrace(defaultResumeGrace);
+		}
+	}
+
+	@Test
+	public void journalReplaysEventsOnANewSessionOnce() throws Exception {
+		Utils utils = Utils.getInstance();
+		utils.setSessionResumeGrace(0);
+		utils.setEventJournal(100000,null,0);
+		try {
+			connect(true);
+			Endpoint oldClient=client;
+			int count=3000;
+			for(int i=0;i<count;i++) {
+				// the journal keeps the events for whichever session is next
+				oldClient.emit("event",""+i);
+				if(i==count/3) relay.cut();
+			}
+			waitForEvents(count);
+			assertInOrder(count);
+			assertTrue(client!=oldClient,"no new session was started");
+			assertEquals(null,client.getSessionId());
+			Thread.sleep(500);
+			assertEquals(count,received.size(),"events were passed on twice");
+		} finally {
+			utils.setSessionResumeGrace(defaultResumeGrace);
+			utils.setEventJournal(defaultJournal,null,utils.getEventJournalFileSize());
+		}
+	}
+
+	/**
+	 * Send events both ways, cutting the connection part of the way through,
+	 * and check that both endpoints get every event once and in order.
+	 */
+	private void resume() throws Exception {
+		connect(true);
+		Endpoint oldClient=client, oldServer=server;
+		int count=3000;
+		Thread serverSends = new Thread(()->{
+			for(int i=0;i<count;i++) oldServer.emit("serverEvent",""+i);
+		});
+		serverSends.start();
+		for(int i=0;i<count;i++) {
+			oldClient.emit("event",""+i);
+			if(i==count/3) relay.cut();
+		}
+		serverSends.join();
+		waitForEvents(count);
+		assertInOrder(count);
+		waitFor(()->clientReceived.size()>=count);
+		synchronized(clientReceived) {
+			assertEquals(count,clientReceived.size());
+			for(int i=0;i<count;i++) assertEquals(""+i,clientReceived.get(i));
+		}
+		assertTrue(client!=oldClient,"session was not resumed");
+		assertEquals(oldClient.getSessionId(),client.getSessionId());
+	}
+
+	/**
+	 * Start a server and a client on a free port, with the server keeping the
+	 * data of "event" events and the client that of "serverEvent" events, and
+	 * wait for the session to start on both. Emitting an event on an endpoint
+	 * also passes it to the callbacks on that endpoint, hence the two names.
+	 */
+	private void connect() throws Exception {
+		connect(false);
+	}
+
+	/**
+	 * @param relayed true to connect the client through a {@link Relay}
+	 * @see {@link #connect()}
+	 */
+	private void connect(boolean relayed) throws Exception {
+		connect(relayed,IOThread.Mode.Blocking);
+	}
+
+	/**
+	 * @param relayed true to connect the client through a {@link Relay}
+	 * @param ioMode how the server handles connections
+	 * @see {@link #connect()}
+	 */
+	private void connect(boolean relayed, IOThread.Mode ioMode) throws Exception {
+		int port = freePort();
+		CountDownLatch listening = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(2);
+		serverManager = new ServerManager(port);
+		serverManager.setIOMode(ioMode);
+		serverManager.on(IOThread.ioThread,(args)->{
+			listening.countDown();
+		}).on(ServerManager.sessionStarted,(args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			endpoint.on("event",(args2)->{received.add((String)args2[0]);});
+			server=endpoint;
+			started.countDown();
+		}).on(ServerManager.sessionResumed,(args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			endpoint.on("event",(args2)->{received.add((String)args2[0]);});
+			server=endpoint;
+		});
+		serverManager.start();
+		assertTrue(listening.await(10,TimeUnit.SECONDS),"server is not listening");
+		if(relayed) relay = new Relay(port);
+		clientManager = new ClientManager("localhost",relayed ? relay.getPort() : port);
+		clientManager.on(ClientManager.sessionStarted,(args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			endpoint.on("serverEvent",(args2)->{clientReceived.add((String)args2[0]);});
+			client=endpoint;
+			started.countDown();
+		}).on(ClientManager.sessionResumed,(args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			endpoint.on("serverEvent",(args2)->{clientReceived.add((String)args2[0]);});
+			client=endpoint;
+		});
+		clientManager.start();
+		assertTrue(started.await(10,TimeUnit.SECONDS),"session did not start");
+	}
+
+	private static int freePort() throws IOException {
+		try(ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static EventProtocol eventProtocol(Endpoint endpoint) {
+		return (EventProtocol)endpoint.getProtocol(EventProtocol.protocolName);
+	}
+
+	private void waitForEvents(int count) throws InterruptedException {
+		waitFor(()->received.size()>=count);
+		assertEquals(count,received.size());
+	}
+
+	private void assertInOrder(int count) {
+		synchronized(received) {
+			for(int i=0;i<count;i++) assertEquals(""+i,received.get(i));
+		}
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	/**
+	 * Wait up to 10 seconds for a condition to hold.
+	 */
+	private static void waitFor(Condition condition) throws InterruptedException {
+		long end = System.currentTimeMillis()+10000;
+		while(!condition.holds() && System.currentTimeMillis()<end) Thread.sleep(10);
+		assertTrue(condition.holds(),"timed out");
+	}
+
+	/**
+	 * Passes bytes between clients and a server, and can cut every connection
+	 * through it, as when a network drops, while still accepting new ones.
+	 */
+	private static final class Relay {
+		private final ServerSocket listener;
+		private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+		Relay(int serverPort) throws IOException {
+			listener = new ServerSocket(0);
+			Thread accepter = new Thread(()->{
+				try {
+					while(true) {
+						Socket client = listener.accept();
+						Socket server = new Socket("localhost",serverPort);
+						sockets.add(client);
+						sockets.add(server);
+						pump(client,server);
+						pump(server,client);
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			});
+			accepter.setDaemon(true);
+			accepter.start();
+		}
+
+		int getPort() {
+			return listener.getLocalPort();
+		}
+
+		private void pump(Socket from, Socket to) {
+			Thread pump = new Thread(()->{
+				byte[] buffer = new byte[65536];
+				try(InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+					int read;
+					while((read=in.read(buffer))>0) out.write(buffer,0,read);
+				} catch (IOException e) {
+					// cut
+				}
+				cut(from,to);
+			});
+			pump.setDaemon(true);
+			pump.start();
+		}
+
+		private static void cut(Closeable... sockets) {
+			for(Closeable socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+
+		/**
+		 * Cut every connection through the relay.
+		 */
+		void cut() {
+			synchronized(sockets) {
+				sockets.forEach((socket)->{cut(socket);});
+				sockets.clear();
+			}
+		}
+
+		void close() {
+			cut();
+			cut(listener);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package pb.protocols.event;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that only numbers received with no gap before them are
+ * acknowledged, and that events received again are recognised.
+ */
+public class ReceivedSeqsTest {
+
+	@Test
+	public void numbersInOrderMoveTheFloor() {
+		ReceivedSeqs received = new ReceivedSeqs();
+		for(long seq=1;seq<=100;seq++) {
+			assertTrue(received.add(seq));
+			assertEquals(seq,received.getFloor());
+		}
+		assertEquals(0,received.getAbove());
+	}
+
+	@Test
+	public void gapHoldsTheFloor() {
+		ReceivedSeqs received = new ReceivedSeqs();
+		assertTrue(received.add(1));
+		assertTrue(received.add(2));
+		assertTrue(received.add(4));
+		assertTrue(received.add(5));
+		assertEquals(2,received.getFloor());
+		assertEquals(2,received.getAbove());
+		assertTrue(received.add(3));
+		assertEquals(5,received.getFloor());
+		assertEquals(0,received.getAbove());
+	}
+
+	@Test
+	public void numbersReceivedAgainAreRecognised() {
+		ReceivedSeqs received = new ReceivedSeqs();
+		assertTrue(received.add(1));
+		assertTrue(received.add(3));
+		assertFalse(received.add(1));
+		assertFalse(received.add(3));
+		assertTrue(received.add(2));
+		assertFalse(received.add(2));
+		assertFalse(received.add(3));
+		assertEquals(3,received.getFloor());
+	}
+
+	@Test
+	public void resumedNumbersKeepThoseAfterAGap() {
+		ReceivedSeqs old = new ReceivedSeqs();
+		old.add(1);
+		old.add(2);
+		old.add(4);
+		ReceivedSeqs resumed = new ReceivedSeqs(old);
+		// the other endpoint sends again everything after the floor
+		assertEquals(2,resumed.getFloor());
+		assertTrue(resumed.add(3));
+		assertFalse(resumed.add(4));
+		assertTrue(resumed.add(5));
+		assertEquals(5,resumed.getFloor());
+		// the suspended numbers are left as they were
+		assertEquals(2,old.getFloor());
+		assertEquals(1,old.getAbove());
+	}
+
+	@Test
+	public void gapThatNeverFillsIsGivenUpOn() {
+		ReceivedSeqs received = new ReceivedSeqs();
+		assertTrue(received.add(1));
+		for(long seq=3;seq<=10000;seq++) {
+			assertTrue(received.add(seq));
+			assertTrue(received.getFloor()==1 || received.getFloor()==seq);
+		}
+		assertEquals(10000,received.getFloor());
+		assertEquals(0,received.getAbove());
+		assertFalse(received.add(2));
+	}
+}
@@ -0,0 +1,78 @@
+package pb.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that timeouts of a {@link TimingWheel} run once, no sooner than
+ * their delay, however many revolutions that is, and not at all once
+ * cancelled.
+ */
+public class TimingWheelTest {
+
+	/**
+	 * One revolution is 80ms.
+	 */
+	private final TimingWheel wheel = new TimingWheel(10,8,Runnable::run);
+
+	@AfterEach
+	public void stop() {
+		wheel.stop();
+	}
+
+	@Test
+	public void cancelledTimeoutsDoNotRun() throws Exception {
+		AtomicInteger runs = new AtomicInteger();
+		TimingWheel.Timeout timeout = wheel.schedule(()->{runs.incrementAndGet();},50);
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		assertTrue(timeout.isCancelled());
+		// a later timeout runs, and the cancelled one still has not
+		CountDownLatch later = new CountDownLatch(1);
+		wheel.schedule(()->{later.countDown();},150);
+		assertTrue(later.await(5,TimeUnit.SECONDS));
+		assertEquals(0,runs.get());
+		assertFalse(timeout.isExpired());
+	}
+
+	@Test
+	public void timeoutRearmedInALaterRoundRunsOnceWhenDue() throws Exception {
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch ran = new CountDownLatch(1);
+		long start = System.nanoTime();
+		TimingWheel.Timeout timeout = wheel.schedule(()->{runs.incrementAndGet();},40);
+		timeout.cancel();
+		// three revolutions on, in the same bucket as the first
+		wheel.schedule(()->{
+			runs.incrementAndGet();
+			ran.countDown();
+		},280);
+		assertTrue(ran.await(5,TimeUnit.SECONDS));
+		assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(280),"ran early");
+		Thread.sleep(200);
+		assertEquals(1,runs.get());
+	}
+
+	@Test
+	public void timeoutsScheduledOnAnIdleWheelRunWhenDue() throws Exception {
+		for(int i=0;i<3;i++) {
+			// long enough for the wheel to have parked
+			Thread.sleep(300);
+			CountDownLatch ran = new CountDownLatch(1);
+			long start = System.nanoTime();
+			wheel.schedule(()->{ran.countDown();},30);
+			assertTrue(ran.await(5,TimeUnit.SECONDS));
+			long elapsed = System.nanoTime()-start;
+			assertTrue(elapsed>=TimeUnit.MILLISECONDS.toNanos(30),"ran early");
+			assertTrue(elapsed<TimeUnit.MILLISECONDS.toNanos(1000),"ran "+elapsed+"ns late");
+		}
+	}
+}